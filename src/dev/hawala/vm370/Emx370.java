@@ -19,14 +19,22 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.util.ArrayList;
 
 import dev.hawala.vm370.CommandTokens.Tokenizer;
+import dev.hawala.vm370.cons.UserCommandsConsole;
 import dev.hawala.vm370.cons.UserConsole3270;
 import dev.hawala.vm370.cons.UserConsoleSerial;
+import dev.hawala.vm370.dasd.ckdc.CkdcCompaction;
+import dev.hawala.vm370.dasd.ckdc.CkdcDrive;
+import dev.hawala.vm370.dasd.ckdc.DriveBaseExternalIO;
+import dev.hawala.vm370.dasd.ckdc.DriveBaseExternalIO.SharedBase;
+import dev.hawala.vm370.ebcdic.EbcdicTranscoder;
+import dev.hawala.vm370.mecaff.OutputScheduler;
+import dev.hawala.vm370.mecaff.TerminalChannelLoop;
+import dev.hawala.vm370.mecaff.TerminalChannelLoop.TerminalChannel;
 import dev.hawala.vm370.mecaff.TerminalTypeNegotiator;
+import dev.hawala.vm370.mecaff.Vm3270Console;
 import dev.hawala.vm370.vm.cp.CPCommandInterpreterEmulator;
 import dev.hawala.vm370.vm.machine.CPVirtualMachine;
 
@@ -73,11 +81,14 @@ public class Emx370 {
 	public interface iTerminalConsole {
 		
 		/**
-		 * Start the CP command interpreter loop for the connected terminal,
+		 * Start the CP command interpreter for the connected terminal,
 		 * handling CP and emulator commands, for eventually creating virtual
 		 * machines (sequentially each time a user logs on and then off). 
+		 * 
+		 * @param sessionEndCallback to be invoked when the CP command interpreter
+		 *   terminated itself after the connection was shut down.
 		 */
-		public void mainLoop();
+		public void startSession(Runnable sessionEndCallback);
 		
 		/**
 		 * shutdown the connection, possibly logging out the current user if
@@ -109,6 +120,9 @@ public class Emx370 {
 	// this connection was closed in the meantime)
 	private static ArrayList<ConnectionHandler> connections = new ArrayList<ConnectionHandler>();
 	
+	// template base files for cloned user minidisks (:DASDCLONE), held loaded even if no user is logged on
+	private static ArrayList<SharedBase> ckdcTemplates = new ArrayList<SharedBase>();
+	
 	// base CUU used to simulate the real device number or terminal line number
 	// to which a remote terminal emulator is connected to:
 	//     "real CUU" = base CUU + <index in connections>
@@ -134,10 +148,11 @@ public class Emx370 {
 	}
 	
 	/**
-	 * Manager for a single terminal connection, running the CP command
-	 * interpreter bound to this connection in a separate thread.
+	 * Manager for a single terminal connection, starting the CP command
+	 * interpreter bound to this connection and freeing the terminal line
+	 * when the interpreter terminates.
 	 */
-	private static class ConnectionHandler implements Runnable {
+	private static class ConnectionHandler {
 		
 		// the CP interpreter for the console
 		private final iTerminalConsole terminalConsole;
@@ -145,28 +160,21 @@ public class Emx370 {
 		// the index of this connection in <connections>
 		private final int connectionIndex;
 		
-		// the thread running the mainloop for the connection's CP interaction
-		private final Thread thread;
-		
-		// constructor: starts the thread for the the CP interaction
-		public ConnectionHandler(ThreadGroup thrGroup, iTerminalConsole terminalConsole, int connectionIndex) {
+		// constructor: starts the CP interaction
+		public ConnectionHandler(iTerminalConsole terminalConsole, int connectionIndex) {
 			this.terminalConsole = terminalConsole;
 			this.connectionIndex = connectionIndex;
 			
-			this.thread = new Thread(thrGroup, this, thrGroup.getName() + " ConnectionHandler -> run-mainLoop()");
-			this.thread.start();
+			this.terminalConsole.startSession(this::sessionEnded);
 		}
 		
 		// force closing the remote connection
 		public void shutdown() {
-			this.terminalConsole.shutdown(); // bring the CP interpreted loop to terminate itself
-			this.thread.interrupt(); // just to be sure...
+			this.terminalConsole.shutdown(); // bring the CP interpreter to terminate itself
 		}
 
-		// run the CP interpreter loop until it terminates itself 
-		@Override
-		public void run() {
-			this.terminalConsole.mainLoop();
+		// the CP interpreter terminated itself 
+		private void sessionEnded() {
 			synchronized(connections) {
 				System.out.printf(
 						"Closed connection %d (line %03X)\n",
@@ -179,86 +187,33 @@ public class Emx370 {
 	}
 	
 	/**
-	 * Implementation of the socket listener waiting for new terminal
-	 * connections in a separate thread, starting a new ConnectionHandler
-	 * for each connection.
+	 * Handle a new terminal connection accepted by the terminal event loop,
+	 * starting a new ConnectionHandler for the connection.
 	 */
-	private static class ConnectionListener implements Runnable {
-		
-		private final ServerSocket serviceSocket;
-		
-		private final Thread thread;
-		private volatile boolean doShutdown = false;
-		
-		// constructor: start listening on the given connection port
-		public ConnectionListener(int listenPort) throws Exception {
-			try {
-				this.serviceSocket = new ServerSocket(listenPort);
-			} catch (IOException  e) {
-				throw new Exception("** Unable to open service socket on port: " + listenPort, e);
-			}
+	private static void connectionAccepted(TerminalTypeNegotiator termType, TerminalChannel channel) {
+		synchronized(connections) {
+			// get the simulated terminal line number
+			int connNo = findFreeTerminalLine();
+			int pseudoLine = connNo + REAL_TERMINAL_DEVICE_BASE;
 			
-			this.thread = new Thread(this, "ConnectionListener");
-			this.thread.start();
-		}
-		
-		// stop listening for new connections
-		public void shutdown() {
-			this.doShutdown = true;
-			try {
-				this.serviceSocket.close();
-			} catch (IOException exc) {
-				// ignored
-			}
-		}
-
-		// thread implementation: wait for new connections and start a new 
-		// ConnectionHandler for each.
-		@Override
-		public void run() {
-			while(!this.doShutdown) {
-				Socket terminalSideSocket = null;
-				
-				//  wait for a terminal opening a connection to us...
-				try {
-					terminalSideSocket = this.serviceSocket.accept();
-				} catch (IOException exc) {
-					
-					if (this.doShutdown) { return; }
-					logger.error("** Error listening on service socket: " + exc.getMessage());
-					logger.info("** retrying listening on service socket...");
-					continue;
-				}
-				
-				// handle the new connection
-				synchronized(connections) {
-					// get the simulated terminal line number
-					int connNo = findFreeTerminalLine();
-					int pseudoLine = connNo + REAL_TERMINAL_DEVICE_BASE;
-					ThreadGroup threadBasegroup = new ThreadGroup("Conn #" + connNo);
-					
-					// get the terminal type and get a matching console type
-					TerminalTypeNegotiator termType = new TerminalTypeNegotiator(connNo, terminalSideSocket, stickToPredefinedTerminalTypes, minColorCount);
-					if (termType.isClosed()) { continue; } // connection not workable
-					iTerminalConsole console = (termType.isIn320Mode())
-										? new UserConsole3270(threadBasegroup, pseudoLine, termType, (short)0)
-										: new UserConsoleSerial(threadBasegroup, pseudoLine, termType.getIsFromTerm(), termType.getOsToTerm());
-										
-					// start the sessin for the terminal
-					ConnectionHandler connHandler = new ConnectionHandler(threadBasegroup, console, connNo);
-					if (connNo < connections.size()) {
-						connections.set(connNo, connHandler);
-					} else {
-						connections.add(connHandler);
-					}
-					System.out.printf(
-							"Accepted connection %d (line %03X, type: %s)\n",
-							connNo,
-							pseudoLine,
-							(termType.isIn320Mode()) ? "3270" : "3215"
-							);
-				}
+			// get a console matching the terminal type
+			iTerminalConsole console = (termType.isIn320Mode())
+								? new UserConsole3270(pseudoLine, termType, channel, (short)0)
+								: new UserConsoleSerial(pseudoLine, channel);
+								
+			// start the session for the terminal
+			ConnectionHandler connHandler = new ConnectionHandler(console, connNo);
+			if (connNo < connections.size()) {
+				connections.set(connNo, connHandler);
+			} else {
+				connections.add(connHandler);
 			}
+			System.out.printf(
+					"Accepted connection %d (line %03X, type: %s)\n",
+					connNo,
+					pseudoLine,
+					(termType.isIn320Mode()) ? "3270" : "3215"
+					);
 		}
 	}
 	
@@ -310,6 +265,84 @@ public class Emx370 {
 				return false;
 			}
 			
+			// command: CKDCTEMPLATE <basefile-spec>
+			if (cmd.equals("CKDCTEMPLATE")) {
+				String basefileName = tokens.next();
+				if (basefileName == null) { throw new CmdError(SYS_MISSING_PARAM, "basefile-spec"); }
+				
+				SharedBase template = DriveBaseExternalIO.getSharedBase(basefileName);
+				synchronized(ckdcTemplates) {
+					if (!ckdcTemplates.contains(template)) { ckdcTemplates.add(template); }
+				}
+				tell("Loaded CKDC template base file: %s\n", basefileName);
+				
+				return false;
+			}
+			
+			// command: CKDCCOMPACT <basefile-spec> [<backup-basefile-spec>]
+			if (cmd.equals("CKDCCOMPACT")) {
+				String basefileName = tokens.next();
+				if (basefileName == null) { throw new CmdError(SYS_MISSING_PARAM, "basefile-spec"); }
+				String backupFilename = tokens.next();
+				
+				CkdcDrive drive = CPCommandInterpreterEmulator.getAttachedCkdcDrive(basefileName);
+				CkdcCompaction compaction = (drive != null)
+						? CkdcCompaction.start(drive, basefileName, backupFilename)
+						: CkdcCompaction.startOffline(basefileName, backupFilename);
+				if (compaction == null) {
+					tell("No delta file for %s, nothing to compact\n", basefileName);
+				} else {
+					tell("Started %s compaction of %s\n", (drive != null) ? "online" : "offline", basefileName);
+				}
+				
+				return false;
+			}
+			
+			// command: CODEPAGE [<codepage>]
+			if (cmd.equals("CODEPAGE")) {
+				String arg = tokens.nextUpper();
+				if (arg != null) {
+					EbcdicTranscoder transcoder = EbcdicTranscoder.forCodepage(arg);
+					if (transcoder == null) {
+						tell("invalid codepage '%s', valid codepages: %s\n", arg, EbcdicTranscoder.getCodepageNames());
+						return false;
+					}
+					EbcdicTranscoder.setDefault(transcoder);
+				}
+				tell("Codepage for new 3215 sessions and spool files: %s\n", EbcdicTranscoder.getDefault().getName());
+				return false;
+			}
+			
+			// command: CONSOLEHISTORY [<kbytes-in-memory> [SPILL|NOSPILL]]
+			if (cmd.equals("CONSOLEHISTORY")) {
+				String arg = tokens.next();
+				if (arg != null) {
+					int kBytes = Integer.parseInt(arg);
+					arg = tokens.nextUpper();
+					boolean spill = (arg != null) ? arg.equals("SPILL") : Vm3270Console.isOutputHistorySpilled();
+					Vm3270Console.setOutputHistoryLimits(kBytes, spill);
+				}
+				tell("Console output history for new 3270 sessions: %d KBytes in memory, older lines %s\n",
+						Vm3270Console.getOutputHistoryKBytes(),
+						(Vm3270Console.isOutputHistorySpilled()) ? "spilled to temp file" : "dropped");
+				return false;
+			}
+			
+			// command: CONSOLEOUTPUT [<max-frames-per-second> [<max-bytes-per-second>]]
+			if (cmd.equals("CONSOLEOUTPUT")) {
+				String arg = tokens.next();
+				if (arg != null) {
+					int framesPerSecond = Integer.parseInt(arg);
+					arg = tokens.next();
+					int bytesPerSecond = (arg != null) ? Integer.parseInt(arg) : OutputScheduler.getByteBudget();
+					OutputScheduler.setLimits(framesPerSecond, bytesPerSecond);
+				}
+				tell("Console output limits: %d frames/second, %s\n",
+						OutputScheduler.getMaxFrameRate(),
+						(OutputScheduler.getByteBudget() > 0) ? OutputScheduler.getByteBudget() + " bytes/second" : "unlimited bytes/second");
+				return false;
+			}
+			
 			// command: CPUTYPE <type>
 			if (isToken(cmd, "CPUTYPE", 3)) {
 				String arg = tokens.nextUpper();
@@ -361,6 +394,11 @@ public class Emx370 {
 			if (isToken(cmd, "HELP", 2)) {
 				tell("Possible system commands:");
 				tell("  SHAREDCKDC <username> <cuu> <basefile-spec>");
+				tell("  CKDCTEMPLATE <basefile-spec>");
+				tell("  CKDCCOMPACT <basefile-spec> [<backup-basefile-spec>]");
+				tell("  CODEPAGE [EMX370|CP037|CP1047|CP500|CP273]");
+				tell("  CONSOLEHISTORY [<kbytes-in-memory> [SPILL|NOSPILL]]");
+				tell("  CONSOLEOUTPUT [<max-frames-per-second> [<max-bytes-per-second>]]");
 				tell("  PS2PDFCOMMAND <ps2pdf-command>");
 				tell("  SHUTDOWN CONFIRMED");
 				return false;
@@ -377,7 +415,7 @@ public class Emx370 {
 	
 	// run a system script (and ignoring requests to shut down the system!)
 	@SuppressWarnings("deprecation")
-	private static void loadSystemScript(String filename) {
+	static void loadSystemScript(String filename) {
 		File scriptFile = new File(filename);
 		if (scriptFile == null || !scriptFile.exists() || !scriptFile.isFile() || !scriptFile.canRead()) {
 			tell("Error: script file '%s' not found  or not readable\n", filename);
@@ -414,11 +452,11 @@ public class Emx370 {
 		
 		// start the background listener for telnet connections
 		tell("## Starting listener on port " + listenPort);
-		ConnectionListener listener;
+		TerminalChannelLoop listener;
 		try {
-			listener = new ConnectionListener(listenPort);
-		} catch (Exception  e) {
-			logger.error(e.getMessage());
+			listener = new TerminalChannelLoop(listenPort, stickToPredefinedTerminalTypes, minColorCount, Emx370::connectionAccepted);
+		} catch (IOException  e) {
+			logger.error("** Unable to open service socket on port: " + listenPort + " (" + e.getMessage() + ")");
 			logger.error("Program startup aborted");
 			return;
 		}
@@ -449,6 +487,7 @@ public class Emx370 {
 		for (ConnectionHandler h : connections) {
 			if (h != null) { h.shutdown(); }
 		}
+		UserCommandsConsole.shutdownSessionWorkers();
 		
 		// shutdown the logger's background thread (looking for configuration changes)
 		Log.shutdown();
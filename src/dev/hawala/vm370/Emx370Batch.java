@@ -0,0 +1,200 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+import dev.hawala.vm370.cons.UserCommandsConsole;
+import dev.hawala.vm370.cons.UserConsoleBatch;
+
+/**
+ * Main class for running CMS jobs in batch mode, i.e. without terminals.
+ *
+ * <p>
+ * After executing the global command file {@code emx370.script} (defining the
+ * shared minidisks), each job given on the command line is run in a virtual
+ * machine of its own driven by a {@link UserConsoleBatch}: the lines of the job
+ * file (or stdin for {@code -}) are entered as console input, beginning with
+ * the LOGON command, and all console output is written to the output file for
+ * the job ({@code <jobfile>.out} in the output directory resp. {@code stdin.out}).
+ * The virtual machine is logged off when the job lines are exhausted or the timeout
+ * for the job expires.
+ * </p>
+ * <p>
+ * Up to the given number of jobs are run concurrently, the program terminates
+ * when all jobs have ended, with the exit code giving the number of jobs
+ * that could not be started or were ended by the timeout.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ *
+ */
+public class Emx370Batch {
+
+	// base CUU used to simulate the terminal line number of a batch job:
+	//     "real CUU" = base CUU + <job index>
+	private static final int BATCH_TERMINAL_DEVICE_BASE = 0x100;
+
+	/**
+	 * A single batch job with its input and output files.
+	 */
+	private static class Job {
+
+		private final String jobName;
+		private final String jobFile; // null for stdin
+		private final File outFile;
+
+		private UserConsoleBatch console = null;
+		private boolean failed = false; // could not be started?
+
+		private Job(String jobFile, File outDir) {
+			this.jobFile = (jobFile.equals("-")) ? null : jobFile;
+			this.jobName = (this.jobFile == null) ? "stdin" : new File(jobFile).getName();
+			File dir = (outDir != null) ? outDir : (this.jobFile == null) ? new File(".") : new File(jobFile).getAbsoluteFile().getParentFile();
+			this.outFile = new File(dir, this.jobName + ".out");
+		}
+
+		// start the job, invoking the callback when it ended
+		private void start(int jobIndex, String logonLine, long timeoutMs, Runnable jobEndCallback) throws IOException {
+			BufferedReader jobInput = (this.jobFile == null)
+					? new BufferedReader(new InputStreamReader(System.in))
+					: new BufferedReader(new FileReader(this.jobFile));
+			PrintStream output = new PrintStream(new FileOutputStream(this.outFile));
+			this.console = new UserConsoleBatch(
+					BATCH_TERMINAL_DEVICE_BASE + jobIndex,
+					logonLine,
+					jobInput,
+					output,
+					timeoutMs);
+			System.out.printf("Started job %s (output to %s)\n", this.jobName, this.outFile.getPath());
+			this.console.startSession(() -> {
+				System.out.printf("Ended job %s%s\n", this.jobName, (this.console.isTimedOut()) ? " (timed out)" : "");
+				jobEndCallback.run();
+			});
+		}
+
+		private boolean isTimedOut() {
+			return this.console != null && this.console.isTimedOut();
+		}
+
+		private boolean isFailed() {
+			return this.failed || this.isTimedOut();
+		}
+	}
+
+	// print usage info and terminate program
+	static void usage() {
+		String progname = Emx370Batch.class.getCanonicalName();
+		System.out.printf("Usage: %s [options] <jobfile> ...\n", progname);
+		System.out.printf(" with <jobfile> = file with the console input lines, - for stdin\n");
+		System.out.printf(" and options:\n");
+		System.out.printf("    -user <username>   : logon as this user instead of having LOGON as first job line\n");
+		System.out.printf("    -jobs <count>      : max. number of jobs running concurrently (default: 1)\n");
+		System.out.printf("    -timeout <seconds> : max. run time of a job (default: 0 = no timeout)\n");
+		System.out.printf("    -outdir <dir>      : directory for the console output files (default: where the job file is)\n");
+
+		System.exit(255);
+	}
+
+	private static int parseInt(String parm) {
+		int val = -1;
+		try {
+			val = Integer.parseInt(parm);
+		} catch(NumberFormatException e) {
+			usage();
+		}
+		return val;
+	}
+
+	/**
+	 * Main entry point of the emx370 batch runner.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		String logonLine = null;
+		int maxConcurrentJobs = 1;
+		long timeoutMs = 0;
+		File outDir = null;
+		ArrayList<String> jobFiles = new ArrayList<String>();
+
+		// get the parameters
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.startsWith("-") && arg.length() > 1) {
+				if (i + 1 >= args.length) { usage(); }
+				String value = args[++i];
+				if (arg.equalsIgnoreCase("-user")) {
+					logonLine = "LOGON " + value;
+				} else if (arg.equalsIgnoreCase("-jobs")) {
+					maxConcurrentJobs = Math.max(1, parseInt(value));
+				} else if (arg.equalsIgnoreCase("-timeout")) {
+					timeoutMs = Math.max(0, parseInt(value)) * 1000L;
+				} else if (arg.equalsIgnoreCase("-outdir")) {
+					outDir = new File(value);
+				} else {
+					usage();
+				}
+			} else {
+				jobFiles.add(arg);
+			}
+		}
+		if (jobFiles.isEmpty()) { usage(); }
+
+		// load system script (should define shared CKD minidisks)
+		System.out.println("## Initializing emx370 system");
+		Emx370.loadSystemScript("emx370.script");
+
+		// run the jobs
+		ArrayList<Job> jobs = new ArrayList<Job>();
+		Semaphore jobSlots = new Semaphore(maxConcurrentJobs);
+		CountDownLatch jobsDone = new CountDownLatch(jobFiles.size());
+		for (String jobFile : jobFiles) {
+			Job job = new Job(jobFile, outDir);
+			jobs.add(job);
+			jobSlots.acquireUninterruptibly();
+			try {
+				job.start(jobs.size() - 1, logonLine, timeoutMs, () -> { jobSlots.release(); jobsDone.countDown(); });
+			} catch (IOException e) {
+				System.out.printf("Error starting job %s: %s\n", jobFile, e.getMessage());
+				job.failed = true;
+				jobSlots.release();
+				jobsDone.countDown();
+			}
+		}
+		try {
+			jobsDone.await();
+		} catch (InterruptedException e) {
+			// terminate anyway...
+		}
+
+		// done: shutdown the background threads and exit with the number of failed jobs
+		int failed = 0;
+		for (Job job : jobs) {
+			if (job.isFailed()) { failed++; }
+		}
+		UserCommandsConsole.shutdownSessionWorkers();
+		Log.shutdown();
+		System.out.printf("## %d job(s) done, %d failed or timed out\n", jobs.size(), failed);
+		System.exit(Math.min(failed, 254));
+	}
+
+}
@@ -0,0 +1,223 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import dev.hawala.vm370.loadtest.LoadSession;
+import dev.hawala.vm370.loadtest.LoadSession3270;
+import dev.hawala.vm370.loadtest.LoadSessionTelnet;
+import dev.hawala.vm370.loadtest.LoadStatistics;
+import dev.hawala.vm370.loadtest.Workload;
+
+/**
+ * Main class for load testing a running emx370 with concurrent terminal sessions.
+ *
+ * <p>
+ * The given number of tn3270 and plain telnet sessions are opened to emx370, each
+ * logging on a user of its own, replaying the workload script and logging off the
+ * user. The tn3270 sessions negotiate like x3270, so the complete terminal type
+ * negotiation and the MECAFF 3270 console are exercised, the telnet sessions get
+ * a 3215 console with character echo.
+ * </p>
+ * <p>
+ * The users are named from a prefix and the session number ({@code LOAD001} ...); if
+ * a logon script template is given, the logon script for each user is created from
+ * the template in the emx370 directory before the sessions start.
+ * </p>
+ * <p>
+ * When all sessions ended, the response time percentiles per keystroke and until the
+ * console is ready again are reported, with the exit code giving the number of sessions
+ * that failed.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ *
+ */
+public class Emx370Load {
+
+	// print usage info and terminate program
+	static void usage() {
+		String progname = Emx370Load.class.getCanonicalName();
+		System.out.printf("Usage: %s [options] <workload>\n", progname);
+		System.out.printf(" with <workload> = file with the workload steps replayed by each session\n");
+		System.out.printf(" and options:\n");
+		System.out.printf("    -host <host>       : host where emx370 runs (default: localhost)\n");
+		System.out.printf("    -port <port>       : port where emx370 listens (default: 3278)\n");
+		System.out.printf("    -tn3270 <count>    : number of tn3270 sessions (default: 1)\n");
+		System.out.printf("    -telnet <count>    : number of plain telnet sessions (default: 0)\n");
+		System.out.printf("    -model <2..5>      : 3279 model of the tn3270 sessions (default: 2)\n");
+		System.out.printf("    -users <prefix>    : prefix of the user names, max. 5 chars (default: LOAD)\n");
+		System.out.printf("    -template <file>   : logon script template for creating the users' logon scripts\n");
+		System.out.printf("    -sysdir <dir>      : emx370 directory for the logon scripts (default: .)\n");
+		System.out.printf("    -loops <count>     : number of workload replays per session (default: 1)\n");
+		System.out.printf("    -think <ms>        : pause between workload steps (default: 1000)\n");
+		System.out.printf("    -rampup <ms>       : delay between session starts (default: 500)\n");
+		System.out.printf("    -timeout <seconds> : max. wait for a response (default: 60)\n");
+		System.out.printf("    -settle <ms>       : quiet time for fullscreen screens to be ready (default: 100)\n");
+		System.out.printf("    -idle <ms>         : quiet time for 3270 commands without Ready message (default: 2000)\n");
+
+		System.exit(255);
+	}
+
+	private static int parseInt(String parm) {
+		int val = -1;
+		try {
+			val = Integer.parseInt(parm);
+		} catch(NumberFormatException e) {
+			usage();
+		}
+		return val;
+	}
+
+	// create the logon script for a user from the template
+	private static void createLogonScript(String template, File sysDir, String user, int sessionNo) throws IOException {
+		File script = new File(sysDir, user.toLowerCase() + ".logonscript");
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(script), StandardCharsets.ISO_8859_1)) {
+			w.write(Workload.substitute(template, user, sessionNo));
+		}
+	}
+
+	/**
+	 * Main entry point of the emx370 load test.
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		String host = "localhost";
+		int port = 3278;
+		int count3270 = 1;
+		int countTelnet = 0;
+		int model = 2;
+		String userPrefix = "LOAD";
+		String templateFile = null;
+		File sysDir = new File(".");
+		int loops = 1;
+		long thinkMs = 1000;
+		long rampupMs = 500;
+		long timeoutMs = 60000;
+		long settleMs = 100;
+		long idleMs = 2000;
+		String workloadFile = null;
+
+		// get the parameters
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.startsWith("-") && arg.length() > 1) {
+				if (i + 1 >= args.length) { usage(); }
+				String value = args[++i];
+				if (arg.equalsIgnoreCase("-host")) {
+					host = value;
+				} else if (arg.equalsIgnoreCase("-port")) {
+					port = parseInt(value);
+				} else if (arg.equalsIgnoreCase("-tn3270")) {
+					count3270 = Math.max(0, parseInt(value));
+				} else if (arg.equalsIgnoreCase("-telnet")) {
+					countTelnet = Math.max(0, parseInt(value));
+				} else if (arg.equalsIgnoreCase("-model")) {
+					model = parseInt(value);
+					if (model < 2 || model > 5) { usage(); }
+				} else if (arg.equalsIgnoreCase("-users")) {
+					userPrefix = value.toUpperCase();
+					if (userPrefix.length() > 5) { usage(); }
+				} else if (arg.equalsIgnoreCase("-template")) {
+					templateFile = value;
+				} else if (arg.equalsIgnoreCase("-sysdir")) {
+					sysDir = new File(value);
+				} else if (arg.equalsIgnoreCase("-loops")) {
+					loops = Math.max(1, parseInt(value));
+				} else if (arg.equalsIgnoreCase("-think")) {
+					thinkMs = Math.max(0, parseInt(value));
+				} else if (arg.equalsIgnoreCase("-rampup")) {
+					rampupMs = Math.max(0, parseInt(value));
+				} else if (arg.equalsIgnoreCase("-timeout")) {
+					timeoutMs = Math.max(1, parseInt(value)) * 1000L;
+				} else if (arg.equalsIgnoreCase("-settle")) {
+					settleMs = Math.max(1, parseInt(value));
+				} else if (arg.equalsIgnoreCase("-idle")) {
+					idleMs = Math.max(1, parseInt(value));
+				} else {
+					usage();
+				}
+			} else if (workloadFile == null) {
+				workloadFile = arg;
+			} else {
+				usage();
+			}
+		}
+		int sessionCount = count3270 + countTelnet;
+		if (workloadFile == null || sessionCount == 0 || sessionCount > 999) { usage(); }
+
+		// load the workload and create the users' logon scripts
+		Workload workload = null;
+		try {
+			workload = Workload.load(workloadFile);
+			if (templateFile != null) {
+				String template = new String(Files.readAllBytes(new File(templateFile).toPath()), StandardCharsets.ISO_8859_1);
+				for (int sessionNo = 1; sessionNo <= sessionCount; sessionNo++) {
+					createLogonScript(template, sysDir, String.format("%s%03d", userPrefix, sessionNo), sessionNo);
+				}
+				System.out.printf("## Created %d logon scripts in %s\n", sessionCount, sysDir.getPath());
+			}
+		} catch (IOException e) {
+			System.out.printf("** Error: %s\n", e.getMessage());
+			System.exit(255);
+		}
+
+		// run the sessions
+		System.out.printf("## Starting %d tn3270 and %d telnet sessions to %s:%d\n", count3270, countTelnet, host, port);
+		LoadStatistics stats = new LoadStatistics();
+		ArrayList<LoadSession> sessions = new ArrayList<LoadSession>();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		stats.start();
+		try {
+			for (int sessionNo = 1; sessionNo <= sessionCount; sessionNo++) {
+				String user = String.format("%s%03d", userPrefix, sessionNo);
+				LoadSession session = (sessionNo <= count3270)
+						? new LoadSession3270(sessionNo, user, host, port, workload, loops, thinkMs, timeoutMs, stats, model, settleMs, idleMs)
+						: new LoadSessionTelnet(sessionNo, user, host, port, workload, loops, thinkMs, timeoutMs, stats);
+				Thread thr = new Thread(session, "Emx370Load " + session.getName());
+				thr.setDaemon(true);
+				sessions.add(session);
+				threads.add(thr);
+				thr.start();
+				if (sessionNo < sessionCount && rampupMs > 0) { Thread.sleep(rampupMs); }
+			}
+			for (Thread thr : threads) {
+				thr.join();
+			}
+		} catch (InterruptedException e) {
+			// report what we have...
+		}
+		stats.stop();
+
+		// done: report the response times and exit with the number of failed sessions
+		int failed = 0;
+		for (LoadSession session : sessions) {
+			if (session.getFailure() != null) {
+				System.out.printf("** %s failed: %s\n", session.getName(), session.getFailure());
+				failed++;
+			}
+		}
+		stats.report(System.out);
+		System.out.printf("## %d session(s) done, %d failed\n", sessions.size(), failed);
+		System.exit(Math.min(failed, 254));
+	}
+
+}
@@ -13,8 +13,10 @@
 package dev.hawala.vm370.card;
 
 import dev.hawala.vm370.spool.iSpoolDevice;
+import dev.hawala.vm370.vm.device.MemorySegments;
 import dev.hawala.vm370.vm.device.iDeviceIO;
 import dev.hawala.vm370.vm.device.iDeviceStatus;
+import dev.hawala.vm370.vm.machine.NullEventTracker;
 import dev.hawala.vm370.vm.machine.iProcessorEventTracker;
 
 /**
@@ -29,11 +31,6 @@ public class CardDev2540Puncher implements iSpoolDevice {
 	// the log sink for our log outputs
 	private iProcessorEventTracker eventLogger;
 	
-	// a /dev/null event tracker
-	private static class NullTracker implements iProcessorEventTracker {
-		public void logLine(String line, Object... args) {};
-	}
-	
 	// immutable data for this printer (as owned by this VM)
 	private final String username;
 	private final String outputDirectory;
@@ -42,7 +39,7 @@ public class CardDev2540Puncher implements iSpoolDevice {
 	private iCardSink currentSink;
 	
 	public CardDev2540Puncher(iProcessorEventTracker eventTracker, String username, String outputDirectory) {
-		this.eventLogger = (eventTracker == null) ? new NullTracker() : eventTracker;
+		this.eventLogger = (eventTracker == null) ? NullEventTracker.INSTANCE : eventTracker;
 		this.username = username;
 		this.outputDirectory = outputDirectory;
 		
@@ -234,6 +231,17 @@ public class CardDev2540Puncher implements iSpoolDevice {
 			
 			this.ensureSink();
 			
+			// punch the card image directly from memory if contiguous, once the channel accepted the transfer
+			MemorySegments segments = memSource.getDirectSegments();
+			if (segments != null && segments.isContiguous()) {
+				byte[] mem = segments.getMemory();
+				int memOffset = segments.getOffset(0);
+				int count = memSource.completeDirect(this.cardBuffer.length);
+				int cardLength = (count < 0) ?  this.cardBuffer.length + count : this.cardBuffer.length;
+				this.currentSink.writeCard(mem, memOffset, cardLength);
+				return this.exitOk();
+			}
+			
 			int count = memSource.transfer(this.cardBuffer, 0, this.cardBuffer.length);
 			int cardLength = (count < 0) ?  this.cardBuffer.length + count : this.cardBuffer.length;
 			this.currentSink.writeCard(this.cardBuffer, 0, cardLength);
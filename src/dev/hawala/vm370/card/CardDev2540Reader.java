@@ -18,6 +18,7 @@ import java.util.List;
 import dev.hawala.vm370.spool.iSpoolDevice;
 import dev.hawala.vm370.vm.device.iDeviceIO;
 import dev.hawala.vm370.vm.device.iDeviceStatus;
+import dev.hawala.vm370.vm.machine.NullEventTracker;
 import dev.hawala.vm370.vm.machine.iProcessorEventTracker;
 
 /**
@@ -33,13 +34,8 @@ public class CardDev2540Reader implements iSpoolDevice {
 	// the log sink for our log outputs
 	private iProcessorEventTracker eventLogger;
 	
-	// a /dev/null event tracker
-	private static class NullTracker implements iProcessorEventTracker {
-		public void logLine(String line, Object... args) {};
-	}
-	
 	public CardDev2540Reader(iProcessorEventTracker eventTracker) {
-		this.eventLogger = (eventTracker == null) ? new NullTracker() : eventTracker;
+		this.eventLogger = (eventTracker == null) ? NullEventTracker.INSTANCE : eventTracker;
 	}
 	
 	// the card sources to process
@@ -14,7 +14,7 @@ package dev.hawala.vm370.card;
 
 import java.io.IOException;
 
-import dev.hawala.vm370.ebcdic.EbcdicHandler;
+import dev.hawala.vm370.ebcdic.EbcdicTranscoder;
 import dev.hawala.vm370.spool.CloseableDiskFileSink;
 
 /**
@@ -39,13 +39,23 @@ public class CardSinkAsciiFile extends CloseableDiskFileSink implements iCardSin
 		super(outputDirectory, "pun", "txt");
 	}	
 	
-	private final EbcdicHandler card = new EbcdicHandler(80);
+	private static final byte[] LINE_END = System.lineSeparator().getBytes();
+	
+	private final EbcdicTranscoder transcoder = EbcdicTranscoder.getDefault();
+	private final byte[] card = new byte[80 + LINE_END.length];
 
 	@Override
 	public void writeCard(byte[] buffer, int offset, int length) {
 		if (this.sink == null) { return; }
-		this.card.reset().appendEbcdic(buffer, offset, length).strip();
-		this.sink.println(this.card.getString());
+		if (offset < 0 || offset >= buffer.length) {
+			length = 0;
+		} else {
+			length = Math.min(Math.min(length, 80), buffer.length - offset);
+		}
+		length = EbcdicTranscoder.strippedLength(buffer, offset, Math.max(0, length));
+		int end = this.transcoder.toAscii(buffer, offset, length, this.card, 0);
+		System.arraycopy(LINE_END, 0, this.card, end, LINE_END.length);
+		this.sink.write(this.card, 0, end + LINE_END.length);
 	}
 	
 }
@@ -42,7 +42,8 @@ public class CardSinkEbcdicFile extends CloseableDiskFileSink implements iCardSi
 	public void writeCard(byte[] buffer, int offset, int length) {
 		if (this.sink == null) { return; }
 		int written = 0;
-		for(int i = offset; i < buffer.length && written < iCardSink.CARDLENGTH; i++, written++) {
+		int limit = Math.min(offset + length, buffer.length);
+		for(int i = offset; i < limit && written < iCardSink.CARDLENGTH; i++, written++) {
 			this.sink.write(buffer[i]);
 		}
 		while(written++ < iCardSink.CARDLENGTH) {
@@ -18,11 +18,16 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 
-import dev.hawala.vm370.ebcdic.Ebcdic;
+import dev.hawala.vm370.ebcdic.EbcdicTranscoder;
 
 /**
  * Card source for ascii files, reading line by line as cards, ignoring control
  * characters except for line ends.
+ * <p>
+ * The file is read in chunks, with the characters of a line being translated to
+ * EBCDIC directly into the card buffer using the codepage selected when the card
+ * source was created.
+ * </p>
  * 
  * @author Dr. Hans-Walter Latz, Berlin (Germany), 2016
  */
@@ -36,6 +41,11 @@ public class CardSourceAsciiFile implements iCardSource {
 	private InputStream fis = null;
 	private int lastByte = -1;
 	
+	private final EbcdicTranscoder transcoder = EbcdicTranscoder.getDefault();
+	private final byte[] chunk = new byte[4096];
+	private int chunkPos = 0;
+	private int chunkLen = 0;
+	
 	private static final int CR = 0x0D;
 	private static final int LF = 0x0A;
 	
@@ -87,11 +97,19 @@ public class CardSourceAsciiFile implements iCardSource {
 	}
 	
 	private int get() {
-		try {
-			return this.fis.read();
-		} catch (IOException e) {
-			return -1;
+		if (this.chunkPos >= this.chunkLen) {
+			try {
+				this.chunkLen = this.fis.read(this.chunk, 0, this.chunk.length);
+			} catch (IOException e) {
+				this.chunkLen = -1;
+			}
+			this.chunkPos = 0;
+			if (this.chunkLen <= 0) {
+				this.chunkLen = 0;
+				return -1;
+			}
 		}
+		return this.chunk[this.chunkPos++] & 0xFF;
 	}
 
 	@Override
@@ -130,9 +148,21 @@ public class CardSourceAsciiFile implements iCardSource {
 		// read a card content
 		while (currLen < maxLen && this.lastByte >= 0 && this.lastByte != LF) {
 			// translate last byte encountered to EBCDIC and place it into the buffer 
-			buffer[pos++] = Ebcdic.a2e((byte)this.lastByte);
+			buffer[pos++] = this.transcoder.toEbcdic((byte)this.lastByte);
 			currLen++;
 			
+			// translate the plain characters following in the current chunk in one go
+			int run = 0;
+			int runLimit = Math.min(maxLen - currLen, this.chunkLen - this.chunkPos);
+			while (run < runLimit) {
+				byte b = this.chunk[this.chunkPos + run];
+				if (b == CR || b == LF) { break; }
+				run++;
+			}
+			pos = this.transcoder.toEbcdic(this.chunk, this.chunkPos, run, buffer, pos);
+			this.chunkPos += run;
+			currLen += run;
+			
 			// get next byte from the file
 			this.lastByte = this.get();
 			while (this.lastByte == CR) {
@@ -187,6 +217,8 @@ public class CardSourceAsciiFile implements iCardSource {
 		// block any further reading
 		this.fis = new TerminatedInputStream();
 		this.lastByte = -1;
+		this.chunkPos = 0;
+		this.chunkLen = 0;
 	}
 
 }
@@ -138,11 +138,14 @@ public class ConsoleGRAF extends ConsoleSimple {
 	private ByteBuffer out3270Buffer = new ByteBuffer(8192, 1024); 
 	
 	// is the 3270 console in (real) fullscreen mode?
-	private boolean isInFullscreenMode = false;
+	private volatile boolean isInFullscreenMode = false;
 	
 	// is there fullscreen input available?
 	private volatile boolean hasFullscreenIntrPending = false;
 	
+	// did the 3270 console signal fullscreen input not yet fetched?
+	private volatile boolean fsInputAnnounced = false;
+	
 	// emulator for the VM/370 layout style screen used for DIAG-x58 screen display (non-fullscreen) 
 	private final Screen3270Emulator screen3270;
 	private final EbcdicHandler screen3270Input = new EbcdicHandler();
@@ -178,13 +181,14 @@ public class ConsoleGRAF extends ConsoleSimple {
 		}
 	}
 	
-	// check for attention interrupt
-	// see: iDevice
-	@Override
-	public boolean hasPendingAsyncInterrupt() {
-		// if we own the 3270 screen but dont't yet have an input ready to deliver:
-		// check if some input arrived since we last checked 
-		if (this.isInFullscreenMode && !this.havingFullscreenInput()) {
+	// fetch the fullscreen input announced by the 3270 console if we own the 3270 screen
+	// but don't yet have an input ready to deliver
+	// (holding the lock of the 3270 console, so the input is fetched only once if the
+	// input arrives while the VM acquires the screen)
+	private void fetchFullscreenInput() {
+		synchronized(this.console3270) {
+			if (!this.isInFullscreenMode || this.havingFullscreenInput()) { return; }
+			this.fsInputAnnounced = false;
 			try {
 				// timeout == 0 => query user input availability status and send input data if available
 				this.console3270.readFullScreen(0, 0);
@@ -193,8 +197,14 @@ public class ConsoleGRAF extends ConsoleSimple {
 				// ignored
 			}
 		}
-		
+	}
+	
+	// check for attention interrupt
+	// see: iDevice
+	@Override
+	public boolean hasPendingAsyncInterrupt() {
 		// if there is fullscreen data, the response is: yes, there is an async (Attention) interrupt pending
+		// (fullscreen input arriving from the 3270 console sets this flag, see sendFullScreenInput())
 		if (this.hasFullscreenIntrPending) { return true; }
 		
 		// else: what is the response of the superclass?
@@ -432,6 +442,9 @@ public class ConsoleGRAF extends ConsoleSimple {
 			// write to screen
 			this.console3270.writeFullscreen(this.out3270Buffer);
 			
+			// get the input that arrived while we did not own the screen
+			if (this.fsInputAnnounced) { this.fetchFullscreenInput(); }
+			
 		} catch (IOException e) {
 			return iDeviceStatus.UNIT_CHECK | iDeviceStatus.DEVICE_END;
 		}
@@ -493,6 +506,7 @@ public class ConsoleGRAF extends ConsoleSimple {
 			this.in3270CompletedCallBack = completedCallBack;
 			if (!this.emulating3270) {
 				this.hasFullscreenIntrPending = true;
+				this.userConsole.signalAsyncInterrupt(); // let the VM see the Attention interrupt now
 				// DBG System.out.printf("++ ConsoleGRAF: added pending fullscreen async interrupt\n");
 			}
 			this.notifyAll();
@@ -500,7 +514,10 @@ public class ConsoleGRAF extends ConsoleSimple {
 	}
 
 	public void sendFullScreenDataAvailability(boolean isAvailable) {
-		// ignored, as only meaningfull if a MECAFF console client is working (but this simulates a "read" 3270 terminal!)
+		// fullscreen input arrived while the VM does not wait for it: fetch it now if we own
+		// the screen (else when the next fullscreen write acquires the screen)
+		this.fsInputAnnounced = isAvailable;
+		if (isAvailable) { this.fetchFullscreenInput(); }
 	}
 
 	public void sendFullScreenTimedOut() {
@@ -31,7 +31,7 @@ public class ConsoleSimple implements iDevice {
 	
 	// the related user console connected to the terminal emulator
 	// and which in fact created this I/O device
-	private final iUserConsole userConsole;
+	protected final iUserConsole userConsole;
 	
 	// the "real" terminal line the terminal is connected to
 	protected final int pseudoLine;
@@ -14,6 +14,9 @@ package dev.hawala.vm370.cons;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import dev.hawala.vm370.Emx370;
 import dev.hawala.vm370.ebcdic.EbcdicHandler;
@@ -30,6 +33,15 @@ import dev.hawala.vm370.vm.device.iDevice;
  * infrastructure and implements abstract methods defined there.
  * </p>
  * 
+ * <p>
+ * A console is either served by an input reader thread (getting the input lines with
+ * {@code getNextUserInputLine()}) and runs the CP interpreter loop on a thread of its own,
+ * or it is driven by input events, passing the input lines with {@code processUserInputLine()}.
+ * In the latter case, the CP interpreter runs on a pooled thread only while commands are
+ * to be processed resp. the virtual machine is running, so an idle terminal session has
+ * no thread at all.
+ * </p>
+ * 
  * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
  *
  */
@@ -38,6 +50,7 @@ public abstract class UserCommandsConsole
 						implements Runnable, Emx370.iTerminalConsole {
 	
 	// the thread group for all threads for the connected terminal emulator
+	// (null if the console is driven by input events)
 	private final ThreadGroup thrGroup;
 	
 	// the commands enqueued and waiting for processing
@@ -51,11 +64,58 @@ public abstract class UserCommandsConsole
 	// be (re)issued before waiting for the next command?
 	private boolean readPending = false;
 	
+	// event driven consoles: is the session started and not yet ended, is a pooled
+	// thread currently processing commands and what to do when the session ends?
+	private boolean sessionActive = false;
+	private boolean workerActive = false;
+	private Runnable sessionEndCallback = null;
+	
+	// the threads running the CP interpreters of the event driven consoles (ending when idle)
+	private static ExecutorService sessionWorkers = null;
+	
+	// max. time to wait at system shutdown for the sessions to end
+	private static final int SESSION_END_TIMEOUT_SECS = 60;
+	
+	private static synchronized ExecutorService getSessionWorkers() {
+		if (sessionWorkers == null) {
+			sessionWorkers = Executors.newCachedThreadPool(r -> {
+				Thread thr = new Thread(r, "UserCommandsConsole session");
+				thr.setDaemon(true);
+				return thr;
+			});
+		}
+		return sessionWorkers;
+	}
+	
+	/**
+	 * Let the pooled threads of the event driven consoles end when the sessions
+	 * currently terminating are done and wait for this (at system shutdown, as
+	 * the pooled threads are daemon threads not keeping the program alive).
+	 */
+	public static void shutdownSessionWorkers() {
+		ExecutorService workers;
+		synchronized(UserCommandsConsole.class) {
+			workers = sessionWorkers;
+		}
+		if (workers == null) { return; }
+		workers.shutdown();
+		try {
+			workers.awaitTermination(SESSION_END_TIMEOUT_SECS, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			// terminate anyway...
+		}
+	}
+	
 	// constructor (does not start the input thread!)
 	protected UserCommandsConsole(ThreadGroup thrGroup) {
 		this.thrGroup = thrGroup;
 	}
 	
+	// constructor for a console driven by input events
+	protected UserCommandsConsole() {
+		this.thrGroup = null;
+	}
+	
 	// start listening for input lines arriving asynchronously
 	protected void startWork() {
 		this.inputThread = new Thread(this.thrGroup, this, this.thrGroup.getName() + " UserCommandsConsole.startWork->run(getNextUserInputLine -> inputQueue)");
@@ -67,11 +127,17 @@ public abstract class UserCommandsConsole
 		this.doShutdown = true;
 		if (this.vm != null) { this.vm.requestHalt(); }
 		if (this.inputThread != null) { this.inputThread.interrupt(); }
+		synchronized(this.inputQueue) {
+			this.startWorker(); // let the interpreter end the session
+			this.inputQueue.notifyAll();
+		}
 	}
 	
 	// the input line reader method to be implemented by terminal type dependent
-	// user consoles
-	protected abstract String getNextUserInputLine() throws IOException;
+	// user consoles using the input reader thread
+	protected String getNextUserInputLine() throws IOException {
+		return null;
+	}
 	
 	// the current prompt type to be displayed when requesting input from the user
 	protected enum PromptState { VmRead, CpRead, PwRead, VmRunning }
@@ -139,18 +205,7 @@ public abstract class UserCommandsConsole
 	}
 
 	// implementation of the thread reading lines from the console and enqueuing them
-	// into 'inputQueue', handing the following special user interaction cases:
-	//  - the remote terminal emulator disappears
-	//     => done
-	//  - an empty line is entered although no input is expected (no prompt)
-	//     => if first time:
-	//          if VM is in MODE CP : halt the VM and enter CP
-	//          else : enqueue an attention interrupt of the console device
-	//     => if the attention interrupt is still pending
-	//        (i.e.: second time and the VM did not honor the interrupt request)
-	//        drop the pending attention interrupt, halt the VM and enter CP
-	//  - split lines at # (resp. the current line separator char) and enqueue the
-	//    parts as separate command lines but preserving the # for "#CP ..." lines
+	// into 'inputQueue' (see processUserInputLine())
 	@Override
 	public void run() {
 		while(!this.doShutdown) {
@@ -161,57 +216,74 @@ public abstract class UserCommandsConsole
 					System.out.println("** User session ended by closing input source!");
 					return;
 				}
-				synchronized(this.inputQueue) {
-					if (line.length() == 0 && !this.readPending) {
-						// System.err.println("empty input => halting VM"); // remove temporary code (tests only...)
-						if (this.isTerminalAttnModeCP()) {
-							this.vm.requestHalt();
+				this.processUserInputLine(line);
+			} catch (Exception exc) {
+				// ignored...
+			}
+		}
+	}
+	
+	// enqueue an input line from the console into 'inputQueue', handing the following
+	// special user interaction cases:
+	//  - an empty line is entered although no input is expected (no prompt)
+	//     => if first time:
+	//          if VM is in MODE CP : halt the VM and enter CP
+	//          else : enqueue an attention interrupt of the console device
+	//     => if the attention interrupt is still pending
+	//        (i.e.: second time and the VM did not honor the interrupt request)
+	//        drop the pending attention interrupt, halt the VM and enter CP
+	//  - split lines at # (resp. the current line separator char) and enqueue the
+	//    parts as separate command lines but preserving the # for "#CP ..." lines
+	protected void processUserInputLine(String line) {
+		synchronized(this.inputQueue) {
+			if (line.length() == 0 && !this.readPending) {
+				// System.err.println("empty input => halting VM"); // remove temporary code (tests only...)
+				if (this.vm == null) { return; } // no VM to be noticed by the user
+				if (this.isTerminalAttnModeCP()) {
+					this.vm.requestHalt();
+				} else {
+					iDevice consoleDev = this.vm.getDevice(-1).getDevice();
+					if (consoleDev.hasPendingAsyncInterrupt()) {
+						// 2nd Attention after the first one was not honored by the VM => interrupt to CP
+						consoleDev.consumeNextAsyncInterrupt(); // clear pending Attention interrupt 
+						this.vm.requestHalt(); // goto CP
+					} else {
+						// let the VM know the user wants to be noticed...
+						consoleDev.doAttentionInterrupt();
+					}
+				}
+			} else if (line.length() == 0) {
+				this.inputQueue.add(line);
+				this.readPending = false;
+				this.inputQueue.notifyAll();
+			} else {
+				String hash = this.getIsoLineSeparator();
+				String cpPrefix = this.getImmediateCpPrefix();
+				while(line.length() > 0) {
+					String addLine = line;
+					int hashPos = line.indexOf(hash, 1);
+					if (hashPos > 0) {
+						addLine = line.substring(0,  hashPos);
+						line = line.substring(hashPos);
+					} else {
+						line = "";
+					}
+					if (addLine.startsWith(hash) && !addLine.toUpperCase().startsWith(cpPrefix)) {
+						// skip #
+						if (addLine.length() > 0) {
+							addLine = addLine.substring(1); 
 						} else {
-							iDevice consoleDev = this.vm.getDevice(-1).getDevice();
-							if (consoleDev.hasPendingAsyncInterrupt()) {
-								// 2nd Attention after the first one was not honored by the VM => interrupt to CP
-								consoleDev.consumeNextAsyncInterrupt(); // clear pending Attention interrupt 
-								this.vm.requestHalt(); // goto CP
-							} else {
-								// let the VM know the user wants to be noticed...
-								consoleDev.doAttentionInterrupt();
-							}
+							addLine = "";
 						}
-					} else if (line.length() == 0) {
-						this.inputQueue.add(line);
+					}
+					this.inputQueue.add(addLine);
+					if (this.readPending) {
 						this.readPending = false;
 						this.inputQueue.notifyAll();
-					} else {
-						String hash = this.getIsoLineSeparator();
-						String cpPrefix = this.getImmediateCpPrefix();
-						while(line.length() > 0) {
-							String addLine = line;
-							int hashPos = line.indexOf(hash, 1);
-							if (hashPos > 0) {
-								addLine = line.substring(0,  hashPos);
-								line = line.substring(hashPos);
-							} else {
-								line = "";
-							}
-							if (addLine.startsWith(hash) && !addLine.toUpperCase().startsWith(cpPrefix)) {
-								// skip #
-								if (addLine.length() > 0) {
-									addLine = addLine.substring(1); 
-								} else {
-									addLine = "";
-								}
-							}
-							this.inputQueue.add(addLine);
-							if (this.readPending) {
-								this.readPending = false;
-								this.inputQueue.notifyAll();
-							}
-						}
 					}
 				}
-			} catch (Exception exc) {
-				// ignored...
 			}
+			this.startWorker();
 		}
 	}
 	
@@ -253,6 +325,7 @@ public abstract class UserCommandsConsole
 							} catch (InterruptedException ie) {
 								throw new ReturnToMainLoopException();
 							}
+							if (this.doShutdown) { throw new ReturnToMainLoopException(); }
 						}
 						cmd = this.inputQueue.get(0);
 						this.inputQueue.remove(0);
@@ -412,4 +485,81 @@ public abstract class UserCommandsConsole
 		this.shutdownUserVm();
 	}
 	
+	
+	// start the CP interpreter for the terminal, either by running the main loop
+	// on a thread of its own or (for event driven consoles) by processing the
+	// commands entered on a pooled thread
+	// see: Emx370.iTerminalConsole
+	@Override
+	public void startSession(Runnable sessionEndCallback) {
+		if (this.thrGroup != null) {
+			Thread thr = new Thread(
+					this.thrGroup,
+					() -> { this.mainLoop(); sessionEndCallback.run(); },
+					this.thrGroup.getName() + " UserCommandsConsole.startSession -> run-mainLoop()");
+			thr.start();
+			return;
+		}
+		synchronized(this.inputQueue) {
+			this.sessionEndCallback = sessionEndCallback;
+			this.sessionActive = true;
+			this.workerActive = true;
+		}
+		getSessionWorkers().execute(() -> {
+			this.writeLogo();
+			this.runTopLevelCommands();
+		});
+	}
+	
+	// event driven consoles: let a pooled thread process the enqueued top level commands
+	// if none is currently doing this
+	// !! requires to be called with holding the lock on this.inputQueue !!
+	private void startWorker() {
+		if (this.thrGroup != null || !this.sessionActive || this.workerActive) { return; }
+		this.workerActive = true;
+		getSessionWorkers().execute(this::runTopLevelCommands);
+	}
+	
+	// event driven consoles: the top level CP command interpreter, like mainLoop() but
+	// returning when all enqueued commands are processed (the VM runs as part of an
+	// :IPL command, so the thread is kept while the VM runs)
+	private void runTopLevelCommands() {
+		while(true) {
+			String cpCommand = null;
+			synchronized(this.inputQueue) {
+				if (this.doShutdown) { break; }
+				
+				// if nothing is enqueued: show CP READ prompt and leave
+				if (this.inputQueue.size() == 0) {
+					this.readPending = true;
+					this.switchToPromptState(PromptState.CpRead);
+					this.workerActive = false;
+					return;
+				}
+				
+				// get the CP command
+				this.readPending = false;
+				cpCommand = this.inputQueue.get(0);
+				this.inputQueue.remove(0);
+			}
+			
+			try {
+				this.executeCPCommand(cpCommand, false, false);
+			} catch(ReturnToMainLoopException rtmException) {
+				// ignored: the purpose is exactly to get here 
+			}
+		}
+		
+		// the session ends
+		this.shutdownUserVm();
+		Runnable callback;
+		synchronized(this.inputQueue) {
+			this.sessionActive = false;
+			this.workerActive = false;
+			callback = this.sessionEndCallback;
+			this.sessionEndCallback = null;
+		}
+		if (callback != null) { callback.run(); }
+	}
+	
 }
@@ -13,15 +13,16 @@
 package dev.hawala.vm370.cons;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 
 import dev.hawala.vm370.ebcdic.EbcdicHandler;
 import dev.hawala.vm370.ebcdic.EbcdicTextPipeline;
 import dev.hawala.vm370.mecaff.ByteBuffer;
+import dev.hawala.vm370.mecaff.IBufferSink;
 import dev.hawala.vm370.mecaff.IVm3270ConsoleCompletedSink;
 import dev.hawala.vm370.mecaff.IVm3270ConsoleInputSink;
+import dev.hawala.vm370.mecaff.TerminalChannelLoop.TerminalChannel;
 import dev.hawala.vm370.mecaff.TerminalTypeNegotiator;
 import dev.hawala.vm370.mecaff.Vm3270Console;
 import dev.hawala.vm370.mecaff.Vm3270Console.Attr;
@@ -37,6 +38,10 @@ import dev.hawala.vm370.vm.device.iDevice;
  * interfacing it to a MECAFF-console, providing an iDevice to the virtual machine for SIO and
  * DIAG-x58 operations on the MECAFF-console. 
  * </p>
+ * <p>
+ * The console is driven by the input arriving on the terminal connection, i.e. it
+ * has no input reader thread.
+ * </p>
  * 
  * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
  *
@@ -46,8 +51,7 @@ public class UserConsole3270 extends UserCommandsConsole implements IVm3270Conso
 	// the negociator used for the terminal connection
 	private final TerminalTypeNegotiator conn3270;
 	
-	// the telnet I/O streams to the connection terminal emulator
-	private final InputStream is;
+	// the telnet output stream to the connection terminal emulator
 	private final OutputStream os;
 	
 	// the MECAFF-console and its telated items
@@ -62,27 +66,27 @@ public class UserConsole3270 extends UserCommandsConsole implements IVm3270Conso
 	private final ArrayList<String> userInputLines = new ArrayList<String>();
 	
 	// constructor: startup everything
-	public UserConsole3270(ThreadGroup thrGroup, int pseudoLine, TerminalTypeNegotiator conn3270, short sendDelayMs) {
-		super(thrGroup);
+	public UserConsole3270(int pseudoLine, TerminalTypeNegotiator conn3270, TerminalChannel channel, short sendDelayMs) {
+		super();
 		// save the connection objects
 		this.conn3270 = conn3270;
-		this.is = conn3270.getIsFromTerm();
-		this.os = conn3270.getOsToTerm();
+		this.os = channel.getOutputStream();
 		
 		// create a MECAFF 320 user interaction console
-		this.console3270 = new Vm3270Console(thrGroup, this, this.os, conn3270.getNumAltRows(), conn3270.getNumAltCols(), conn3270.canExtended(), sendDelayMs);
+		this.console3270 = new Vm3270Console(this, this.os, conn3270.getNumAltRows(), conn3270.getNumAltCols(), conn3270.canExtended(), sendDelayMs);
+		this.console3270.setOutputBacklog(channel);
 		
-		// create and start the thread reading the terminal's InputStream and stuffing input in the MECAFF console 
-		this.term2Console = new Term2Console(thrGroup, this.is, this.console3270);
+		// create the receiver stuffing the terminal input in the MECAFF console 
+		this.term2Console = new Term2Console(this.console3270);
 		
 		// create the line buffer from the VM to the MECAFF console
-		this.pipeline2console = new EbcdicTextPipeline(thrGroup, this.console3270, null, "pipeline2console");
+		this.pipeline2console = new EbcdicTextPipeline(this.console3270, null, "pipeline2console");
 		
 		// create the 3270 device for the VM
 		this.consoleDevice = new ConsoleGRAF(this, pseudoLine, this.console3270, this.conn3270);
 		
-		// let the CP command interpreter start reading user input
-		this.startWork();
+		// let the CP command interpreter start receiving user input
+		channel.startReading(this.term2Console);
 	}
 	
 	// shutdown the terminal connection
@@ -90,57 +94,42 @@ public class UserConsole3270 extends UserCommandsConsole implements IVm3270Conso
 	public void shutdown() {
 		System.out.println("+++ UserConsole3270.shutdown()");
 		try { this.os.close(); } catch (IOException e) { }
-		try { this.is.close(); } catch (IOException e) { }
 		this.consoleDevice.shutdown();
-		this.term2Console.shutdown();
 		this.pipeline2console.shutdown();
 		this.console3270.close();
 		super.shutdown();
 	}
 	
 	/*
-	 * input stream reader => feed incoming data from the terminal emulator into the MECAFF-console
+	 * terminal input receiver => feed incoming data from the terminal emulator into the MECAFF-console
+	 * and pass the resulting input lines to the CP interpreter (after the MECAFF-console released its
+	 * lock, as the CP interpreter calls the MECAFF-console while holding its input queue lock)
 	 */
-	private class Term2Console implements Runnable {
+	private class Term2Console implements IBufferSink {
 		
-		private final InputStream src;
 		private final Vm3270Console trg;
 		
-		private final Thread thr;
-		private volatile boolean doStop = false;
-		
-		public Term2Console(ThreadGroup thrGroup, InputStream is, Vm3270Console console3270) {
-			this.src = is;
+		public Term2Console(Vm3270Console console3270) {
 			this.trg = console3270;
-			
-			this.thr = new Thread(thrGroup, this, thrGroup.getName() + " UserConsole3270.Term2Console(is -> console3270)");
-			this.thr.start();
 		}
 		
-		public void shutdown() {
-			this.doStop = true;
-			this.thr.interrupt();
-		}
-
 		@Override
-		public void run() {
-			byte[] buffer = new byte[8192];
-			try {
-				int count = this.src.read(buffer);
-				while(!this.doStop && count >= 0) {
-					this.trg.processBytesFromTerminal(buffer, count);
-					count = this.src.read(buffer);
+		public void processBytes(byte[] buffer, int count) throws IOException, InterruptedException {
+			this.trg.processBytesFromTerminal(buffer, count);
+			while(true) {
+				String line;
+				synchronized(userInputLines) {
+					if (userInputLines.isEmpty()) { return; }
+					line = userInputLines.remove(0);
 				}
+				processUserInputLine(line);
 			}
-			catch(Exception e) {
-				// ignored
-				System.out.printf("** terminal connection lost (%s)\n", e.getMessage());
-			}
-			if (!this.doStop) {
-				// System.out.println("** shutting down UserConsole3270");
-				UserConsole3270.this.shutdown();
-			}
-			// System.out.println("** leaving Term2Console.run();");
+		}
+		
+		@Override
+		public void connectionClosed() {
+			System.out.println("** terminal connection lost");
+			UserConsole3270.this.shutdown();
 		}
 	}
 	
@@ -178,23 +167,6 @@ public class UserConsole3270 extends UserCommandsConsole implements IVm3270Conso
 		this.console3270.setAttr(element, attr);
 	}
 
-	@Override
-	protected String getNextUserInputLine() throws IOException {
-		String nextLine;
-		synchronized(this.userInputLines) {
-			while (this.userInputLines.size() == 0) {
-				try {
-					this.userInputLines.wait();
-				} catch(InterruptedException e) {
-					return null;
-				}
-			}
-			nextLine = this.userInputLines.get(0);
-			this.userInputLines.remove(0);
-		}
-		return nextLine;
-	}
-
 	@Override
 	protected void switchToPromptState(PromptState state) {
 		try {
@@ -245,7 +217,6 @@ public class UserConsole3270 extends UserCommandsConsole implements IVm3270Conso
 	private void sendUserInput(String inputLine) {
 		synchronized(this.userInputLines) {
 			this.userInputLines.add(inputLine);
-			this.userInputLines.notifyAll();
 		}
 	}
 
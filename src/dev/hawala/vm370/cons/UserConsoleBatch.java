@@ -0,0 +1,256 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.cons;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import dev.hawala.vm370.ebcdic.EbcdicHandler;
+import dev.hawala.vm370.vm.device.iDevice;
+
+/**
+ * User console for running a batch job without terminal.
+ *
+ * <p>
+ * This class is an adapter for the generic user console {@link UserCommandsConsole}
+ * feeding the lines of a job (from a job file or stdin) as user input and writing
+ * all console output to a stream (usually a file).
+ * </p>
+ * <p>
+ * Each time the CP command interpreter or the virtual machine prompts for input, the
+ * next job line is entered, so the job runs like a user typing ahead each line only
+ * after the previous command has finished. The first job line must be the LOGON for
+ * the user (unless a logon line is given explicitly), creating the virtual machine
+ * from the user's logon script. When the job lines are exhausted, the virtual machine
+ * is logged off, ending the batch session. If the job does not end before the given
+ * timeout, the session is shut down, with the virtual machine being logged off.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ *
+ */
+public class UserConsoleBatch extends UserCommandsConsole {
+
+	// the threads entering the job lines (reading the job source may block)
+	private static ExecutorService jobInputFeeders = null;
+
+	private static synchronized ExecutorService getJobInputFeeders() {
+		if (jobInputFeeders == null) {
+			jobInputFeeders = Executors.newCachedThreadPool(r -> {
+				Thread thr = new Thread(r, "UserConsoleBatch job input");
+				thr.setDaemon(true);
+				return thr;
+			});
+		}
+		return jobInputFeeders;
+	}
+
+	// the timer for the job timeouts
+	private static ScheduledExecutorService jobTimer = null;
+
+	private static synchronized ScheduledExecutorService getJobTimer() {
+		if (jobTimer == null) {
+			jobTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thr = new Thread(r, "UserConsoleBatch job timeout");
+				thr.setDaemon(true);
+				return thr;
+			});
+		}
+		return jobTimer;
+	}
+
+	// the prompt strings written to the output before the job line entered
+	private static final String PROMPT_CP_READ = "CP read > ";
+	private static final String PROMPT_PW_READ = "PWDread > ";
+	private static final String PROMPT_VM_READ = "VM read > ";
+
+	// the job to run and where the console output goes
+	private final BufferedReader jobInput;
+	private final PrintStream output;
+	private final long timeoutMs;
+
+	// the first line to enter before the job lines (LOGON command) if not null
+	private String logonLine;
+
+	// the console iDevice related with this user console
+	private final ConsoleSimple consoleCONS;
+
+	// the state of the job (guarded by 'output')
+	private boolean jobInputEnded = false; // were all job lines entered?
+	private boolean timedOut = false; // was the session shut down by the timeout?
+	private ScheduledFuture<?> timeoutTask = null;
+
+	/**
+	 * Construct the console for a batch job.
+	 *
+	 * @param pseudoLine the simulated terminal line number.
+	 * @param logonLine the command to enter before the job lines, usually {@code LOGON <user>}
+	 *   (may be {@code null} if the job's first line is the LOGON command).
+	 * @param jobInput the source of the job lines, closed when the job ends.
+	 * @param output the target for the console output, closed when the job ends.
+	 * @param timeoutMs the max. milliseconds for the job (0 = no timeout).
+	 */
+	public UserConsoleBatch(int pseudoLine, String logonLine, BufferedReader jobInput, PrintStream output, long timeoutMs) {
+		super();
+		this.logonLine = logonLine;
+		this.jobInput = jobInput;
+		this.output = output;
+		this.timeoutMs = timeoutMs;
+
+		this.consoleCONS = new ConsoleSimple(this, pseudoLine); // no 3270 capabilities for fullscreen or the like...
+	}
+
+	/**
+	 * @return was the job ended by the timeout?
+	 */
+	public boolean isTimedOut() {
+		synchronized(this.output) {
+			return this.timedOut;
+		}
+	}
+
+	// start the job, closing the job input and the output when the session ends
+	// see: Emx370.iTerminalConsole
+	@Override
+	public void startSession(Runnable sessionEndCallback) {
+		if (this.timeoutMs > 0) {
+			synchronized(this.output) {
+				this.timeoutTask = getJobTimer().schedule(this::jobTimedOut, this.timeoutMs, TimeUnit.MILLISECONDS);
+			}
+		}
+		super.startSession(() -> {
+			synchronized(this.output) {
+				if (this.timeoutTask != null) { this.timeoutTask.cancel(false); }
+				this.output.close();
+			}
+			try {
+				this.jobInput.close();
+			} catch (IOException e) {
+				// ignored...
+			}
+			sessionEndCallback.run();
+		});
+	}
+
+	// stop the job, logging off the virtual machine if a user is currently logged on
+	@Override
+	public void shutdown() {
+		this.consoleCONS.shutdown();
+		super.shutdown();
+	}
+
+	// timer thread: the job did not end in time
+	private void jobTimedOut() {
+		synchronized(this.output) {
+			this.timedOut = true;
+			this.output.printf("*** batch job timed out after %d seconds, shutting down the session\n", this.timeoutMs / 1000);
+		}
+		this.shutdown();
+	}
+
+	// feeder thread: enter the next job line resp. end the job if all lines are entered
+	private void enterNextJobLine(PromptState state, boolean loggedOn) {
+		String line = null;
+		boolean readJobInput;
+		synchronized(this.output) {
+			readJobInput = !this.jobInputEnded && !this.doShutdown && this.logonLine == null;
+			if (this.logonLine != null) {
+				line = this.logonLine;
+				this.logonLine = null;
+			}
+		}
+		if (readJobInput) {
+			try {
+				line = this.jobInput.readLine(); // possibly waiting for stdin
+			} catch (IOException e) {
+				synchronized(this.output) {
+					this.output.printf("*** error reading the job input: %s\n", e.getMessage());
+				}
+			}
+		}
+		synchronized(this.output) {
+			if (line == null) {
+				this.jobInputEnded = true;
+			} else {
+				// echo the line like entered on a 3215 terminal
+				this.output.println((state == PromptState.PwRead) ? "" : line);
+			}
+		}
+
+		if (this.doShutdown) {
+			return; // timed out
+		} else if (line != null) {
+			this.processUserInputLine(line);
+		} else if (!loggedOn) {
+			this.shutdown(); // job done
+		} else if (state == PromptState.CpRead) {
+			this.processUserInputLine("LOGOFF");
+		} else {
+			this.processUserInputLine(this.getImmediateCpPrefix() + " LOGOFF");
+		}
+	}
+
+	/*
+	 * Items for abstract class: UserCommandsConsole
+	 */
+
+	@Override
+	protected iDevice getConsoleDevice() {
+		return this.consoleCONS;
+	}
+
+	// the CP interpreter or the VM want the next input line: let it be entered by a
+	// feeder thread, as we are called holding the lock on the input queue
+	@Override
+	protected void switchToPromptState(PromptState state) {
+		String prompt;
+		switch(state) {
+		case CpRead:
+			prompt = PROMPT_CP_READ;
+			break;
+		case VmRead:
+			prompt = PROMPT_VM_READ;
+			break;
+		case PwRead:
+			prompt = PROMPT_PW_READ;
+			break;
+		default:
+			return;
+		}
+		synchronized(this.output) {
+			this.output.print(prompt);
+		}
+		boolean loggedOn = (this.vm != null);
+		getJobInputFeeders().execute(() -> this.enterNextJobLine(state, loggedOn));
+	}
+
+	@Override
+	public void writeAddCR(EbcdicHandler line) {
+		synchronized(this.output) {
+			this.output.println(line.getString());
+		}
+	}
+
+	@Override
+	public void writeNoCR(EbcdicHandler line) {
+		synchronized(this.output) {
+			this.output.print(line.getString());
+		}
+	}
+}
@@ -17,8 +17,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 
 import dev.hawala.vm370.ebcdic.EbcdicHandler;
+import dev.hawala.vm370.ebcdic.EbcdicTranscoder;
+import dev.hawala.vm370.mecaff.IBufferSink;
+import dev.hawala.vm370.mecaff.IOutputBacklog;
+import dev.hawala.vm370.mecaff.OutputScheduler;
+import dev.hawala.vm370.mecaff.TerminalChannelLoop.TerminalChannel;
 import dev.hawala.vm370.vm.device.iDevice;
 
 /**
@@ -26,7 +32,19 @@ import dev.hawala.vm370.vm.device.iDevice;
  * 
  * <p>
  * This class is a simple adapter for the generic user console {@link UserCommandsConsole}
- * doing simple input / output on the streams to the remote telnet client. 
+ * doing simple input / output on the streams to the remote telnet client, either
+ * with an input reader thread or driven by the input arriving on a {@link TerminalChannel}. 
+ * </p>
+ * <p>
+ * Output from the host is not flushed line by line, but sent in frames paced by
+ * an {@link OutputScheduler}, so bursts of output lines go to the terminal with
+ * few socket writes. While the terminal does not take the data already sent,
+ * the host output is held in a bounded queue (dropping the oldest lines if
+ * the queue overflows), so a slow terminal never blocks the virtual machine.
+ * The echo of the user input is held back the same way, so it is never sent
+ * ahead of older host output.
+ * Output lines are translated to ASCII with the codepage selected when the
+ * session was created into a reused buffer.
  * </p>
  * 
  * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
@@ -34,7 +52,7 @@ import dev.hawala.vm370.vm.device.iDevice;
  */
 public class UserConsoleSerial extends UserCommandsConsole {
 	
-	// the streams to the remote telnet client
+	// the streams to the remote telnet client (no input stream if driven by input events)
 	private final PrintStream prs;
 	private final DataInputStream dis;
 
@@ -49,6 +67,21 @@ public class UserConsoleSerial extends UserCommandsConsole {
 	// the console iDevice related with this user console
 	private final ConsoleSimple consoleCONS;
 	
+	// pacing of the host output sent to the terminal
+	private final OutputScheduler outputScheduler = new OutputScheduler(this::flushOutput, 0);
+	private int pendingOutputBytes = 0; // guarded by 'prs'
+	
+	// translation of the host output (buffer guarded by 'prs')
+	private static final byte[] LINE_END = System.lineSeparator().getBytes();
+	private final EbcdicTranscoder transcoder = EbcdicTranscoder.getDefault();
+	private byte[] asciiOutput = new byte[256];
+	
+	// host output held back while the terminal connection is backlogged (guarded by 'prs')
+	private static final int MAX_HELD_OUTPUT = 2000;
+	private final IOutputBacklog outputBacklog;
+	private final ArrayDeque<byte[]> heldOutput = new ArrayDeque<byte[]>();
+	private int skippedOutput = 0;
+	
 	// constructor: startup everything
 	public UserConsoleSerial(ThreadGroup thrGroup, int pseudoLine, InputStream is, OutputStream os) {
 		super(thrGroup);
@@ -58,18 +91,33 @@ public class UserConsoleSerial extends UserCommandsConsole {
 		} else {
 			this.prs = new PrintStream(os);
 		}
+		this.outputBacklog = null;
 		
 		this.consoleCONS = new ConsoleSimple(this, pseudoLine); // no 3270 capabilities for fullscreen or the like...
 		
 		this.startWork();
 	}
 	
+	// constructor for a console driven by the input arriving on the terminal connection
+	public UserConsoleSerial(int pseudoLine, TerminalChannel channel) {
+		super();
+		this.dis = null;
+		this.prs = new PrintStream(channel.getOutputStream());
+		this.outputBacklog = channel;
+		channel.setOutputDrainedListener(this.outputScheduler::requestFrame);
+		
+		this.consoleCONS = new ConsoleSimple(this, pseudoLine); // no 3270 capabilities for fullscreen or the like...
+		
+		channel.startReading(new TerminalInput());
+	}
+	
 	// shutdown the terminal connection
 	@Override
 	public void shutdown() {
+		this.outputScheduler.close();
 		this.prs.close();
 		try {
-			this.dis.close();
+			if (this.dis != null) { this.dis.close(); }
 		} catch (IOException e) {
 			// ignored...
 		}
@@ -83,45 +131,97 @@ public class UserConsoleSerial extends UserCommandsConsole {
 	
 	// buffer for collecting the byte-wise incoming input line
 	private final byte[] lineBuffer = new byte[256];
+	private int lineBufferPos = 0;
 	
 	// byte-sequence sent to do a single backspace
 	private final static byte[] BS_ECHO_BYTES = { (byte)0x08 , (byte)0x20 , (byte)0x08 }; // BS, blank, BS
 	
-	// collect the single bytes coming from the telnet client on each key stroke,
-	// echoing the character entered, handling password mode and backspace character
+	// buffer for echoing a single input character (guarded by 'prs')
+	private final byte[] echoByte = new byte[1];
+	
+	// echo user input to the terminal (without flushing)
+	private void echo(byte[] bytes, int length) {
+		synchronized(this.prs) {
+			this.writeOrHold(bytes, length);
+		}
+	}
+	
+	// process a single byte coming from the telnet client on each key stroke,
+	// echoing the character entered (without flushing), handling password mode
+	// and backspace character, returning the input line if completed by this byte
 	// (very simplistic and old fashioned input routine, could be improved some day) 
-	private String readLine() {
-		int lineBufferPos = 0;
-		try {
-			byte b = this.dis.readByte();
-			while (b != (byte)0x0A) {
-				if (b == (byte)0x08) {
-					if (lineBufferPos > 0) {
-						lineBufferPos--;
-						if (!this.inPwdMode) {
-							this.prs.write(BS_ECHO_BYTES);
-							this.prs.flush();
-						}
-					}
-				} else if (b != (byte)0x0D) {
-					if (lineBufferPos < this.lineBuffer.length) {
-						this.lineBuffer[lineBufferPos++] = b;
-						if (!this.inPwdMode) {
-							this.prs.write(b);
-							this.prs.flush();
-						}
+	private String editInputLine(byte b) {
+		if (b == (byte)0x0A) {
+			this.echo(LINE_END, LINE_END.length);
+			String line = new String(this.lineBuffer, 0, this.lineBufferPos);
+			this.lineBufferPos = 0;
+			return line;
+		} else if (b == (byte)0x08) {
+			if (this.lineBufferPos > 0) {
+				this.lineBufferPos--;
+				if (!this.inPwdMode) {
+					this.echo(BS_ECHO_BYTES, BS_ECHO_BYTES.length);
+				}
+			}
+		} else if (b != (byte)0x0D) {
+			if (this.lineBufferPos < this.lineBuffer.length) {
+				this.lineBuffer[this.lineBufferPos++] = b;
+				if (!this.inPwdMode) {
+					synchronized(this.prs) {
+						this.echoByte[0] = b;
+						this.writeOrHold(this.echoByte, 1);
 					}
 				}
-				b = this.dis.readByte();
 			}
-			this.prs.println();
-			this.prs.flush();
-			return new String(lineBuffer, 0, lineBufferPos);
+		}
+		return null;
+	}
+	
+	// collect the single bytes coming from the telnet client on each key stroke
+	private String readLine() {
+		try {
+			String line = null;
+			while (line == null) {
+				line = this.editInputLine(this.dis.readByte());
+				this.prs.flush();
+			}
+			return line;
 		} catch (IOException e) {
 			return null;
 		}
 	}
 	
+	// pwd mode lasts only for one input request
+	private void lineCompleted() {
+		if (this.inPwdMode) {
+			this.inPwdMode = false;
+		}
+	}
+	
+	/*
+	 * input from the terminal connection => edit and process input lines
+	 */
+	private class TerminalInput implements IBufferSink {
+
+		@Override
+		public void processBytes(byte[] buffer, int count) {
+			for (int i = 0; i < count; i++) {
+				String line = editInputLine(buffer[i]);
+				if (line != null) {
+					prs.flush();
+					lineCompleted();
+					processUserInputLine(line);
+				}
+			}
+			prs.flush();
+		}
+
+		@Override
+		public void connectionClosed() {
+			shutdown();
+		}
+	}
+	
 	/*
 	 * Items for abstract class: UserCommandsConsole 
 	 */
@@ -137,9 +237,8 @@ public class UserConsoleSerial extends UserCommandsConsole {
 		String line = this.readLine();
 		if (line == null) {
 			this.shutdown();
-		} else if (this.inPwdMode) {
-			// pwd mode lasts only for one input request
-			this.inPwdMode = false;
+		} else {
+			this.lineCompleted();
 		}
 		return line;
 	}
@@ -158,22 +257,93 @@ public class UserConsoleSerial extends UserCommandsConsole {
 			this.writeNoCR(promptPwRead);
 			break;
 		default:
+			return;
+		}
+		this.flushOutput(); // the user must see the prompt now
+	}
+	
+	// is the terminal too slow to take more output?
+	// !! requires to be called with holding the lock on 'prs' !!
+	private boolean isBacklogged() {
+		return this.outputBacklog != null && this.outputBacklog.isOutputBacklogged();
+	}
+	
+	// write to the terminal or hold back the data while the terminal is backlogged
+	// or older data is still held back (dropping the oldest data if the queue overflows),
+	// returning if the data was written
+	// !! requires to be called with holding the lock on 'prs' !!
+	private boolean writeOrHold(byte[] data, int length) {
+		if (!this.heldOutput.isEmpty() || this.isBacklogged()) {
+			if (this.heldOutput.size() >= MAX_HELD_OUTPUT) {
+				this.heldOutput.removeFirst();
+				this.skippedOutput++;
+			}
+			byte[] text = new byte[length];
+			System.arraycopy(data, 0, text, 0, length);
+			this.heldOutput.addLast(text);
+			return false;
+		}
+		this.prs.write(data, 0, length);
+		return true;
+	}
+	
+	// write host output, holding it back while the terminal is backlogged
+	private void writeOutput(EbcdicHandler line, boolean addCR) {
+		synchronized(this.prs) {
+			int lineLength = line.getLength();
+			int textLength = lineLength + ((addCR) ? LINE_END.length : 0);
+			if (this.asciiOutput.length < textLength) {
+				this.asciiOutput = new byte[textLength + 64];
+			}
+			this.transcoder.toAscii(line.getRawBytes(), 0, lineLength, this.asciiOutput, 0);
+			if (addCR) {
+				System.arraycopy(LINE_END, 0, this.asciiOutput, lineLength, LINE_END.length);
+			}
+			
+			if (!this.writeOrHold(this.asciiOutput, textLength)) {
+				return; // held back until the backlog is drained
+			}
+			this.pendingOutputBytes += textLength;
+		}
+		this.outputScheduler.requestFrame();
+	}
+	
+	/* implemented interface OutputScheduler.IFrameWriter:
+	 * send the output collected since the last frame, including the
+	 * held output as far as the terminal takes it
+	 */
+	private void flushOutput() {
+		int byteCount;
+		synchronized(this.prs) {
+			if (this.skippedOutput > 0 && !this.isBacklogged()) {
+				String notice = "*** " + this.skippedOutput + " output lines skipped (terminal too slow)";
+				this.prs.println(notice);
+				this.pendingOutputBytes += notice.length() + 2;
+				this.skippedOutput = 0;
+			}
+			while(!this.heldOutput.isEmpty() && !this.isBacklogged()) {
+				byte[] text = this.heldOutput.removeFirst();
+				this.prs.write(text, 0, text.length);
+				this.pendingOutputBytes += text.length;
+			}
+			byteCount = this.pendingOutputBytes;
+			this.pendingOutputBytes = 0;
+			this.prs.flush();
 		}
+		this.outputScheduler.frameSent(byteCount);
 	}
 
 	@Override
 	public void writeAddCR(EbcdicHandler line) {
 		System.out.flush();
 		System.err.flush();
-		this.prs.println(line.getString());
-		this.prs.flush();	
+		this.writeOutput(line, true);
 	}
 
 	@Override
 	public void writeNoCR(EbcdicHandler line) {
 		System.out.flush();
 		System.err.flush();
-		this.prs.print(line.getString());
-		this.prs.flush();
+		this.writeOutput(line, false);
 	}
 }
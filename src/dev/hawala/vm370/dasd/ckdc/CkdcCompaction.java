@@ -0,0 +1,246 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.dasd.ckdc;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Background compaction of a CKDC drive into a new base file.
+ *
+ * <p>
+ * A compaction takes a copy-on-write snapshot of the drive tracks (see
+ * {@link CkdcDrive#takeSnapshot(long)}), which is then written as complete
+ * drive content by a background thread while the drive continues to be used
+ * by its virtual machine. The new base file is first written to a temporary
+ * file and renamed to the compacted base file when complete.
+ * </p>
+ *
+ * <p>
+ * The compacted base file (named like the base file with the suffix
+ * {@code .compact}) is swapped in at the next attach of the drive (see
+ * {@link CkdcCompaction#swapInCompactedBase(String, String)}). The snapshot stamp
+ * in the file headers ensures that this happens only if the delta file was saved
+ * after the snapshot was taken, i.e. that the delta holds (at least) all changes
+ * made after the snapshot. The delta is then rewritten to contain only the tracks
+ * differing from the new base file, so attaching the drive no longer needs to
+ * read the base tracks overridden by the delta.
+ * </p>
+ *
+ * <p>
+ * Alternatively the snapshot can be written to an arbitrary file, giving a hot
+ * backup of the drive as base file.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ *
+ */
+public class CkdcCompaction implements Runnable {
+
+	/** suffix for the compacted base file to be swapped in at next attach */
+	public static final String COMPACT_SUFFIX = ".compact";
+
+	// suffix for the files being written
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	// the compactions currently running, by canonical target file name
+	private static final Map<String, CkdcCompaction> running = new HashMap<String, CkdcCompaction>();
+
+	// the last snapshot stamp issued
+	private static long lastStamp = 0;
+
+	private final String key;
+	private final File targetFile;
+	private final DriveBaseExternalIO snapshot;
+
+	private volatile boolean done = false;
+	private volatile String error = null;
+
+	private CkdcCompaction(String key, File targetFile, DriveBaseExternalIO snapshot) {
+		this.key = key;
+		this.targetFile = targetFile;
+		this.snapshot = snapshot;
+	}
+
+	// get a new snapshot stamp, unique even for snapshots taken in the same millisecond
+	private static synchronized long newStamp() {
+		lastStamp = Math.max(lastStamp + 1, System.currentTimeMillis());
+		return lastStamp;
+	}
+
+	/**
+	 * Start compacting the live drive into a new base file.
+	 *
+	 * @param drive the live drive to compact.
+	 * @param basefileName the name of the base file of the drive.
+	 * @param backupFilename the name of the file to write the drive content to as
+	 *   hot backup or {@code null} to create the compacted base file to be swapped
+	 *   in at the next attach.
+	 * @return the compaction running in the background.
+	 * @throws Exception if a compaction to the same target is already running
+	 *   or the snapshot cannot be taken.
+	 */
+	public static CkdcCompaction start(CkdcDrive drive, String basefileName, String backupFilename) throws Exception {
+		if (drive.isClonedDrive()) {
+			throw new Exception("compaction is not supported for cloned drives");
+		}
+		File targetFile = new File((backupFilename != null) ? backupFilename : basefileName + COMPACT_SUFFIX);
+		String key = targetFile.getCanonicalPath();
+		CkdcCompaction compaction;
+		synchronized(running) {
+			if (running.containsKey(key)) {
+				throw new Exception("compaction to " + targetFile.getPath() + " already in progress");
+			}
+			long stamp = (backupFilename != null) ? 0 : newStamp(); // backups do not affect the drive
+			compaction = new CkdcCompaction(key, targetFile, drive.takeSnapshot(stamp));
+			running.put(key, compaction);
+		}
+
+		Thread thr = new Thread(compaction, "CKDC compaction");
+		thr.setDaemon(true); // an incomplete temporary file is simply ignored
+		thr.setPriority(Thread.NORM_PRIORITY - 1);
+		thr.start();
+		return compaction;
+	}
+
+	/**
+	 * Start compacting a drive not attached to a virtual machine into a new base file.
+	 * <p>
+	 * When creating the compacted base file, the delta file is rewritten with the
+	 * snapshot stamp, allowing to swap in the new base file at the next attach.
+	 * </p>
+	 *
+	 * @param basefileName the name of the base file of the drive.
+	 * @param backupFilename the name of the file to write the drive content to as
+	 *   hot backup or {@code null} to create the compacted base file.
+	 * @return the compaction running in the background or {@code null} if the drive
+	 *   has no delta file, so there is nothing to compact.
+	 * @throws Exception if the drive cannot be loaded or the compaction cannot be started.
+	 */
+	public static CkdcCompaction startOffline(String basefileName, String backupFilename) throws Exception {
+		File deltaFile = new File(basefileName + ".delta");
+		if (!deltaFile.isFile() && backupFilename == null) { return null; }
+		
+		CkdcDrive drive = new CkdcDrive((deltaFile.isFile()) ? deltaFile.getPath() : null, basefileName, null);
+		CkdcCompaction compaction = start(drive, basefileName, backupFilename);
+		if (backupFilename == null) {
+			File newDeltaFile = new File(deltaFile.getPath() + TEMP_SUFFIX);
+			drive.saveTo(newDeltaFile.getPath(), null);
+			moveFile(newDeltaFile, deltaFile);
+		}
+		return compaction;
+	}
+
+	/**
+	 * Get the compaction currently running for the target file.
+	 *
+	 * @param targetFilename the name of the new base file.
+	 * @return the running compaction or {@code null} if none.
+	 * @throws IOException if the file name cannot be resolved.
+	 */
+	public static CkdcCompaction getRunning(String targetFilename) throws IOException {
+		String key = new File(targetFilename).getCanonicalPath();
+		synchronized(running) {
+			return running.get(key);
+		}
+	}
+
+	@Override
+	public void run() {
+		File tempFile = new File(this.targetFile.getPath() + TEMP_SUFFIX);
+		try {
+			this.snapshot.save(new BufferedOutputStream(new FileOutputStream(tempFile), 65536), false);
+			moveFile(tempFile, this.targetFile);
+		} catch (Exception e) {
+			tempFile.delete();
+			this.error = e.getMessage();
+		} finally {
+			this.done = true;
+			synchronized(running) {
+				running.remove(this.key);
+			}
+		}
+	}
+
+	/**
+	 * @return is the new base file completely written (or did the compaction fail)?
+	 */
+	public boolean isDone() { return this.done; }
+
+	/**
+	 * @return the error message if the compaction failed, else {@code null}.
+	 */
+	public String getError() { return this.error; }
+
+	// atomically replace the target with the source file if possible
+	private static void moveFile(File from, File to) throws IOException {
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Swap in the compacted base file for the drive if a compaction was completed
+	 * and the delta file was saved after taking the snapshot, rewriting the delta
+	 * file to hold only the tracks differing from the new base file.
+	 * <p>
+	 * A compacted base file not matching the delta file (e.g. if the virtual machine
+	 * did not save its drives at logoff) is outdated and deleted.
+	 * </p>
+	 *
+	 * @param basefileName the name of the base file of the drive.
+	 * @param deltafileName the name of the delta file of the drive.
+	 * @return {@code true} if the base file was replaced by the compacted base file.
+	 * @throws Exception if loading or writing the drive files fails.
+	 */
+	public static boolean swapInCompactedBase(String basefileName, String deltafileName) throws Exception {
+		File compactFile = new File(basefileName + COMPACT_SUFFIX);
+		if (!compactFile.isFile() || getRunning(compactFile.getPath()) != null) { return false; }
+
+		File deltaFile = new File(deltafileName);
+		if (!deltaFile.canWrite()) { return false; }
+		long compactStamp = DriveBaseExternalIO.readSnapshotStamp(compactFile);
+		long deltaStamp = DriveBaseExternalIO.readSnapshotStamp(deltaFile);
+		if (compactStamp == 0 || compactStamp != deltaStamp) {
+			compactFile.delete();
+			return false;
+		}
+
+		// reduce the delta to the tracks changed since the snapshot
+		CkdcDrive newBase = new CkdcDrive((String)null, compactFile.getPath(), null);
+		CkdcDrive drive = new CkdcDrive(deltaFile.getPath(), compactFile.getPath(), null);
+		int changedCount = drive.markTracksUnchangedFrom(newBase);
+		File newDeltaFile = new File(deltafileName + TEMP_SUFFIX);
+		if (changedCount > 0) {
+			drive.saveTo(newDeltaFile.getPath(), null);
+		}
+
+		// swap in the new files, the old delta being valid with the new base in case of a crash
+		moveFile(compactFile, new File(basefileName));
+		if (changedCount > 0) {
+			moveFile(newDeltaFile, deltaFile);
+		} else {
+			deltaFile.delete();
+		}
+		return true;
+	}
+}
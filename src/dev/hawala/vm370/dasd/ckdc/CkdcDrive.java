@@ -19,8 +19,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 
 import dev.hawala.vm370.dasd.iDasd;
+import dev.hawala.vm370.vm.device.MemorySegments;
+import dev.hawala.vm370.vm.device.iCkdRecordIO;
 import dev.hawala.vm370.vm.device.iDeviceIO;
 import dev.hawala.vm370.vm.device.iDeviceStatus;
+import dev.hawala.vm370.vm.machine.NullEventTracker;
 import dev.hawala.vm370.vm.machine.iProcessorEventTracker;
 
 /**
@@ -41,7 +44,7 @@ import dev.hawala.vm370.vm.machine.iProcessorEventTracker;
  * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
  *
  */
-public class CkdcDrive extends DriveBaseExternalIO implements iDasd {
+public class CkdcDrive extends DriveBaseExternalIO implements iDasd, iCkdRecordIO {
 	
 	protected iProcessorEventTracker eventLogger;
 	
@@ -49,10 +52,6 @@ public class CkdcDrive extends DriveBaseExternalIO implements iDasd {
 	
 	protected boolean isModified = false; // has the content been modified and is saving the drive necessary?
 	
-	private class NullTracker implements iProcessorEventTracker {
-		public void logLine(String line, Object... args) {};
-	}
-	
 	/*
 	** Constructors: delegate to the real implementation of the superclass
 	*/
@@ -67,23 +66,43 @@ public class CkdcDrive extends DriveBaseExternalIO implements iDasd {
 		super(ddrVolser, ddrCylinderCount, ddrTracksPerCylinder, driveType, ddrMaxRecordsPerTrack, ddrTracks);
 		this.isFileBacked = false;
 		this.isModified = true;
-		this.eventLogger = new NullTracker();
+		this.eventLogger = NullEventTracker.INSTANCE;
 	}
 	
 	public CkdcDrive(String deltaFile, String baseFile, iProcessorEventTracker eventTracker) throws Exception {
 		super(deltaFile, baseFile);
 		this.isFileBacked = true;
-		this.eventLogger = (eventTracker == null) ? new NullTracker() : eventTracker;
+		this.eventLogger = (eventTracker == null) ? NullEventTracker.INSTANCE : eventTracker;
 	}
 	
 	public CkdcDrive(InputStream deltaFis, InputStream baseFis, iProcessorEventTracker eventTracker) throws Exception {
 		super(deltaFis, baseFis);
 		this.isFileBacked = true;
-		this.eventLogger = (eventTracker == null) ? new NullTracker() : eventTracker;
+		this.eventLogger = (eventTracker == null) ? NullEventTracker.INSTANCE : eventTracker;
+	}
+	
+	private CkdcDrive(SharedBase base, InputStream deltaFis, iProcessorEventTracker eventTracker) throws Exception {
+		super(base, deltaFis);
+		this.isFileBacked = true;
+		this.eventLogger = (eventTracker == null) ? NullEventTracker.INSTANCE : eventTracker;
+	}
+	
+	/**
+	 * Create a drive as clone of a shared base file, having its private changes
+	 * (if any) loaded from the given delta stream.
+	 * 
+	 * @param base the shared base file.
+	 * @param deltaFis the stream of the private delta file or {@code null}.
+	 * @param eventTracker the event tracker for logging (may be {@code null}).
+	 * @return the new drive.
+	 * @throws Exception if the delta cannot be loaded or does not match the base.
+	 */
+	public static CkdcDrive cloneFrom(SharedBase base, InputStream deltaFis, iProcessorEventTracker eventTracker) throws Exception {
+		return new CkdcDrive(base, deltaFis, eventTracker);
 	}
 	
 	public void setEventTracker(iProcessorEventTracker eventTracker) {
-		this.eventLogger = (eventTracker == null) ? new NullTracker() : eventTracker;
+		this.eventLogger = (eventTracker == null) ? NullEventTracker.INSTANCE : eventTracker;
 	}
 	
 	public boolean needsSaving() { return this.isModified; }
@@ -95,16 +114,55 @@ public class CkdcDrive extends DriveBaseExternalIO implements iDasd {
 	@Override
 	public void save(OutputStream os, boolean isDeltaTarget) throws Exception {
 		// ensure that all tracks are storable, i.e. finalizing a possible formatting state
+		this.releaseTrackBuffers();
+		
+		// store the drive
+		super.save(os, isDeltaTarget);
+		this.isFileBacked = true;
+		this.isModified = false;
+	}
+	
+	// de-access all buffered tracks, so their packed content is current
+	private void releaseTrackBuffers() throws IOException {
+		if (this.readAhead != null) {
+			this.readAhead.cancel();
+		}
 		if (this.bufferedtracks != null) {
 			while(this.bufferedtracks.size() > 0) {
 				Track t = this.bufferedtracks.get(0);
 				this.freeTrackBuffer(t);
 			}
 		}
-		// store the drive
-		super.save(os, isDeltaTarget);
-		this.isFileBacked = true;
-		this.isModified = false;
+	}
+	
+	/**
+	 * Take a consistent copy-on-write snapshot of the current drive content,
+	 * synchronized with the CCW-chain interpretation for this drive.
+	 * <p>
+	 * The drive remembers a non-zero snapshot stamp and writes it into the header
+	 * of subsequently saved delta files, marking these deltas as containing all
+	 * changes made after the snapshot.
+	 * </p>
+	 * 
+	 * @param stamp the identification of the snapshot, 0 for a snapshot not
+	 *   affecting the drive (e.g. a backup).
+	 * @return the snapshot, to be saved as complete drive content.
+	 * @throws IOException if an accessed track cannot be packed.
+	 */
+	synchronized DriveBaseExternalIO takeSnapshot(long stamp) throws IOException {
+		this.releaseTrackBuffers();
+		if (stamp != 0) {
+			this.snapshotStamp = stamp;
+			this.isModified = true; // ensure that a delta with the new stamp will be written
+		}
+		return new Snapshot(this, stamp);
+	}
+	
+	// the drive content as of taking the snapshot
+	private static class Snapshot extends DriveBaseExternalIO {
+		private Snapshot(DriveBaseExternalIO drive, long stamp) {
+			super(drive, stamp);
+		}
 	}
 	
 	
@@ -186,6 +244,9 @@ public class CkdcDrive extends DriveBaseExternalIO implements iDasd {
 	// tracks currently holding a buffer == these tracks are directly accessible without calling their access() method
 	private ArrayList<Track> bufferedtracks = null;
 	
+	// detector for sequential track accesses, unpacking the following tracks in advance
+	private TrackReadAhead readAhead = null;
+	
 	// simple counter for ordering the tracks for LRU deaccessing of "oldest" track
 	private long accessCounter = 0;
 	
@@ -276,9 +337,16 @@ public class CkdcDrive extends DriveBaseExternalIO implements iDasd {
 	
 	// access the specified track and access it (i.e. unpacking the content), adding it to the buffered track set
 	private void accessTrack(Track track) throws IOException {
+		int trackIndex = this.getCylAndHeadIndex(track.getCylNo(), track.getHeadNo());
+		this.readAhead.trackAccessed(trackIndex);
 		track.setAccessedCount(this.accessCounter++);
 		if (this.bufferedtracks.contains(track)) { return; }
-		track.access(this.getFreeTrackBuffer());
+		byte[] buffer = this.getFreeTrackBuffer();
+		if (this.readAhead.accessPrefetched(track, trackIndex, buffer)) {
+			this.eventLogger.logLine(".. .. read-ahead hit (track %d)", trackIndex);
+		} else {
+			track.access(buffer);
+		}
 		this.bufferedtracks.add(track);
 	}
 
@@ -293,6 +361,7 @@ public class CkdcDrive extends DriveBaseExternalIO implements iDasd {
 			for (int i = 0; i < TRACK_BUFFER_COUNT; i++) {
 				this.trackBuffers.add(new byte[this.maxTrackSize]);
 			}
+			this.readAhead = new TrackReadAhead(this.tracks, this.maxTrackSize);
 			// go to a hopefully valid track (cylinder 0 and head 0 should be there)
 			this.gotoTrack(0, 0);
 		}
@@ -496,11 +565,22 @@ public class CkdcDrive extends DriveBaseExternalIO implements iDasd {
 					return this.exitUnitCheck(Sense_CommandReject);
 				}
 				
-				memSource.transfer(tmpBuffer, 0, transferLength);
-				int fmtRecordNo = tmpBuffer[4] & 0xFF;
-				int fmtKeyLen = tmpBuffer[5] & 0xFF;
-				int fmtDataLen = ((tmpBuffer[6] & 0xFF) << 8) | (tmpBuffer[7] & 0xFF);
-				this.currTrack.appendCountKeyAndData(fmtRecordNo, fmtKeyLen, fmtDataLen, tmpBuffer, 8, transferLength - 8);
+				// take the count, key and data directly from memory if contiguous, else through the buffer
+				byte[] fmtSource = tmpBuffer;
+				int fmtOffset = 0;
+				MemorySegments segments = memSource.getDirectSegments();
+				if (segments != null && segments.isContiguous() && segments.getTotalLength() >= transferLength) {
+					fmtSource = segments.getMemory();
+					fmtOffset = segments.getOffset(0);
+				} else {
+					segments = null;
+					memSource.transfer(tmpBuffer, 0, transferLength);
+				}
+				int fmtRecordNo = fmtSource[fmtOffset + 4] & 0xFF;
+				int fmtKeyLen = fmtSource[fmtOffset + 5] & 0xFF;
+				int fmtDataLen = ((fmtSource[fmtOffset + 6] & 0xFF) << 8) | (fmtSource[fmtOffset + 7] & 0xFF);
+				this.currTrack.appendCountKeyAndData(fmtRecordNo, fmtKeyLen, fmtDataLen, fmtSource, fmtOffset + 8, transferLength - 8);
+				if (segments != null) { memSource.completeDirect(transferLength); }
 
 				this.eventLogger.logLine(".. .. %s (dataLength = %d) => OK / INCORRECT_LENGTH_IS_OK", opName, dataLength);
 				return this.exitOkLengthIsOK();
@@ -664,16 +744,20 @@ public class CkdcDrive extends DriveBaseExternalIO implements iDasd {
 				for (int i = 0; i < addrLen; i++) {
 					if (this.searchBuffer[i] != this.currTrack.getHomeAddressRaw(i+1)) {
 						// no cyl/head match => signal this to avoid endless TIC loops
-						this.eventLogger.logLine(
-								".. .. %s (addr:: len: %d / %02X%02X%02X%02X) => UnitCheck(RecordNotFound)",
-								opName, addrLen,
-								this.searchBuffer[0], this.searchBuffer[1], this.searchBuffer[2], this.searchBuffer[3]);
+						if (this.eventLogger.isLogging()) {
+							this.eventLogger.logLine(
+									".. .. %s (addr:: len: %d / %02X%02X%02X%02X) => UnitCheck(RecordNotFound)",
+									opName, addrLen,
+									this.searchBuffer[0], this.searchBuffer[1], this.searchBuffer[2], this.searchBuffer[3]);
+						}
 						return this.exitUnitCheck(Sense_RecordNotFound);
 					}
 				}
-				this.eventLogger.logLine(".. .. %s (addr :: len: %d / %02X%02X%02X%02X) => OK / STATUS_MODIFIER",
-						opName, addrLen,
-						this.searchBuffer[0], this.searchBuffer[1], this.searchBuffer[2], this.searchBuffer[3]);
+				if (this.eventLogger.isLogging()) {
+					this.eventLogger.logLine(".. .. %s (addr :: len: %d / %02X%02X%02X%02X) => OK / STATUS_MODIFIER",
+							opName, addrLen,
+							this.searchBuffer[0], this.searchBuffer[1], this.searchBuffer[2], this.searchBuffer[3]);
+				}
 				return this.exitOkSkipCCW();
 	
 			case 0x31: // Search Identifier equal
@@ -691,17 +775,20 @@ public class CkdcDrive extends DriveBaseExternalIO implements iDasd {
 				for (int i = 0; i < cmpLen; i++) {
 					if (this.searchBuffer[i] != this.currTrack.getHomeAddressRaw(i+1)) {
 						// no cyl/head match => signal this to avoid endless TIC loops
-						this.eventLogger.logLine(".. .. %s (check home address) (addr :: len: %d / %02X%02X%02X%02X) => UnitCheck(RecordNotFound)",
-								opName, cmpLen,
-								this.searchBuffer[0], this.searchBuffer[1], this.searchBuffer[2], this.searchBuffer[3]);
+						if (this.eventLogger.isLogging()) {
+							this.eventLogger.logLine(".. .. %s (check home address) (addr :: len: %d / %02X%02X%02X%02X) => UnitCheck(RecordNotFound)",
+									opName, cmpLen,
+									this.searchBuffer[0], this.searchBuffer[1], this.searchBuffer[2], this.searchBuffer[3]);
+						}
 						return this.exitUnitCheck(Sense_RecordNotFound);
 					}
 				}
 				
 				// "if search conditions for this short field are satisfied, the next command is skipped"
-				if (dataLength < 5) { this.exitOkSkipCCW(); }
+				if (dataLength < 5) { return this.exitOkSkipCCW(); }
 				
-				// cyl & head are OK, check if the record is found
+				// cyl & head are OK, check if the record is found using the record index of the accessed track
+				this.accessTrack(this.currTrack);
 				boolean found = false;
 				if (opcode == 0x31
 						&& this.currTrack.searchIdEqual(this.searchBuffer[4] & 0xFF)) {
@@ -718,16 +805,20 @@ public class CkdcDrive extends DriveBaseExternalIO implements iDasd {
 					found = true;
 				}
 				if (found) {
-					this.eventLogger.logLine(".. .. %s (addr :: len: %d / %02X%02X%02X%02X%02X) => OK / STATUS_MODIFIER",
-							opName, 5,
-							this.searchBuffer[0], this.searchBuffer[1], this.searchBuffer[2], this.searchBuffer[3], this.searchBuffer[4]);
+					if (this.eventLogger.isLogging()) {
+						this.eventLogger.logLine(".. .. %s (addr :: len: %d / %02X%02X%02X%02X%02X) => OK / STATUS_MODIFIER",
+								opName, 5,
+								this.searchBuffer[0], this.searchBuffer[1], this.searchBuffer[2], this.searchBuffer[3], this.searchBuffer[4]);
+					}
 					return this.exitOkSkipCCW();
 				}
 				
 				// not found => signal this to avoid endless TIC loops
-				this.eventLogger.logLine(".. .. %s (addr :: len: %d / %02X%02X%02X%02X%02X) => UnitCheck(RecordNotFound)",
-						opName, 5,
-						this.searchBuffer[0], this.searchBuffer[1], this.searchBuffer[2], this.searchBuffer[3], this.searchBuffer[4]);
+				if (this.eventLogger.isLogging()) {
+					this.eventLogger.logLine(".. .. %s (addr :: len: %d / %02X%02X%02X%02X%02X) => UnitCheck(RecordNotFound)",
+							opName, 5,
+							this.searchBuffer[0], this.searchBuffer[1], this.searchBuffer[2], this.searchBuffer[3], this.searchBuffer[4]);
+				}
 				return this.exitUnitCheck(Sense_RecordNotFound);
 	
 			case 0x29: // Search Key equal 
@@ -742,13 +833,14 @@ public class CkdcDrive extends DriveBaseExternalIO implements iDasd {
 				opName = (opcode == 0x29) ? "Search Key equal" : (opcode == 0x49) ? "Search Key high" : "Search Key equal or high"; 
 				int keyLen = (dataLength > this.searchBuffer.length) ? this.searchBuffer.length : dataLength;
 				memSource.transfer(this.searchBuffer, 0, keyLen);
+				this.accessTrack(this.currTrack);
 				if (this.currTrack.searchKey(
 						this.searchBuffer, keyLen,
 						(opcode == 0x29 || opcode == 0x69),
 						(opcode == 0x49 || opcode == 0x69)))  {
 					// record found => skip next command in CCW chain 
 					this.eventLogger.logLine(".. .. %s (dataLength = %d) => OK / STATUS_MODIFIER", opName, dataLength);
-					this.exitOkSkipCCW();
+					return this.exitOkSkipCCW();
 				}
 				
 				// not found => signal this to avoid endless TIC loops
@@ -979,6 +1071,55 @@ public class CkdcDrive extends DriveBaseExternalIO implements iDasd {
 		//return exitUnitCheck(Sense_CommandReject);
 	}
 	
+	/*
+	** direct record transfers for the usual CMS channel programs
+	*/
+	
+	// position to the track and search the record as SEEK + SEARCH ID EQUAL would, checking
+	// that the record's data can be transferred with the given length
+	private boolean locateRecordData(
+			int seekCyl, int seekHead,
+			int searchCyl, int searchHead, int recordNo,
+			int length, boolean toDevice) {
+		if (toDevice && (this.writeProtected || !this.allowAllWrites)) { return false; }
+		if (!this.allowSeek || !this.gotoTrack(seekCyl, seekHead)) { return false; }
+		if (this.currTrack.getCylNo() != searchCyl || this.currTrack.getHeadNo() != searchHead) { return false; }
+		try {
+			this.accessTrack(this.currTrack);
+		} catch (IOException e) {
+			return false;
+		}
+		return this.currTrack.searchDataRecord(recordNo, length);
+	}
+	
+	// see: iCkdRecordIO
+	@Override
+	public boolean canTransferRecordData(
+			int seekCyl, int seekHead,
+			int searchCyl, int searchHead, int recordNo,
+			int length, boolean toDevice) {
+		return this.locateRecordData(seekCyl, seekHead, searchCyl, searchHead, recordNo, length, toDevice);
+	}
+	
+	// see: iCkdRecordIO
+	@Override
+	public boolean transferRecordData(
+			int seekCyl, int seekHead,
+			int searchCyl, int searchHead, int recordNo,
+			int length, boolean toDevice,
+			byte[] mem, int memAddr) {
+		if (!this.locateRecordData(seekCyl, seekHead, searchCyl, searchHead, recordNo, length, toDevice)) {
+			return false;
+		}
+		if (toDevice) {
+			this.isModified = true;
+			this.currTrack.writeData(mem, memAddr);
+		} else {
+			this.currTrack.readData(mem, memAddr);
+		}
+		return true;
+	}
+	
 	// check for attention interrupt
 	// see: iDevice
 	@Override
@@ -12,10 +12,15 @@
 
 package dev.hawala.vm370.dasd.ckdc;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Implementation of loading and saving the content of a CKD device
@@ -28,6 +33,14 @@ import java.io.OutputStream;
  * from the base file (if the track was unchanged so far).  
  * </p>
  * 
+ * <p>
+ * A drive can also be cloned from a {@link SharedBase}, i.e. a base file
+ * loaded once and shared by all drives cloned from it, with each clone only
+ * having the tracks of its private delta file loaded separately: the tracks
+ * of the shared base are copied-on-write, as changing a track never modifies
+ * the packed content loaded from the base file. 
+ * </p>
+ * 
  * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
  *
  */
@@ -37,14 +50,15 @@ public abstract class DriveBaseExternalIO {
 	** Content structures and construction of a CKD drive (initial loading form DDR tape, save/restore from CKDC file)
 	*/
                                                // external file format (big-endian / EBCDIC)
-	protected final int fileversion = 1;       // 2 bytes (unsigned)
+	static final int FILE_VERSION = 1;         // 2 bytes (unsigned)
 	protected final byte[] volser;             // 6 bytes
 	protected final int cylinderCount;         // 2 bytes (unsigned)
 	protected final int tracksPerCylinder;     // 2 bytes (unsigned)
 	protected final int maxTrackSize;          // 3 bytes (unsigned)
 	protected final int maxRecordsPerTrack;    // 1 byte (unsigned)
 	protected final CkdDriveType driveType;    // 4 bytes
-	                                           // 12 filler bytes (for possible later use)
+	protected long snapshotStamp = 0;          // 8 bytes (0 if no snapshot was taken, see CkdcCompaction)
+	                                           // 4 filler bytes (for possible later use)
 	                                           // => total 32 bytes header in version 1
 	
 	/*
@@ -203,34 +217,7 @@ public abstract class DriveBaseExternalIO {
 			if (deltaFis != null) {
 				
 				// load header form delta file
-				deltaFis.load(32);
-				int deltaVersion = deltaFis.readInt2();
-				if ((deltaVersion & 0x8000) == 0) {
-					throw new Exception("Passed a base file as delta file");
-				}
-				for (int i = 0; i < 6; i++) { 
-					if (baseVolser[i] != (byte)deltaFis.readInt1()) {
-						throw new Exception("VOLSER of base and delta file differ");
-					}
-				}
-				if (baseCylCount != deltaFis.readInt2()) {
-					throw new Exception("Geometry of base and delta file differ (CylCount)");
-				}
-				if (baseTracksPerCyl != deltaFis.readInt2()) {
-					throw new Exception("Geometry of base and delta file differ (RecordsPerCyl)");
-				}
-				if (baseMaxTrackSize != deltaFis.readInt3()) {
-					throw new Exception("Geometry of base and delta file differ (MaxTrackSize)");
-				}
-				if (baseMaxRecordsPerTrack != deltaFis.readInt1()) {
-					throw new Exception("Geometry of base and delta file differ (MaxrecordsPerTrack)");
-				}
-				if (baseDriveTypeCode != deltaFis.readInt4()) {
-					throw new Exception("DriveType of base and delta file differ");
-				}
-				deltaFis.readInt4();
-				deltaFis.readInt4();
-				deltaFis.readInt4();
+				this.snapshotStamp = checkDeltaHeader(deltaFis, baseVolser, baseCylCount, baseTracksPerCyl, baseMaxTrackSize, baseMaxRecordsPerTrack, baseDriveTypeCode);
 				
 				// load first track identification from delta file 
 				deltaFis.load(6);
@@ -332,32 +319,298 @@ public abstract class DriveBaseExternalIO {
 		}
 	}
 	
+	// load a CKD drive as clone of a shared base file, given the stream to the private delta file (possibly null)
+	protected DriveBaseExternalIO(SharedBase base, InputStream deltaStream) throws Exception {
+		InputStreamReader deltaFis = (deltaStream != null) ? new InputStreamReader(deltaStream) : null;
+		int nextDeltaCylNo = 0x7FFFFFFF;
+		int nextDeltaHeadNo = 0x7FFFFFFF;
+		int nextDeltaDataLength = 0;
+		
+		this.volser = base.volser;
+		this.cylinderCount = base.cylinderCount;
+		this.tracksPerCylinder = base.tracksPerCylinder;
+		this.maxTrackSize = base.maxTrackSize;
+		this.maxRecordsPerTrack = base.maxRecordsPerTrack;
+		this.driveType = base.driveType;
+		this.tracks = new Track[base.tracks.length];
+		this.sharedBase = base;
+		
+		try {
+			if (deltaFis != null) {
+				this.snapshotStamp = checkDeltaHeader(deltaFis, base.volser, base.cylinderCount, base.tracksPerCylinder, base.maxTrackSize, base.maxRecordsPerTrack, base.driveType.getCode());
+				deltaFis.load(6);
+				nextDeltaCylNo = deltaFis.readInt2();
+				nextDeltaHeadNo = deltaFis.readInt1();
+				nextDeltaDataLength = deltaFis.readInt3();
+			}
+			
+			for (int i = 0; i < this.tracks.length; i++) {
+				Track proto = base.tracks[i];
+				if (nextDeltaCylNo == proto.getCylNo() && nextDeltaHeadNo == proto.getHeadNo()) {
+					// use the private delta track
+					this.tracks[i] = new Track(
+							this.maxRecordsPerTrack,
+							this.maxTrackSize,
+							true, // isChangedTrack
+							deltaFis,
+							nextDeltaDataLength
+							);
+					
+					// read prefix for the next delta track
+					deltaFis.load(6);
+					nextDeltaCylNo = deltaFis.readInt2();
+					nextDeltaHeadNo = deltaFis.readInt1();
+					nextDeltaDataLength = deltaFis.readInt3();
+				} else {
+					// share the base track content
+					this.tracks[i] = new Track(proto);
+				}
+			}
+			
+			if (nextDeltaCylNo != 0x0000FFFF && nextDeltaCylNo != 0x7FFFFFFF) {
+				throw new Exception("Delta file has tracks not present in the shared base file");
+			}
+		} finally {
+			if (deltaFis != null) { deltaFis.close(); }
+		}
+	}
+	
+	// create a copy-on-write snapshot of the drive, whose tracks must not be accessed
+	protected DriveBaseExternalIO(DriveBaseExternalIO drive, long stamp) {
+		this.volser = drive.volser;
+		this.cylinderCount = drive.cylinderCount;
+		this.tracksPerCylinder = drive.tracksPerCylinder;
+		this.maxTrackSize = drive.maxTrackSize;
+		this.maxRecordsPerTrack = drive.maxRecordsPerTrack;
+		this.driveType = drive.driveType;
+		this.snapshotStamp = stamp;
+		this.tracks = new Track[drive.tracks.length];
+		for (int i = 0; i < this.tracks.length; i++) {
+			this.tracks[i] = new Track(drive.tracks[i]);
+		}
+	}
+	
+	// check that the delta header describes the same drive as the base file, returning the snapshot stamp
+	private static long checkDeltaHeader(
+			InputStreamReader deltaFis,
+			byte[] baseVolser,
+			int baseCylCount,
+			int baseTracksPerCyl,
+			int baseMaxTrackSize,
+			int baseMaxRecordsPerTrack,
+			int baseDriveTypeCode) throws Exception {
+		deltaFis.load(32);
+		int deltaVersion = deltaFis.readInt2();
+		if ((deltaVersion & 0x8000) == 0) {
+			throw new Exception("Passed a base file as delta file");
+		}
+		for (int i = 0; i < 6; i++) { 
+			if (baseVolser[i] != (byte)deltaFis.readInt1()) {
+				throw new Exception("VOLSER of base and delta file differ");
+			}
+		}
+		if (baseCylCount != deltaFis.readInt2()) {
+			throw new Exception("Geometry of base and delta file differ (CylCount)");
+		}
+		if (baseTracksPerCyl != deltaFis.readInt2()) {
+			throw new Exception("Geometry of base and delta file differ (RecordsPerCyl)");
+		}
+		if (baseMaxTrackSize != deltaFis.readInt3()) {
+			throw new Exception("Geometry of base and delta file differ (MaxTrackSize)");
+		}
+		if (baseMaxRecordsPerTrack != deltaFis.readInt1()) {
+			throw new Exception("Geometry of base and delta file differ (MaxrecordsPerTrack)");
+		}
+		if (baseDriveTypeCode != deltaFis.readInt4()) {
+			throw new Exception("DriveType of base and delta file differ");
+		}
+		long stamp = ((long)deltaFis.readInt4() << 32) | (deltaFis.readInt4() & 0xFFFFFFFFL);
+		deltaFis.readInt4();
+		return stamp;
+	}
+	
+	/**
+	 * Get the snapshot stamp from the header of a CKDC base or delta file.
+	 * 
+	 * @param file the base or delta file.
+	 * @return the snapshot stamp or 0 if none is present.
+	 * @throws Exception if the file header cannot be read.
+	 */
+	static long readSnapshotStamp(File file) throws Exception {
+		InputStreamReader isr = new InputStreamReader(new FileInputStream(file));
+		try {
+			isr.load(32);
+			for (int i = 0; i < 5; i++) { isr.readInt4(); }
+			return ((long)isr.readInt4() << 32) | (isr.readInt4() & 0xFFFFFFFFL);
+		} finally {
+			isr.close();
+		}
+	}
+	
+	/*
+	 * shared base files for cloned drives
+	 */
+	
+	// the shared base this drive was cloned from (kept to hold the shared base in the cache) 
+	private SharedBase sharedBase = null;
+	
+	/**
+	 * The content of a CKDC base file loaded once and used read-only as
+	 * template for the drives cloned from it.
+	 */
+	public static final class SharedBase extends DriveBaseExternalIO {
+		
+		private final long fileLength;
+		private final long fileLastModified;
+		
+		private SharedBase(File baseFile) throws Exception {
+			super((InputStream)null, new FileInputStream(baseFile));
+			this.fileLength = baseFile.length();
+			this.fileLastModified = baseFile.lastModified();
+		}
+		
+		// is the file still the one loaded?
+		private boolean isCurrent(File baseFile) {
+			return baseFile.length() == this.fileLength && baseFile.lastModified() == this.fileLastModified;
+		}
+	}
+	
+	// the shared bases loaded, held as long as a cloned drive uses it 
+	private static final Map<String, WeakReference<SharedBase>> sharedBases = new HashMap<String, WeakReference<SharedBase>>();
+	
+	/**
+	 * Get the shared base for a CKDC base file, loading the file if it is not
+	 * already loaded or if the file changed since loading it.
+	 * 
+	 * @param baseFile the name of the base file.
+	 * @return the shared base.
+	 * @throws Exception if the base file cannot be loaded.
+	 */
+	public static SharedBase getSharedBase(String baseFile) throws Exception {
+		File f = new File(baseFile);
+		String key = f.getCanonicalPath();
+		synchronized(sharedBases) {
+			WeakReference<SharedBase> ref = sharedBases.get(key);
+			SharedBase base = (ref != null) ? ref.get() : null;
+			if (base == null || !base.isCurrent(f)) {
+				base = new SharedBase(f);
+				sharedBases.put(key, new WeakReference<SharedBase>(base));
+			}
+			return base;
+		}
+	}
+	
+	/**
+	 * @return is this drive cloned from a shared base?
+	 */
+	public boolean isClonedDrive() {
+		return this.sharedBase != null;
+	}
+	
+	/**
+	 * Mark the changed tracks having the same content as in the given drive
+	 * as unchanged, so these tracks are no longer written to a delta file.
+	 * 
+	 * @param base the drive with the same geometry to compare with.
+	 * @return the number of tracks remaining changed.
+	 */
+	int markTracksUnchangedFrom(DriveBaseExternalIO base) {
+		int changedCount = 0;
+		for (int i = 0; i < this.tracks.length; i++) {
+			Track t = this.tracks[i];
+			if (!t.needsSaving()) { continue; }
+			if (t.hasSameContent(base.tracks[i])) {
+				t.markUnchanged();
+			} else {
+				changedCount++;
+			}
+		}
+		return changedCount;
+	}
+	
 	/*
 	 * saving the CKD drive to disk
 	 */
 	
-	private void writeInt1(OutputStream os, int val) throws Exception {
+	private static void writeInt1(OutputStream os, int val) throws IOException {
 		os.write(val);
 	}
 	
-	private void writeInt2(OutputStream os, int val) throws Exception {
+	private static void writeInt2(OutputStream os, int val) throws IOException {
 		os.write(val >> 8);
 		os.write(val);
 	}
 	
-	private void writeInt3(OutputStream os, int val) throws Exception {
+	private static void writeInt3(OutputStream os, int val) throws IOException {
 		os.write(val >> 16);
 		os.write(val >> 8);
 		os.write(val);
 	}
 	
-	private void writeInt4(OutputStream os, int val) throws Exception {
+	private static void writeInt4(OutputStream os, int val) throws IOException {
 		os.write(val >> 24);
 		os.write(val >> 16);
 		os.write(val >> 8);
 		os.write(val);
 	}
 	
+	// write the 32 bytes file header of a base or delta file
+	static void writeHeader(
+			OutputStream os,
+			boolean isDeltaTarget,
+			byte[] volser,
+			int cylinderCount,
+			int tracksPerCylinder,
+			int maxTrackSize,
+			int maxRecordsPerTrack,
+			CkdDriveType driveType,
+			long snapshotStamp) throws IOException {
+		// the version (most-significant bit set => this is a delta file)
+		int version = (isDeltaTarget) ? 0x8000 : 0x0000;
+		version += FILE_VERSION;
+		writeInt2(os, version);
+		
+		// volume label
+		os.write(volser, 0, 6);
+		
+		// number of cylinder
+		writeInt2(os, cylinderCount);
+		
+		// number of heads per cylinder
+		writeInt2(os, tracksPerCylinder);
+		
+		// max. byte count for data on a single track
+		writeInt3(os, maxTrackSize);
+		
+		// max. records per track
+		writeInt1(os, maxRecordsPerTrack);
+		
+		// the drive type code
+		writeInt4(os, driveType.getCode());
+		
+		// the snapshot stamp
+		writeInt4(os, (int)(snapshotStamp >>> 32));
+		writeInt4(os, (int)snapshotStamp);
+		
+		// 4 dummy bytes
+		writeInt4(os, 0);
+	}
+	
+	// write a track with its identifying header for merge on read
+	static void writeTrack(OutputStream os, Track t) throws IOException {
+		writeInt2(os, t.getCylNo());
+		writeInt1(os, t.getHeadNo());
+		writeInt3(os, t.getExternalTrackDataLength());
+		t.dumpTo(os);
+	}
+	
+	// write the end mark (invalid track identification) 
+	static void writeEndMark(OutputStream os) throws IOException {
+		writeInt2(os, 0x0000FFFF);
+		writeInt1(os, 0x000000FF);
+		writeInt3(os, 0);
+	}
+	
 	/**
 	 * Save this CKD drive to disk, either as delta if 'deltaFile' is specified,
 	 * or as complete content if 'basefile' is given.
@@ -402,40 +655,8 @@ public abstract class DriveBaseExternalIO {
 		/*
 		 * put the header
 		 */
-	
-		// the version (most-significant bit set => this is a delta file)
-		int version = (isDeltaTarget) ? 0x8000 : 0x0000;
-		version += this.fileversion;
-		this.writeInt2(os, version);
-		
-		// volume label
-		os.write(volser[0]);
-		os.write(volser[1]);
-		os.write(volser[2]);
-		os.write(volser[3]);
-		os.write(volser[4]);
-		os.write(volser[5]);
-		
-		// number of cylinder
-		this.writeInt2(os, this.cylinderCount);
-		
-		// number of heads per cylinder
-		this.writeInt2(os, this.tracksPerCylinder);
-		
-		// max. byte count for data on a single track
-		this.writeInt3(os, this.maxTrackSize);
-		
-		// max. records per track
-		this.writeInt1(os, this.maxRecordsPerTrack);
-		
-		// the drive type code
-		int driveTypeCode = this.driveType.getCode();
-		this.writeInt4(os, driveTypeCode);
-
-		// 12 dummy bytes
-		this.writeInt4(os, 0);
-		this.writeInt4(os, 0);
-		this.writeInt4(os, 0);
+		writeHeader(os, isDeltaTarget, this.volser, this.cylinderCount, this.tracksPerCylinder,
+				this.maxTrackSize, this.maxRecordsPerTrack, this.driveType, this.snapshotStamp);
 		
 		/*
 		 * the tracks
@@ -444,21 +665,14 @@ public abstract class DriveBaseExternalIO {
 		for (int i = 0; i < this.tracks.length; i++) {
 			Track t = this.tracks[i];
 			if (doMerge || t.needsSaving()) {
-				// identifiying header for merge on read
-				this.writeInt2(os, t.getCylNo());
-				this.writeInt1(os, t.getHeadNo());
-				this.writeInt3(os, t.getExternalTrackDataLength());
-				// track data
-				t.dumpTo(os);
+				writeTrack(os, t);
 			}
 		}
 		
 		/*
 		 * mark the end (invalid track identification)
 		 */
-		this.writeInt2(os, 0x0000FFFF);
-		this.writeInt1(os, 0x000000FF);
-		this.writeInt3(os, 0);
+		writeEndMark(os);
 		
 		/*
 		 * done
@@ -13,6 +13,7 @@
 package dev.hawala.vm370.dasd.ckdc;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import dev.hawala.vm370.vm.device.iDeviceIO;
 
@@ -54,6 +55,10 @@ public class Track extends TrackBaseExternalIO {
 		super(maxRecordCount, maxTrackSize, isChangedTrack, is, trackContentLength);
 	}
 	
+	public Track(Track prototype) {
+		super(prototype);
+	}
+	
 	/*
 	** Overrides for superclass methods 
 	*/
@@ -61,6 +66,7 @@ public class Track extends TrackBaseExternalIO {
 	@Override
 	public byte[] deAccess() throws IOException {
 		this.formatting = false;
+		this.releaseRecordIndex();
 		return super.deAccess();
 	}
 	
@@ -69,7 +75,7 @@ public class Track extends TrackBaseExternalIO {
 	*/
 	
 	private final static int COUNT_INDEX_ZERO = -42;
-	private int currCountIndex = 0; // Index of the CountArea to be used for all record operations
+	private int currCountIndex = 0; // Index of the count area to be used for all record operations
 	
 	private boolean formatting = false;
 	
@@ -79,6 +85,122 @@ public class Track extends TrackBaseExternalIO {
 	
 	public void setAccessedCount(long count) { this.accessedCount = count; }
 	
+	/*
+	** record index for locating count areas by record number resp. key without
+	** scanning the count areas, built when first needed while the track is accessed,
+	** invalidated if the count areas (or the keys) of the track are modified and
+	** dropped when the track is de-accessed
+	*/
+	
+	// bucket for all record numbers not addressable by a search id (1 byte) 
+	private final static int RECNO_BUCKET_ABOVE = 256;
+	
+	// count area index of the first record with a given record number (-1 if not present)
+	private short[] slotOfRecordNo = null;
+	
+	// count area index of the first record with a record number higher than the given number (-1 if none)
+	private short[] slotAboveRecordNo = null;
+	
+	private boolean recordIndexValid = false;
+	
+	// count area indices of the keyed records sorted by key (equal keys sorted by index),
+	// only present if all keyed records on the track have the same key length
+	private short[] keyDirectory = null;
+	
+	// lowest count area index in keyDirectory[i...]
+	private short[] keyDirectoryMinSlot = null;
+	
+	private int keyDirectoryCount = 0;
+	private int keyDirectoryKeyLen = -1; // -1 : no keyed records or different key lengths
+	
+	private boolean keyDirectoryValid = false;
+	
+	private void buildRecordIndex() {
+		if (this.slotOfRecordNo == null) {
+			this.slotOfRecordNo = new short[RECNO_BUCKET_ABOVE + 1];
+			this.slotAboveRecordNo = new short[RECNO_BUCKET_ABOVE];
+		}
+		Arrays.fill(this.slotOfRecordNo, (short)-1);
+		for (int i = this.recordCount - 1; i >= 0; i--) {
+			int recNo = Math.min(this.getCountRecordNo(i), RECNO_BUCKET_ABOVE);
+			this.slotOfRecordNo[recNo] = (short)i;
+		}
+		short above = this.slotOfRecordNo[RECNO_BUCKET_ABOVE];
+		for (int id = RECNO_BUCKET_ABOVE - 1; id >= 0; id--) {
+			this.slotAboveRecordNo[id] = above;
+			short slot = this.slotOfRecordNo[id];
+			if (slot >= 0 && (above < 0 || slot < above)) { above = slot; }
+		}
+		this.recordIndexValid = true;
+	}
+	
+	private void buildKeyDirectory() {
+		this.keyDirectoryValid = true;
+		this.keyDirectoryCount = 0;
+		this.keyDirectoryKeyLen = -1;
+		if (this.keyDirectory == null || this.keyDirectory.length < this.recordCount) {
+			this.keyDirectory = new short[this.recordCount];
+			this.keyDirectoryMinSlot = new short[this.recordCount];
+		}
+		
+		// collect the keyed records, giving up if the key lengths differ
+		for (int i = 0; i < this.recordCount; i++) {
+			int keyLen = this.getCountKeyLen(i);
+			if (keyLen < 1) { continue; }
+			if (this.keyDirectoryKeyLen < 0) {
+				this.keyDirectoryKeyLen = keyLen;
+			} else if (this.keyDirectoryKeyLen != keyLen) {
+				this.keyDirectoryKeyLen = -1;
+				this.keyDirectoryCount = 0;
+				return;
+			}
+			this.keyDirectory[this.keyDirectoryCount++] = (short)i;
+		}
+		
+		// sort by key (insertion sort, as there are only few records on a track)
+		for (int i = 1; i < this.keyDirectoryCount; i++) {
+			short slot = this.keyDirectory[i];
+			int j = i - 1;
+			while (j >= 0 && this.compareKey(this.keyDirectory[j], this.unpacked, this.getCountStartPos(slot)) > 0) {
+				this.keyDirectory[j + 1] = this.keyDirectory[j];
+				j--;
+			}
+			this.keyDirectory[j + 1] = slot;
+		}
+		
+		// lowest count area index from each position to the end
+		short minSlot = Short.MAX_VALUE;
+		for (int i = this.keyDirectoryCount - 1; i >= 0; i--) {
+			if (this.keyDirectory[i] < minSlot) { minSlot = this.keyDirectory[i]; }
+			this.keyDirectoryMinSlot[i] = minSlot;
+		}
+	}
+	
+	// compare the key of the record at count area index 'slot' with the key of the directory's length at 'key[keyPos...]'
+	private int compareKey(int slot, byte[] key, int keyPos) {
+		int pos = this.getCountStartPos(slot);
+		for (int k = 0; k < this.keyDirectoryKeyLen; k++) {
+			int diff = (this.unpacked[pos + k] & 0xFF) - (key[keyPos + k] & 0xFF);
+			if (diff != 0) { return diff; }
+		}
+		return 0;
+	}
+	
+	// invalidate the record index and the key directory after changes to the count areas
+	private void invalidateRecordIndex() {
+		this.recordIndexValid = false;
+		this.keyDirectoryValid = false;
+	}
+	
+	// drop the index structures when the track is no longer accessed (keeping memory usage bounded)
+	private void releaseRecordIndex() {
+		this.invalidateRecordIndex();
+		this.slotOfRecordNo = null;
+		this.slotAboveRecordNo = null;
+		this.keyDirectory = null;
+		this.keyDirectoryMinSlot = null;
+	}
+	
 	public void moveToCKDIndex(int index) {
 		if (index < 0) {
 			this.currCountIndex = 0;
@@ -89,7 +211,7 @@ public class Track extends TrackBaseExternalIO {
 		}
 	}
 	
-	/** Find the CountArea with the given ID (record number) and set it as current record
+	/** Find the count area with the given ID (record number) and set it as current record
 	 * for the next operations.
 	 * 
 	 * @param id the ID to look for
@@ -101,16 +223,15 @@ public class Track extends TrackBaseExternalIO {
 			this.currCountIndex = COUNT_INDEX_ZERO;
 			return true;
 		}
-		for (int i = 0; i < this.recordCount; i++) {
-			if (this.countAreas[i].recordNo == id) {
-				this.currCountIndex = i;
-				return true;
-			}
-		}
-		return false;
+		if (id < 0 || id >= RECNO_BUCKET_ABOVE) { return false; }
+		if (!this.recordIndexValid) { this.buildRecordIndex(); }
+		int slot = this.slotOfRecordNo[id];
+		if (slot < 0) { return false; }
+		this.currCountIndex = slot;
+		return true;
 	}
 	
-	/** Find the CountArea with the record number higher than the given ID and set it as
+	/** Find the count area with the record number higher than the given ID and set it as
 	 *  current record for the next operations.
 	 * 
 	 * @param id the ID to look for
@@ -118,8 +239,15 @@ public class Track extends TrackBaseExternalIO {
 	 *   'id' is not defined in this track.
 	 */
 	public boolean searchIdHigh(int id) {
+		if (id >= 0 && id < RECNO_BUCKET_ABOVE) {
+			if (!this.recordIndexValid) { this.buildRecordIndex(); }
+			int slot = this.slotAboveRecordNo[id];
+			if (slot < 0) { return false; }
+			this.currCountIndex = slot;
+			return true;
+		}
 		for (int i = 0; i < this.recordCount; i++) {
-			if (this.countAreas[i].recordNo > id) {
+			if (this.getCountRecordNo(i) > id) {
 				this.currCountIndex = i;
 				return true;
 			}
@@ -141,19 +269,44 @@ public class Track extends TrackBaseExternalIO {
 		if (!matchEqual && !matchHigh) { return false; } // what was it to be looked for?
 		if (this.unpacked == null) { throw new IllegalStateException("Missing access()-call before track data i/o"); }
 		
+		// use the key directory if the search key has the length of all keys on the track 
+		if (!this.keyDirectoryValid) { this.buildKeyDirectory(); }
+		if (len == this.keyDirectoryKeyLen) {
+			// find the first key in the directory not lower than the search key
+			int low = 0;
+			int high = this.keyDirectoryCount;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (this.compareKey(this.keyDirectory[mid], key, 0) < 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			if (low >= this.keyDirectoryCount) { return false; }
+			if (matchHigh) {
+				// a key equal on the full length also matches when searching high
+				this.currCountIndex = this.keyDirectoryMinSlot[low];
+				return true;
+			}
+			if (this.compareKey(this.keyDirectory[low], key, 0) != 0) { return false; }
+			this.currCountIndex = this.keyDirectory[low];
+			return true;
+		}
+		
 		for (int i = 0; i < this.recordCount; i++) {
 			boolean isMatch = true;
-			CountArea ca = this.countAreas[i];
-			if (ca.keyLen < 1) { continue; } // this record has no key
-			if (ca.keyLen != len && !matchHigh) { continue; } // must be equal, but only same length can be exact equal
-			int last = ((len > ca.keyLen) ? ca.keyLen : len) - 1;
-			for (int uk = ca.startPos, k = 0; k <= last; k++, uk++) {
+			int caKeyLen = this.getCountKeyLen(i);
+			if (caKeyLen < 1) { continue; } // this record has no key
+			if (caKeyLen != len && !matchHigh) { continue; } // must be equal, but only same length can be exact equal
+			int last = ((len > caKeyLen) ? caKeyLen : len) - 1;
+			for (int uk = this.getCountStartPos(i), k = 0; k <= last; k++, uk++) {
 				int valDisk = (this.unpacked[uk] & 0xFF);
 				int valSearch = (key[k] & 0xFF);
 				
 				if (matchHigh && valDisk > valSearch) { break; } // matching so far and this key byte is high: done
 				if (valDisk == valSearch) {
-					if (k == last && !matchEqual && (ca.keyLen > len)) {
+					if (k == last && !matchEqual && (caKeyLen > len)) {
 						// equal on common length but record key is longer => cannot match for pure matchHigh
 						isMatch = false; // loop will end anyway because if condition "k == last" 
 					}
@@ -184,13 +337,42 @@ public class Track extends TrackBaseExternalIO {
 		if (this.currCountIndex == COUNT_INDEX_ZERO) { this.currCountIndex = 0; } // "read next record except record zero"
 		if (this.currCountIndex < 0 || this.currCountIndex >= this.recordCount) { throw new IllegalStateException("No valid searchId() before track data i/o"); }
 		
-		CountArea ca = this.countAreas[this.currCountIndex++];
-		int recordOffset = ca.startPos + ca.keyLen;
-		int recordLen = ca.dataLen;
+		int caIdx = this.currCountIndex++;
+		int recordOffset = this.getCountStartPos(caIdx) + this.getCountKeyLen(caIdx);
+		int recordLen = this.getCountDataLen(caIdx);
 		
 		return memTarget.transfer(this.unpacked, recordOffset, recordLen);
 	}
 	
+	/**
+	 * Find the record with the given ID (record number) and set it as current record if
+	 * its data area has the given length, this being the precondition for the direct
+	 * data transfers {@link Track#readData(byte[], int)} and {@link Track#writeData(byte[], int)}.
+	 * 
+	 * @param id the ID to look for
+	 * @param dataLength the required length of the data area
+	 * @return true if the record was found with the data length.
+	 */
+	public boolean searchDataRecord(int id, int dataLength) {
+		if (id == 0 || !this.searchIdEqual(id)) { return false; }
+		return this.getCountDataLen(this.currCountIndex) == dataLength;
+	}
+	
+	/**
+	 * Copy the data area of the last searched record directly to a memory area.
+	 * 
+	 * @param mem the target memory
+	 * @param memOffset the start of the data area in the target memory
+	 */
+	public void readData(byte[] mem, int memOffset) {
+		if (this.unpacked == null) { throw new IllegalStateException("Missing access()-call before track data i/o"); }
+		if (this.currCountIndex < 0 || this.currCountIndex >= this.recordCount) { throw new IllegalStateException("No valid searchId() before track data i/o"); }
+		
+		int caIdx = this.currCountIndex++;
+		int recordOffset = this.getCountStartPos(caIdx) + this.getCountKeyLen(caIdx);
+		System.arraycopy(this.unpacked, recordOffset, mem, memOffset, this.getCountDataLen(caIdx));
+	}
+	
 	/**
 	 * Read the key and data area of the last searched record.
 	 *  
@@ -203,9 +385,9 @@ public class Track extends TrackBaseExternalIO {
 		if (this.currCountIndex == COUNT_INDEX_ZERO) { this.currCountIndex = 0; } // "read next record except record zero"
 		if (this.currCountIndex < 0 || this.currCountIndex >= this.recordCount) { throw new IllegalStateException("No valid searchId() before track data i/o"); }
 		
-		CountArea ca = this.countAreas[this.currCountIndex++];
-		int recordOffset = ca.startPos;
-		int recordLen = ca.dataLen + ca.keyLen;
+		int caIdx = this.currCountIndex++;
+		int recordOffset = this.getCountStartPos(caIdx);
+		int recordLen = this.getCountDataLen(caIdx) + this.getCountKeyLen(caIdx);
 		
 		return memTarget.transfer(this.unpacked, recordOffset, recordLen);
 	}
@@ -222,9 +404,9 @@ public class Track extends TrackBaseExternalIO {
 		if (this.currCountIndex == COUNT_INDEX_ZERO) { this.currCountIndex = 0; } // "read next record except record zero"
 		if (this.currCountIndex < 0 || this.currCountIndex >= this.recordCount) { throw new IllegalStateException("No valid searchId() before track data i/o"); }
 		
-		CountArea ca = this.countAreas[this.currCountIndex++];
-		int recordOffset = ca.startPos;
-		int recordLen = ca.dataLen + ca.keyLen;
+		int caIdx = this.currCountIndex++;
+		int recordOffset = this.getCountStartPos(caIdx);
+		int recordLen = this.getCountDataLen(caIdx) + this.getCountKeyLen(caIdx);
 		int totalLen = recordLen + 8; // 8 bytes for the Count area
 		
 		if (buffer == null || buffer.length < totalLen) {
@@ -234,10 +416,10 @@ public class Track extends TrackBaseExternalIO {
 		buffer[1] = (byte)(this.homeAddressCylNo & 0xFF);
 		buffer[2] = (byte)((this.homeAddressHead >> 8) & 0xFF); 
 		buffer[3] = (byte)(this.homeAddressHead & 0xFF);
-		buffer[4] = (byte)(ca.recordNo & 0xFF);
-		buffer[5] = (byte)(ca.keyLen & 0xFF);
-		buffer[6] = (byte)((ca.dataLen >> 8) & 0xFF); 
-		buffer[7] = (byte)(ca.dataLen & 0xFF);
+		buffer[4] = (byte)(this.getCountRecordNo(caIdx) & 0xFF);
+		buffer[5] = (byte)(this.getCountKeyLen(caIdx) & 0xFF);
+		buffer[6] = (byte)((this.getCountDataLen(caIdx) >> 8) & 0xFF); 
+		buffer[7] = (byte)(this.getCountDataLen(caIdx) & 0xFF);
 		System.arraycopy(this.unpacked, recordOffset, buffer, 8, recordLen);
 		
 		return memTarget.transfer(buffer, 0, totalLen);
@@ -267,7 +449,7 @@ public class Track extends TrackBaseExternalIO {
 		if (this.currCountIndex >= this.recordCount) { throw new IllegalStateException("No valid searchId() before track data i/o"); }
 		if (this.currCountIndex == COUNT_INDEX_ZERO) { throw new IllegalStateException("Attempt to readCount() on record zero"); }
 		
-		CountArea ca = this.countAreas[this.currCountIndex++];
+		int caIdx = this.currCountIndex++;
 		int totalLen = 8; // 8 bytes for the Count area
 		
 		if (buffer == null || buffer.length < totalLen) {
@@ -277,10 +459,10 @@ public class Track extends TrackBaseExternalIO {
 		buffer[1] = (byte)(this.homeAddressCylNo & 0xFF);
 		buffer[2] = (byte)((this.homeAddressHead >> 8) & 0xFF); 
 		buffer[3] = (byte)(this.homeAddressHead & 0xFF);
-		buffer[4] = (byte)(ca.recordNo & 0xFF);
-		buffer[5] = (byte)(ca.keyLen & 0xFF);
-		buffer[6] = (byte)((ca.dataLen >> 8) & 0xFF); 
-		buffer[7] = (byte)(ca.dataLen & 0xFF);
+		buffer[4] = (byte)(this.getCountRecordNo(caIdx) & 0xFF);
+		buffer[5] = (byte)(this.getCountKeyLen(caIdx) & 0xFF);
+		buffer[6] = (byte)((this.getCountDataLen(caIdx) >> 8) & 0xFF); 
+		buffer[7] = (byte)(this.getCountDataLen(caIdx) & 0xFF);
 		
 		return memTarget.transfer(buffer, 0, totalLen);
 	}
@@ -327,10 +509,11 @@ public class Track extends TrackBaseExternalIO {
 		if (this.currCountIndex >= this.recordCount) { throw new IllegalStateException("No valid searchId() before track data i/o"); }
 		if (this.currCountIndex == COUNT_INDEX_ZERO) { throw new IllegalStateException("Attempt to writeData() on record zero"); }
 		
-		CountArea ca = this.countAreas[this.currCountIndex++];
-		int recordOffset = ca.startPos + ca.keyLen;
-		int recordLen = ca.dataLen;
+		int caIdx = this.currCountIndex++;
+		int recordOffset = this.getCountStartPos(caIdx) + this.getCountKeyLen(caIdx);
+		int recordLen = this.getCountDataLen(caIdx);
 		
+		this.makeUnpackedPrivate();
 		int bytesDiff = memSource.transfer(this.unpacked, recordOffset, recordLen);
 		this.fillRecordTail(recordOffset, recordLen, bytesDiff);
 		this.unpackedIsChanged = true;
@@ -338,6 +521,23 @@ public class Track extends TrackBaseExternalIO {
 		return bytesDiff;
 	}
 	
+	/**
+	 * Copy a memory area directly to the data area of the last searched record.
+	 * 
+	 * @param mem the source memory
+	 * @param memOffset the start of the data area in the source memory
+	 */
+	public void writeData(byte[] mem, int memOffset) {
+		if (this.unpacked == null) { throw new IllegalStateException("Missing access()-call before track data i/o"); }
+		if (this.currCountIndex < 0 || this.currCountIndex >= this.recordCount) { throw new IllegalStateException("No valid searchId() before track data i/o"); }
+		
+		int caIdx = this.currCountIndex++;
+		int recordOffset = this.getCountStartPos(caIdx) + this.getCountKeyLen(caIdx);
+		this.makeUnpackedPrivate();
+		System.arraycopy(mem, memOffset, this.unpacked, recordOffset, this.getCountDataLen(caIdx));
+		this.unpackedIsChanged = true;
+	}
+	
 	/**
 	 * Write to the key and data area of the last searched record.
 	 * 
@@ -350,13 +550,15 @@ public class Track extends TrackBaseExternalIO {
 		if (this.currCountIndex >= this.recordCount) { throw new IllegalStateException("No valid searchId() before track data i/o"); }
 		if (this.currCountIndex == COUNT_INDEX_ZERO) { throw new IllegalStateException("Attempt to writeKeyAndData() on record zero"); }
 		
-		CountArea ca = this.countAreas[this.currCountIndex++];
-		int recordOffset = ca.startPos;
-		int recordLen = ca.dataLen + ca.keyLen;
+		int caIdx = this.currCountIndex++;
+		int recordOffset = this.getCountStartPos(caIdx);
+		int recordLen = this.getCountDataLen(caIdx) + this.getCountKeyLen(caIdx);
 		
+		this.makeUnpackedPrivate();
 		int bytesDiff = memSource.transfer(this.unpacked, recordOffset, recordLen);
 		this.fillRecordTail(recordOffset, recordLen, bytesDiff);
 		this.unpackedIsChanged = true;
+		if (this.getCountKeyLen(caIdx) > 0) { this.keyDirectoryValid = false; }
 		
 		return bytesDiff;
 	}
@@ -378,19 +580,18 @@ public class Track extends TrackBaseExternalIO {
 		if (this.currCountIndex < 0 || this.currCountIndex >= this.recordCount) {
 			this.currCountIndex = 0;
 		} else {
-			cleanupStartAt = this.countAreas[this.currCountIndex].startPos;
+			cleanupStartAt = this.getCountStartPos(this.currCountIndex);
 		}
 		this.recordCount = this.currCountIndex;
 		
 		// clear the unpacked track data contents
-		for (int i = this.recordCount; i < this.countAreas.length; i++) {
-			this.countAreas[i] = null;
-		}
+		this.makeUnpackedPrivate();
 		for (int i = cleanupStartAt; i < this.unpacked.length; i++) {
 			this.unpacked[i] = (byte)0x00;
 		}
 		
 		// set state for formatting
+		this.invalidateRecordIndex();
 		this.trackSize = cleanupStartAt;
 		this.packedIschanged = true;
 		this.formatting = true;
@@ -407,14 +608,15 @@ public class Track extends TrackBaseExternalIO {
 	 */
 	public void appendCountKeyAndData(int recordNo, int keyLen, int dataLen, byte[] keyAndData, int sourceStart, int sourceLen) {
 		// create the new Count area entry
-		this.countAreas[this.recordCount++] = new CountArea(recordNo, keyLen, dataLen, this.trackSize);
+		this.setCountArea(this.recordCount++, recordNo, keyLen, dataLen, this.trackSize);
+		this.invalidateRecordIndex();
 		
 		// copy possibly provided formatting content to the record's data
-		int toPos = this.trackSize;
 		int copyLen = keyLen + dataLen;
 		if (copyLen > sourceLen) { copyLen = sourceLen; }
-		for (int i = sourceStart; i < copyLen; i++) {
-			this.unpacked[toPos++] = keyAndData[i];
+		if (copyLen > 0) {
+			this.makeUnpackedPrivate();
+			System.arraycopy(keyAndData, sourceStart, this.unpacked, this.trackSize, copyLen);
 		}
 		
 		// finalize track status
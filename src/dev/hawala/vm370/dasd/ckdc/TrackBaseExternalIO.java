@@ -12,14 +12,10 @@
 
 package dev.hawala.vm370.dasd.ckdc;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.security.InvalidParameterException;
 import java.util.Arrays;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterInputStream;
 
 import dev.hawala.vm370.ebcdic.Ebcdic;
 
@@ -49,50 +45,6 @@ public abstract class TrackBaseExternalIO {
 	** Content structures and construction of a CKD track (initial loading form DDR tape, save/restore from CKDC file)
 	*/
 	
-	/**
-	 * Representation of a single CKD count area of a track. 
-	 */
-	protected static class CountArea {
-		
-		/** record number of this CKD */
-		public final int recordNo;
-		
-		/** offset of the first byte of this CKD's key+data block in the buffer */
-		public final int startPos;
-		
-		/** length of the key part of the CKD */
-		public final int keyLen;
-		
-		/** length of the data part of the CKD */
-		public final int dataLen;
-		
-		public CountArea(int recordNo, int keyLen, int dataLen, int startPos) {
-			this.recordNo = recordNo;
-			this.keyLen = keyLen;
-			this.dataLen = dataLen;
-			this.startPos = startPos;
-		}
-		
-		public CountArea(InputStreamReader is) throws IOException {
-			is.load(8);
-			this.recordNo = is.readInt2();
-			this.keyLen = is.readInt1();
-			this.dataLen = is.readInt2();
-			this.startPos = is.readInt3();
-		}
-		
-		public void dumpTo(OutputStream os) throws IOException {
-			os.write(this.recordNo >> 8);
-			os.write(this.recordNo);
-			os.write(this.keyLen);
-			os.write(this.dataLen >> 8);
-			os.write(this.dataLen);
-			os.write(this.startPos >> 16);
-			os.write(this.startPos >> 8);
-			os.write(this.startPos);
-		}
-	}
-	
 	protected final int maxRecordCount; // excluding recordZero
 	protected final int maxTrackSize; // key- and data-bytes, excluding count-infos 
 	
@@ -105,7 +57,38 @@ public abstract class TrackBaseExternalIO {
 	
 	protected byte[] recordZeroRaw = new byte[16]; // ddr-length: 16
 	
-	protected CountArea[] countAreas; // length: maxRecordCount
+	/*
+	 * the count areas of the track are packed into an int array with 2 ints per count area:
+	 * - counts[2*i]     : record number (upper 16 bits) and data length (lower 16 bits)
+	 * - counts[2*i + 1] : key length (upper 8 bits) and offset of the first byte of the
+	 *                     CKD's key+data block in the unpacked track (lower 24 bits)
+	 */
+	private static final int[] NO_COUNTS = new int[0];
+	
+	protected int[] counts = NO_COUNTS; // length: 2 * recordCount, growing up to 2 * maxRecordCount when formatting
+	
+	/** record number of the count area at index 'idx' */
+	protected final int getCountRecordNo(int idx) { return this.counts[idx << 1] >>> 16; }
+	
+	/** length of the data part of the CKD at index 'idx' */
+	protected final int getCountDataLen(int idx) { return this.counts[idx << 1] & 0xFFFF; }
+	
+	/** length of the key part of the CKD at index 'idx' */
+	protected final int getCountKeyLen(int idx) { return this.counts[(idx << 1) + 1] >>> 24; }
+	
+	/** offset of the first byte of the key+data block of the CKD at index 'idx' in the unpacked track */
+	protected final int getCountStartPos(int idx) { return this.counts[(idx << 1) + 1] & 0x00FFFFFF; }
+	
+	/** set the count area at index 'idx', extending the count areas if necessary */
+	protected final void setCountArea(int idx, int recordNo, int keyLen, int dataLen, int startPos) {
+		int pos = idx << 1;
+		if (pos >= this.counts.length) {
+			int newLength = Math.max(pos + 2, Math.min(this.counts.length * 2, this.maxRecordCount * 2));
+			this.counts = Arrays.copyOf(this.counts, newLength);
+		}
+		this.counts[pos] = (recordNo << 16) | (dataLen & 0xFFFF);
+		this.counts[pos + 1] = (keyLen << 24) | (startPos & 0x00FFFFFF);
+	}
 	
 	protected int trackSize = 0; // effectively used space in unpacked track
 	
@@ -118,13 +101,13 @@ public abstract class TrackBaseExternalIO {
 	protected boolean packedIschanged = false;   // must the packed state be written to the backing store?
 	protected boolean unpackedIsChanged = false; // must the unpacked be packed when de-accessing the track?
 	
+	private boolean packedOriginalShared = false; // is 'packedOriginal' known to be used by other tracks?
+	private byte[] privateBuffer = null;          // != null if 'unpacked' is shared read-only content (see TrackContentInterner)
+	
 	private TrackBaseExternalIO(int maxRecordCount, int maxTrackSize) {
 		// setup final fields
 		this.maxRecordCount = maxRecordCount;
 		this.maxTrackSize = maxTrackSize;
-		
-		// initialize variable size work fields
-		this.countAreas = new CountArea[this.maxRecordCount];
 	}
 	
 	// load a track content from a DDR track content
@@ -162,11 +145,12 @@ public abstract class TrackBaseExternalIO {
 		// then come the Count headers for the {Key,Data} records
 		int rawPos = 21; // offset of the current Count-info in 'ddrHead'
 		int dataStartPos = 0; // offset of the {key,data}-record in 'unpacked' for the current Count-info 
+		this.counts = new int[this.recordCount * 2];
 		for (int i = 0; i < this.recordCount; i++) {
 			int recordNo = (ddrHead[rawPos+4] & 0xFF);
 			int keyLen = (ddrHead[rawPos+5] & 0xFF);
 			int dataLen  = ((ddrHead[rawPos+6] & 0xFF) << 8) | (ddrHead[rawPos+7] & 0xFF);
-			this.countAreas[i] = new CountArea(recordNo, keyLen, dataLen, dataStartPos);
+			this.setCountArea(i, recordNo, keyLen, dataLen, dataStartPos);
 			rawPos += 8;
 			dataStartPos += keyLen + dataLen;
 		}
@@ -179,6 +163,21 @@ public abstract class TrackBaseExternalIO {
 		this.unpacked = null;
 	}
 	
+	// create a track sharing the (read-only) current packed content of a non-accessed track
+	// (of a shared base file or of a drive being snapshot)
+	protected TrackBaseExternalIO(TrackBaseExternalIO prototype) {
+		this(prototype.maxRecordCount, prototype.maxTrackSize);
+		this.recordCount = prototype.recordCount;
+		this.homeAddressRaw = prototype.homeAddressRaw.clone();
+		this.homeAddressCylNo = prototype.homeAddressCylNo;
+		this.homeAddressHead = prototype.homeAddressHead;
+		this.recordZeroRaw = prototype.recordZeroRaw.clone();
+		this.counts = (prototype.counts.length == 0) ? NO_COUNTS : prototype.counts.clone();
+		this.trackSize = prototype.trackSize;
+		this.packedOriginal = prototype.getPackedContent(); // never modified, changes go to a new 'packedChanged'
+		this.packedOriginalShared = true;
+	}
+	
 	// load a track from a stream on a file in native format
 	protected TrackBaseExternalIO(
 			int maxRecordCount,
@@ -217,11 +216,16 @@ public abstract class TrackBaseExternalIO {
 		this.recordCount = is.readInt2();
 		
 		// read theCount headers for the {Key,Data} records
+		this.counts = new int[Math.min(this.recordCount, this.maxRecordCount) * 2];
 		for (int i = 0; i < this.recordCount; i++) {
-			CountArea ca = new CountArea(is);
+			is.load(8);
+			int recordNo = is.readInt2();
+			int keyLen = is.readInt1();
+			int dataLen = is.readInt2();
+			int startPos = is.readInt3();
 			trackContentLength -= 8;
 			if (i < this.maxRecordCount) {
-				this.countAreas[i] = ca;
+				this.setCountArea(i, recordNo, keyLen, dataLen, startPos);
 			}
 		}
 		if (this.recordCount > this.maxRecordCount) {this.recordCount = this.maxRecordCount; }
@@ -230,22 +234,20 @@ public abstract class TrackBaseExternalIO {
 		if (trackContentLength < 1) {
 			throw new IOException("Failed to read packed track contents (no data left)");
 		}
-		this.packedOriginal = new byte[trackContentLength];
-		if (is.read(this.packedOriginal) != trackContentLength) {
+		byte[] packed = new byte[trackContentLength];
+		if (is.read(packed) != trackContentLength) {
 			throw new IOException("Failed to read packed track content");
 		}
+		
+		// share the packed content with identical tracks
+		this.packedOriginal = TrackContentInterner.intern(packed);
+		this.packedOriginalShared = (this.packedOriginal != packed);
 	}
 	
 	// create the packed copy of the unpacked track content
 	private void pack() throws IOException {
 		if (this.unpacked == null) { return; }
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DeflaterOutputStream dos = new DeflaterOutputStream(baos);
-		dos.write(this.unpacked, 0, this.trackSize);
-		dos.finish();
-		this.packedChanged = baos.toByteArray();
-		dos.close();
-		baos.close();
+		this.packedChanged = TrackCodec.get().pack(this.unpacked, 0, this.trackSize);
 	}
 	
 	/**
@@ -285,7 +287,17 @@ public abstract class TrackBaseExternalIO {
 		
 		// write count areas
 		for (int i = 0; i < this.recordCount; i++) {
-			this.countAreas[i].dumpTo(os);
+			int recordNo = this.getCountRecordNo(i);
+			int dataLen = this.getCountDataLen(i);
+			int startPos = this.getCountStartPos(i);
+			os.write(recordNo >> 8);
+			os.write(recordNo);
+			os.write(this.getCountKeyLen(i));
+			os.write(dataLen >> 8);
+			os.write(dataLen);
+			os.write(startPos >> 16);
+			os.write(startPos >> 8);
+			os.write(startPos);
 		}
 		
 		// packed track content
@@ -295,6 +307,11 @@ public abstract class TrackBaseExternalIO {
 	/**
 	 * Prepare the track for accesses by unpacking the packed track content
 	 * to the provided buffer.
+	 * <p>
+	 * If the track content is shared with other tracks, the shared unpacked
+	 * content may be used instead, the buffer being used for a private copy
+	 * when the track is modified.
+	 * </p>
 	 * 
 	 * @param buffer the buffer where to unpack the track content.
 	 * @throws IOException
@@ -315,21 +332,94 @@ public abstract class TrackBaseExternalIO {
 		// where to unpack from?
 		byte[] src = (this.packedChanged != null) ? this.packedChanged : this.packedOriginal;
 		
-		// unpack
-		ByteArrayInputStream bais = new ByteArrayInputStream(src);
-		InflaterInputStream iis = new InflaterInputStream(bais);
-		int unpackCount = 0;
-		int cnt = iis.read(buffer);
-		while (cnt >= 0 && buffer.length > unpackCount) {
-			unpackCount += cnt;
-			cnt = iis.read(buffer, unpackCount, buffer.length - unpackCount);
+		// use the shared unpacked content if available (keeping the buffer for modifications) 
+		if (src == this.packedOriginal) {
+			byte[] shared = TrackContentInterner.getUnpacked(src, buffer.length, this.packedOriginalShared);
+			if (shared != null) {
+				this.unpacked = shared;
+				this.privateBuffer = buffer;
+				return;
+			}
 		}
-		if (unpackCount < buffer.length) { Arrays.fill(buffer, unpackCount, buffer.length, (byte)0x00); }
-		iis.close();
-		bais.close();
+		
+		// unpack (directly into the buffer, using the inflater of the current thread)
+		TrackCodec.get().unpack(src, src.length, buffer);
 		this.unpacked = buffer;
 	}
 	
+	/**
+	 * Ensure that the unpacked content can be modified, i.e. replace a shared
+	 * unpacked content by a private copy. This must be called before modifying
+	 * the unpacked track content.
+	 */
+	protected final void makeUnpackedPrivate() {
+		if (this.privateBuffer == null) { return; }
+		System.arraycopy(this.unpacked, 0, this.privateBuffer, 0, this.unpacked.length);
+		this.unpacked = this.privateBuffer;
+		this.privateBuffer = null;
+	}
+
+	/**
+	 * Prepare the track for accesses by using a buffer where the packed track
+	 * content was already unpacked to (e.g. by the read-ahead for the drive).
+	 *
+	 * @param buffer the buffer holding the unpacked track content.
+	 * @param unpackedFrom the packed content that was unpacked into {@code buffer}.
+	 * @return {@code true} if the track is now accessed with the buffer or
+	 *   {@code false} if the track was already accessed or the packed content
+	 *   changed in the meantime (the buffer is then not used by the track).
+	 */
+	boolean accessUnpacked(byte[] buffer, byte[] unpackedFrom) {
+		if (this.unpacked != null) { return false; }
+		if (unpackedFrom != this.getPackedContent()) { return false; }
+		this.unpackedIsChanged = false;
+		this.unpacked = buffer;
+		return true;
+	}
+
+	/**
+	 * Check if the (non-accessed) tracks have the same external representation.
+	 * 
+	 * @param other the track to compare with.
+	 * @return {@code true} if saving both tracks gives the same bytes.
+	 */
+	boolean hasSameContent(TrackBaseExternalIO other) {
+		if (this.unpacked != null || other.unpacked != null) { return false; }
+		if (this.recordCount != other.recordCount || this.trackSize != other.trackSize) { return false; }
+		if (!Arrays.equals(this.homeAddressRaw, other.homeAddressRaw)) { return false; }
+		if (!Arrays.equals(this.recordZeroRaw, other.recordZeroRaw)) { return false; }
+		for (int i = 0; i < this.recordCount * 2; i++) {
+			if (this.counts[i] != other.counts[i]) { return false; }
+		}
+		byte[] packed = this.getPackedContent();
+		byte[] otherPacked = other.getPackedContent();
+		return packed == otherPacked || Arrays.equals(packed, otherPacked);
+	}
+	
+	/**
+	 * Mark the (non-accessed) track as unchanged, i.e. as being identical to the
+	 * track in the base file.
+	 */
+	void markUnchanged() {
+		this.packedOriginal = this.getPackedContent();
+		this.packedChanged = null;
+		this.packedIschanged = false;
+	}
+	
+	/**
+	 * @return the current packed track content or {@code null} for a blank track.
+	 */
+	public byte[] getPackedContent() {
+		return (this.packedChanged != null) ? this.packedChanged : this.packedOriginal;
+	}
+
+	/**
+	 * @return is the track currently accessed, i.e. is the track content unpacked?
+	 */
+	boolean isAccessed() {
+		return this.unpacked != null;
+	}
+
 	/**
 	 * Unprepare the track for access by packing the content if required (if the
 	 * track was changed) and returning the unpack-buffer which is no longer used
@@ -339,14 +429,15 @@ public abstract class TrackBaseExternalIO {
 	 * @throws IOException
 	 */
 	public byte[] deAccess() throws IOException {
-		// save the return value
-		byte[] zeBuffer = this.unpacked;
+		// save the return value (never the shared unpacked content)
+		byte[] zeBuffer = (this.privateBuffer != null) ? this.privateBuffer : this.unpacked;
 		
 		// pack and save packed bytes
 		if (this.unpackedIsChanged) { this.pack(); }
 		
 		// clear unpacked track data
 		this.unpacked = null;
+		this.privateBuffer = null;
 		this.unpackedIsChanged = false;
 		
 		// done
@@ -385,23 +476,26 @@ public abstract class TrackBaseExternalIO {
 	
 	public int getRecordKeyLen(int recNo) {
 		if (recNo >= this.recordCount) { throw new InvalidParameterException("recNo out of range"); }
-		return this.countAreas[recNo].keyLen;
+		return this.getCountKeyLen(recNo);
 	}
 	
 	public int getRecordDataLen(int recNo) {
 		if (recNo >= this.recordCount) { throw new InvalidParameterException("recNo out of range"); }
-		return this.countAreas[recNo].dataLen;
+		return this.getCountDataLen(recNo);
 	}
 	
 	public int getRecordDataRaw(int recNo, byte[] dest) {
 		if (recNo >= this.recordCount) { throw new InvalidParameterException("recNo out of range"); }
 		if (this.unpacked == null) { throw new IllegalStateException("access() not invoked"); }
-		int recLen = this.countAreas[recNo].keyLen + this.countAreas[recNo].dataLen;
+		int recLen = this.getCountKeyLen(recNo) + this.getCountDataLen(recNo);
 		int len = (dest.length > recLen) ? recLen : dest.length;
-		System.arraycopy(this.unpacked, this.countAreas[recNo].startPos, dest, 0, len);
+		System.arraycopy(this.unpacked, this.getCountStartPos(recNo), dest, 0, len);
 		return recLen;
 	}
 	
+	// the unpacked content if accessed, possibly shared with other tracks (must not be modified)
+	public byte[] getUnpackedContent() { return this.unpacked; }
+	
 	/*
 	 * test utilities
 	 */
@@ -429,14 +523,14 @@ public abstract class TrackBaseExternalIO {
 		
 		// dump all tracks
 		for (int caIdx = 0; caIdx < this.recordCount; caIdx++) {
-			CountArea ca = this.countAreas[caIdx];
 			System.out.printf("---- record: cyl %d , head %d , rec %d , keyLen %d , dataLen %d\n",
-					this.homeAddressCylNo, this.homeAddressHead, ca.recordNo, ca.keyLen, ca.dataLen);
+					this.homeAddressCylNo, this.homeAddressHead,
+					this.getCountRecordNo(caIdx), this.getCountKeyLen(caIdx), this.getCountDataLen(caIdx));
 
 			byte[] ebc = new byte[16];
 			
-			int count = ca.keyLen + ca.dataLen;
-			int pos = ca.startPos;
+			int count = this.getCountKeyLen(caIdx) + this.getCountDataLen(caIdx);
+			int pos = this.getCountStartPos(caIdx);
 			
 			int blockOffset = 0;
 			while (count > 0) {
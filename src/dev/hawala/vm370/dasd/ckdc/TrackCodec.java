@@ -0,0 +1,115 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.dasd.ckdc;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reusable compression context for packing and unpacking track contents.
+ *
+ * <p>
+ * Each thread gets its own instance (see {@link TrackCodec#get()}) holding
+ * a pooled {@link Inflater} resp. {@link Deflater} and a growable output buffer,
+ * so packing/unpacking a track neither allocates native zlib handles nor
+ * intermediate streams. The compressed format is the same as the one produced
+ * by {@code DeflaterOutputStream} resp. read by {@code InflaterInputStream},
+ * so existing CKDC files remain compatible.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ *
+ */
+public class TrackCodec {
+
+	// initial size of the output buffer for compression
+	private static final int INITIAL_PACK_BUFFER_SIZE = 16384;
+
+	private static final ThreadLocal<TrackCodec> codecs = new ThreadLocal<TrackCodec>() {
+		@Override
+		protected TrackCodec initialValue() { return new TrackCodec(); }
+	};
+
+	/**
+	 * Get the codec context for the current thread.
+	 *
+	 * @return the codec instance bound to the current thread.
+	 */
+	public static TrackCodec get() {
+		return codecs.get();
+	}
+
+	private final Inflater inflater = new Inflater();
+
+	private final Deflater deflater = new Deflater();
+
+	private byte[] packBuffer = new byte[INITIAL_PACK_BUFFER_SIZE];
+
+	private TrackCodec() { }
+
+	/**
+	 * Decompress the packed data directly into the target buffer, filling
+	 * the remaining bytes of the target with zeroes.
+	 *
+	 * @param src the compressed data.
+	 * @param srcLength number of compressed bytes in {@code src} starting at offset 0.
+	 * @param buffer the target for the decompressed data.
+	 * @return the number of bytes decompressed into {@code buffer}.
+	 * @throws IOException if the compressed data is invalid.
+	 */
+	public int unpack(byte[] src, int srcLength, byte[] buffer) throws IOException {
+		Inflater inf = this.inflater;
+		inf.reset();
+		inf.setInput(src, 0, srcLength);
+		int unpackCount = 0;
+		try {
+			while (unpackCount < buffer.length && !inf.finished()) {
+				int cnt = inf.inflate(buffer, unpackCount, buffer.length - unpackCount);
+				if (cnt == 0 && (inf.needsInput() || inf.needsDictionary())) { break; }
+				unpackCount += cnt;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid packed track content: " + e.getMessage());
+		}
+		if (unpackCount < buffer.length) { Arrays.fill(buffer, unpackCount, buffer.length, (byte)0x00); }
+		return unpackCount;
+	}
+
+	/**
+	 * Compress a range of the source bytes, returning a new byte array of the exact
+	 * length of the compressed data.
+	 *
+	 * @param src the data to compress.
+	 * @param offset the start of the range to compress in {@code src}.
+	 * @param length the number of bytes to compress.
+	 * @return the compressed data.
+	 */
+	public byte[] pack(byte[] src, int offset, int length) {
+		Deflater def = this.deflater;
+		def.reset();
+		def.setInput(src, offset, length);
+		def.finish();
+		int packCount = 0;
+		while (!def.finished()) {
+			if (packCount == this.packBuffer.length) {
+				this.packBuffer = Arrays.copyOf(this.packBuffer, this.packBuffer.length * 2);
+			}
+			packCount += def.deflate(this.packBuffer, packCount, this.packBuffer.length - packCount);
+		}
+		return Arrays.copyOf(this.packBuffer, packCount);
+	}
+
+}
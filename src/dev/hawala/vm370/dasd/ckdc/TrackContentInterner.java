@@ -0,0 +1,173 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.dasd.ckdc;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide deduplication of track contents shared by all CKD drives.
+ * 
+ * <p>
+ * Many tracks have identical content, e.g. freshly formatted or empty tracks
+ * or the tracks of minidisks cloned from the same template. When loading a drive,
+ * the packed content of each track is interned by content, so all tracks with the
+ * same content share a single packed byte array. The interned arrays are only
+ * weakly referenced by this table, so they disappear with the last track using them.
+ * </p>
+ * 
+ * <p>
+ * Additionally, the unpacked content of packed arrays shared by several tracks is
+ * cached in a size-limited LRU table, allowing these tracks to be accessed read-only
+ * without unpacking them again. A track must copy the shared unpacked content
+ * to its private buffer before modifying it. This table is keyed by the weak
+ * references of the interning table, so a cached unpacked content does not keep
+ * its packed content alive and is dropped together with it.
+ * </p>
+ * 
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ *
+ */
+class TrackContentInterner {
+	
+	// max. total size of the cached unpacked contents 
+	private static final int MAX_UNPACKED_CACHE_BYTES = 16 * 1024 * 1024;
+	
+	/*
+	 * interning of packed contents
+	 */
+	
+	private static class Ref extends WeakReference<byte[]> {
+		private final int hash;
+		
+		private Ref(byte[] content, int hash, ReferenceQueue<byte[]> queue) {
+			super(content, queue);
+			this.hash = hash;
+		}
+	}
+	
+	private static final ReferenceQueue<byte[]> staleRefs = new ReferenceQueue<byte[]>();
+	
+	private static final HashMap<Integer, ArrayList<Ref>> interned = new HashMap<Integer, ArrayList<Ref>>();
+	
+	/**
+	 * Get the canonical instance for the packed track content.
+	 * 
+	 * @param packed the packed content loaded for a track.
+	 * @return the array with the same content already used by some track or
+	 *   {@code packed} itself if this content is new.
+	 */
+	static byte[] intern(byte[] packed) {
+		int hash = Arrays.hashCode(packed);
+		synchronized(interned) {
+			removeStaleRefs();
+			ArrayList<Ref> refs = interned.get(hash);
+			if (refs == null) {
+				refs = new ArrayList<Ref>(1);
+				interned.put(hash, refs);
+			}
+			for (Ref ref : refs) {
+				byte[] candidate = ref.get();
+				if (candidate != null && Arrays.equals(candidate, packed)) {
+					return candidate;
+				}
+			}
+			refs.add(new Ref(packed, hash, staleRefs));
+			return packed;
+		}
+	}
+	
+	// remove the table entries and cached unpacked contents for packed contents no longer used by any track
+	private static void removeStaleRefs() {
+		Ref ref = (Ref)staleRefs.poll();
+		while (ref != null) {
+			ArrayList<Ref> refs = interned.get(ref.hash);
+			if (refs != null) {
+				refs.remove(ref);
+				if (refs.isEmpty()) { interned.remove(ref.hash); }
+			}
+			byte[] unpacked = unpackedCache.remove(ref);
+			if (unpacked != null) { unpackedCacheBytes -= unpacked.length; }
+			ref = (Ref)staleRefs.poll();
+		}
+	}
+	
+	// get the table entry for the interned packed content (by identity)
+	private static Ref findRef(byte[] packed, int hash) {
+		ArrayList<Ref> refs = interned.get(hash);
+		if (refs == null) { return null; }
+		for (Ref ref : refs) {
+			if (ref.get() == packed) { return ref; }
+		}
+		return null;
+	}
+	
+	/*
+	 * shared unpacked contents
+	 */
+	
+	// table entry of the packed content => unpacked content, in LRU order (guarded by the interning table)
+	private static final LinkedHashMap<Ref, byte[]> unpackedCache = new LinkedHashMap<Ref, byte[]>(64, 0.75f, true);
+	
+	private static long unpackedCacheBytes = 0;
+	
+	/**
+	 * Get the shared read-only unpacked content for the packed content, unpacking
+	 * it if necessary.
+	 * 
+	 * @param packed the (interned) packed content.
+	 * @param length the length of the unpacked content (the track buffer size of the drive).
+	 * @param cacheIfMissing unpack and cache the content if not already cached?
+	 * @return the shared unpacked content, which must not be modified, or {@code null}
+	 *   if not available or if {@code packed} is not interned.
+	 * @throws IOException if the packed data is invalid.
+	 */
+	static byte[] getUnpacked(byte[] packed, int length, boolean cacheIfMissing) throws IOException {
+		int hash = Arrays.hashCode(packed);
+		Ref ref;
+		synchronized(interned) {
+			removeStaleRefs();
+			ref = findRef(packed, hash);
+			if (ref == null) { return null; }
+			byte[] unpacked = unpackedCache.get(ref);
+			if (unpacked != null && unpacked.length == length) { return unpacked; }
+			if (!cacheIfMissing || unpacked != null) { return null; } // not cached or cached for a different track size
+		}
+		
+		byte[] unpacked = new byte[length];
+		TrackCodec.get().unpack(packed, packed.length, unpacked);
+		
+		synchronized(interned) {
+			byte[] other = unpackedCache.get(ref);
+			if (other != null) {
+				// unpacked concurrently by another drive
+				return (other.length == length) ? other : null;
+			}
+			unpackedCache.put(ref, unpacked);
+			unpackedCacheBytes += length;
+			Iterator<Map.Entry<Ref, byte[]>> it = unpackedCache.entrySet().iterator();
+			while (unpackedCacheBytes > MAX_UNPACKED_CACHE_BYTES && it.hasNext()) {
+				unpackedCacheBytes -= it.next().getValue().length;
+				it.remove();
+			}
+			return unpacked;
+		}
+	}
+}
@@ -0,0 +1,258 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.dasd.ckdc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sequential read-ahead for the tracks of a CKD drive.
+ *
+ * <p>
+ * The drive reports each track access to this detector, which recognizes
+ * sequential progressions over the tracks (as produced by CMS reading a
+ * large file or by DDR-like programs scanning cylinders) and then unpacks
+ * the next tracks in advance on a shared worker pool. When the drive later
+ * needs one of these tracks, the already unpacked content is taken over
+ * instead of decompressing the track synchronously.
+ * </p>
+ *
+ * <p>
+ * The number of tracks read ahead adapts to the hit ratio, i.e. the
+ * fraction of unpacked tracks effectively used by the drive.
+ * </p>
+ *
+ * <p>
+ * All methods must be invoked while holding the drive's lock (i.e. in the
+ * context of a CCW-chain interpretation), the worker threads only access
+ * the packed track data captured when the read-ahead was requested and
+ * the buffer to unpack to.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ *
+ */
+class TrackReadAhead {
+
+	// bounds and initial value for the number of tracks to read ahead
+	private static final int MIN_DEPTH = 1;
+	private static final int MAX_DEPTH = 8;
+	private static final int INITIAL_DEPTH = 2;
+
+	// number of consecutive next-track accesses before reading ahead
+	private static final int SEQUENTIAL_THRESHOLD = 2;
+
+	// number of read-ahead tracks after which the depth is re-evaluated
+	private static final int ADAPT_INTERVAL = 32;
+
+	// hit ratio limits (percent) for increasing resp. decreasing the depth
+	private static final int RAISE_DEPTH_PERCENT = 75;
+	private static final int LOWER_DEPTH_PERCENT = 40;
+
+	/*
+	 * the worker pool shared by all drives
+	 */
+
+	private static ExecutorService workers = null;
+
+	private static synchronized ExecutorService getWorkers() {
+		if (workers == null) {
+			int threadCount = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+			workers = Executors.newFixedThreadPool(threadCount, r -> {
+				Thread thr = new Thread(r, "CkdcDrive read-ahead");
+				thr.setDaemon(true);
+				thr.setPriority(Thread.NORM_PRIORITY - 1);
+				return thr;
+			});
+		}
+		return workers;
+	}
+
+	/*
+	 * read-ahead state of a single drive
+	 */
+
+	// a track being or having been unpacked in advance
+	private static class Prefetch {
+		private final int trackIndex;
+		private final byte[] packedSource;
+		private final byte[] buffer;
+		private Future<?> unpacking = null;
+
+		private Prefetch(int trackIndex, byte[] packedSource, byte[] buffer) {
+			this.trackIndex = trackIndex;
+			this.packedSource = packedSource;
+			this.buffer = buffer;
+		}
+
+		private void run() {
+			try {
+				if (this.packedSource == null) {
+					Arrays.fill(this.buffer, (byte)0x00);
+				} else {
+					TrackCodec.get().unpack(this.packedSource, this.packedSource.length, this.buffer);
+				}
+			} catch (Exception e) {
+				// invalid packed data: the drive will find out itself when accessing the track
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	private final Track[] tracks;
+	private final int bufferSize;
+
+	private final ArrayList<Prefetch> pending = new ArrayList<Prefetch>();
+	private final ArrayList<byte[]> freeBuffers = new ArrayList<byte[]>();
+
+	private int lastTrackIndex = -2;
+	private int sequentialCount = 0;
+
+	private int depth = INITIAL_DEPTH;
+	private int issuedCount = 0;
+	private int hitCount = 0;
+
+	TrackReadAhead(Track[] tracks, int bufferSize) {
+		this.tracks = tracks;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Register the access to a track and possibly start reading ahead
+	 * the tracks following it.
+	 *
+	 * @param trackIndex the linear index of the track accessed.
+	 */
+	void trackAccessed(int trackIndex) {
+		if (trackIndex == this.lastTrackIndex) { return; } // still on the same track
+		if (trackIndex == this.lastTrackIndex + 1) {
+			this.sequentialCount++;
+		} else {
+			this.sequentialCount = 0;
+		}
+		this.lastTrackIndex = trackIndex;
+
+		// drop unpacked tracks outside the new read-ahead window
+		int windowEnd = (this.sequentialCount >= SEQUENTIAL_THRESHOLD) ? trackIndex + this.depth : trackIndex;
+		for (int i = this.pending.size() - 1; i >= 0; i--) {
+			Prefetch p = this.pending.get(i);
+			if (p.trackIndex < trackIndex || p.trackIndex > windowEnd) {
+				this.pending.remove(i);
+				this.discard(p);
+			}
+		}
+		if (this.sequentialCount < SEQUENTIAL_THRESHOLD) { return; }
+
+		// start unpacking the tracks in the window not yet available
+		ExecutorService pool = getWorkers();
+		int lastIndex = Math.min(windowEnd, this.tracks.length - 1);
+		for (int idx = trackIndex + 1; idx <= lastIndex; idx++) {
+			Track t = this.tracks[idx];
+			if (t == null || t.isAccessed() || this.find(idx) != null) { continue; }
+			Prefetch p = new Prefetch(idx, t.getPackedContent(), this.getBuffer());
+			p.unpacking = pool.submit(p::run);
+			this.pending.add(p);
+			this.issuedCount++;
+		}
+	}
+
+	/**
+	 * Prepare the track for accesses by using the content unpacked in advance
+	 * if available.
+	 *
+	 * @param track the track to access.
+	 * @param trackIndex the linear index of the track.
+	 * @param spareBuffer the buffer that would be used to unpack the track
+	 *   if no read-ahead content is available.
+	 * @return {@code true} if the track was accessed with the read-ahead content
+	 *   (the spare buffer is then taken over by this instance) or {@code false}
+	 *   if the track must be accessed the usual way with the spare buffer.
+	 */
+	boolean accessPrefetched(Track track, int trackIndex, byte[] spareBuffer) {
+		Prefetch p = this.find(trackIndex);
+		if (p == null) { return false; }
+		this.pending.remove(p);
+
+		try {
+			p.unpacking.get();
+		} catch (InterruptedException | ExecutionException e) {
+			this.freeBuffers.add(p.buffer);
+			return false;
+		}
+
+		if (!track.accessUnpacked(p.buffer, p.packedSource)) {
+			// the track was changed since the read-ahead started
+			this.freeBuffers.add(p.buffer);
+			return false;
+		}
+
+		this.freeBuffers.add(spareBuffer);
+		this.hitCount++;
+		this.adaptDepth();
+		return true;
+	}
+
+	/**
+	 * Abandon all tracks being read ahead and restart the detection of
+	 * sequential accesses, used when the drive releases its track buffers
+	 * before being saved.
+	 */
+	void cancel() {
+		for (Prefetch p : this.pending) {
+			this.discard(p);
+		}
+		this.pending.clear();
+		this.lastTrackIndex = -2;
+		this.sequentialCount = 0;
+	}
+
+	private Prefetch find(int trackIndex) {
+		for (Prefetch p : this.pending) {
+			if (p.trackIndex == trackIndex) { return p; }
+		}
+		return null;
+	}
+
+	private byte[] getBuffer() {
+		if (this.freeBuffers.isEmpty()) {
+			return new byte[this.bufferSize];
+		}
+		return this.freeBuffers.remove(this.freeBuffers.size() - 1);
+	}
+
+	// abandon a read-ahead track, recycling the buffer if the worker is done with it
+	private void discard(Prefetch p) {
+		if (p.unpacking.isDone()) {
+			this.freeBuffers.add(p.buffer);
+		} else {
+			p.unpacking.cancel(false); // the buffer may still be in use, so leave it to the GC
+		}
+		this.adaptDepth();
+	}
+
+	private void adaptDepth() {
+		if (this.issuedCount < ADAPT_INTERVAL) { return; }
+		int hitPercent = (this.hitCount * 100) / this.issuedCount;
+		if (hitPercent >= RAISE_DEPTH_PERCENT) {
+			this.depth = Math.min(MAX_DEPTH, this.depth * 2);
+		} else if (hitPercent < LOWER_DEPTH_PERCENT) {
+			this.depth = Math.max(MIN_DEPTH, this.depth / 2);
+		}
+		this.issuedCount = 0;
+		this.hitCount = 0;
+	}
+}
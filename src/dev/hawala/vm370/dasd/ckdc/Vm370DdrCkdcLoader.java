@@ -12,12 +12,22 @@
 
 package dev.hawala.vm370.dasd.ckdc;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import dev.hawala.vm370.ebcdic.Ebcdic;
 import dev.hawala.vm370.ebcdic.EbcdicHandler;
@@ -29,6 +39,11 @@ import static dev.hawala.vm370.ebcdic.Ebcdic.*;
  * emulator, these are compressed CKD files and segment files from
  * DDR files written by a (real) VM/370 system as AWS files.
  * Additionally new empty compressed CKD files can be created.
+ * <p>
+ * Importing a DDR file into a CKDC file is done in a streaming way, compressing
+ * the tracks in parallel while reading the DDR file and writing the compressed
+ * tracks in order, so the memory used does not depend on the size of the disk.
+ * </p>
  * 
  * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
  *
@@ -192,8 +207,18 @@ public class Vm370DdrCkdcLoader {
 		return (this.remainingBlocksForTrack < 1);
 	}
 	
-	// load the track data in a DDR tape into the internal representation (i.e. as Track-array)
-	public Track[] readDdrTape(InputStream is) throws Exception {
+	// receiver for the tracks read from a DDR tape, the track data being in the DDR header/data fields 
+	private interface iDdrTrackSink {
+		
+		// the VHR header was read
+		void volumeHeaderRead(int trackCount) throws Exception;
+		
+		// a track was completely read
+		void trackRead(int maxTrackSize) throws Exception;
+	}
+	
+	// read the DDR tape, passing each track to the sink, returning false if the tape could not be read
+	private boolean parseDdrTape(InputStream is, iDdrTrackSink sink) throws Exception {
 		byte[] buf = new byte[65536];
 		int buflen;
 		
@@ -203,9 +228,6 @@ public class Vm370DdrCkdcLoader {
 		boolean doThr = false;
 		boolean doData = false;
 		
-		Track[] tracks = null;
-		int trackCount = 0;
-		
 		this.maxCylNoUsed = -1;
 		this.driveType = CkdDriveType.unknown;
 		
@@ -246,7 +268,6 @@ public class Vm370DdrCkdcLoader {
 						System.out.printf("## VolSer = '%s', max. records per track = %d, last cyl. no. = %d, last track no. = %d\n",
 								this.volName.toString(), this.maxRecordsPerTrack, this.lastCylNo, this.lastTrackNo);
 						*/
-						tracks = new Track[(this.lastCylNo + 1) * (this.lastTrackNo + 1)];
 						doVhr = false;
 						doThr = true;
 						
@@ -258,6 +279,7 @@ public class Vm370DdrCkdcLoader {
 								break;
 							}
 						}
+						sink.volumeHeaderRead((this.lastCylNo + 1) * (this.lastTrackNo + 1));
 					}
 				} else if (doThr) {
 					if (this.isTHRHeader(buf, buflen)) {
@@ -273,24 +295,7 @@ public class Vm370DdrCkdcLoader {
 					int maxTrackSize = (driveType == CkdDriveType.unknown)
 							? this.ddrDataLength + (this.recordCount * 16) // just a guess for unknown drives
 									: driveType.getMaxTrackLen();
-					Track track = new Track(
-							this.maxRecordsPerTrack,
-							maxTrackSize,
-							this.recordCount,
-							this.ddrHeader,
-							this.ddrHeaderLength,
-							this.ddrData,
-							this.ddrDataLength
-							);
-					tracks[trackCount++] = track;
-					
-					int cylNo = track.getCylNo();
-					if (cylNo > this.maxCylNoUsed) { this.maxCylNoUsed = cylNo; }
-					
-					/*
-					System.out.printf("Cyl. %d - Head %d -> %d records, data length = %d\n",
-							cylNo, track.getHeadNo(), this.recordCount, this.ddrDataLength);
-					*/
+					sink.trackRead(maxTrackSize);
 					
 					// next DDR tape block is a new track or the end of the dump...
 					doThr = true;
@@ -299,23 +304,245 @@ public class Vm370DdrCkdcLoader {
 		} catch(IOException exc) {
 			System.out.printf("** Error reading AWS tape file, message: %s\n", exc.getMessage());
 			exc.printStackTrace();
-			return null;
+			return false;
 		}
 		
-		return tracks;
+		return true;
 	}
 	
-	// create a drive (in runtime representation) from a DDR tape content
-	public CkdcDrive loadDdrTapeToCkdcDrive(InputStream is) throws Exception {
+	// load the track data in a DDR tape into the internal representation (i.e. as Track-array)
+	public Track[] readDdrTape(InputStream is) throws Exception {
+		final ArrayList<Track[]> result = new ArrayList<Track[]>();
+		iDdrTrackSink sink = new iDdrTrackSink() {
+			private Track[] tracks = null;
+			private int trackCount = 0;
+			
+			@Override
+			public void volumeHeaderRead(int trackCount) {
+				this.tracks = new Track[trackCount];
+				result.add(this.tracks);
+			}
+			
+			@Override
+			public void trackRead(int maxTrackSize) throws Exception {
+				Track track = newDdrTrack(maxTrackSize, recordCount, ddrHeader, ddrHeaderLength, ddrData, ddrDataLength);
+				this.tracks[this.trackCount++] = track;
+				
+				int cylNo = track.getCylNo();
+				if (cylNo > maxCylNoUsed) { maxCylNoUsed = cylNo; }
+				
+				/*
+				System.out.printf("Cyl. %d - Head %d -> %d records, data length = %d\n",
+						cylNo, track.getHeadNo(), recordCount, ddrDataLength);
+				*/
+			}
+		};
 		
-		// load the tracks
-		Track[] tracks = this.readDdrTape(is);
+		if (!this.parseDdrTape(is, sink) || result.isEmpty()) { return null; }
+		return result.get(0);
+	}
+	
+	// create the track from the DDR track content
+	private Track newDdrTrack(int maxTrackSize, int recCount, byte[] header, int headerLength, byte[] data, int dataLength) throws IOException {
+		return new Track(
+				this.maxRecordsPerTrack,
+				maxTrackSize,
+				recCount,
+				header,
+				headerLength,
+				data,
+				dataLength
+				);
+	}
+	
+	/*
+	 * streaming conversion of a DDR tape to a CKDC file
+	 */
+	
+	// number of tracks compressed resp. waiting to be written per compression thread
+	private static final int TRACKS_IN_FLIGHT_PER_THREAD = 4;
+	
+	// a track read from the DDR tape and being compressed
+	private static class PendingTrack {
+		private final byte[] header = new byte[4096];
+		private final byte[] data = new byte[65636];
+		private int recordCount;
+		private int headerLength;
+		private int dataLength;
+		private ForkJoinTask<Track> compression;
+	}
+	
+	// receiver writing the tracks compressed in parallel in the sequence read to the CKDC file
+	private class StreamingTrackSink implements iDdrTrackSink {
+		
+		private final ForkJoinPool pool;
+		private final OutputStream os;
+		private final int maxInFlight;
+		
+		private final ArrayDeque<PendingTrack> inFlight = new ArrayDeque<PendingTrack>();
+		private final ArrayList<PendingTrack> freeBuffers = new ArrayList<PendingTrack>();
+		
+		private final ByteArrayOutputStream trackBytes = new ByteArrayOutputStream(65536);
+		
+		private int headCount = 0;
+		private int nextCylNo = 0;
+		private int nextHeadNo = 0;
+		private int maxTrackSizeUsed = 0;
+		
+		private StreamingTrackSink(ForkJoinPool pool, OutputStream os) {
+			this.pool = pool;
+			this.os = os;
+			this.maxInFlight = pool.getParallelism() * TRACKS_IN_FLIGHT_PER_THREAD;
+		}
+		
+		@Override
+		public void volumeHeaderRead(int trackCount) {
+			this.headCount = lastTrackNo + 1;
+		}
+		
+		@Override
+		public void trackRead(int maxTrackSize) throws Exception {
+			if (this.headCount == 0) {
+				throw new Exception("Track data before VHR header on DDR tape");
+			}
+			
+			// wait for the oldest track if the maximum number of tracks is in progress
+			if (this.inFlight.size() >= this.maxInFlight) {
+				this.writeOldestTrack();
+			}
+			
+			// take a copy of the DDR track data (including stale bytes behind the data,
+			// giving the same track content as the in-memory conversion) and compress it on the pool
+			PendingTrack p = (this.freeBuffers.isEmpty()) ? new PendingTrack() : this.freeBuffers.remove(this.freeBuffers.size() - 1);
+			p.recordCount = recordCount;
+			p.headerLength = ddrHeaderLength;
+			p.dataLength = ddrDataLength;
+			System.arraycopy(ddrHeader, 0, p.header, 0, p.headerLength);
+			System.arraycopy(ddrData, 0, p.data, 0, ddrData.length);
+			p.compression = this.pool.submit(() -> newDdrTrack(maxTrackSize, p.recordCount, p.header, p.headerLength, p.data, p.dataLength));
+			this.inFlight.add(p);
+		}
+		
+		// write the oldest track in progress, checking that the tracks come in sequence
+		private void writeOldestTrack() throws Exception {
+			PendingTrack p = this.inFlight.poll();
+			Track t = p.compression.join();
+			p.compression = null;
+			this.freeBuffers.add(p);
+			
+			if (t.getCylNo() != this.nextCylNo) {
+				throw new Exception("Misplaced track (cylinder) from DDR tape");
+			}
+			if (t.getHeadNo() != this.nextHeadNo) {
+				throw new Exception("Misplaced track (head) from DDR tape");
+			}
+			this.nextHeadNo++;
+			if (this.nextHeadNo >= this.headCount) {
+				this.nextHeadNo = 0;
+				this.nextCylNo++;
+			}
+			
+			if (t.getMaxTrackSize() > this.maxTrackSizeUsed) { this.maxTrackSizeUsed = t.getMaxTrackSize(); }
+			if (t.getCylNo() > maxCylNoUsed) { maxCylNoUsed = t.getCylNo(); }
+			
+			this.trackBytes.reset();
+			DriveBaseExternalIO.writeTrack(this.trackBytes, t);
+			this.trackBytes.writeTo(this.os);
+		}
+		
+		// write the tracks still in progress
+		private void flush() throws Exception {
+			while (!this.inFlight.isEmpty()) {
+				this.writeOldestTrack();
+			}
+			if (this.nextHeadNo != 0 || this.nextCylNo == 0) {
+				throw new Exception("Missing track from DDR tape");
+			}
+		}
+		
+		// abandon the tracks still in progress after an error
+		private void cancel() {
+			for (PendingTrack p : this.inFlight) {
+				p.compression.cancel(false);
+			}
+			this.inFlight.clear();
+		}
+	}
+	
+	/**
+	 * Convert a DDR tape to a CKDC base file, compressing the tracks in parallel and
+	 * writing the CKDC file while reading the DDR tape.
+	 * <p>
+	 * The resulting file is identical to the file written when saving the drive
+	 * loaded with {@link Vm370DdrCkdcLoader#loadDdrTapeToCkdcDrive(InputStream)}.
+	 * The file is first written under a temporary name in the same directory and
+	 * replaces the target file only if the conversion succeeded.
+	 * </p>
+	 * 
+	 * @param is the DDR tape in AWS format.
+	 * @param outFilename the name of the CKDC base file to create.
+	 * @param parallelism the number of threads for compressing tracks.
+	 * @return {@code true} if the CKDC file was successfully created.
+	 * @throws Exception if the DDR tape content is invalid or writing the file fails.
+	 */
+	public boolean convertDdrTapeToCkdcFile(InputStream is, String outFilename, int parallelism) throws Exception {
+		File outFile = new File(outFilename).getAbsoluteFile();
+		File tempFile = new File(outFile.getParentFile(), outFile.getName() + ".tmp");
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+		boolean done = false;
+		try {
+			// write the tracks after a placeholder for the header
+			StreamingTrackSink sink;
+			try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile), 65536)) {
+				os.write(new byte[32]);
+				sink = new StreamingTrackSink(pool, os);
+				boolean ok = false;
+				try {
+					ok = this.parseDdrTape(is, sink);
+					if (ok) { sink.flush(); }
+				} finally {
+					if (!ok) { sink.cancel(); }
+				}
+				if (!ok) { return false; }
+				DriveBaseExternalIO.writeEndMark(os);
+			}
+			this.reportDriveType();
+			
+			// now that all tracks are known: write the real header
+			int maxTrackSize = Math.max(sink.maxTrackSizeUsed, this.driveType.getMaxTrackLen());
+			ByteArrayOutputStream header = new ByteArrayOutputStream(32);
+			DriveBaseExternalIO.writeHeader(header, false, this.volser, this.maxCylNoUsed + 1, this.lastTrackNo + 1,
+					maxTrackSize, this.maxRecordsPerTrack, this.driveType, 0);
+			try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+				raf.write(header.toByteArray());
+			}
+			
+			// the complete file replaces the target
+			Files.move(tempFile.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			done = true;
+			return true;
+		} finally {
+			pool.shutdown();
+			if (!done) { tempFile.delete(); }
+		}
+	}
+	
+	// tell about the drive type found on the DDR tape
+	private void reportDriveType() {
 		if (this.driveType == CkdDriveType.unknown) {
 			System.out.printf("** Warning: unknown VM/370R6 compatible drive type with %d heads and %d used cylinders\n",
 					this.lastTrackNo + 1, this.lastCylNo + 1);
 		} else {
 			System.out.printf("** Info: recognized a %s CKD drive type\n", driveType.getName());
 		}
+	}
+	
+	// create a drive (in runtime representation) from a DDR tape content
+	public CkdcDrive loadDdrTapeToCkdcDrive(InputStream is) throws Exception {
+		
+		// load the tracks
+		Track[] tracks = this.readDdrTape(is);
+		this.reportDriveType();
 		
 		// Create the drive
 		CkdcDrive drive = new CkdcDrive(this.volser, this.maxCylNoUsed+1, this.lastTrackNo + 1, this.driveType, this.maxRecordsPerTrack, tracks);
@@ -329,17 +556,14 @@ public class Vm370DdrCkdcLoader {
 			what = "open input file";
 			FileInputStream fis = new FileInputStream(inFilename);
 			
-			what = "read DDR tape";
-			CkdcDrive d = this.loadDdrTapeToCkdcDrive(fis);
+			what = "convert the DDR tape to the drive base file";
+			boolean ok = this.convertDdrTapeToCkdcFile(fis, outFilename, Runtime.getRuntime().availableProcessors());
 			
 			what = "close input file";
 			fis.close();
-			
-			what = "write the drive base file to disk";
-			d.saveTo(null, outFilename);
 		
-			// success
-			return true;
+			// success?
+			return ok;
 		} catch(Exception exc) {
 			System.out.printf("** Error while doing '%s', message: %s\n", what, exc.getMessage());
 			exc.printStackTrace();
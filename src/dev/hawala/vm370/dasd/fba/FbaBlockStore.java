@@ -0,0 +1,316 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.dasd.fba;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Block storage for a FBA drive, combining a read-only base file accessed
+ * with positional reads and an in-memory overlay of the blocks changed
+ * since the base file was written.
+ * 
+ * <p>
+ * Only the changed blocks are held in memory, so the size of a drive is
+ * not limited by the available heap. The overlay can be saved as delta file,
+ * having the following format (all integers big-endian):
+ * </p>
+ * <ul>
+ * <li>8 bytes identification {@code EMXFBAD1}</li>
+ * <li>4 bytes: number of blocks of the drive</li>
+ * <li>for each changed block: 4 bytes block number followed by the 512 bytes of the block</li>
+ * <li>4 bytes end marker (block number -1)</li>
+ * </ul>
+ * <p>
+ * A delta file not starting with the identification is a complete disk image
+ * (as written by older versions), the blocks differing from the base file are
+ * taken into the overlay when loading such a file.
+ * </p>
+ * 
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ * 
+ */
+class FbaBlockStore {
+	
+	static final int BYTES_PER_BLOCK = 512;
+	
+	private static final long DELTA_MAGIC = 0x454D5846_42414431L; // "EMXFBAD1"
+	
+	// the base file and its content, null for a drive without base file
+	private final File baseFile;
+	private FileChannel base;
+	
+	// number of blocks available in the base file
+	private final int baseBlockCount;
+	
+	// number of blocks of the drive
+	private final int blockCount;
+	
+	// the changed blocks (null: block is unchanged in the base file)
+	private final byte[][] overlay;
+	
+	// number of blocks in the overlay
+	private int changedCount = 0;
+	
+	/**
+	 * Create a block store for the given base file, possibly loading the changes from
+	 * a delta file.
+	 * 
+	 * @param baseFile the base file of the drive.
+	 * @param deltaFile the delta file with the changes or {@code null}. 
+	 * @throws IOException if the files cannot be read or have an invalid format.
+	 */
+	FbaBlockStore(File baseFile, File deltaFile) throws IOException {
+		long baseSize = baseFile.length();
+		if (baseSize < BYTES_PER_BLOCK || (baseSize % BYTES_PER_BLOCK) != 0 || (baseSize / BYTES_PER_BLOCK) > Integer.MAX_VALUE) {
+			throw new IOException("FBA-File '" + baseFile.getPath() + "': invalid size");
+		}
+		this.baseFile = baseFile;
+		this.base = new RandomAccessFile(baseFile, "r").getChannel();
+		this.baseBlockCount = (int)(baseSize / BYTES_PER_BLOCK);
+		this.blockCount = this.baseBlockCount;
+		this.overlay = new byte[this.blockCount][];
+		
+		if (deltaFile != null) {
+			try {
+				this.loadDelta(deltaFile);
+			} catch (IOException e) {
+				this.base.close();
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Create a block store without base file, i.e. all blocks are initially zeroed. 
+	 * 
+	 * @param blockCount number of blocks of the drive.
+	 */
+	FbaBlockStore(int blockCount) {
+		this.baseFile = null;
+		this.base = null;
+		this.baseBlockCount = 0;
+		this.blockCount = blockCount;
+		this.overlay = new byte[this.blockCount][];
+	}
+	
+	/**
+	 * @return the number of blocks of the drive.
+	 */
+	int getBlockCount() { return this.blockCount; }
+	
+	/**
+	 * @return the number of blocks changed relative to the base file.
+	 */
+	synchronized int getChangedCount() { return this.changedCount; }
+	
+	/**
+	 * Read consecutive blocks into the buffer.
+	 * 
+	 * @param firstBlock the first block to read.
+	 * @param count the number of blocks to read.
+	 * @param buffer the target buffer.
+	 * @param bufferOffset the position in the buffer receiving the first block.
+	 * @throws IOException if the base file cannot be read.
+	 */
+	synchronized void readBlocks(int firstBlock, int count, byte[] buffer, int bufferOffset) throws IOException {
+		int block = firstBlock;
+		int lastBlock = firstBlock + count;
+		while (block < lastBlock) {
+			if (this.overlay[block] != null) {
+				System.arraycopy(this.overlay[block], 0, buffer, bufferOffset + ((block - firstBlock) * BYTES_PER_BLOCK), BYTES_PER_BLOCK);
+				block++;
+				continue;
+			}
+			
+			// read the run of unchanged blocks from the base file with one access
+			int runEnd = block + 1;
+			while (runEnd < lastBlock && this.overlay[runEnd] == null) { runEnd++; }
+			this.readBase(block, runEnd - block, buffer, bufferOffset + ((block - firstBlock) * BYTES_PER_BLOCK));
+			block = runEnd;
+		}
+	}
+	
+	/**
+	 * Write consecutive blocks from the buffer, the last block possibly being
+	 * written partially (leaving the remaining bytes of this block unchanged).
+	 * 
+	 * @param firstBlock the first block to write.
+	 * @param buffer the source buffer.
+	 * @param bufferOffset the position of the first block in the buffer.
+	 * @param byteCount the number of bytes to write.
+	 * @throws IOException if the base file cannot be read for a partially written block.
+	 */
+	synchronized void writeBlocks(int firstBlock, byte[] buffer, int bufferOffset, int byteCount) throws IOException {
+		int block = firstBlock;
+		int offset = 0;
+		while (offset < byteCount) {
+			byte[] b = this.overlay[block];
+			if (b == null) {
+				b = new byte[BYTES_PER_BLOCK];
+				int len = Math.min(BYTES_PER_BLOCK, byteCount - offset);
+				if (len < BYTES_PER_BLOCK) { this.readBase(block, 1, b, 0); }
+				this.overlay[block] = b;
+				this.changedCount++;
+			}
+			System.arraycopy(buffer, bufferOffset + offset, b, 0, Math.min(BYTES_PER_BLOCK, byteCount - offset));
+			offset += BYTES_PER_BLOCK;
+			block++;
+		}
+	}
+	
+	// read blocks from the base file, blocks beyond the base file being zeroes
+	private void readBase(int firstBlock, int count, byte[] buffer, int offset) throws IOException {
+		int baseCount = Math.max(0, Math.min(count, this.baseBlockCount - firstBlock));
+		if (baseCount > 0) {
+			ByteBuffer bb = ByteBuffer.wrap(buffer, offset, baseCount * BYTES_PER_BLOCK);
+			long pos = (long)firstBlock * BYTES_PER_BLOCK;
+			while (bb.hasRemaining()) {
+				int cnt = this.base.read(bb, pos);
+				if (cnt < 0) { throw new EOFException("Unexpected end of FBA base file"); }
+				pos += cnt;
+			}
+		}
+		if (baseCount < count) {
+			Arrays.fill(buffer, offset + (baseCount * BYTES_PER_BLOCK), offset + (count * BYTES_PER_BLOCK), (byte)0);
+		}
+	}
+	
+	// load the changed blocks from a delta file
+	private void loadDelta(File deltaFile) throws IOException {
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(deltaFile), 65536))) {
+			if (deltaFile.length() >= 8 && dis.readLong() == DELTA_MAGIC) {
+				int deltaBlockCount = dis.readInt();
+				if (deltaBlockCount != this.blockCount) {
+					throw new IOException("FBA delta file '" + deltaFile.getPath() + "': block count does not match base file");
+				}
+				int block = dis.readInt();
+				while (block >= 0) {
+					if (block >= this.blockCount) {
+						throw new IOException("FBA delta file '" + deltaFile.getPath() + "': invalid block number");
+					}
+					byte[] b = new byte[BYTES_PER_BLOCK];
+					dis.readFully(b);
+					if (this.overlay[block] == null) { this.changedCount++; }
+					this.overlay[block] = b;
+					block = dis.readInt();
+				}
+				return;
+			}
+		}
+		
+		// not a delta file: this is a complete disk image, take over the blocks differing from the base
+		if (deltaFile.length() != ((long)this.blockCount * BYTES_PER_BLOCK)) {
+			throw new IOException("FBA delta file '" + deltaFile.getPath() + "': invalid size");
+		}
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(deltaFile), 65536))) {
+			byte[] baseBlock = new byte[BYTES_PER_BLOCK];
+			byte[] b = new byte[BYTES_PER_BLOCK];
+			for (int block = 0; block < this.blockCount; block++) {
+				dis.readFully(b);
+				this.readBase(block, 1, baseBlock, 0);
+				if (!Arrays.equals(b, baseBlock)) {
+					this.overlay[block] = b;
+					this.changedCount++;
+					b = new byte[BYTES_PER_BLOCK];
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Save the changed blocks to a delta file.
+	 * 
+	 * @param filename the name of the delta file.
+	 * @throws IOException if writing the file fails.
+	 */
+	synchronized void saveDelta(String filename) throws IOException {
+		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 65536))) {
+			dos.writeLong(DELTA_MAGIC);
+			dos.writeInt(this.blockCount);
+			for (int block = 0; block < this.blockCount; block++) {
+				if (this.overlay[block] == null) { continue; }
+				dos.writeInt(block);
+				dos.write(this.overlay[block]);
+			}
+			dos.writeInt(-1);
+		}
+	}
+	
+	/**
+	 * Save the complete drive content to a disk image file.
+	 * <p>
+	 * The image is written to a temporary file which then replaces the target
+	 * file, so the current base file can be the target. In this case, the base
+	 * file is closed before being replaced and the new image becomes the base
+	 * file, with the overlay being emptied.
+	 * </p>
+	 * 
+	 * @param filename the name of the image file.
+	 * @throws IOException if reading the base file or writing the file fails.
+	 */
+	synchronized void saveImage(String filename) throws IOException {
+		final int chunkBlocks = 128;
+		byte[] chunk = new byte[chunkBlocks * BYTES_PER_BLOCK];
+		File tmpFile = new File(filename + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmpFile)) {
+			for (int block = 0; block < this.blockCount; block += chunkBlocks) {
+				int count = Math.min(chunkBlocks, this.blockCount - block);
+				this.readBlocks(block, count, chunk, 0);
+				fos.write(chunk, 0, count * BYTES_PER_BLOCK);
+			}
+		}
+		
+		File target = new File(filename);
+		boolean replacesBase = this.base != null && target.exists() && Files.isSameFile(target.toPath(), this.baseFile.toPath());
+		if (replacesBase) {
+			this.base.close(); // an open file cannot be replaced on all platforms
+		}
+		try {
+			Files.move(tmpFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			if (replacesBase) {
+				this.base = new RandomAccessFile(this.baseFile, "r").getChannel();
+			}
+		}
+		if (replacesBase) {
+			Arrays.fill(this.overlay, null);
+			this.changedCount = 0;
+		}
+	}
+	
+	/**
+	 * Close the base file, the block store may no longer be used after closing.
+	 */
+	synchronized void close() {
+		if (this.base == null) { return; }
+		try {
+			this.base.close();
+		} catch (IOException e) {
+			// ignored...
+		}
+	}
+}
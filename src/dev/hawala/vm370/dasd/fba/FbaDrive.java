@@ -13,15 +13,14 @@
 package dev.hawala.vm370.dasd.fba;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Arrays;
 
 import dev.hawala.vm370.dasd.iDasd;
+import dev.hawala.vm370.vm.device.MemorySegments;
 import dev.hawala.vm370.vm.device.iDeviceIO;
 import dev.hawala.vm370.vm.device.iDeviceStatus;
+import dev.hawala.vm370.vm.machine.NullEventTracker;
 import dev.hawala.vm370.vm.machine.iProcessorEventTracker;
 
 /**
@@ -31,18 +30,15 @@ import dev.hawala.vm370.vm.machine.iProcessorEventTracker;
  * This class implements a FBA drive with the characteristics of a
  * 3310 device, based on the document:
  * GA26-1660-1_3310_Direct_Access_Storage_Reference_Mar79.pdf
+ * <br>
+ * Disks larger than a 3310 are presented as 3370 device.
  * </p>
  * 
  * <p>
- * The implementation is a bit simplistic, as the complete content
- * of the disk is loaded as uncompressed byte-array into memory and
- * no delta information is tracked, so the complete content is saved
- * back to disk. 
- * </p>
- * 
- * <p>
- * As the complete content of the FBA-drive is loaded into memory,
- * the size of disks that can be accessed is limited to 2 MBytes.
+ * The disk content is not loaded into memory, but read from the base
+ * file on demand, with only the blocks changed being held in memory
+ * (see {@link FbaBlockStore}). Saving the drive writes these changed blocks
+ * to the delta file, so disks up to the full capacity of a 3370 can be used.
  * </p>
  * 
  * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
@@ -50,8 +46,9 @@ import dev.hawala.vm370.vm.machine.iProcessorEventTracker;
  */
 public class FbaDrive implements iDasd {
 	
-	private static final int BYTES_PER_BLOCK = 512;
-	private static final int MAX_BLOCKS = 126016; // max. blocks of a 3310 drive
+	private static final int BYTES_PER_BLOCK = FbaBlockStore.BYTES_PER_BLOCK;
+	private static final int MAX_BLOCKS_3310 = 126016; // max. blocks of a 3310 drive
+	private static final int MAX_BLOCKS = 712752; // max. blocks of a 3370 drive (model A2/B2)
 	private static final int HEADS = 11;
 	private static final int BLOCKS_PRE_HEAD = 32;
 	private static final int BLOCKS_PRE_CYL = BLOCKS_PRE_HEAD * HEADS;
@@ -62,47 +59,43 @@ public class FbaDrive implements iDasd {
 	
 	private boolean isModified = false; // has the content been modified and is saving the drive necessary?
 	
-	private byte[] fbaBytes; // complete fba disk content...
+	private final FbaBlockStore blocks; // the disk content
+	
+	private final int fbaPageCount; // number of 512-byte pages
 	
-	private int fbaPageCount; // number of 512-byte pages
+	private final boolean is3370; // too large for a 3310?
 	
 	private final boolean isFilebacked;
 	
-	private static class NullTracker implements iProcessorEventTracker {
-		public void logLine(String line, Object... args) {};
-	}
+	private byte[] transferBuffer = new byte[8 * BYTES_PER_BLOCK]; // for READ and WRITE, grown as needed
 	
 	/*
 	 * public creation and management
 	 */
 	
 	public FbaDrive(String fbaFileName) throws Exception {
-		this(fbaFileName, false, new NullTracker());
+		this(fbaFileName, false, NullEventTracker.INSTANCE);
 	}
 	
 	public FbaDrive(String fbaFileName, boolean writeProtected) throws Exception {
-		this(fbaFileName, writeProtected, new NullTracker());
+		this(fbaFileName, writeProtected, NullEventTracker.INSTANCE);
 	}
 	
 	public FbaDrive(String fbaFileName, boolean writeProtected, iProcessorEventTracker eventLogger) throws Exception {
-		File fbaFile = new File(fbaFileName + ".delta");
-		if (!fbaFile.exists() || !fbaFile.isFile()) {
-			System.out.println("** Delta for FBA-File '" + fbaFileName + "' not found, using primary FBA file");
-			fbaFile = new File(fbaFileName);
-		}
+		File fbaFile = new File(fbaFileName);
 		if (!fbaFile.exists() || !fbaFile.isFile()) { throw new IOException("FBA-File '" + fbaFileName + "': not found"); }
 		if (!fbaFile.canRead()) { throw new IOException("FBA-File '" + fbaFileName + "': cannot be read"); }
+		if ((fbaFile.length() / BYTES_PER_BLOCK) > MAX_BLOCKS) { throw new IOException("FBA-File '" + fbaFileName + "': too large for a 3370"); }
 		
-		long fbaSize = fbaFile.length();
-		if (fbaSize < 1 || (fbaSize % 512) != 0) { throw new IOException("FBA-File '" + fbaFileName + "': invalid size"); }
-//		if (fbaSize > (2 * 1024 * 1024)) { throw new IOException("FBA-File '" + fbaFileName + "': too large (> 2MByte)"); }
-		this.fbaPageCount = (int)(fbaSize / 512);
-		this.fbaBytes = new byte[(int)(fbaSize & 0x00FFFFFF)];
+		File deltaFile = new File(fbaFileName + ".delta");
+		if (!deltaFile.exists() || !deltaFile.isFile()) {
+			System.out.println("** Delta for FBA-File '" + fbaFileName + "' not found, using primary FBA file");
+			deltaFile = null;
+		}
 		
-		InputStream is = new FileInputStream(fbaFile);
-		int bytesRead = is.read(this.fbaBytes);
-		is.close();
-		if (bytesRead != fbaSize) { throw new IOException("FBA-File '" + fbaFileName + "': error reading complete file content"); }
+		this.blocks = new FbaBlockStore(fbaFile, deltaFile);
+		this.fbaPageCount = this.blocks.getBlockCount();
+		this.is3370 = (this.fbaPageCount > MAX_BLOCKS_3310);
 		
 		this.eventLogger = eventLogger;
 		this.writeProtected = writeProtected;
@@ -111,11 +104,11 @@ public class FbaDrive implements iDasd {
 	}
 	
 	public FbaDrive(int blockCount, iProcessorEventTracker eventLogger) throws Exception {
-		int fbaSize = blockCount * 512;
-		if (fbaSize > (2 * 1024 * 1024)) { throw new IOException("FBA-File (temp): too large (> 2MByte)"); }
+		if (blockCount < 1 || blockCount > MAX_BLOCKS) { throw new IOException("FBA-File (temp): invalid block count"); }
 		
+		this.blocks = new FbaBlockStore(blockCount);
 		this.fbaPageCount = blockCount;
-		this.fbaBytes = new byte[fbaSize];
+		this.is3370 = (this.fbaPageCount > MAX_BLOCKS_3310);
 		
 		this.eventLogger = eventLogger;
 		this.writeProtected = false;
@@ -125,7 +118,7 @@ public class FbaDrive implements iDasd {
 	
 	public void setEventTracker(iProcessorEventTracker eventLogger) {
 		if (eventLogger == null) {
-			this.eventLogger = new NullTracker();
+			this.eventLogger = NullEventTracker.INSTANCE;
 		} else {
 			this.eventLogger = eventLogger;
 		}
@@ -137,6 +130,7 @@ public class FbaDrive implements iDasd {
 	
 	// for Sense byte 0
 	private static final int Sense_CommandReject        = 0x00800000; // bit 0: Define Extent mask prohibits the operation | READ/WRITE not chaing form LOCATE
+	private static final int Sense_EquipmentCheck       = 0x00100000; // bit 3: (here) the base file could not be read
 	
 	// for Sense byte 1
 	private static final int Sense_FileProtected        = 0x00040000; // bit 5: LOCATE violates logical extent limits of DEFINE EXTENT
@@ -183,8 +177,9 @@ public class FbaDrive implements iDasd {
 		this.senseBytes[0] = (byte)((senseFlags & 0x00FF0000) >> 16);
 		this.senseBytes[1] = (byte)((senseFlags & 0x0000FF00) >> 8);
 		this.senseBytes[2] = (byte)(senseFlags & 0x000000FF);
-		this.eventLogger.logLine("       => UNIT_CHECK, DEVICE_END [%s%s ]",
+		this.eventLogger.logLine("       => UNIT_CHECK, DEVICE_END [%s%s%s ]",
 				((senseFlags & Sense_CommandReject) != 0) ? " CommandReject" : "",
+				((senseFlags & Sense_EquipmentCheck) != 0) ? " EquipmentCheck" : "",
 				((senseFlags & Sense_FileProtected) != 0) ? " FileProtected" : "");
 		return iDeviceStatus.UNIT_CHECK | iDeviceStatus.DEVICE_END;
 	}
@@ -269,12 +264,13 @@ public class FbaDrive implements iDasd {
 			}
 			if (this.blockOffset < 0
 				|| this.blockOffset >= MAX_BLOCKS || this.blockCount >= MAX_BLOCKS
-				|| (this.extentBase + this.extentBegin + this.blockOffset + this.blockCount) > MAX_BLOCKS) {
+				|| (this.extentBase + this.extentBegin + this.blockOffset + this.blockCount) > this.fbaPageCount) {
 				return this.exitUnitCheck(Sense_CommandReject);
 			}
 			
 			// check if the block is in the extent specified before
-			if (this.blockOffset < this.extentBegin || this.blockCount > (this.extentEnd + 1 - this.extentBegin)) {
+			if (this.blockOffset < this.extentBegin || this.blockCount > (this.extentEnd + 1 - this.extentBegin)
+				|| (this.blockOffset + this.blockCount) > (this.extentEnd + 1)) {
 				return this.exitUnitCheck(Sense_FileProtected);
 			}
 			
@@ -363,7 +359,13 @@ public class FbaDrive implements iDasd {
 		{
 		case 0x02: // READ IPL 
 			this.eventLogger.logLine(".. .. FbaDrive: READ IPL :: dataLength = %d", dataLength);
-			int iplTrf = memTarget.transfer(this.fbaBytes, 0, BYTES_PER_BLOCK); // IPL data is at start of drive and max. one sector
+			try {
+				this.blocks.readBlocks(0, 1, this.transferBuffer, 0); // IPL data is at start of drive and max. one sector
+			} catch (IOException e) {
+				this.eventLogger.logLine("       error reading base file: %s", e.getMessage());
+				return this.exitUnitCheck(Sense_EquipmentCheck);
+			}
+			int iplTrf = memTarget.transfer(this.transferBuffer, 0, BYTES_PER_BLOCK);
 			this.eventLogger.logLine("       transferred bytes = %d", iplTrf);
 			return this.exitOk(); // channel should handle length differences
 			
@@ -377,11 +379,24 @@ public class FbaDrive implements iDasd {
 				return this.exitUnitCheck(Sense_CommandReject);
 			}
 			
-			int byteOffset = (this.extentBase + this.extentBegin + this.blockOffset) * BYTES_PER_BLOCK;
+			int firstBlock = this.extentBase + this.extentBegin + this.blockOffset;
 			int bytesAvailable = this.blockCount * BYTES_PER_BLOCK;
 			this.eventLogger.logLine(".. .. FbaDrive: READ [ block { byteOffset = %d ; bytesAvail = %d } ; dataLength = %d]",
-					byteOffset, bytesAvailable, dataLength);
-			int transferred = memTarget.transfer(this.fbaBytes, byteOffset, bytesAvailable);
+					firstBlock * BYTES_PER_BLOCK, bytesAvailable, dataLength);
+			
+			// read the blocks directly into main memory if the memory area takes them all 
+			MemorySegments segments = memTarget.getDirectSegments();
+			boolean direct = (segments != null && segments.isContiguous() && segments.getTotalLength() >= bytesAvailable);
+			byte[] buffer = (direct) ? segments.getMemory() : this.getTransferBuffer(bytesAvailable);
+			try {
+				this.blocks.readBlocks(firstBlock, this.blockCount, buffer, (direct) ? segments.getOffset(0) : 0);
+			} catch (IOException e) {
+				this.eventLogger.logLine("       error reading base file: %s", e.getMessage());
+				return this.exitUnitCheck(Sense_EquipmentCheck);
+			}
+			int transferred = (direct)
+					? memTarget.completeDirect(bytesAvailable)
+					: memTarget.transfer(buffer, 0, bytesAvailable);
 			this.eventLogger.logLine("       transferred bytes = %d", transferred);
 			
 			return this.exitOk(); // channel should handle length differences 
@@ -416,13 +431,36 @@ public class FbaDrive implements iDasd {
 				return this.exitUnitCheck(Sense_CommandReject);
 			}
 			
-			int byteOffset = (this.extentBase + this.extentBegin + this.blockOffset) * BYTES_PER_BLOCK;
+			int firstBlock = this.extentBase + this.extentBegin + this.blockOffset;
 			int bytesAvailable = this.blockCount * BYTES_PER_BLOCK;
 			this.eventLogger.logLine(".. .. FbaDrive: WRITE [ block { byteOffset = %d ; bytesAvail = %d } ; dataLength = %d ]",
-					byteOffset, bytesAvailable, dataLength);
-			int transferred = memSource.transfer(this.fbaBytes, byteOffset, bytesAvailable);
+					firstBlock * BYTES_PER_BLOCK, bytesAvailable, dataLength);
+			
+			// write the blocks directly from main memory if contiguous
+			MemorySegments segments = memSource.getDirectSegments();
+			byte[] buffer;
+			int bufferOffset;
+			int transferred;
+			if (segments != null && segments.isContiguous()) {
+				buffer = segments.getMemory();
+				bufferOffset = segments.getOffset(0);
+				transferred = memSource.completeDirect(bytesAvailable);
+			} else {
+				buffer = this.getTransferBuffer(bytesAvailable);
+				bufferOffset = 0;
+				transferred = memSource.transfer(buffer, 0, bytesAvailable);
+			}
 			this.eventLogger.logLine("       transferred bytes = %d", transferred);
 			
+			// only the bytes delivered by the channel are written (a negative result is the shortfall)
+			int bytesWritten = (transferred < 0) ? bytesAvailable + transferred : bytesAvailable;
+			try {
+				this.blocks.writeBlocks(firstBlock, buffer, bufferOffset, bytesWritten);
+			} catch (IOException e) {
+				this.eventLogger.logLine("       error reading base file: %s", e.getMessage());
+				return this.exitUnitCheck(Sense_EquipmentCheck);
+			}
+			
 			this.isModified = true;
 			
 			return this.exitOk(); // channel should handle length differences 
@@ -432,6 +470,14 @@ public class FbaDrive implements iDasd {
 		}
 	}
 
+	// get the buffer for transferring blocks with at least the given size
+	private byte[] getTransferBuffer(int size) {
+		if (this.transferBuffer.length < size) {
+			this.transferBuffer = new byte[size];
+		}
+		return this.transferBuffer;
+	}
+
 	// perform a sense I/O operation
 	// see: iDevice
 	@Override
@@ -448,14 +494,14 @@ public class FbaDrive implements iDasd {
 				0x30, // operation modes
 				0x08, // features
 				0x21, // device class
-				0x01, // unit type
+				(this.is3370) ? (byte)0x02 : (byte)0x01, // unit type
 				0x02, 0x00, // physical record size
-				0x00, 0x00, 0x00, 0x20, // number of blocks per cyclical group
-				0x00, 0x00, 0x01, 0x60, // number of blocks per access position
+				0x00, 0x00, 0x00, (this.is3370) ? (byte)0x1F : (byte)0x20, // number of blocks per cyclical group
+				0x00, 0x00, 0x01, (this.is3370) ? (byte)0x74 : (byte)0x60, // number of blocks per access position
 				b0, b1, b2, b3, // number of blocks under movable heads (here: effective page count of device)
 				0x00, 0x00, 0x00, 0x00, // reserved
 				0x00, 0x00, // reserved
-				0x01, 0x60, // number of blocks in CE area
+				0x01, (this.is3370) ? (byte)0x74 : (byte)0x60, // number of blocks in CE area
 				0x00, 0x00, // reserved
 				0x00, 0x00, // reserved
 				0x00, 0x00  // reserved
@@ -510,8 +556,8 @@ public class FbaDrive implements iDasd {
 		int vdevInfo = 
 			// VDEVTYPC = Virtual device type class :: Fixed-Block Storage = 0x01
 			((0x01) << 24)
-			// VDEVTYPE = Virtual device type :: 3310 = 0x01
-		  | ((0x01) << 16)
+			// VDEVTYPE = Virtual device type :: 3310 = 0x01 , 3370 = 0x02
+		  | ((this.is3370) ? 0x00020000 : 0x00010000)
 		    // VDEVSTAT = Virtual device status
 		  | 0x00000000 // (none)
 		    // VDEVFLAG = Virtual device flags
@@ -528,8 +574,8 @@ public class FbaDrive implements iDasd {
 		int rdevInfo = 
 			// RDEVTYPC = Real device type class :: Fixed-Block Storage = 0x01
 			(0x01 << 24)
-			// RDEVTYPE = Real device type :: 3310 = 0x01
-		  | (0x01 << 16)
+			// RDEVTYPE = Real device type :: 3310 = 0x01 , 3370 = 0x02
+		  | ((this.is3370) ? 0x00020000 : 0x00010000)
 		    // RDEVMDL = Real device model number :: ?? => 0
 		  | (0x00 << 8)
 		    // RDEVFTR = Real device feature code (for a device other than the keyboard/ display)
@@ -558,8 +604,9 @@ public class FbaDrive implements iDasd {
 	@Override
 	public String getCpQueryStatusLine(int asCuu) {
 		return String.format(
-				"DASD %03X 3310 emx370 %s %6d BLK",
+				"DASD %03X %s emx370 %s %6d BLK",
 				asCuu,
+				(this.is3370) ? "3370" : "3310",
 				(this.writeProtected) ? "R/O" : "R/W",
 				this.fbaPageCount);
 	}
@@ -592,9 +639,19 @@ public class FbaDrive implements iDasd {
 		
 		System.out.println("..saving FBA drive to file: " + filename);
 		
-		FileOutputStream fos = new FileOutputStream(filename);
-		fos.write(this.fbaBytes);
-		fos.close();
+		if (deltaFile != null) {
+			this.blocks.saveDelta(filename);
+		} else {
+			this.blocks.saveImage(filename);
+		}
+	}
+
+	/**
+	 * Close the FBA file backing the drive when the drive is released, the drive
+	 * may no longer be used after closing.
+	 */
+	public void close() {
+		this.blocks.close();
 	}
 
 	@Override
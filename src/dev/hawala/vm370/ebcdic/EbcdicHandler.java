@@ -142,9 +142,20 @@ public class EbcdicHandler {
 	 * @return this instance for function call chaining.
 	 */
 	public EbcdicHandler appendUnicode(String unicodeString) {
-		byte[] ebcdicChars = Ebcdic.toEbcdic(unicodeString);
-		this.appendEbcdic(ebcdicChars, 0, ebcdicChars.length);
-		if (this.currLength == ebcdicChars.length) {
+		// translate directly into the buffer, characters outside ASCII become blanks
+		boolean isAscii = (this.currLength == 0);
+		int length = unicodeString.length();
+		int i = 0;
+		while(this.currLength < this.maxLength && i < length) {
+			char c = unicodeString.charAt(i++);
+			if (c < 128) {
+				this.buffer[this.currLength++] = Ebcdic.a2e((byte)c);
+			} else {
+				this.buffer[this.currLength++] = Ebcdic._Blank;
+				isAscii = false;
+			}
+		}
+		if (isAscii && i == length) {
 			this.isoEquiv = unicodeString;
 		} else {
 			this.isoEquiv = null;
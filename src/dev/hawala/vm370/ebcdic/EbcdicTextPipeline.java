@@ -15,6 +15,8 @@
 package dev.hawala.vm370.ebcdic;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import dev.hawala.vm370.Log;
 
@@ -29,8 +31,8 @@ import dev.hawala.vm370.Log;
  * source and sink are themselves interdependent and may acquire each others lock.
  * <br/>
  * Therefore, the delivery is handled by a separate thread which asynchronously
- * dequeues messages based on polling and time intervals and sends them to the 
- * <code>ITextSink</code>.  
+ * dequeues messages and sends them to the <code>ITextSink</code>, this thread being
+ * taken from a pool shared by all pipelines only while lines are to be delivered.  
  * 
  * @author Dr. Hans-Walter Latz, Berlin (Germany), 2011,2012
  */
@@ -84,31 +86,40 @@ public class EbcdicTextPipeline implements Runnable {
 	
 	private EbcdicLine freeLines = null;
 	
-	private Thread thr = null;
-	private volatile boolean running = false;
+	private volatile boolean running = true;
+	private boolean draining = false; // is a pooled thread currently delivering the enqueued lines?
+	
+	// the threads delivering the lines for all pipelines (ending when idle)
+	private static ExecutorService drainers = null;
+	
+	private static synchronized ExecutorService getDrainers() {
+		if (drainers == null) {
+			drainers = Executors.newCachedThreadPool(r -> {
+				Thread thr = new Thread(r, "EbcdicTextPipeline");
+				thr.setDaemon(true);
+				return thr;
+			});
+		}
+		return drainers;
+	}
 	
 	private final String prefix;
 	
 	/**
 	 * Construct and initialize this instance for pipelining texts from the <code>source</code>
 	 * to the <code>target</code>.
-	 * @param thrGrp the ThreadGroup to which the pipeline should belong to; the groups name will also
-	 *   be used when logging messages from the thread. 
 	 * @param target the target object to which to send the texts through the pipeline.
 	 * @param source the source object to be notified about the pipeline becoming empty.
 	 * @param prefix a text to prepend to logged messages.
 	 */
-	public EbcdicTextPipeline(ThreadGroup thrGrp, ITextSink target, IEventSink source, String prefix) {
+	public EbcdicTextPipeline(ITextSink target, IEventSink source, String prefix) {
 		this.target = target;
 		this.source = source;
 		this.prefix = prefix;
-		
-		thr = new Thread(thrGrp, this, thrGrp.getName() + " EbcdicTextPipeline -> " + prefix);
-		thr.start();
 	}
 	
 	/**
-	 * Stop the pipeline's thread and therefore sending messages to the sink.
+	 * Stop sending messages to the sink.
 	 */
 	public void shutdown() {
 		this.running = false;
@@ -121,7 +132,9 @@ public class EbcdicTextPipeline implements Runnable {
 	 * result is converted to EBCDIC before appending.
 	 */
 	public void appendLine(Object... elems) {
-		logger.trace(this.prefix, " begin appendLine([", elems.length , "]: '", elems[0].toString() ,"'", ((elems.length > 1) ? ",..." : ""),")");
+		if (logger.isTrace()) {
+			logger.trace(this.prefix, " begin appendLine([", elems.length , "]: '", elems[0].toString() ,"'", ((elems.length > 1) ? ",..." : ""),")");
+		}
 		synchronized(this) {			
 			EbcdicLine newLine = this.freeLines;
 			if (newLine == null) {
@@ -151,6 +164,11 @@ public class EbcdicTextPipeline implements Runnable {
 				this.queuedTail = newLine;
 			}
 			this.queuedCount++;
+			
+			if (this.running && !this.draining) {
+				this.draining = true;
+				getDrainers().execute(this);
+			}
 		}
 		try { Thread.sleep(1); } catch(Exception exc) { }
 		logger.trace(this.prefix, " end appendLine()");
@@ -207,49 +225,37 @@ public class EbcdicTextPipeline implements Runnable {
 	}
 
 	/**
-	 * Thread implementing method, waiting for available elements in the pipeline
-	 * and sending them to the sink.
+	 * Thread implementing method, sending the elements in the pipeline to the sink
+	 * until the pipeline is empty.
 	 */
 	@Override
 	public void run() {
-		if (this.running) { return; } // start only once...
-		this.running = true;
-		
 		try {
-			EbcdicLine currLine = null;
-			
-			while(this.running) {
-				
-				// wait for a new line to arrive
-				int counter = 0; 
-				while(currLine == null) {
-					Thread.sleep(10); // 10 ms
-					if (!this.running) { return; }
-					currLine = this.getQueueHead();
-					counter++;
-					if (currLine == null && this.source != null && counter > 100) {
-						this.source.pipelineDrained();
-						counter = 0;
+			while(true) {
+				EbcdicLine currLine;
+				synchronized(this) {
+					currLine = this.queuedLines;
+					if (currLine == null || !this.running) {
+						this.draining = false;
+						break;
 					}
 				}
 				
 				// tell target that a new line arrived
 				this.target.appendTextLine(currLine);
 				
-				// remove this line from queue and get the next line
-				currLine = this.dequeueHead();
-				
-				// if the queue is empty: inform the source the queue about that
-				if (currLine == null && this.source != null) {
-					this.source.pipelineDrained();
-				}
-				
-			}			
-		} catch(InterruptedException exc) {
-			// simply abort looping...
+				// remove this line from queue
+				this.dequeueHead();
+			}
+			
+			// the queue is empty: inform the source the queue about that
+			if (this.source != null) {
+				this.source.pipelineDrained();
+			}
 		} catch(IOException exc) {
-			// simply abort looping...
-		} finally {
+			// simply abort delivering...
+			this.running = false;
+			synchronized(this) { this.draining = false; }
 			logger.debug(this.prefix, " +++ EbcdicPipeline ended +++");
 		}
 	}	
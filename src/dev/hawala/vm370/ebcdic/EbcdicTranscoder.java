@@ -0,0 +1,318 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.ebcdic;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Table driven bulk conversion between EBCDIC and ASCII (resp. ISO-8859-1) byte
+ * sequences for a specific codepage.
+ *
+ * <p>
+ * The conversion works on byte ranges (arrays or {@code ByteBuffer}s) and writes to
+ * buffers provided by the caller, so the console, card and print paths can translate
+ * their lines into reused buffers without creating {@code String}s for each line.
+ * </p>
+ * <p>
+ * The codepage {@code EMX370} is the (basic 7-bit) translation always used by emx370
+ * (see {@link Ebcdic}), the other codepages translate to ISO-8859-1, with characters
+ * not available there being translated to blanks. The codepage used for new terminal
+ * sessions and spool files is selected with {@link #setDefault(EbcdicTranscoder)}.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ */
+public class EbcdicTranscoder {
+
+	/* translation tables for the ISO-8859-1 codepages:
+	 * characters are placed at their EBCDIC code, with blanks for code points
+	 * not having a printable ISO-8859-1 equivalent
+	 */
+
+	private static final String CP037Table =
+		/* 0123456789ABCDEF */
+		  "                "  /* 0 */
+		+ "                "  /* 1 */
+		+ "                "  /* 2 */
+		+ "                "  /* 3 */
+		+ "  \u00E2\u00E4\u00E0\u00E1\u00E3\u00E5\u00E7\u00F1\u00A2.<(+|"  /* 4 */
+		+ "&\u00E9\u00EA\u00EB\u00E8\u00ED\u00EE\u00EF\u00EC\u00DF!$*);\u00AC"  /* 5 */
+		+ "-/\u00C2\u00C4\u00C0\u00C1\u00C3\u00C5\u00C7\u00D1\u00A6,%_>?"  /* 6 */
+		+ "\u00F8\u00C9\u00CA\u00CB\u00C8\u00CD\u00CE\u00CF\u00CC`:#@'=\""  /* 7 */
+		+ "\u00D8abcdefghi\u00AB\u00BB\u00F0\u00FD\u00FE\u00B1"  /* 8 */
+		+ "\u00B0jklmnopqr\u00AA\u00BA\u00E6\u00B8\u00C6\u00A4"  /* 9 */
+		+ "\u00B5~stuvwxyz\u00A1\u00BF\u00D0\u00DD\u00DE\u00AE"  /* A */
+		+ "^\u00A3\u00A5\u00B7\u00A9\u00A7\u00B6\u00BC\u00BD\u00BE[]\u00AF\u00A8\u00B4\u00D7"  /* B */
+		+ "{ABCDEFGHI\u00AD\u00F4\u00F6\u00F2\u00F3\u00F5"  /* C */
+		+ "}JKLMNOPQR\u00B9\u00FB\u00FC\u00F9\u00FA\u00FF"  /* D */
+		+ "\\\u00F7STUVWXYZ\u00B2\u00D4\u00D6\u00D2\u00D3\u00D5"  /* E */
+		+ "0123456789\u00B3\u00DB\u00DC\u00D9\u00DA "  /* F */
+	;
+
+	private static final String CP1047Table =
+		/* 0123456789ABCDEF */
+		  "                "  /* 0 */
+		+ "                "  /* 1 */
+		+ "                "  /* 2 */
+		+ "                "  /* 3 */
+		+ "  \u00E2\u00E4\u00E0\u00E1\u00E3\u00E5\u00E7\u00F1\u00A2.<(+|"  /* 4 */
+		+ "&\u00E9\u00EA\u00EB\u00E8\u00ED\u00EE\u00EF\u00EC\u00DF!$*);^"  /* 5 */
+		+ "-/\u00C2\u00C4\u00C0\u00C1\u00C3\u00C5\u00C7\u00D1\u00A6,%_>?"  /* 6 */
+		+ "\u00F8\u00C9\u00CA\u00CB\u00C8\u00CD\u00CE\u00CF\u00CC`:#@'=\""  /* 7 */
+		+ "\u00D8abcdefghi\u00AB\u00BB\u00F0\u00FD\u00FE\u00B1"  /* 8 */
+		+ "\u00B0jklmnopqr\u00AA\u00BA\u00E6\u00B8\u00C6\u00A4"  /* 9 */
+		+ "\u00B5~stuvwxyz\u00A1\u00BF\u00D0[\u00DE\u00AE"  /* A */
+		+ "\u00AC\u00A3\u00A5\u00B7\u00A9\u00A7\u00B6\u00BC\u00BD\u00BE\u00DD\u00A8\u00AF]\u00B4\u00D7"  /* B */
+		+ "{ABCDEFGHI\u00AD\u00F4\u00F6\u00F2\u00F3\u00F5"  /* C */
+		+ "}JKLMNOPQR\u00B9\u00FB\u00FC\u00F9\u00FA\u00FF"  /* D */
+		+ "\\\u00F7STUVWXYZ\u00B2\u00D4\u00D6\u00D2\u00D3\u00D5"  /* E */
+		+ "0123456789\u00B3\u00DB\u00DC\u00D9\u00DA "  /* F */
+	;
+
+	private static final String CP500Table =
+		/* 0123456789ABCDEF */
+		  "                "  /* 0 */
+		+ "                "  /* 1 */
+		+ "                "  /* 2 */
+		+ "                "  /* 3 */
+		+ "  \u00E2\u00E4\u00E0\u00E1\u00E3\u00E5\u00E7\u00F1[.<(+!"  /* 4 */
+		+ "&\u00E9\u00EA\u00EB\u00E8\u00ED\u00EE\u00EF\u00EC\u00DF]$*);^"  /* 5 */
+		+ "-/\u00C2\u00C4\u00C0\u00C1\u00C3\u00C5\u00C7\u00D1\u00A6,%_>?"  /* 6 */
+		+ "\u00F8\u00C9\u00CA\u00CB\u00C8\u00CD\u00CE\u00CF\u00CC`:#@'=\""  /* 7 */
+		+ "\u00D8abcdefghi\u00AB\u00BB\u00F0\u00FD\u00FE\u00B1"  /* 8 */
+		+ "\u00B0jklmnopqr\u00AA\u00BA\u00E6\u00B8\u00C6\u00A4"  /* 9 */
+		+ "\u00B5~stuvwxyz\u00A1\u00BF\u00D0\u00DD\u00DE\u00AE"  /* A */
+		+ "\u00A2\u00A3\u00A5\u00B7\u00A9\u00A7\u00B6\u00BC\u00BD\u00BE\u00AC|\u00AF\u00A8\u00B4\u00D7"  /* B */
+		+ "{ABCDEFGHI\u00AD\u00F4\u00F6\u00F2\u00F3\u00F5"  /* C */
+		+ "}JKLMNOPQR\u00B9\u00FB\u00FC\u00F9\u00FA\u00FF"  /* D */
+		+ "\\\u00F7STUVWXYZ\u00B2\u00D4\u00D6\u00D2\u00D3\u00D5"  /* E */
+		+ "0123456789\u00B3\u00DB\u00DC\u00D9\u00DA "  /* F */
+	;
+
+	private static final String CP273Table =
+		/* 0123456789ABCDEF */
+		  "                "  /* 0 */
+		+ "                "  /* 1 */
+		+ "                "  /* 2 */
+		+ "                "  /* 3 */
+		+ "  \u00E2{\u00E0\u00E1\u00E3\u00E5\u00E7\u00F1\u00C4.<(+!"  /* 4 */
+		+ "&\u00E9\u00EA\u00EB\u00E8\u00ED\u00EE\u00EF\u00EC~\u00DC$*);^"  /* 5 */
+		+ "-/\u00C2[\u00C0\u00C1\u00C3\u00C5\u00C7\u00D1\u00F6,%_>?"  /* 6 */
+		+ "\u00F8\u00C9\u00CA\u00CB\u00C8\u00CD\u00CE\u00CF\u00CC`:#\u00A7'=\""  /* 7 */
+		+ "\u00D8abcdefghi\u00AB\u00BB\u00F0\u00FD\u00FE\u00B1"  /* 8 */
+		+ "\u00B0jklmnopqr\u00AA\u00BA\u00E6\u00B8\u00C6\u00A4"  /* 9 */
+		+ "\u00B5\u00DFstuvwxyz\u00A1\u00BF\u00D0\u00DD\u00DE\u00AE"  /* A */
+		+ "\u00A2\u00A3\u00A5\u00B7\u00A9@\u00B6\u00BC\u00BD\u00BE\u00AC|\u00AF\u00A8\u00B4\u00D7"  /* B */
+		+ "\u00E4ABCDEFGHI\u00AD\u00F4\u00A6\u00F2\u00F3\u00F5"  /* C */
+		+ "\u00FCJKLMNOPQR\u00B9\u00FB}\u00F9\u00FA\u00FF"  /* D */
+		+ "\u00D6\u00F7STUVWXYZ\u00B2\u00D4\\\u00D2\u00D3\u00D5"  /* E */
+		+ "0123456789\u00B3\u00DB]\u00D9\u00DA "  /* F */
+	;
+
+	/**
+	 * The basic translation used by emx370.
+	 */
+	public static final EbcdicTranscoder EMX370 = new EbcdicTranscoder("EMX370", null);
+
+	/**
+	 * The US/Canada codepage.
+	 */
+	public static final EbcdicTranscoder CP037 = new EbcdicTranscoder("CP037", CP037Table);
+
+	/**
+	 * The Latin-1 open systems codepage.
+	 */
+	public static final EbcdicTranscoder CP1047 = new EbcdicTranscoder("CP1047", CP1047Table);
+
+	/**
+	 * The international codepage.
+	 */
+	public static final EbcdicTranscoder CP500 = new EbcdicTranscoder("CP500", CP500Table);
+
+	/**
+	 * The german/austrian codepage.
+	 */
+	public static final EbcdicTranscoder CP273 = new EbcdicTranscoder("CP273", CP273Table);
+
+	private static final EbcdicTranscoder[] codepages = { EMX370, CP037, CP1047, CP500, CP273 };
+
+	private static volatile EbcdicTranscoder defaultTranscoder = EMX370;
+
+	/**
+	 * Get the transcoder for a codepage.
+	 * @param name the name of the codepage (case-insensitive).
+	 * @return the transcoder or {@code null} if the codepage is unknown.
+	 */
+	public static EbcdicTranscoder forCodepage(String name) {
+		for (EbcdicTranscoder t : codepages) {
+			if (t.name.equalsIgnoreCase(name)) { return t; }
+		}
+		return null;
+	}
+
+	/**
+	 * @return the names of the codepages supported.
+	 */
+	public static String getCodepageNames() {
+		StringBuilder sb = new StringBuilder();
+		for (EbcdicTranscoder t : codepages) {
+			if (sb.length() > 0) { sb.append(" "); }
+			sb.append(t.name);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the transcoder for the codepage currently used for terminal sessions and spool files.
+	 */
+	public static EbcdicTranscoder getDefault() {
+		return defaultTranscoder;
+	}
+
+	/**
+	 * Set the codepage to use for terminal sessions and spool files created from now on.
+	 * @param transcoder the transcoder for the new codepage.
+	 */
+	public static void setDefault(EbcdicTranscoder transcoder) {
+		if (transcoder != null) { defaultTranscoder = transcoder; }
+	}
+
+	private final String name;
+	private final byte[] e2a = new byte[256];
+	private final byte[] a2e = new byte[256];
+
+	private EbcdicTranscoder(String name, String table) {
+		this.name = name;
+		for (int i = 0; i < 256; i++) {
+			this.e2a[i] = (table == null) ? Ebcdic.e2a((byte)i) : (byte)0x20;
+			this.a2e[i] = (table == null) ? Ebcdic.a2e((byte)i) : Ebcdic._Blank;
+		}
+		if (table == null) { return; }
+		for (int i = 0; i < table.length(); i++) {
+			char c = table.charAt(i);
+			if (c != ' ') {
+				this.e2a[i] = (byte)c;
+				this.a2e[c] = (byte)i;
+			}
+		}
+	}
+
+	/**
+	 * @return the name of the codepage.
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Translate a single EBCDIC character.
+	 * @param b the EBCDIC character.
+	 * @return the ASCII character.
+	 */
+	public byte toAscii(byte b) {
+		return this.e2a[b & 0xFF];
+	}
+
+	/**
+	 * Translate a single ASCII character.
+	 * @param b the ASCII character.
+	 * @return the EBCDIC character.
+	 */
+	public byte toEbcdic(byte b) {
+		return this.a2e[b & 0xFF];
+	}
+
+	/**
+	 * Translate an EBCDIC byte sequence to ASCII (the source and target buffer
+	 * may be the same).
+	 * @param src the buffer with the EBCDIC bytes.
+	 * @param srcOffset the start of the EBCDIC bytes in {@code src}.
+	 * @param length the number of bytes to translate.
+	 * @param dst the buffer where to put the ASCII bytes.
+	 * @param dstOffset the start position in {@code dst}.
+	 * @return the position in {@code dst} following the translated bytes.
+	 */
+	public int toAscii(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+		return translate(this.e2a, src, srcOffset, length, dst, dstOffset);
+	}
+
+	/**
+	 * Translate an ASCII byte sequence to EBCDIC (the source and target buffer
+	 * may be the same).
+	 * @param src the buffer with the ASCII bytes.
+	 * @param srcOffset the start of the ASCII bytes in {@code src}.
+	 * @param length the number of bytes to translate.
+	 * @param dst the buffer where to put the EBCDIC bytes.
+	 * @param dstOffset the start position in {@code dst}.
+	 * @return the position in {@code dst} following the translated bytes.
+	 */
+	public int toEbcdic(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+		return translate(this.a2e, src, srcOffset, length, dst, dstOffset);
+	}
+
+	/**
+	 * Translate the remaining EBCDIC bytes of {@code src} to ASCII into {@code dst},
+	 * as far as the space remaining in {@code dst} allows, advancing the positions
+	 * of both buffers.
+	 * @param src the buffer with the EBCDIC bytes.
+	 * @param dst the buffer where to put the ASCII bytes.
+	 */
+	public void toAscii(ByteBuffer src, ByteBuffer dst) {
+		translate(this.e2a, src, dst);
+	}
+
+	/**
+	 * Translate the remaining ASCII bytes of {@code src} to EBCDIC into {@code dst},
+	 * as far as the space remaining in {@code dst} allows, advancing the positions
+	 * of both buffers.
+	 * @param src the buffer with the ASCII bytes.
+	 * @param dst the buffer where to put the EBCDIC bytes.
+	 */
+	public void toEbcdic(ByteBuffer src, ByteBuffer dst) {
+		translate(this.a2e, src, dst);
+	}
+
+	/**
+	 * Get the length of an EBCDIC byte sequence without the trailing blanks.
+	 * @param ebcdic the buffer with the EBCDIC bytes.
+	 * @param offset the start of the EBCDIC bytes in the buffer.
+	 * @param length the length of the EBCDIC byte sequence.
+	 * @return the length without trailing blanks.
+	 */
+	public static int strippedLength(byte[] ebcdic, int offset, int length) {
+		while(length > 0 && ebcdic[offset + length - 1] == Ebcdic._Blank) { length--; }
+		return length;
+	}
+
+	private static int translate(byte[] table, byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+		for (int i = 0; i < length; i++) {
+			dst[dstOffset++] = table[src[srcOffset++] & 0xFF];
+		}
+		return dstOffset;
+	}
+
+	private static void translate(byte[] table, ByteBuffer src, ByteBuffer dst) {
+		int count = Math.min(src.remaining(), dst.remaining());
+		if (src.hasArray() && dst.hasArray()) {
+			int srcPos = src.position();
+			int dstPos = dst.position();
+			translate(table, src.array(), src.arrayOffset() + srcPos, count, dst.array(), dst.arrayOffset() + dstPos);
+			src.position(srcPos + count);
+			dst.position(dstPos + count);
+			return;
+		}
+		for (int i = 0; i < count; i++) {
+			dst.put(table[src.get() & 0xFF]);
+		}
+	}
+}
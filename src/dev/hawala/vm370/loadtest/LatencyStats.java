@@ -0,0 +1,113 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Collector for the response times of one kind of interaction, allowing to
+ * compute percentiles over all samples recorded by concurrent sessions.
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ *
+ */
+public class LatencyStats {
+
+	// the percentiles reported by formatLine()
+	private static final double[] PERCENTILES = { 50.0, 90.0, 95.0, 99.0 };
+
+	private final String name;
+
+	// the response times in nanoseconds (guarded by 'this')
+	private long[] samples = new long[1024];
+	private int count = 0;
+
+	/**
+	 * Construct an empty response time collector.
+	 * @param name the name of the interaction kind for the report.
+	 */
+	public LatencyStats(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return the name of the interaction kind.
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Record a response time.
+	 * @param nanos the response time in nanoseconds.
+	 */
+	public synchronized void add(long nanos) {
+		if (this.count == this.samples.length) {
+			this.samples = Arrays.copyOf(this.samples, this.count * 2);
+		}
+		this.samples[this.count++] = nanos;
+	}
+
+	/**
+	 * @return the number of response times recorded so far.
+	 */
+	public synchronized int getCount() {
+		return this.count;
+	}
+
+	/**
+	 * @return a sorted copy of the response times recorded so far.
+	 */
+	public synchronized long[] getSortedSamples() {
+		long[] sorted = Arrays.copyOf(this.samples, this.count);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Get a percentile (nearest rank method) from sorted samples.
+	 * @param sorted the sorted samples.
+	 * @param percent the percentile to get (0 &lt; percent &lt;= 100).
+	 * @return the sample value at the percentile or 0 if there are no samples.
+	 */
+	public static long percentile(long[] sorted, double percent) {
+		if (sorted.length == 0) { return 0; }
+		int rank = (int)Math.ceil(percent / 100.0 * sorted.length);
+		return sorted[Math.min(Math.max(rank, 1), sorted.length) - 1];
+	}
+
+	/**
+	 * @return the header line for the columns produced by {@link #formatLine()}.
+	 */
+	public static String formatHeader() {
+		StringBuilder sb = new StringBuilder(String.format("%-24s %8s", "(milliseconds)", "count"));
+		for (double p : PERCENTILES) {
+			sb.append(String.format(" %8s", String.format("p%d", (int)p)));
+		}
+		sb.append(String.format(" %8s", "max"));
+		return sb.toString();
+	}
+
+	/**
+	 * @return the line with the sample count and the percentiles in milliseconds.
+	 */
+	public String formatLine() {
+		long[] sorted = this.getSortedSamples();
+		StringBuilder sb = new StringBuilder(String.format("%-24s %8d", this.name, sorted.length));
+		for (double p : PERCENTILES) {
+			sb.append(String.format(" %8.1f", percentile(sorted, p) / 1000000.0));
+		}
+		sb.append(String.format(" %8.1f", (sorted.length > 0) ? sorted[sorted.length - 1] / 1000000.0 : 0.0));
+		return sb.toString();
+	}
+}
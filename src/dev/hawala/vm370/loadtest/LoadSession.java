@@ -0,0 +1,390 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import dev.hawala.vm370.loadtest.Workload.Step;
+
+/**
+ * Base class for a single terminal session of a load test, connecting to emx370,
+ * logging on the user, replaying the workload and logging off the user.
+ *
+ * <p>
+ * This class handles the telnet protocol level (option negotiation, sub-negotiation
+ * and end-of-record marks) of the data received, the subclasses implement the terminal
+ * kind specific negotiation and the steps of the workload.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ *
+ */
+public abstract class LoadSession implements Runnable {
+
+	// telnet protocol bytes
+	protected static final byte IAC = (byte)0xFF;
+	protected static final byte DONT = (byte)0xFE;
+	protected static final byte DO = (byte)0xFD;
+	protected static final byte WONT = (byte)0xFC;
+	protected static final byte WILL = (byte)0xFB;
+	protected static final byte SB = (byte)0xFA;
+	protected static final byte SE = (byte)0xF0;
+	protected static final byte EOR = (byte)0xEF;
+
+	protected static final byte OPT_BINARY = (byte)0x00;
+	protected static final byte OPT_TTYPE = (byte)0x18;
+	protected static final byte OPT_EOR = (byte)0x19;
+
+	protected final int sessionNo;
+	protected final String userName;
+	protected final LoadStatistics stats;
+
+	private final String host;
+	private final int port;
+	private final Workload workload;
+	private final int loops;
+	private final long thinkMs;
+	protected final long timeoutNanos;
+
+	private Socket socket = null;
+	private InputStream is = null;
+	private OutputStream os = null;
+
+	private String failure = null;
+
+	// state of the telnet protocol interpretation
+	private enum TnState { Data, Iac, Option, Sub, SubIac }
+	private TnState tnState = TnState.Data;
+	private byte tnCommand = 0;
+	private final ByteArrayOutputStream tnSubData = new ByteArrayOutputStream();
+
+	// the time of the last data received
+	protected long lastReceivedNanos = 0;
+
+	private final byte[] rcvBuffer = new byte[8192];
+
+	/**
+	 * Construct a session.
+	 * @param sessionNo the number of the session (1-based).
+	 * @param userName the user to log on.
+	 * @param host the host where emx370 runs.
+	 * @param port the port where emx370 listens.
+	 * @param workload the steps to replay.
+	 * @param loops the number of times the workload is replayed.
+	 * @param thinkMs the pause between steps.
+	 * @param timeoutMs the max. time to wait for a response.
+	 * @param stats the target for the response times.
+	 */
+	protected LoadSession(int sessionNo, String userName, String host, int port,
+			Workload workload, int loops, long thinkMs, long timeoutMs, LoadStatistics stats) {
+		this.sessionNo = sessionNo;
+		this.userName = userName.toUpperCase();
+		this.host = host;
+		this.port = port;
+		this.workload = workload;
+		this.loops = loops;
+		this.thinkMs = thinkMs;
+		this.timeoutNanos = timeoutMs * 1000000L;
+		this.stats = stats;
+	}
+
+	/**
+	 * @return the reason why the session did not complete or {@code null} if the session completed.
+	 */
+	public String getFailure() {
+		return this.failure;
+	}
+
+	/**
+	 * @return the name identifying the session in messages.
+	 */
+	public String getName() {
+		return String.format("%s[%d] %s", this.getKind(), this.sessionNo, this.userName);
+	}
+
+	@Override
+	public void run() {
+		try {
+			this.socket = new Socket(this.host, this.port);
+			this.socket.setTcpNoDelay(true);
+			this.is = this.socket.getInputStream();
+			this.os = this.socket.getOutputStream();
+
+			this.connect();
+			this.enter("LOGON " + this.userName, "LOGON");
+
+			for (int loop = 0; loop < this.loops; loop++) {
+				for (Step step : this.workload.getSteps()) {
+					this.doStep(step);
+					this.stats.stepDone();
+					this.pause(this.thinkMs);
+				}
+			}
+
+			this.logoff();
+		} catch (IOException e) {
+			this.failure = e.getMessage();
+		} catch (InterruptedException e) {
+			this.failure = "interrupted";
+		} finally {
+			try {
+				if (this.socket != null) { this.socket.close(); }
+			} catch (IOException e) {
+				// ignored...
+			}
+		}
+	}
+
+	private void doStep(Step step) throws IOException, InterruptedException {
+		String text = step.getText(this.userName, this.sessionNo);
+		switch(step.getAction()) {
+		case ENTER:
+			this.enter(text, getVerb(text));
+			break;
+		case TYPE:
+			this.type(text);
+			break;
+		case KEY:
+			this.pressKey(text);
+			break;
+		case TAB:
+			this.moveCursor(step.getAction(), step.getArg1(), 0);
+			break;
+		case HOME:
+		case CURSOR:
+			this.moveCursor(step.getAction(), step.getArg1(), step.getArg2());
+			break;
+		case WAIT:
+			this.waitFor(text);
+			break;
+		case THINK:
+			this.pause(step.getArg1());
+			break;
+		}
+	}
+
+	// get the first word of a command line (the command verb)
+	private static String getVerb(String line) {
+		String[] words = line.trim().split(" +");
+		return (words[0].length() == 0) ? "(empty)" : words[0].toUpperCase();
+	}
+
+	private void pause(long ms) throws InterruptedException {
+		if (ms > 0) { Thread.sleep(ms); }
+	}
+
+	// log off the user with the command fitting the current console state, waiting for
+	// the CP read after logoff (or emx370 closing the connection)
+	private void logoff() throws IOException {
+		try {
+			this.enter(this.isVmRead() ? "#CP LOGOFF" : "LOGOFF", "LOGOFF");
+		} catch (EOFException e) {
+			// also fine...
+		}
+	}
+
+	/*
+	 * low level communication
+	 */
+
+	/**
+	 * Send bytes to emx370 with a single write.
+	 * @param bytes the bytes to send.
+	 * @param count the number of bytes to send.
+	 * @throws IOException
+	 */
+	protected void send(byte[] bytes, int count) throws IOException {
+		this.os.write(bytes, 0, count);
+		this.os.flush();
+	}
+
+	/**
+	 * Wait for data from emx370 until the deadline, passing the data received
+	 * to {@link #processData(byte)} resp. {@link #processEndOfRecord()}.
+	 * @param deadline the {@code System.nanoTime()} up to which to wait.
+	 * @return {@code false} if no data was received until the deadline.
+	 * @throws IOException if the connection failed or was closed.
+	 */
+	protected boolean receive(long deadline) throws IOException {
+		int count = 0;
+		while(true) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) { return false; }
+			this.socket.setSoTimeout((int)Math.max(1, (remaining + 999999) / 1000000));
+			try {
+				count = this.is.read(this.rcvBuffer);
+				break;
+			} catch (SocketTimeoutException e) {
+				// check the deadline again, as the socket timeout is only milliseconds
+			}
+		}
+		if (count < 0) { throw new EOFException("connection closed by emx370"); }
+		this.lastReceivedNanos = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			this.processTelnet(this.rcvBuffer[i]);
+		}
+		return true;
+	}
+
+	// interpret the telnet protocol
+	private void processTelnet(byte b) throws IOException {
+		switch(this.tnState) {
+		case Data:
+			if (b == IAC) {
+				this.tnState = TnState.Iac;
+			} else {
+				this.processData(b);
+			}
+			break;
+		case Iac:
+			this.tnState = TnState.Data;
+			if (b == IAC) {
+				this.processData(b);
+			} else if (b == EOR) {
+				this.processEndOfRecord();
+			} else if (b == DO || b == DONT || b == WILL || b == WONT) {
+				this.tnCommand = b;
+				this.tnState = TnState.Option;
+			} else if (b == SB) {
+				this.tnSubData.reset();
+				this.tnState = TnState.Sub;
+			}
+			break;
+		case Option:
+			this.tnState = TnState.Data;
+			this.processOption(this.tnCommand, b);
+			break;
+		case Sub:
+			if (b == IAC) {
+				this.tnState = TnState.SubIac;
+			} else {
+				this.tnSubData.write(b);
+			}
+			break;
+		case SubIac:
+			if (b == SE) {
+				this.tnState = TnState.Data;
+				this.processSubnegotiation(this.tnSubData.toByteArray());
+			} else {
+				this.tnSubData.write(b);
+				this.tnState = TnState.Sub;
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Refuse a telnet option requested by emx370.
+	 * @param command the telnet command received.
+	 * @param option the telnet option requested.
+	 * @throws IOException
+	 */
+	protected void refuseOption(byte command, byte option) throws IOException {
+		if (command == DO) {
+			this.send(new byte[] { IAC, WONT, option }, 3);
+		} else if (command == WILL) {
+			this.send(new byte[] { IAC, DONT, option }, 3);
+		}
+	}
+
+	/*
+	 * terminal kind specific items
+	 */
+
+	/**
+	 * @return the kind of the session for the statistics.
+	 */
+	public abstract String getKind();
+
+	/**
+	 * Process a telnet option negotiation command received.
+	 * @param command the telnet command (DO, DONT, WILL, WONT).
+	 * @param option the telnet option.
+	 * @throws IOException
+	 */
+	protected abstract void processOption(byte command, byte option) throws IOException;
+
+	/**
+	 * Process a telnet sub-negotiation received.
+	 * @param data the bytes between SB and SE.
+	 * @throws IOException
+	 */
+	protected abstract void processSubnegotiation(byte[] data) throws IOException;
+
+	/**
+	 * Process a data byte received.
+	 * @param b the data byte.
+	 * @throws IOException
+	 */
+	protected abstract void processData(byte b) throws IOException;
+
+	/**
+	 * Process a telnet end-of-record mark received.
+	 * @throws IOException
+	 */
+	protected void processEndOfRecord() throws IOException { }
+
+	/**
+	 * Negotiate the terminal kind and wait for the CP read after connecting.
+	 * @throws IOException
+	 */
+	protected abstract void connect() throws IOException;
+
+	/**
+	 * Enter an input line and wait until the console is ready again.
+	 * @param line the input line.
+	 * @param verb the command verb for the statistics.
+	 * @throws IOException
+	 */
+	protected abstract void enter(String line, String verb) throws IOException;
+
+	/**
+	 * Type text without pressing Enter.
+	 * @param text the text to type.
+	 * @throws IOException
+	 */
+	protected abstract void type(String text) throws IOException;
+
+	/**
+	 * Press a key and wait until the console is ready again.
+	 * @param key the key name.
+	 * @throws IOException
+	 */
+	protected abstract void pressKey(String key) throws IOException;
+
+	/**
+	 * Move the cursor.
+	 * @param how the cursor movement ({@code TAB}, {@code HOME} or {@code CURSOR}).
+	 * @param arg1 the tab count resp. the row.
+	 * @param arg2 the column.
+	 */
+	protected abstract void moveCursor(Workload.Action how, int arg1, int arg2);
+
+	/**
+	 * Wait until a text is displayed.
+	 * @param text the text to wait for.
+	 * @throws IOException if the text did not show up before the timeout.
+	 */
+	protected abstract void waitFor(String text) throws IOException;
+
+	/**
+	 * @return is the virtual machine (and not CP) waiting for input?
+	 */
+	protected abstract boolean isVmRead();
+}
@@ -0,0 +1,329 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import dev.hawala.vm370.stream3270.AidCode3270;
+
+/**
+ * Load test session using a tn3270 connection (MECAFF 3270 console in emx370).
+ *
+ * <p>
+ * The session negotiates like x3270 does: it accepts the terminal type, end-of-record
+ * and binary options, sends an extended terminal type ({@code IBM-3279-<model>-E}) and
+ * answers the WSF query from the {@code TerminalTypeNegotiator} with the query replies
+ * for the usable area, colors and highlighting.
+ * </p>
+ * <p>
+ * The time from sending an AID to the first write from emx370 is recorded as
+ * keystroke response time. The console is ready when the MECAFF console shows
+ * one of the read states (a More... state is continued with Enter), when CMS wrote
+ * its Ready message as newest output line (else when no more output arrived in the
+ * idle time) or, for fullscreen screens, when a write restored the keyboard and no
+ * more data arrived in the settle time.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ *
+ */
+public class LoadSession3270 extends LoadSession {
+
+	private static final String KIND = "tn3270";
+
+	// the alternate screen sizes of the 3270 models 2..5
+	private static final int[][] MODEL_SIZES = { {24, 80}, {32, 80}, {43, 80}, {27, 132} };
+
+	private final String terminalType;
+	private final byte[] queryReply;
+	private final long settleNanos;
+	private final long idleNanos;
+
+	private final Screen3270 screen;
+
+	// the record currently being received
+	private byte[] record = new byte[4096];
+	private int recordLength = 0;
+
+	// writes received since the last AID sent and did one of them restore the keyboard?
+	private int writesReceived = 0;
+	private boolean kbdRestored = false;
+
+	// the time the last AID was sent, as long as no response was received
+	private long aidSentNanos = -1;
+
+	// the buffers for the inbound data stream
+	private final byte[] inputBuffer;
+	private final byte[] sendBuffer;
+
+	/**
+	 * Construct a tn3270 session.
+	 * @param model the 3270 model (2..5).
+	 * @param settleMs the time without data from emx370 after which a fullscreen
+	 *   screen with keyboard restored is ready for input.
+	 * @param idleMs the time without data from emx370 after which a command that did
+	 *   not end with a CMS Ready message is assumed to be done.
+	 * @see LoadSession#LoadSession(int, String, String, int, Workload, int, long, long, LoadStatistics)
+	 */
+	public LoadSession3270(int sessionNo, String userName, String host, int port,
+			Workload workload, int loops, long thinkMs, long timeoutMs, LoadStatistics stats,
+			int model, long settleMs, long idleMs) {
+		super(sessionNo, userName, host, port, workload, loops, thinkMs, timeoutMs, stats);
+		int[] size = MODEL_SIZES[Math.min(Math.max(model, 2), 5) - 2];
+		this.terminalType = String.format("IBM-3279-%d-E", model);
+		this.queryReply = buildQueryReply(size[0], size[1]);
+		this.settleNanos = settleMs * 1000000L;
+		this.idleNanos = idleMs * 1000000L;
+		this.screen = new Screen3270(size[0], size[1]);
+		this.inputBuffer = new byte[size[0] * size[1] * 2 + 16];
+		this.sendBuffer = new byte[this.inputBuffer.length * 2 + 2];
+	}
+
+	// append a query reply structured field
+	private static void addQueryReply(ByteArrayOutputStream reply, int... data) {
+		int length = data.length + 3;
+		reply.write(length >> 8);
+		reply.write(length);
+		reply.write(0x81); // query reply
+		for (int b : data) { reply.write(b); }
+	}
+
+	// create the response to the WSF read partition query (like x3270 for the model)
+	private static byte[] buildQueryReply(int rows, int cols) {
+		int size = rows * cols;
+		ByteArrayOutputStream reply = new ByteArrayOutputStream();
+		reply.write(AidCode3270.StructF.getCode());
+		addQueryReply(reply, 0x80, // summary
+				0x80, 0x81, 0x84, 0x86, 0x87, 0xA6);
+		addQueryReply(reply, 0x81, // usable area
+				0x01, 0x00, cols >> 8, cols & 0xFF, rows >> 8, rows & 0xFF,
+				0x01, 0x00, 0x0A, 0x02, 0xE5, 0x00, 0x02, 0x00, 0x6F, 0x09, 0x0C, size >> 8, size & 0xFF);
+		addQueryReply(reply, 0x84, // alphanumeric partitions
+				0x00, size >> 8, size & 0xFF, 0x00);
+		addQueryReply(reply, 0x86, // colors
+				0x00, 0x10, 0x00, 0xF4,
+				0xF1, 0xF1, 0xF2, 0xF2, 0xF3, 0xF3, 0xF4, 0xF4, 0xF5, 0xF5, 0xF6, 0xF6, 0xF7, 0xF7,
+				0xF8, 0xF8, 0xF9, 0xF9, 0xFA, 0xFA, 0xFB, 0xFB, 0xFC, 0xFC, 0xFD, 0xFD, 0xFE, 0xFE, 0xFF, 0xFF);
+		addQueryReply(reply, 0x87, // highlighting
+				0x05, 0x00, 0xF0, 0xF1, 0xF1, 0xF2, 0xF2, 0xF4, 0xF4, 0xF8, 0xF8);
+		addQueryReply(reply, 0xA6, // implicit partition
+				0x00, 0x00, 0x0B, 0x01, 0x00, 0x00, 0x50, 0x00, 0x18, cols >> 8, cols & 0xFF, rows >> 8, rows & 0xFF);
+		return reply.toByteArray();
+	}
+
+	@Override
+	public String getKind() {
+		return KIND;
+	}
+
+	/*
+	 * telnet level
+	 */
+
+	@Override
+	protected void processOption(byte command, byte option) throws IOException {
+		boolean wanted = (option == OPT_TTYPE || option == OPT_EOR || option == OPT_BINARY);
+		if (command == DO && wanted) {
+			this.send(new byte[] { IAC, WILL, option }, 3);
+		} else if (command == WILL && wanted && option != OPT_TTYPE) {
+			this.send(new byte[] { IAC, DO, option }, 3);
+		} else {
+			this.refuseOption(command, option);
+		}
+	}
+
+	@Override
+	protected void processSubnegotiation(byte[] data) throws IOException {
+		if (data.length < 2 || data[0] != OPT_TTYPE || data[1] != 0x01) { return; } // not: TTYPE SEND
+		byte[] name = this.terminalType.getBytes("ISO-8859-1");
+		byte[] reply = new byte[name.length + 6];
+		reply[0] = IAC;
+		reply[1] = SB;
+		reply[2] = OPT_TTYPE;
+		reply[3] = 0x00; // IS
+		System.arraycopy(name, 0, reply, 4, name.length);
+		reply[reply.length - 2] = IAC;
+		reply[reply.length - 1] = SE;
+		this.send(reply, reply.length);
+	}
+
+	@Override
+	protected void processData(byte b) throws IOException {
+		if (this.recordLength == this.record.length) {
+			this.record = Arrays.copyOf(this.record, this.record.length * 2);
+		}
+		this.record[this.recordLength++] = b;
+	}
+
+	@Override
+	protected void processEndOfRecord() throws IOException {
+		int length = this.recordLength;
+		this.recordLength = 0;
+		if (length == 0) { return; }
+		if (this.record[0] == (byte)0xF3 || this.record[0] == (byte)0x11) {
+			// WSF: the only one sent by emx370 is the read partition query
+			this.sendRecord(this.queryReply, this.queryReply.length);
+			return;
+		}
+		this.kbdRestored |= this.screen.processRecord(this.record, length);
+		this.writesReceived++;
+		if (this.aidSentNanos >= 0) {
+			this.stats.keystroke(KIND, this.lastReceivedNanos - this.aidSentNanos);
+			this.aidSentNanos = -1;
+		}
+	}
+
+	// send a 3270 record with a single write, escaping 0xFF bytes
+	private void sendRecord(byte[] data, int length) throws IOException {
+		byte[] buffer = (length * 2 + 2 <= this.sendBuffer.length) ? this.sendBuffer : new byte[length * 2 + 2];
+		int count = 0;
+		for (int i = 0; i < length; i++) {
+			buffer[count++] = data[i];
+			if (data[i] == IAC) { buffer[count++] = IAC; }
+		}
+		buffer[count++] = IAC;
+		buffer[count++] = EOR;
+		this.send(buffer, count);
+	}
+
+	/*
+	 * 3270 level
+	 */
+
+	// send the inbound data stream for an AID key, returning the send time
+	private long sendAid(AidCode3270 aid) throws IOException {
+		int length = this.screen.buildInput(aid, this.inputBuffer);
+		this.writesReceived = 0;
+		this.kbdRestored = false;
+		this.aidSentNanos = System.nanoTime();
+		this.sendRecord(this.inputBuffer, length);
+		return this.aidSentNanos;
+	}
+
+	// is CMS idle after a command, waiting for an attention interrupt? (CMS does not read the
+	// console while idle on a 3270 console, so the MECAFF console remains in the Running state)
+	private boolean isCmsReady() {
+		String line = this.screen.getLastOutputLine();
+		return line != null && (line.startsWith("Ready;") || line.startsWith("Ready("));
+	}
+
+	// get the time without data from emx370 after which the console is ready for input
+	// in the current state, 0 if the console is not ready even if no more data arrives
+	private long getQuietNanosForReady() {
+		if (this.writesReceived == 0) { return 0; }
+		String status = this.screen.getConsoleStatus();
+		if (status == null) {
+			return (this.kbdRestored) ? this.settleNanos : 0; // fullscreen screen
+		}
+		if (Screen3270.STATUS_RUNNING.equals(status)) {
+			return this.idleNanos; // a command without Ready message
+		}
+		return 0;
+	}
+
+	// wait until the console is ready for input, recording the response time if 'verb' is given
+	private void awaitReady(long start, String verb) throws IOException {
+		long deadline = start + this.timeoutNanos;
+		while(true) {
+			long quietNanos = this.getQuietNanosForReady();
+			long waitUntil = (quietNanos > 0) ? Math.min(deadline, this.lastReceivedNanos + quietNanos) : deadline;
+			if (!this.receive(waitUntil)) {
+				if (quietNanos > 0 && System.nanoTime() - this.lastReceivedNanos >= quietNanos) {
+					break; // no more output
+				}
+				throw new IOException("timed out waiting for the console to be ready");
+			}
+			if (this.writesReceived == 0) { continue; }
+			String status = this.screen.getConsoleStatus();
+			if (Screen3270.STATUS_MORE.equals(status)) {
+				this.sendAid(AidCode3270.Enter);
+			} else if (Screen3270.STATUS_RUNNING.equals(status)) {
+				if (this.isCmsReady()) { break; }
+			} else if (status != null) {
+				break; // VM read, CP read, Enter pwd
+			}
+		}
+		if (verb != null) {
+			this.stats.ready(KIND, verb, this.lastReceivedNanos - start);
+		}
+	}
+
+	private void typeText(String text) throws IOException {
+		if (text.length() > 0 && !this.screen.type(text)) {
+			throw new IOException("cursor not in an input field for: " + text);
+		}
+	}
+
+	@Override
+	protected void connect() throws IOException {
+		this.awaitReady(System.nanoTime(), null);
+	}
+
+	@Override
+	protected void enter(String line, String verb) throws IOException {
+		this.typeText(line);
+		this.awaitReady(this.sendAid(AidCode3270.Enter), verb);
+	}
+
+	@Override
+	protected void type(String text) throws IOException {
+		this.typeText(text);
+	}
+
+	@Override
+	protected void pressKey(String key) throws IOException {
+		AidCode3270 aid;
+		try {
+			if (key.equals("ENTER")) {
+				aid = AidCode3270.Enter;
+			} else if (key.equals("CLEAR")) {
+				aid = AidCode3270.Clear;
+			} else if (key.matches("P[FA][0-9]{1,2}")) {
+				aid = AidCode3270.valueOf(String.format("%s%02d", key.substring(0, 2), Integer.parseInt(key.substring(2))));
+			} else {
+				throw new IllegalArgumentException();
+			}
+		} catch(IllegalArgumentException e) {
+			throw new IOException("invalid key name: " + key);
+		}
+		this.awaitReady(this.sendAid(aid), key);
+	}
+
+	@Override
+	protected void moveCursor(Workload.Action how, int arg1, int arg2) {
+		if (how == Workload.Action.TAB) {
+			for (int i = 0; i < arg1; i++) { this.screen.tab(); }
+		} else if (how == Workload.Action.HOME) {
+			this.screen.home();
+		} else {
+			this.screen.moveCursor(arg1, arg2);
+		}
+	}
+
+	@Override
+	protected void waitFor(String text) throws IOException {
+		long deadline = System.nanoTime() + this.timeoutNanos;
+		while (!this.screen.contains(text)) {
+			if (!this.receive(deadline)) {
+				throw new IOException("timed out waiting for: " + text);
+			}
+		}
+	}
+
+	@Override
+	protected boolean isVmRead() {
+		return !Screen3270.STATUS_CP_READ.equals(this.screen.getConsoleStatus());
+	}
+}
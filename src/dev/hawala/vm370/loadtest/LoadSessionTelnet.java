@@ -0,0 +1,171 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.loadtest;
+
+import java.io.IOException;
+
+/**
+ * Load test session using a plain telnet connection (3215 console in emx370).
+ *
+ * <p>
+ * The session refuses the terminal type negotiation started by emx370, so a 3215
+ * console is created for the connection. Input is typed character by character,
+ * each waiting for the echo (recorded as keystroke response time), and the console
+ * is ready when the output ends with one of the 3215 console prompts.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ *
+ */
+public class LoadSessionTelnet extends LoadSession {
+
+	private static final String KIND = "telnet";
+
+	private static final String PROMPT_CP_READ = "CP read > ";
+	private static final String PROMPT_VM_READ = "VM read > ";
+	private static final String PROMPT_PW_READ = "PWDread > ";
+
+	private static final int MAX_OUTPUT_KEPT = 65536;
+
+	private static final byte[] LINE_END = { (byte)0x0D, (byte)0x0A };
+
+	// the output received since the last Enter
+	private final StringBuilder output = new StringBuilder();
+
+	// the number of data bytes received so far
+	private long receivedCount = 0;
+
+	// the last prompt found at the end of the output
+	private String lastPrompt = null;
+
+	/**
+	 * Construct a telnet session.
+	 * @see LoadSession#LoadSession(int, String, String, int, Workload, int, long, long, LoadStatistics)
+	 */
+	public LoadSessionTelnet(int sessionNo, String userName, String host, int port,
+			Workload workload, int loops, long thinkMs, long timeoutMs, LoadStatistics stats) {
+		super(sessionNo, userName, host, port, workload, loops, thinkMs, timeoutMs, stats);
+	}
+
+	@Override
+	public String getKind() {
+		return KIND;
+	}
+
+	// refusing the terminal type lets emx370 fall back to a 3215 console
+	@Override
+	protected void processOption(byte command, byte option) throws IOException {
+		this.refuseOption(command, option);
+	}
+
+	@Override
+	protected void processSubnegotiation(byte[] data) throws IOException {
+		// not expected, as all options are refused
+	}
+
+	@Override
+	protected void processData(byte b) throws IOException {
+		this.receivedCount++;
+		this.output.append((char)(b & 0xFF));
+		if (this.output.length() > MAX_OUTPUT_KEPT) {
+			this.output.delete(0, MAX_OUTPUT_KEPT / 2);
+		}
+	}
+
+	// is the output ending with a prompt for input?
+	private boolean isPrompting() {
+		for (String prompt : new String[] { PROMPT_CP_READ, PROMPT_VM_READ, PROMPT_PW_READ }) {
+			int promptStart = this.output.length() - prompt.length();
+			if (promptStart >= 0 && this.output.indexOf(prompt, promptStart) == promptStart) {
+				this.lastPrompt = prompt;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// wait for the console to prompt for input
+	private void awaitPrompt(long deadline) throws IOException {
+		while (!this.isPrompting()) {
+			if (!this.receive(deadline)) {
+				throw new IOException("timed out waiting for a prompt");
+			}
+		}
+	}
+
+	// send bytes and wait for the first response byte, returning the send time
+	private long sendKeystroke(byte[] bytes, int count) throws IOException {
+		long before = this.receivedCount;
+		long start = System.nanoTime();
+		this.send(bytes, count);
+		long deadline = start + this.timeoutNanos;
+		while (this.receivedCount == before) {
+			if (!this.receive(deadline)) {
+				throw new IOException("timed out waiting for the echo");
+			}
+		}
+		this.stats.keystroke(KIND, this.lastReceivedNanos - start);
+		return start;
+	}
+
+	@Override
+	protected void connect() throws IOException {
+		this.awaitPrompt(System.nanoTime() + this.timeoutNanos);
+	}
+
+	@Override
+	protected void enter(String line, String verb) throws IOException {
+		this.output.setLength(0);
+		this.type(line);
+		long start = this.sendKeystroke(LINE_END, LINE_END.length);
+		this.awaitPrompt(start + this.timeoutNanos);
+		this.stats.ready(KIND, verb, this.lastReceivedNanos - start);
+	}
+
+	@Override
+	protected void type(String text) throws IOException {
+		byte[] key = new byte[1];
+		for (int i = 0; i < text.length(); i++) {
+			key[0] = (byte)text.charAt(i);
+			this.sendKeystroke(key, 1);
+		}
+	}
+
+	// a 3215 console has no keys beyond Enter
+	@Override
+	protected void pressKey(String key) throws IOException {
+		if (key.equals("ENTER")) {
+			this.enter("", key);
+		}
+	}
+
+	@Override
+	protected void moveCursor(Workload.Action how, int arg1, int arg2) {
+		// no cursor on a 3215 console
+	}
+
+	@Override
+	protected void waitFor(String text) throws IOException {
+		long deadline = System.nanoTime() + this.timeoutNanos;
+		while (this.output.indexOf(text) < 0) {
+			if (!this.receive(deadline)) {
+				throw new IOException("timed out waiting for: " + text);
+			}
+		}
+	}
+
+	@Override
+	protected boolean isVmRead() {
+		return !PROMPT_CP_READ.equals(this.lastPrompt);
+	}
+}
@@ -0,0 +1,117 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.loadtest;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Response times and counters collected by all sessions of a load test.
+ *
+ * <p>
+ * For each session kind ({@code tn3270} resp. {@code telnet}), two response times
+ * are recorded:
+ * </p>
+ * <ul>
+ * <li><i>keystroke</i>: the time from sending a key (an AID for 3270, a single
+ * character or the line end for telnet) until the first response from emx370
+ * arrives,</li>
+ * <li><i>ready</i>: the time from pressing Enter (or a PF/PA key) until the console
+ * is ready for the next input.</li>
+ * </ul>
+ * <p>
+ * The ready times are additionally recorded per command verb (the first word of
+ * the input line resp. the key name).
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ *
+ */
+public class LoadStatistics {
+
+	private final Map<String,LatencyStats> keystrokes = new TreeMap<String,LatencyStats>();
+	private final Map<String,LatencyStats> readies = new TreeMap<String,LatencyStats>();
+	private final Map<String,LatencyStats> commands = new TreeMap<String,LatencyStats>();
+
+	private final AtomicInteger steps = new AtomicInteger();
+
+	private long startNanos = System.nanoTime();
+	private long endNanos = 0;
+
+	private synchronized LatencyStats get(Map<String,LatencyStats> map, String name) {
+		LatencyStats stats = map.get(name);
+		if (stats == null) {
+			stats = new LatencyStats(name);
+			map.put(name, stats);
+		}
+		return stats;
+	}
+
+	/**
+	 * Record the response time for a single key stroke.
+	 * @param kind the session kind.
+	 * @param nanos the time until the first response.
+	 */
+	public void keystroke(String kind, long nanos) {
+		this.get(this.keystrokes, kind + " keystroke").add(nanos);
+	}
+
+	/**
+	 * Record the response time until the console is ready again.
+	 * @param kind the session kind.
+	 * @param verb the command verb or key name.
+	 * @param nanos the time until ready for input.
+	 */
+	public void ready(String kind, String verb, long nanos) {
+		this.get(this.readies, kind + " ready").add(nanos);
+		this.get(this.commands, verb).add(nanos);
+	}
+
+	/**
+	 * Count a workload step done.
+	 */
+	public void stepDone() {
+		this.steps.incrementAndGet();
+	}
+
+	/**
+	 * Restart the measurement of the test duration (when the first session starts).
+	 */
+	public synchronized void start() {
+		this.startNanos = System.nanoTime();
+	}
+
+	/**
+	 * End the measurement of the test duration (when all sessions ended).
+	 */
+	public synchronized void stop() {
+		this.endNanos = System.nanoTime();
+	}
+
+	/**
+	 * Write the response time percentiles.
+	 * @param ps the target stream for the report.
+	 */
+	public synchronized void report(PrintStream ps) {
+		long end = (this.endNanos != 0) ? this.endNanos : System.nanoTime();
+		ps.printf("## %d workload steps done in %.1f seconds\n", this.steps.get(), (end - this.startNanos) / 1000000000.0);
+		ps.println(LatencyStats.formatHeader());
+		for (LatencyStats stats : this.keystrokes.values()) { ps.println(stats.formatLine()); }
+		for (LatencyStats stats : this.readies.values()) { ps.println(stats.formatLine()); }
+		if (this.commands.isEmpty()) { return; }
+		ps.println("## ready response times per command:");
+		for (LatencyStats stats : this.commands.values()) { ps.println(stats.formatLine()); }
+	}
+}
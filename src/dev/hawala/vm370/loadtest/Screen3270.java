@@ -0,0 +1,439 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.loadtest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import dev.hawala.vm370.ebcdic.EbcdicTranscoder;
+import dev.hawala.vm370.stream3270.AidCode3270;
+import dev.hawala.vm370.stream3270.Ebcdic6BitEncoding;
+import dev.hawala.vm370.stream3270.OrderCode3270;
+
+/**
+ * Minimal 3270 screen buffer for the load test, interpreting the write commands
+ * and orders sent by emx370 and creating the inbound data stream for an AID key
+ * like a terminal would (i.e. with the cursor position and the modified fields).
+ *
+ * <p>
+ * Only what is needed to replay workloads is supported: characters and field
+ * attributes are tracked, but extended attributes (colors, highlighting) are
+ * ignored.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ *
+ */
+public class Screen3270 {
+
+	// field attribute bits
+	private static final int ATTR_PROTECTED = 0x20;
+	private static final int ATTR_MDT = 0x01;
+
+	// WCC bits
+	private static final int WCC_KBD_RESTORE = 0x02;
+	private static final int WCC_RESET_MDT = 0x01;
+
+	// extended attribute type for the basic field attribute in SFE/MF
+	private static final byte XA_3270 = (byte)0xC0;
+
+	// the Graphic Escape order
+	private static final byte GE = (byte)0x08;
+
+	// the status texts of the MECAFF console at the start of the input line
+	public static final String STATUS_RUNNING = "  Running";
+	public static final String STATUS_VM_READ = "  VM read";
+	public static final String STATUS_CP_READ = "  CP read";
+	public static final String STATUS_MORE = "  More...";
+	public static final String STATUS_PW_READ = "Enter pwd";
+	private static final String[] STATUSES = { STATUS_RUNNING, STATUS_VM_READ, STATUS_CP_READ, STATUS_MORE, STATUS_PW_READ };
+	private static final String STATUS_INPUT_INTRO = " >>";
+
+	private final int altRows;
+	private final int altCols;
+
+	private int rows;
+	private int cols;
+	private int size;
+
+	// the character at each position (0x00 at field attribute positions)
+	private byte[] chars;
+
+	// the field attribute at each position, -1 if the position is not a field attribute
+	private int[] attrs;
+
+	private int cursor = 0;
+
+	/**
+	 * Construct the screen buffer for a terminal model.
+	 * @param altRows the rows of the alternate screen size.
+	 * @param altCols the columns of the alternate screen size.
+	 */
+	public Screen3270(int altRows, int altCols) {
+		this.altRows = altRows;
+		this.altCols = altCols;
+		this.erase(24, 80);
+	}
+
+	private void erase(int rows, int cols) {
+		this.rows = rows;
+		this.cols = cols;
+		this.size = rows * cols;
+		this.chars = new byte[this.size];
+		this.attrs = new int[this.size];
+		Arrays.fill(this.attrs, -1);
+		this.cursor = 0;
+	}
+
+	private int next(int pos) {
+		return (pos + 1) % this.size;
+	}
+
+	private int decodeAddress(byte b0, byte b1) {
+		int address = ((b0 & 0xC0) == 0)
+				? ((b0 & 0x3F) << 8) | (b1 & 0xFF)
+				: ((b0 & 0x3F) << 6) | (b1 & 0x3F);
+		return address % this.size;
+	}
+
+	private int encodeAddress(byte[] buffer, int offset, int address) {
+		buffer[offset] = Ebcdic6BitEncoding.encode6BitValue((byte)(address >> 6));
+		buffer[offset + 1] = Ebcdic6BitEncoding.encode6BitValue((byte)address);
+		return offset + 2;
+	}
+
+	// get the position of the field attribute for the position or -1 if the screen is unformatted
+	private int getFieldStart(int pos) {
+		for (int i = 0; i < this.size; i++) {
+			if (this.attrs[pos] >= 0) { return pos; }
+			pos = (pos == 0) ? this.size - 1 : pos - 1;
+		}
+		return -1;
+	}
+
+	private boolean isUnprotectedField(int pos) {
+		return this.attrs[pos] >= 0 && (this.attrs[pos] & ATTR_PROTECTED) == 0;
+	}
+
+	/*
+	 * outbound data stream
+	 */
+
+	/**
+	 * Process a write command (W, EW, EWA, EAU) received from the host, see {@link OrderCode3270}
+	 * for the orders interpreted.
+	 * @param record the record data (without telnet escapes).
+	 * @param length the length of the record.
+	 * @return {@code true} if the command restored the keyboard.
+	 */
+	public boolean processRecord(byte[] record, int length) {
+		if (length < 1) { return false; }
+		switch(record[0]) {
+		case (byte)0xF1: // W
+		case (byte)0x01:
+			break;
+		case (byte)0xF5: // EW
+		case (byte)0x05:
+			this.erase(24, 80);
+			break;
+		case (byte)0x7E: // EWA
+		case (byte)0x0D:
+			this.erase(this.altRows, this.altCols);
+			break;
+		case (byte)0x6F: // EAU
+		case (byte)0x0F:
+			this.eraseAllUnprotected();
+			return true;
+		default:
+			return false;
+		}
+		if (length < 2) { return false; }
+		int wcc = record[1] & 0xFF;
+		if ((wcc & WCC_RESET_MDT) != 0) {
+			for (int i = 0; i < this.size; i++) {
+				if (this.attrs[i] >= 0) { this.attrs[i] &= ~ATTR_MDT; }
+			}
+		}
+		this.processOrders(record, 2, length);
+		return (wcc & WCC_KBD_RESTORE) != 0;
+	}
+
+	private void eraseAllUnprotected() {
+		boolean unprotected = false;
+		for (int i = 0; i < this.size; i++) {
+			if (this.attrs[i] >= 0) {
+				unprotected = (this.attrs[i] & ATTR_PROTECTED) == 0;
+				this.attrs[i] &= ~ATTR_MDT;
+			} else if (unprotected) {
+				this.chars[i] = 0x00;
+			}
+		}
+		this.home();
+	}
+
+	private void processOrders(byte[] record, int offset, int length) {
+		int pos = this.cursor;
+		int i = offset;
+		while (i < length) {
+			byte b = record[i++];
+			switch(b) {
+			case (byte)0x11: // SBA
+				if (i + 2 > length) { return; }
+				pos = this.decodeAddress(record[i], record[i + 1]);
+				i += 2;
+				break;
+			case (byte)0x1D: // SF
+				if (i + 1 > length) { return; }
+				this.setAttribute(pos, record[i++] & 0xFF);
+				pos = this.next(pos);
+				break;
+			case (byte)0x29: // SFE
+			case (byte)0x2C: // MF
+				if (i + 1 > length) { return; }
+				boolean isSFE = (b == (byte)0x29);
+				int attr = (isSFE || this.attrs[pos] < 0) ? 0 : this.attrs[pos];
+				int pairs = record[i++] & 0xFF;
+				for (int p = 0; p < pairs && i + 2 <= length; p++, i += 2) {
+					if (record[i] == XA_3270) { attr = record[i + 1] & 0xFF; }
+				}
+				if (isSFE || this.attrs[pos] >= 0) { this.setAttribute(pos, attr); }
+				pos = this.next(pos);
+				break;
+			case (byte)0x28: // SA
+				i += 2;
+				break;
+			case (byte)0x13: // IC
+				this.cursor = pos;
+				break;
+			case (byte)0x05: // PT
+				pos = this.nextUnprotected(pos);
+				break;
+			case (byte)0x3C: // RA
+				if (i + 3 > length) { return; }
+				int to = this.decodeAddress(record[i], record[i + 1]);
+				byte c = record[i + 2];
+				i += 3;
+				if (c == GE && i < length) { c = record[i++]; }
+				do {
+					this.setChar(pos, c);
+					pos = this.next(pos);
+				} while (pos != to);
+				break;
+			case (byte)0x12: // EUA
+				if (i + 2 > length) { return; }
+				int until = this.decodeAddress(record[i], record[i + 1]);
+				i += 2;
+				do {
+					int fieldStart = this.getFieldStart(pos);
+					if (this.attrs[pos] < 0 && (fieldStart < 0 || this.isUnprotectedField(fieldStart))) {
+						this.chars[pos] = 0x00;
+					}
+					pos = this.next(pos);
+				} while (pos != until);
+				break;
+			default:
+				if (b == GE && i < length) { b = record[i++]; }
+				this.setChar(pos, b);
+				pos = this.next(pos);
+				break;
+			}
+		}
+	}
+
+	private void setAttribute(int pos, int attr) {
+		this.attrs[pos] = attr;
+		this.chars[pos] = 0x00;
+	}
+
+	private void setChar(int pos, byte c) {
+		this.attrs[pos] = -1;
+		this.chars[pos] = c;
+	}
+
+	/*
+	 * keyboard
+	 */
+
+	/**
+	 * Type a text at the cursor position, erasing the rest of the field like
+	 * with the Erase-EOF key before typing.
+	 * @param text the text to type.
+	 * @return {@code false} if the cursor is not in an unprotected field.
+	 */
+	public boolean type(String text) {
+		int fieldStart = this.getFieldStart(this.cursor);
+		if (this.attrs[this.cursor] >= 0 || (fieldStart >= 0 && !this.isUnprotectedField(fieldStart))) {
+			return false;
+		}
+		byte[] ebcdic = new byte[text.length()];
+		for (int i = 0; i < ebcdic.length; i++) {
+			ebcdic[i] = (byte)text.charAt(i);
+		}
+		EbcdicTranscoder.getDefault().toEbcdic(ebcdic, 0, ebcdic.length, ebcdic, 0);
+
+		int pos = this.cursor;
+		for (int i = 0; i < this.size && this.attrs[pos] < 0; i++) {
+			this.chars[pos] = (i < ebcdic.length) ? ebcdic[i] : 0x00;
+			pos = this.next(pos);
+			if (i < ebcdic.length) { this.cursor = pos; }
+		}
+		if (fieldStart >= 0) { this.attrs[fieldStart] |= ATTR_MDT; }
+		return true;
+	}
+
+	// get the first position of the next unprotected field after 'pos' (0 if none)
+	private int nextUnprotected(int pos) {
+		for (int i = 0; i < this.size; i++) {
+			pos = this.next(pos);
+			if (this.isUnprotectedField(pos) && this.attrs[this.next(pos)] < 0) {
+				return this.next(pos);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Move the cursor to the next unprotected field (Tab key).
+	 */
+	public void tab() {
+		this.cursor = this.nextUnprotected(this.cursor);
+	}
+
+	/**
+	 * Move the cursor to the first unprotected field (Home key).
+	 */
+	public void home() {
+		this.cursor = this.nextUnprotected(this.size - 1);
+	}
+
+	/**
+	 * Move the cursor to a screen position.
+	 * @param row the row (1-based).
+	 * @param col the column (1-based).
+	 */
+	public void moveCursor(int row, int col) {
+		this.cursor = Math.floorMod((row - 1) * this.cols + (col - 1), this.size);
+	}
+
+	/**
+	 * Create the inbound data stream for an AID key: the AID alone for short read
+	 * keys (PA, Clear), else with the cursor address and the modified fields.
+	 * @param aid the AID of the key pressed.
+	 * @param buffer the target for the data stream, must be at least 2 times the screen size.
+	 * @return the length of the data stream (without telnet escapes).
+	 */
+	public int buildInput(AidCode3270 aid, byte[] buffer) {
+		buffer[0] = aid.getCode();
+		if (aid == AidCode3270.PA01 || aid == AidCode3270.PA02 || aid == AidCode3270.PA03) {
+			return 1;
+		}
+		if (aid == AidCode3270.Clear) {
+			this.erase(24, 80);
+			return 1;
+		}
+		int length = this.encodeAddress(buffer, 1, this.cursor);
+		if (this.getFieldStart(0) < 0) {
+			// unformatted screen: all non-null characters
+			length = this.appendChars(buffer, length, 0, this.size);
+			return length;
+		}
+		for (int pos = 0; pos < this.size; pos++) {
+			if (this.attrs[pos] < 0 || (this.attrs[pos] & ATTR_MDT) == 0) { continue; }
+			buffer[length++] = OrderCode3270.SBA.getCode();
+			length = this.encodeAddress(buffer, length, this.next(pos));
+			length = this.appendChars(buffer, length, this.next(pos), this.size);
+		}
+		return length;
+	}
+
+	// append the non-null characters starting at 'from' up to the next field attribute
+	private int appendChars(byte[] buffer, int length, int from, int max) {
+		int pos = from;
+		for (int i = 0; i < max && this.attrs[pos] < 0; i++) {
+			if (this.chars[pos] != 0x00) { buffer[length++] = this.chars[pos]; }
+			pos = this.next(pos);
+		}
+		return length;
+	}
+
+	/*
+	 * screen content
+	 */
+
+	/**
+	 * @return the number of positions on the screen.
+	 */
+	public int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * Get the text of a screen row, with field attributes and null characters shown as blanks.
+	 * @param row the row (0-based).
+	 * @return the row text.
+	 */
+	public String getRow(int row) {
+		byte[] ascii = new byte[this.cols];
+		EbcdicTranscoder.getDefault().toAscii(this.chars, row * this.cols, this.cols, ascii, 0);
+		for (int i = 0; i < this.cols; i++) {
+			byte c = this.chars[row * this.cols + i];
+			if (c == 0x00 || this.attrs[row * this.cols + i] >= 0) { ascii[i] = (byte)' '; }
+		}
+		return new String(ascii, 0, ascii.length, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @param text the text to look for.
+	 * @return is the text displayed on the screen (in one row)?
+	 */
+	public boolean contains(String text) {
+		for (int row = 0; row < this.rows; row++) {
+			if (this.getRow(row).contains(text)) { return true; }
+		}
+		return false;
+	}
+
+	// get the row with the status of the MECAFF console or -1 if not the MECAFF console screen
+	private int getStatusRow() {
+		for (int row = this.rows - 1; row >= 0; row--) {
+			String line = this.getRow(row);
+			for (String status : STATUSES) {
+				if (line.startsWith(status + STATUS_INPUT_INTRO)) { return row; }
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the status of the MECAFF console shown at the start of its input line.
+	 * @return one of the {@code STATUS_*} texts or {@code null} if the screen is not
+	 *   the MECAFF console (i.e. a fullscreen program's screen).
+	 */
+	public String getConsoleStatus() {
+		int statusRow = this.getStatusRow();
+		return (statusRow < 0) ? null : this.getRow(statusRow).substring(0, STATUS_RUNNING.length());
+	}
+
+	/**
+	 * Get the newest line in the output area of the MECAFF console.
+	 * @return the last non-blank line above the input line or {@code null} if the output area
+	 *   is empty or the screen is not the MECAFF console.
+	 */
+	public String getLastOutputLine() {
+		for (int row = this.getStatusRow() - 1; row >= 0; row--) {
+			String line = this.getRow(row);
+			if (line.trim().length() > 0) { return line; }
+		}
+		return null;
+	}
+}
@@ -0,0 +1,203 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.loadtest;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Workload script replayed by each session of a load test.
+ *
+ * <p>
+ * A workload script has one step per line, empty lines and lines starting with
+ * {@code #} are ignored, the keywords are case-insensitive:
+ * </p>
+ * <ul>
+ * <li>{@code ENTER [text]}: type the text into the input field at the cursor (3270)
+ * resp. character by character (telnet) and press Enter, then wait until the console
+ * is ready for the next input,</li>
+ * <li>{@code TYPE text}: type the text without pressing Enter,</li>
+ * <li>{@code KEY name}: press the key {@code ENTER}, {@code PF1}..{@code PF24},
+ * {@code PA1}..{@code PA3} or {@code CLEAR} and wait until ready (3270 only except ENTER),</li>
+ * <li>{@code TAB [count]}, {@code HOME}, {@code CURSOR row col}: move the cursor to the next
+ * unprotected field, the first unprotected field resp. the given position (3270 only),</li>
+ * <li>{@code WAIT text}: wait until the text is on the screen resp. was received since the
+ * last input,</li>
+ * <li>{@code THINK ms}: pause for the given milliseconds (in addition to the think time
+ * between all steps).</li>
+ * </ul>
+ * <p>
+ * In all texts, {@code ${user}} resp. {@code ${USER}} are replaced by the user name of
+ * the session in lower resp. upper case, and {@code ${n}} by the session number.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ *
+ */
+public class Workload {
+
+	/**
+	 * The actions of workload steps.
+	 */
+	public enum Action { ENTER, TYPE, KEY, TAB, HOME, CURSOR, WAIT, THINK }
+
+	/**
+	 * A single step of the workload.
+	 */
+	public static class Step {
+
+		private final Action action;
+		private final String text;
+		private final int arg1;
+		private final int arg2;
+
+		private Step(Action action, String text, int arg1, int arg2) {
+			this.action = action;
+			this.text = text;
+			this.arg1 = arg1;
+			this.arg2 = arg2;
+		}
+
+		/**
+		 * @return the action of the step.
+		 */
+		public Action getAction() { return this.action; }
+
+		/**
+		 * Get the text of the step with the placeholders substituted for a session.
+		 * @param user the user name of the session.
+		 * @param sessionNo the number of the session.
+		 * @return the text or key name of the step.
+		 */
+		public String getText(String user, int sessionNo) {
+			return substitute(this.text, user, sessionNo);
+		}
+
+		/**
+		 * @return the (first) numeric argument of the step (count, milliseconds, row).
+		 */
+		public int getArg1() { return this.arg1; }
+
+		/**
+		 * @return the second numeric argument of the step (column).
+		 */
+		public int getArg2() { return this.arg2; }
+	}
+
+	private final List<Step> steps;
+
+	private Workload(List<Step> steps) {
+		this.steps = Collections.unmodifiableList(steps);
+	}
+
+	/**
+	 * @return the steps of the workload.
+	 */
+	public List<Step> getSteps() {
+		return this.steps;
+	}
+
+	/**
+	 * Replace the placeholders in a text (workload step or logon script template).
+	 * @param text the text to substitute.
+	 * @param user the user name of the session.
+	 * @param sessionNo the number of the session.
+	 * @return the text with the placeholders replaced.
+	 */
+	public static String substitute(String text, String user, int sessionNo) {
+		if (text.indexOf("${") < 0) { return text; }
+		return text
+				.replace("${user}", user.toLowerCase())
+				.replace("${USER}", user.toUpperCase())
+				.replace("${n}", Integer.toString(sessionNo));
+	}
+
+	/**
+	 * Load a workload script.
+	 * @param fileName the name of the workload script.
+	 * @return the workload.
+	 * @throws IOException if the file cannot be read or has invalid lines.
+	 */
+	public static Workload load(String fileName) throws IOException {
+		try (Reader reader = new FileReader(fileName)) {
+			return parse(reader);
+		}
+	}
+
+	/**
+	 * Parse a workload script.
+	 * @param source the workload script text.
+	 * @return the workload.
+	 * @throws IOException if the source cannot be read or has invalid lines.
+	 */
+	public static Workload parse(Reader source) throws IOException {
+		BufferedReader br = new BufferedReader(source);
+		List<Step> steps = new ArrayList<Step>();
+		String line;
+		int lineNo = 0;
+		while((line = br.readLine()) != null) {
+			lineNo++;
+			String trimmed = line.trim();
+			if (trimmed.length() == 0 || trimmed.startsWith("#")) { continue; }
+			int blankPos = trimmed.indexOf(' ');
+			String keyword = (blankPos < 0) ? trimmed : trimmed.substring(0, blankPos);
+			String text = (blankPos < 0) ? "" : trimmed.substring(blankPos + 1);
+			Action action;
+			try {
+				action = Action.valueOf(keyword.toUpperCase());
+			} catch(IllegalArgumentException e) {
+				throw new IOException(String.format("workload line %d: invalid action '%s'", lineNo, keyword));
+			}
+			steps.add(parseStep(action, text, lineNo));
+		}
+		if (steps.isEmpty()) {
+			throw new IOException("workload has no steps");
+		}
+		return new Workload(steps);
+	}
+
+	private static Step parseStep(Action action, String text, int lineNo) throws IOException {
+		String[] args = text.trim().split(" +");
+		try {
+			switch(action) {
+			case ENTER:
+				return new Step(action, text, 0, 0);
+			case TYPE:
+			case WAIT:
+				if (text.length() == 0) { break; }
+				return new Step(action, text, 0, 0);
+			case KEY:
+				if (args.length != 1 || args[0].length() == 0) { break; }
+				return new Step(action, args[0].toUpperCase(), 0, 0);
+			case TAB:
+				return new Step(action, "", (args[0].length() == 0) ? 1 : Integer.parseInt(args[0]), 0);
+			case HOME:
+				return new Step(action, "", 0, 0);
+			case CURSOR:
+				if (args.length != 2) { break; }
+				return new Step(action, "", Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+			case THINK:
+				if (args.length != 1) { break; }
+				return new Step(action, "", Integer.parseInt(args[0]), 0);
+			}
+		} catch(NumberFormatException e) {
+			// handled below
+		}
+		throw new IOException(String.format("workload line %d: invalid arguments for %s", lineNo, action));
+	}
+}
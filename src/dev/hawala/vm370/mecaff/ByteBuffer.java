@@ -41,6 +41,9 @@ public class ByteBuffer {
 	
 	protected int nextReadPos = 0;
 	
+	// the reused buffer for telnet-escaping the content when writing
+	private byte[] escapeBuffer = null;
+	
 	/**
 	 * Construct the instance with the given initial capacity and growing sizes.
 	 * @param capacity initial size of the buffer in bytes.
@@ -331,6 +334,21 @@ public class ByteBuffer {
 		return this;
 	}
 	
+	/**
+	 * Write the current content of the buffer followed by a trailer (e.g. the telnet
+	 * end-of-record sequence) to an output stream with a single write.
+	 * @param os the output stream to write to.
+	 * @param asTelnet if <code>true</code>, bytes with code 0xFF in the content are escaped
+	 * for the telnet (raw) transport encoding (the trailer is written unchanged). 
+	 * @param trailer the bytes to write after the content.
+	 * @return this instance for function call chaining.
+	 * @throws IOException
+	 */
+	public ByteBuffer writeTo(OutputStream os, boolean asTelnet, byte[] trailer) throws IOException {
+		this.writeChunkTo(os, 0, this.length, asTelnet, trailer);
+		return this;
+	}
+	
 	/**
 	 * Append the current content of the buffer to a byte array.
 	 * @param to the byte array to append to.
@@ -355,6 +373,12 @@ public class ByteBuffer {
 	 * @throws IOException
 	 */
 	public ByteBuffer writeChunkTo(OutputStream os, int fromOffset, int count, boolean asTelnet) throws IOException {
+		return this.writeChunkTo(os, fromOffset, count, asTelnet, null);
+	}
+	
+	// write a subset of the content and the optional trailer with a single write, escaping
+	// into the reused escape buffer if 0xFF bytes are present or a trailer must be added
+	private ByteBuffer writeChunkTo(OutputStream os, int fromOffset, int count, boolean asTelnet, byte[] trailer) throws IOException {
 		if (fromOffset < 0) {
 			count -= fromOffset;
 			fromOffset = 0;
@@ -362,39 +386,48 @@ public class ByteBuffer {
 		if ((fromOffset + count) > this.length) {
 			count = this.length - fromOffset;
 		}
+		if (count < 0) { count = 0; }
+		int trailerLength = (trailer != null) ? trailer.length : 0;
 		
-		if (count < 1) { return this; }
+		if (count + trailerLength < 1) { return this; }
 		
+		int iacCount = 0;
 		if (asTelnet) {
-			int currOffset = fromOffset;
-			int currCount = 0;
-			int currByte = currOffset;
-			while(count > 0) {
-				byte b = this.buffer[currByte];
-				if (b == (byte)0xFF) {
-					if (currCount > 0) {
-						os.write(this.buffer, currOffset, currCount);
-					}
-					os.write((byte)0xFF);
-					os.write((byte)0xFF);
-					currOffset = currByte + 1;
-					currCount = 0;
-				} else {
-					currCount++;
-				}
-				currByte++;
-				count--;
-			}
-			if (currCount > 0) {
-				os.write(this.buffer, currOffset, currCount);
+			for (int i = fromOffset; i < fromOffset + count; i++) {
+				if (this.buffer[i] == (byte)0xFF) { iacCount++; }
 			}
-		} else {
+		}
+		
+		if (iacCount == 0 && trailerLength == 0) {
 			/*
 			String tmp = new String(this.buffer, fromOffset, count);
 			System.out.println("## writeChunkTo[ " + count + " ]( " + tmp + " )"); 
 			*/
 			os.write(this.buffer, fromOffset, count);
+			return this;
+		}
+		
+		int totalLength = count + iacCount + trailerLength;
+		if (this.escapeBuffer == null || this.escapeBuffer.length < totalLength) {
+			this.escapeBuffer = new byte[Math.max(totalLength, this.capacity)];
+		}
+		byte[] out = this.escapeBuffer;
+		int outPos = 0;
+		if (iacCount == 0) {
+			System.arraycopy(this.buffer, fromOffset, out, 0, count);
+			outPos = count;
+		} else {
+			for (int i = fromOffset; i < fromOffset + count; i++) {
+				byte b = this.buffer[i];
+				out[outPos++] = b;
+				if (b == (byte)0xFF) { out[outPos++] = b; }
+			}
+		}
+		if (trailerLength > 0) {
+			System.arraycopy(trailer, 0, out, outPos, trailerLength);
+			outPos += trailerLength;
 		}
+		os.write(out, 0, outPos);
 		return this;
 	}
 	
@@ -0,0 +1,41 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.mecaff;
+
+/**
+ * Interface of a terminal connection allowing a console to hold back its
+ * output while the terminal does not take the data already sent to it.
+ * 
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ */
+public interface IOutputBacklog {
+	
+	/**
+	 * Check if the data written to the connection but not yet taken by the
+	 * terminal reached the limit, so the console should hold back further output.
+	 * @return <code>true</code> if the console should hold back its output.
+	 */
+	public boolean isOutputBacklogged();
+	
+	/**
+	 * Set the listener to be notified when the backlog was drained after
+	 * <code>isOutputBacklogged()</code> returned <code>true</code>.
+	 * <p>
+	 * The listener may be invoked on the network thread, so it must not wait
+	 * for other activities.
+	 * </p>
+	 * @param listener the listener to notify.
+	 */
+	public void setOutputDrainedListener(Runnable listener);
+	
+}
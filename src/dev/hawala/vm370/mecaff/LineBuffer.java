@@ -1,6 +1,6 @@
 /*
 ** This file is part of the external MECAFF process implementation.
-** (MECAFF :: Multiline External Console And Fullscreen Facility 
+** (MECAFF :: Multiline External Console And Fullscreen Facility
 **            for VM/370 R6 SixPack 1.2)
 **
 ** This software is provided "as is" in the hope that it will be useful, with
@@ -14,40 +14,83 @@
 
 package dev.hawala.vm370.mecaff;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+import dev.hawala.vm370.Log;
 import dev.hawala.vm370.ebcdic.Ebcdic;
 import dev.hawala.vm370.ebcdic.EbcdicHandler;
 
 /**
- * Class for managing the lines displayed in the output area of a 
+ * Class for managing the lines displayed in the output area of a
  * <code>Vm3270Console</code>.
  * <p>
  * For each text line from the host, the line buffer manages the text content,
- * the display attribute (encoding the display information for the screen like 
+ * the display attribute (encoding the display information for the screen like
  * color or intensified) and the number of rows needed to display the line
  * on the temrinal's screen (e.g. 130 chars for the line on a 80 wide screen
- * gives 2 lines). 
- * 
+ * gives 2 lines).
+ * </p>
+ * <p>
+ * The texts of the lines are stored in a single circular byte arena, with the
+ * offset and the length/attribute of each line in parallel <code>int</code> arrays
+ * used as ring index. The arena grows up to a maximal size, after which the oldest
+ * lines are either dropped or, if enabled, spilled to a temporary file holding
+ * blocks of compressed lines, so the older history remains available for paging.
+ * The lines of the current page are accessed through a reusable {@link PageIterator}.
+ * </p>
+ *
  * @author Dr. Hans-Walter Latz, Berlin (Germany), 2011,2012
  */
 public class LineBuffer {
 
+	private static Log logger = Log.getLogger();
+
+	// initial sizes of the arena and the line index
+	private static final int InitialArenaSize = 4096;
+	private static final int InitialIndexSize = 256;
+
+	// number of lines in a compressed block of the spill file
+	private static final int SpillBlockLines = 256;
+
+	// min. number of dropped blocks at the start of the spill file before the file is compacted
+	private static final int MinDeadSpillBlocks = 64;
+
 	private final int colsInRow;
 	private final int rowsInPage;
 	private final int maxSize;
-	
+
 	private final int maxLineLength;
-	
-	private int currSize = 0;
-	private ArrayList<byte[]> lines = new ArrayList<byte[]>(); // the texts for the lines
-	private ArrayList<Byte> attrs = new ArrayList<Byte>();     // the attributes for the lines
-	private ArrayList<Integer> rows = new ArrayList<Integer>();// the number of display lines needed for each line
-	
+
+	private final int maxArenaSize;
+
+	private int currSize = 0; // number of lines in the buffer (spilled and in memory)
+	private int spillCount = 0; // number of oldest lines in the spill file
+
+	// the texts of the lines in memory, stored contiguously (a line never wraps at the arena end)
+	private byte[] arena = new byte[0];
+	private int arenaHead = 0; // start of the oldest line's text
+	private int arenaTail = 0; // where to put the text of the next line
+	private int arenaWrapEnd = 0; // end of the texts before the wrap to the arena start
+	private boolean arenaWrapped = false; // are the younger lines at the start of the arena?
+
+	// ring index of the lines in memory: offset resp. (length << 8 | attribute) of the text
+	private int[] lineOffsets = new int[0];
+	private int[] lineInfos = new int[0];
+	private int indexHead = 0; // ring position of the oldest line in memory
+	private int memCount = 0; // number of lines in memory
+
 	private int lastVisible = 0;
 	private int countVisible = 0;
 	private int rowsVisible = 0;
-	
+
+	// the page iterator (reused for all pages)
+	private final PageIterator pageIterator = new PageIterator();
+
 	/**
 	 * Construct this instance for the given geometry of the output area
 	 * on the screen and 65536 lines to keep in the line buffer.
@@ -57,56 +100,88 @@ public class LineBuffer {
 	public LineBuffer(int colsInRow, int rowsInPage) {
 		this(Integer.MAX_VALUE, colsInRow, rowsInPage);
 	}
-	
+
 	/**
 	 * Construct this instance for the given geometry of the output area
 	 * on the screen and the given number of lines to keep in the line buffer.
-	 * @param maxSize number of lines to keep in the line buffer. 
+	 * @param maxSize number of lines to keep in the line buffer.
 	 * @param colsInRow number of screen columns.
 	 * @param rowsInPage number of rows for the output area.
 	 */
 	public LineBuffer(int maxSize, int colsInRow, int rowsInPage) {
+		this(maxSize, colsInRow, rowsInPage, Integer.MAX_VALUE, false);
+	}
+
+	/**
+	 * Construct this instance for the given geometry of the output area
+	 * on the screen, the given number of lines to keep in the line buffer
+	 * and the given memory limit for the line texts.
+	 * @param maxSize number of lines to keep in the line buffer.
+	 * @param colsInRow number of screen columns.
+	 * @param rowsInPage number of rows for the output area.
+	 * @param maxArenaSize max. number of bytes for the line texts held in memory
+	 *   (adjusted to hold at least 3 pages).
+	 * @param spillHistory spill the lines not fitting into memory to a temporary file
+	 *   instead of dropping them?
+	 */
+	public LineBuffer(int maxSize, int colsInRow, int rowsInPage, int maxArenaSize, boolean spillHistory) {
 		if (maxSize < 1) { throw new IllegalArgumentException("LineBuffer must allow for min. 1 Line"); }
 		if (rowsInPage < 4) { throw new IllegalArgumentException("LineBuffer must allow for min. 4 Rows/Page"); }
-		
+
 		this.maxSize = Math.max(rowsInPage, maxSize);
 		this.colsInRow = Math.max(1, colsInRow);
 		this.rowsInPage = rowsInPage;
 		this.maxLineLength = this.colsInRow * this.rowsInPage;
+		this.maxArenaSize = Math.max(3 * this.maxLineLength, maxArenaSize);
+		this.spill = (spillHistory) ? new Spill() : null;
+	}
+
+	/**
+	 * Release the resources used for spilling the history, the line buffer
+	 * dropping the lines not fitting into memory from now on.
+	 */
+	public void close() {
+		if (this.spill != null) {
+			this.spill.close();
+			this.spill = null;
+		}
+		this.spillCount = 0;
+		this.currSize = this.memCount;
+		this.recomputeVisibleFrame();
 	}
-	
+
 	/**
 	 * Add a new line from a byte buffer with EBCDIC characters.
 	 * @param line the byte buffer containing the line text.
-	 * @param offset the start position for the line text in the buffer. 
+	 * @param offset the start position for the line text in the buffer.
 	 * @param count the length of the line text in the buffer.
 	 * @param flags the display flags to store for this line.
 	 * @return the number of screen lines needed to display the line content.
 	 */
 	public int append(byte[] line, int offset, int count, byte flags) {
 		if (this.currSize >= this.maxSize) {
-			this.lines.remove(0);
-			this.attrs.remove(0);
-			this.rows.remove(0);
-			this.currSize--;
+			this.dropOldest();
 		}
 		offset = Math.max(0, Math.min(line.length - 1, offset));
 		count = Math.min(this.maxLineLength, Math.max(0, Math.min(line.length - offset, count)));
-		byte[] tmp = new byte[count];
-		for (int i = 0; i < count; i++) { tmp[i] = line[offset + i]; } 
-		this.lines.add(tmp);
+
+		int textOffset = this.allocateText(count);
+		System.arraycopy(line, offset, this.arena, textOffset, count);
+		if (this.memCount >= this.lineOffsets.length) {
+			this.growIndex();
+		}
+		int pos = (this.indexHead + this.memCount) % this.lineOffsets.length;
+		this.lineOffsets[pos] = textOffset;
+		this.lineInfos[pos] = (count << 8) | (flags & 0xFF);
+		this.memCount++;
 		this.currSize++;
-		
-		int rows = ((count - 1) / this.colsInRow) + 1;
-		this.attrs.add(flags);
-		this.rows.add(rows);
-		
+
 		this.lastVisible = this.currSize + 2;
 		this.recomputeVisibleFrame();
-		
-		return rows;
+
+		return this.rowsFor(count);
 	}
-	
+
 	/**
 	 * Add a new line from a EBCDIC string.
 	 * @param ebcdicString string handler with the line's content.
@@ -116,7 +191,7 @@ public class LineBuffer {
 	public int append(EbcdicHandler ebcdicString, byte flags) {
 		return this.append(ebcdicString.getRawBytes(), 0, ebcdicString.getLength(), flags);
 	}
-	
+
 	/**
 	 * Add a new line from a Java (unicode) string.
 	 * @param unicodeString string with the line's content.
@@ -127,20 +202,25 @@ public class LineBuffer {
 		byte[] ebcdicChars = Ebcdic.toEbcdic(unicodeString);
 		return this.append(ebcdicChars, 0, ebcdicChars.length, flags);
 	}
-	
+
 	/**
 	 * Clear all lines and reset the line buffer states to empty.
 	 */
 	public void clear() {
-		this.lines.clear();
-		this.attrs.clear();
-		this.rows.clear();
+		this.arenaHead = 0;
+		this.arenaTail = 0;
+		this.arenaWrapEnd = 0;
+		this.arenaWrapped = false;
+		this.indexHead = 0;
+		this.memCount = 0;
+		if (this.spill != null) { this.spill.clear(); }
+		this.spillCount = 0;
 		this.currSize = 0;
 		this.lastVisible = 0;
 		this.countVisible = 0;
 		this.rowsVisible = 0;
 	}
-	
+
 	/**
 	 * Clear the lines above (before) the given number of lines.
 	 * @param keep the number of (youngest) lines not to delete.
@@ -151,18 +231,14 @@ public class LineBuffer {
 			this.recomputeVisibleFrame();
 			return;
 		}
-		
-		int toKeepFrom = this.attrs.size() - keep;
-		int toKeepTo = toKeepFrom + keep;
-		
-		this.lines = new ArrayList<byte[]>(this.lines.subList(toKeepFrom, toKeepTo));
-		this.attrs = new ArrayList<Byte>(this.attrs.subList(toKeepFrom, toKeepTo));
-		this.rows = new ArrayList<Integer>(this.rows.subList(toKeepFrom, toKeepTo));
-		this.currSize = keep;
+
+		while(this.currSize > keep) {
+			this.dropOldest();
+		}
 		this.lastVisible = 0;
 		this.recomputeVisibleFrame();
 	}
-	
+
 	/**
 	 * Shift the frame of visible pages in direction to the youngest added line
 	 * (to the bottom).
@@ -170,16 +246,16 @@ public class LineBuffer {
 	public void pageTowardsYoungest() {
 		int newRowsVisible = 0;
 		while((this.lastVisible + 1) < this.currSize) {
-			if ((newRowsVisible + this.rows.get(this.lastVisible + 1)) <= this.rowsInPage) {
+			if ((newRowsVisible + this.rowsOf(this.lastVisible + 1)) <= this.rowsInPage) {
 				this.lastVisible++;
-				newRowsVisible += this.rows.get(this.lastVisible);
+				newRowsVisible += this.rowsOf(this.lastVisible);
 			} else {
 				break;
 			}
 		}
 		this.recomputeVisibleFrame();
 	}
-	
+
 	/**
 	 * Shift the frame of visible pages in direction to the first added line
 	 * (to the top).
@@ -188,7 +264,7 @@ public class LineBuffer {
 		this.lastVisible -= this.countVisible;
 		this.recomputeVisibleFrame();
 	}
-	
+
 	/**
 	 * Shift the frame of visible pages to display the youngest added line, i.e.
 	 * jump to the bottom.
@@ -197,7 +273,7 @@ public class LineBuffer {
 		this.lastVisible = this.currSize + 2;
 		this.recomputeVisibleFrame();
 	}
-	
+
 	/**
 	 * Shift the frame of visible pages to display the oldest added line, i.e.
 	 * jump to the top.
@@ -206,79 +282,526 @@ public class LineBuffer {
 		this.lastVisible = 0;
 		this.recomputeVisibleFrame();
 	}
-	
+
 	/**
-	 * Get the current frame of lines to display.
-	 * @param toLines the list for the line contents where to add the lines of the frame.
-	 * @param toFlags the list for the attributes of the lines in the frame. 
-	 * @return the number of lines ion the frame.
+	 * Get the iterator over the current frame of lines to display, positioned
+	 * before the first line of the frame.
+	 * <p>
+	 * The iterator is reused for all pages, so it is valid only until the next call
+	 * to this method or a modification of the line buffer.
+	 * </p>
+	 * @return the iterator for the lines of the frame.
 	 */
-	public int getPageLinesAndFlags(ArrayList<byte[]> toLines, ArrayList<Byte> toFlags) {
-		int lineCount = this.countVisible;
-		
-		toLines.clear();
-		toFlags.clear();
-		
-		for (int i = this.lastVisible - lineCount + 1; i <= this.lastVisible; i++) {
-			toLines.add(this.lines.get(i));
-			toFlags.add(this.attrs.get(i));
-		}		
-		return lineCount;
+	public PageIterator iteratePage() {
+		this.pageIterator.nextLine = this.lastVisible - this.countVisible + 1;
+		this.pageIterator.endLine = this.lastVisible + 1;
+		return this.pageIterator;
 	}
-	
+
 	/**
 	 * Replace the display attributes for the given number of lines at the end
-	 * of the line buffer. 
+	 * of the line buffer.
 	 * @param count number of lines at the end of the line buffer where to replace the attribute.
 	 * @param fromFlag display attribute that is to be replaced.
 	 * @param toFlag attribute to replace with.
 	 */
 	public void updateLastLineFlags(int count, byte fromFlag, byte toFlag) {
-	  int idx = this.attrs.size() - 1;
-	  while(count > 0 && idx > 0) {
-		  if (this.attrs.get(idx) == fromFlag) {
-			  this.attrs.set(idx, toFlag);
+	  int idx = this.memCount - 1;
+	  int minIdx = (this.spillCount > 0) ? 0 : 1; // like the line buffer ever did, leave the oldest line alone
+	  while(count > 0 && idx >= minIdx) {
+		  int pos = (this.indexHead + idx) % this.lineOffsets.length;
+		  if ((byte)this.lineInfos[pos] == fromFlag) {
+			  this.lineInfos[pos] = (this.lineInfos[pos] & 0xFFFFFF00) | (toFlag & 0xFF);
 		  }
 		  count--;
 		  idx --;
 	  }
 	}
-	
+
 	/**
 	 * Compute the limits of the visible frame based on the <code>lastVisible</code>
 	 * line to display.
 	 */
 	private void recomputeVisibleFrame() {
 		int firstVisible;
-		
+
 		this.countVisible = 0;
 		this.rowsVisible = 0;
-		
+
+		if (this.currSize == 0) {
+			this.lastVisible = 0;
+			return;
+		}
+
 		if (this.lastVisible < 1) { this.lastVisible = 0; }
 		if (this.lastVisible >= this.currSize) { this.lastVisible = this.currSize - 1; }
-		
+
 		for (firstVisible = this.lastVisible; firstVisible >= 0; firstVisible--) {
-			if ((this.rowsVisible + this.rows.get(firstVisible)) <= this.rowsInPage) {
+			if ((this.rowsVisible + this.rowsOf(firstVisible)) <= this.rowsInPage) {
 				this.countVisible++;
-				this.rowsVisible += this.rows.get(firstVisible);
+				this.rowsVisible += this.rowsOf(firstVisible);
 			} else {
 				break;
 			}
 		}
-		
+
 		if (firstVisible > 0) { return; }
 
 		this.lastVisible = 0;
 		this.countVisible = 1;
-		this.rowsVisible = this.rows.get(this.lastVisible);
+		this.rowsVisible = this.rowsOf(this.lastVisible);
 		while((this.lastVisible + 1) < this.currSize) {
-			if ((this.rowsVisible + this.rows.get(this.lastVisible + 1)) <= this.rowsInPage) {
+			if ((this.rowsVisible + this.rowsOf(this.lastVisible + 1)) <= this.rowsInPage) {
 				this.lastVisible++;
 				this.countVisible++;
-				this.rowsVisible += this.rows.get(this.lastVisible);
+				this.rowsVisible += this.rowsOf(this.lastVisible);
+			} else {
+				break;
+			}
+		}
+	}
+
+	/*
+	 * access to the lines
+	 */
+
+	/**
+	 * Iterator over the lines of the current page, giving access to the line
+	 * texts without copying them.
+	 */
+	public class PageIterator {
+
+		private int nextLine;
+		private int endLine;
+
+		private byte[] bytes;
+		private int offset;
+		private int length;
+		private byte flags;
+
+		private PageIterator() { }
+
+		/**
+		 * Move to the next line of the page.
+		 * @return <code>false</code> if there are no more lines on the page.
+		 */
+		public boolean next() {
+			if (this.nextLine >= this.endLine) { return false; }
+			int idx = this.nextLine++;
+			if (idx >= spillCount) {
+				int pos = (indexHead + idx - spillCount) % lineOffsets.length;
+				this.bytes = arena;
+				this.offset = lineOffsets[pos];
+				this.length = lineInfos[pos] >>> 8;
+				this.flags = (byte)lineInfos[pos];
 			} else {
+				Spill.Block block = spill.getBlockOf(idx);
+				int lineInBlock = spill.getLineInBlock(idx);
+				this.bytes = block.data;
+				this.offset = block.offsets[lineInBlock];
+				this.length = block.infos[lineInBlock] >>> 8;
+				this.flags = (byte)block.infos[lineInBlock];
+			}
+			return true;
+		}
+
+		/**
+		 * @return the byte buffer holding the text of the current line.
+		 */
+		public byte[] getBytes() { return this.bytes; }
+
+		/**
+		 * @return the start of the current line's text in the byte buffer.
+		 */
+		public int getOffset() { return this.offset; }
+
+		/**
+		 * @return the length of the current line's text.
+		 */
+		public int getLength() { return this.length; }
+
+		/**
+		 * @return the display flags of the current line.
+		 */
+		public byte getFlags() { return this.flags; }
+	}
+
+	// get the number of screen rows needed for a line text
+	private int rowsFor(int length) {
+		return ((length - 1) / this.colsInRow) + 1;
+	}
+
+	// get the number of screen rows for the line with the given index
+	private int rowsOf(int idx) {
+		if (idx >= this.spillCount) {
+			int pos = (this.indexHead + idx - this.spillCount) % this.lineOffsets.length;
+			return this.rowsFor(this.lineInfos[pos] >>> 8);
+		}
+		Spill.Block block = this.spill.getBlockOf(idx);
+		return this.rowsFor(block.infos[this.spill.getLineInBlock(idx)] >>> 8);
+	}
+
+	// remove the oldest line from the buffer
+	private void dropOldest() {
+		if (this.spillCount > 0) {
+			this.spill.dropFirst();
+			this.spillCount--;
+			if (this.spill == null) { // spill file failed: all spilled lines are lost
+				this.currSize -= this.spillCount;
+				this.spillCount = 0;
+			}
+		} else {
+			this.removeOldestInMemory();
+		}
+		this.currSize--;
+		if (this.lastVisible > 0) { this.lastVisible--; }
+	}
+
+	// remove the oldest line in memory, returning its ring position (still valid until the next append)
+	private int removeOldestInMemory() {
+		int pos = this.indexHead;
+		this.arenaHead = this.lineOffsets[pos] + (this.lineInfos[pos] >>> 8);
+		this.indexHead = (this.indexHead + 1) % this.lineOffsets.length;
+		this.memCount--;
+		if (this.memCount == 0) {
+			this.arenaHead = 0;
+			this.arenaTail = 0;
+			this.arenaWrapped = false;
+		} else if (this.arenaWrapped && this.arenaHead >= this.arenaWrapEnd) {
+			this.arenaHead = 0;
+			this.arenaWrapped = false;
+		}
+		return pos;
+	}
+
+	// reserve space for a line text in the arena, growing the arena or removing the
+	// oldest lines from memory (spilling or dropping them) as needed
+	private int allocateText(int length) {
+		while(true) {
+			if (!this.arenaWrapped) {
+				if ((this.arenaTail + length) <= this.arena.length) {
+					break;
+				}
+				if (length <= this.arenaHead) {
+					this.arenaWrapEnd = this.arenaTail;
+					this.arenaWrapped = true;
+					this.arenaTail = 0;
+					break;
+				}
+			} else if ((this.arenaTail + length) <= this.arenaHead) {
 				break;
 			}
+
+			if (this.arena.length < this.maxArenaSize) {
+				this.growArena(length);
+				continue;
+			}
+
+			int pos = this.removeOldestInMemory();
+			if (this.spill != null) {
+				this.spill.add(this.arena, this.lineOffsets[pos], this.lineInfos[pos]);
+				if (this.spill != null) { // still usable
+					this.spillCount++;
+					continue;
+				}
+				this.currSize = this.memCount + 1; // all spilled lines are lost
+				this.spillCount = 0;
+			}
+			this.currSize--;
+		}
+		int textOffset = this.arenaTail;
+		this.arenaTail += length;
+		return textOffset;
+	}
+
+	// enlarge the arena, moving the texts of the lines in memory to the start of the new arena
+	private void growArena(int additionalLength) {
+		int used = 0;
+		for (int i = 0; i < this.memCount; i++) {
+			used += this.lineInfos[(this.indexHead + i) % this.lineOffsets.length] >>> 8;
+		}
+		int newSize = Math.max(InitialArenaSize, this.arena.length * 2);
+		while(newSize < (used + additionalLength)) { newSize *= 2; }
+		newSize = Math.min(newSize, this.maxArenaSize);
+
+		byte[] newArena = new byte[newSize];
+		int newTail = 0;
+		for (int i = 0; i < this.memCount; i++) {
+			int pos = (this.indexHead + i) % this.lineOffsets.length;
+			int length = this.lineInfos[pos] >>> 8;
+			System.arraycopy(this.arena, this.lineOffsets[pos], newArena, newTail, length);
+			this.lineOffsets[pos] = newTail;
+			newTail += length;
+		}
+		this.arena = newArena;
+		this.arenaHead = 0;
+		this.arenaTail = newTail;
+		this.arenaWrapped = false;
+	}
+
+	// enlarge the line index, moving the entries to the start of the new index
+	private void growIndex() {
+		int newSize = Math.max(InitialIndexSize, this.lineOffsets.length * 2);
+		int[] newOffsets = new int[newSize];
+		int[] newInfos = new int[newSize];
+		for (int i = 0; i < this.memCount; i++) {
+			int pos = (this.indexHead + i) % this.lineOffsets.length;
+			newOffsets[i] = this.lineOffsets[pos];
+			newInfos[i] = this.lineInfos[pos];
+		}
+		this.lineOffsets = newOffsets;
+		this.lineInfos = newInfos;
+		this.indexHead = 0;
+	}
+
+	/*
+	 * spilling the history to a temporary file
+	 */
+
+	private Spill spill;
+
+	/**
+	 * The oldest lines of the buffer, held in blocks of compressed lines in a
+	 * temporary file, with the block currently filled being held in memory.
+	 * <p>
+	 * The block format is a sequence of lines, each being a 3 byte header (length
+	 * as 16 bit value and the display flags) followed by the line text.
+	 * </p>
+	 */
+	private class Spill {
+
+		/**
+		 * A block of lines read from the spill file resp. filled in memory.
+		 */
+		private class Block {
+			private int blockNo = -1;
+			private byte[] data = new byte[4096];
+			private int length = 0;
+			private final int[] offsets = new int[SpillBlockLines];
+			private final int[] infos = new int[SpillBlockLines];
+			private int lineCount = 0;
+
+			private void add(byte[] text, int offset, int info) {
+				int textLength = info >>> 8;
+				this.ensureCapacity(this.length + 3 + textLength);
+				this.data[this.length++] = (byte)(textLength >>> 8);
+				this.data[this.length++] = (byte)textLength;
+				this.data[this.length++] = (byte)info;
+				this.offsets[this.lineCount] = this.length;
+				this.infos[this.lineCount] = info;
+				this.lineCount++;
+				System.arraycopy(text, offset, this.data, this.length, textLength);
+				this.length += textLength;
+			}
+
+			private void ensureCapacity(int size) {
+				if (size <= this.data.length) { return; }
+				byte[] newData = new byte[Math.max(size, this.data.length * 2)];
+				System.arraycopy(this.data, 0, newData, 0, this.length);
+				this.data = newData;
+			}
+
+			// rebuild the line index from the data read
+			private void indexLines() {
+				int pos = 0;
+				this.lineCount = 0;
+				while(pos < this.length && this.lineCount < SpillBlockLines) {
+					int textLength = ((this.data[pos] & 0xFF) << 8) | (this.data[pos + 1] & 0xFF);
+					this.infos[this.lineCount] = (textLength << 8) | (this.data[pos + 2] & 0xFF);
+					this.offsets[this.lineCount] = pos + 3;
+					this.lineCount++;
+					pos += 3 + textLength;
+				}
+			}
+		}
+
+		private File file = null;
+		private RandomAccessFile raf = null;
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		private final Inflater inflater = new Inflater();
+		private byte[] compressed = new byte[4096];
+
+		// the blocks written to the spill file
+		private long[] blockPositions = new long[64];
+		private int[] blockLengths = new int[64]; // compressed
+		private int[] blockRawLengths = new int[64]; // uncompressed
+		private int blockCount = 0;
+		private int firstBlock = 0; // first block still holding lines of the buffer
+		private int firstSkip = 0; // lines of the first block already dropped
+
+		// the block currently filled and the cache of the last blocks read
+		private final Block fillBlock = new Block();
+		private final Block[] cache = { new Block(), new Block() };
+		private int nextCacheReplace = 0;
+
+		private void close() {
+			try { if (this.raf != null) { this.raf.close(); } } catch (IOException e) { }
+			if (this.file != null) { this.file.delete(); }
+			this.raf = null;
+			this.file = null;
+			this.deflater.end();
+			this.inflater.end();
+		}
+
+		private void clear() {
+			try {
+				if (this.raf != null) { this.raf.setLength(0); }
+			} catch (IOException e) {
+				this.failed(e);
+				return;
+			}
+			this.blockCount = 0;
+			this.firstBlock = 0;
+			this.firstSkip = 0;
+			this.fillBlock.length = 0;
+			this.fillBlock.lineCount = 0;
+			for (Block b : this.cache) { b.blockNo = -1; }
+		}
+
+		// the spill file cannot be used anymore: the line buffer drops the lines not fitting into memory
+		private void failed(IOException e) {
+			logger.error("** Unable to spill the console output history: ", e.getMessage());
+			this.close();
+			spill = null;
+		}
+
+		private void add(byte[] text, int offset, int info) {
+			this.fillBlock.add(text, offset, info);
+			if (this.fillBlock.lineCount < SpillBlockLines) { return; }
+			try {
+				this.writeFillBlock();
+			} catch (IOException e) {
+				this.failed(e);
+			}
+		}
+
+		private void writeFillBlock() throws IOException {
+			if (this.raf == null) {
+				this.file = File.createTempFile("emx370-history", ".tmp");
+				this.file.deleteOnExit();
+				this.raf = new RandomAccessFile(this.file, "rw");
+			}
+
+			this.deflater.reset();
+			this.deflater.setInput(this.fillBlock.data, 0, this.fillBlock.length);
+			this.deflater.finish();
+			int compressedLength = 0;
+			while(!this.deflater.finished()) {
+				if (compressedLength == this.compressed.length) {
+					byte[] newCompressed = new byte[this.compressed.length * 2];
+					System.arraycopy(this.compressed, 0, newCompressed, 0, compressedLength);
+					this.compressed = newCompressed;
+				}
+				compressedLength += this.deflater.deflate(this.compressed, compressedLength, this.compressed.length - compressedLength);
+			}
+
+			if (this.blockCount == this.blockPositions.length) {
+				this.growBlockIndex();
+			}
+			long position = (this.blockCount > 0)
+					? this.blockPositions[this.blockCount - 1] + this.blockLengths[this.blockCount - 1]
+					: 0;
+			this.raf.seek(position);
+			this.raf.write(this.compressed, 0, compressedLength);
+			this.blockPositions[this.blockCount] = position;
+			this.blockLengths[this.blockCount] = compressedLength;
+			this.blockRawLengths[this.blockCount] = this.fillBlock.length;
+			this.blockCount++;
+
+			this.fillBlock.length = 0;
+			this.fillBlock.lineCount = 0;
+		}
+
+		private void growBlockIndex() {
+			int newSize = this.blockPositions.length * 2;
+			long[] newPositions = new long[newSize];
+			int[] newLengths = new int[newSize];
+			int[] newRawLengths = new int[newSize];
+			System.arraycopy(this.blockPositions, 0, newPositions, 0, this.blockCount);
+			System.arraycopy(this.blockLengths, 0, newLengths, 0, this.blockCount);
+			System.arraycopy(this.blockRawLengths, 0, newRawLengths, 0, this.blockCount);
+			this.blockPositions = newPositions;
+			this.blockLengths = newLengths;
+			this.blockRawLengths = newRawLengths;
+		}
+
+		private void dropFirst() {
+			this.firstSkip++;
+			if (this.firstSkip < SpillBlockLines) { return; }
+			this.firstSkip = 0;
+			this.firstBlock++;
+			if (this.firstBlock >= MinDeadSpillBlocks && this.firstBlock > (this.blockCount - this.firstBlock)) {
+				try {
+					this.compactFile();
+				} catch (IOException e) {
+					this.failed(e);
+				}
+			}
+		}
+
+		// move the blocks still in use to the start of the file
+		private void compactFile() throws IOException {
+			byte[] buffer = this.compressed;
+			long to = 0;
+			int liveBlocks = this.blockCount - this.firstBlock;
+			for (int i = 0; i < liveBlocks; i++) {
+				int from = this.firstBlock + i;
+				int length = this.blockLengths[from];
+				if (buffer.length < length) { buffer = new byte[length]; }
+				this.raf.seek(this.blockPositions[from]);
+				this.raf.readFully(buffer, 0, length);
+				this.raf.seek(to);
+				this.raf.write(buffer, 0, length);
+				this.blockPositions[i] = to;
+				this.blockLengths[i] = length;
+				this.blockRawLengths[i] = this.blockRawLengths[from];
+				to += length;
+			}
+			this.raf.setLength(to);
+			for (Block b : this.cache) {
+				if (b.blockNo >= 0) { b.blockNo -= this.firstBlock; }
+			}
+			this.blockCount = liveBlocks;
+			this.firstBlock = 0;
+		}
+
+		private int getLineInBlock(int idx) {
+			return (idx + this.firstSkip) % SpillBlockLines;
+		}
+
+		// get the block holding the spilled line with the given index, reading it from the file if necessary
+		private Block getBlockOf(int idx) {
+			int blockNo = this.firstBlock + ((idx + this.firstSkip) / SpillBlockLines);
+			if (blockNo >= this.blockCount) { return this.fillBlock; }
+			for (Block b : this.cache) {
+				if (b.blockNo == blockNo) { return b; }
+			}
+
+			Block block = this.cache[this.nextCacheReplace];
+			this.nextCacheReplace = (this.nextCacheReplace + 1) % this.cache.length;
+			block.blockNo = -1;
+			block.length = 0;
+			block.lineCount = 0;
+			try {
+				int length = this.blockLengths[blockNo];
+				if (this.compressed.length < length) { this.compressed = new byte[length]; }
+				this.raf.seek(this.blockPositions[blockNo]);
+				this.raf.readFully(this.compressed, 0, length);
+				block.ensureCapacity(this.blockRawLengths[blockNo]);
+				this.inflater.reset();
+				this.inflater.setInput(this.compressed, 0, length);
+				block.length = this.inflater.inflate(block.data, 0, this.blockRawLengths[blockNo]);
+				block.blockNo = blockNo;
+			} catch (IOException | DataFormatException e) {
+				logger.error("** Unable to read spilled console output history: ", e.getMessage());
+			}
+			block.indexLines();
+			while(block.lineCount < SpillBlockLines) { // lines lost by the error are shown empty
+				block.offsets[block.lineCount] = 0;
+				block.infos[block.lineCount] = 0;
+				block.lineCount++;
+			}
+			return block;
 		}
 	}
 }
@@ -0,0 +1,238 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.mecaff;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pacing of the output to a terminal, coalescing bursts of output from the host
+ * into frames sent at a limited rate.
+ *
+ * <p>
+ * A console collects the host output into its own buffers (e.g. the line buffer of
+ * the MECAFF-console) and requests a frame from the scheduler instead of sending
+ * each update immediately. A timer thread shared by all sessions hands the frame to
+ * a writer thread as soon as the pause after the last frame has passed (writing may
+ * block on a slow terminal, which must not delay the frames of the other sessions),
+ * so a single update
+ * is sent without delay while all updates arriving during the pause are sent together
+ * with the next frame.
+ * </p>
+ *
+ * <p>
+ * The pause after a frame is given by the max. frame rate and the byte budget (max.
+ * bytes per second) for a terminal, both configurable globally for all sessions.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ */
+public class OutputScheduler {
+
+	/**
+	 * Writer of the pending output of a console as one frame.
+	 */
+	public interface IFrameWriter {
+
+		/**
+		 * Send all output collected since the last frame to the terminal,
+		 * registering the frame with {@link OutputScheduler#frameSent(int)}.
+		 * @throws IOException
+		 */
+		public void writeFrame() throws IOException;
+	}
+
+	// the global limits for all terminals
+	private static volatile int maxFrameRate = 25; // frames per second
+	private static volatile int byteBudget = 0; // bytes per second, 0 = unlimited
+
+	// timer thread shared by all sessions for starting the frames
+	private static ScheduledExecutorService frameTimer = null;
+	
+	// threads writing the frames, as writing a frame may block
+	private static ExecutorService frameWriters = null;
+
+	private static synchronized ScheduledExecutorService getFrameTimer() {
+		if (frameTimer == null) {
+			frameTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thr = new Thread(r, "Console output scheduler");
+				thr.setDaemon(true);
+				return thr;
+			});
+		}
+		return frameTimer;
+	}
+
+	private static synchronized ExecutorService getFrameWriters() {
+		if (frameWriters == null) {
+			frameWriters = Executors.newCachedThreadPool(r -> {
+				Thread thr = new Thread(r, "Console output writer");
+				thr.setDaemon(true);
+				return thr;
+			});
+		}
+		return frameWriters;
+	}
+
+	/**
+	 * Set the global output limits for all terminals.
+	 * @param framesPerSecond max. number of frames sent to a terminal per second (min. 1).
+	 * @param bytesPerSecond max. number of bytes sent to a terminal per second, with
+	 *   0 meaning unlimited.
+	 */
+	public static void setLimits(int framesPerSecond, int bytesPerSecond) {
+		maxFrameRate = Math.max(1, framesPerSecond);
+		byteBudget = Math.max(0, bytesPerSecond);
+	}
+
+	/**
+	 * @return the max. number of frames sent to a terminal per second.
+	 */
+	public static int getMaxFrameRate() { return maxFrameRate; }
+
+	/**
+	 * @return the max. number of bytes sent to a terminal per second (0 = unlimited).
+	 */
+	public static int getByteBudget() { return byteBudget; }
+
+	private final IFrameWriter frameWriter;
+	private final int minPauseMs;
+
+	// the following fields are guarded by this instance
+	private boolean frameScheduled = false; // is the frame writer already scheduled resp. writing?
+	private boolean frameRequested = false; // was a frame requested while the frame writer was writing?
+	private boolean writing = false; // is the frame writer currently writing?
+	private long lastFrameTime = 0; // System.nanoTime() when the last frame was sent
+	private long nextFrameTime = 0; // System.nanoTime() when the next frame may be sent
+	private boolean closed = false;
+
+	/**
+	 * Construct the scheduler for the output of a terminal session.
+	 * @param frameWriter the writer for the output collected by the console.
+	 * @param minPauseMs min. milliseconds between frames required by the terminal.
+	 */
+	public OutputScheduler(IFrameWriter frameWriter, int minPauseMs) {
+		this.frameWriter = frameWriter;
+		this.minPauseMs = Math.max(0, minPauseMs);
+	}
+
+	/**
+	 * Request the output collected by the console to be sent with the next frame.
+	 */
+	public void requestFrame() {
+		synchronized(this) {
+			if (this.closed) { return; }
+			if (this.frameScheduled) {
+				// output added while writing may be missing in the frame being written
+				if (this.writing) { this.frameRequested = true; }
+				return;
+			}
+			this.scheduleFrame(this.nextFrameTime);
+		}
+	}
+
+	/**
+	 * Request a frame to be sent as soon as the min. pause required by the terminal
+	 * has passed since the last frame, e.g. for the response to a user action that
+	 * cannot be sent right now.
+	 */
+	public void requestPacedFrame() {
+		synchronized(this) {
+			if (this.closed) { return; }
+			if (this.frameScheduled) {
+				if (this.writing) { this.frameRequested = true; }
+				return;
+			}
+			this.scheduleFrame(this.lastFrameTime + TimeUnit.MILLISECONDS.toNanos(this.minPauseMs));
+		}
+	}
+	
+	// schedule the frame writer for the given time
+	// !! requires to be called with holding the lock on this instance !!
+	private void scheduleFrame(long atNanos) {
+		this.frameScheduled = true;
+		long delayNanos = Math.max(0, atNanos - System.nanoTime());
+		getFrameTimer().schedule(this::startFrame, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Register a frame sent by the console (requested or directly, e.g. as response
+	 * to a user action), delaying the next scheduled frame accordingly.
+	 * @param byteCount the number of bytes sent with the frame.
+	 */
+	public void frameSent(int byteCount) {
+		long pauseMs = Math.max(1000 / maxFrameRate, this.minPauseMs);
+		int budget = byteBudget;
+		if (budget > 0) {
+			pauseMs = Math.max(pauseMs, (byteCount * 1000L) / budget);
+		}
+		long now = System.nanoTime();
+		synchronized(this) {
+			this.lastFrameTime = now;
+			this.nextFrameTime = now + TimeUnit.MILLISECONDS.toNanos(pauseMs);
+		}
+	}
+
+	/**
+	 * @return the milliseconds elapsed since the last frame was sent.
+	 */
+	public long getMillisSinceLastFrame() {
+		synchronized(this) {
+			return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.lastFrameTime);
+		}
+	}
+
+	/**
+	 * Stop sending frames.
+	 */
+	public void close() {
+		synchronized(this) {
+			this.closed = true;
+		}
+	}
+
+	// timer thread: let a writer thread send the frame, the frame staying scheduled
+	// until written, so at most one frame of this terminal is written at a time
+	private void startFrame() {
+		getFrameWriters().execute(this::sendFrame);
+	}
+
+	// writer thread: let the console write the collected output, scheduling the next
+	// frame after the pause for the frame just written if requested in the meantime
+	private void sendFrame() {
+		synchronized(this) {
+			if (this.closed) {
+				this.frameScheduled = false;
+				return;
+			}
+			this.writing = true;
+			this.frameRequested = false;
+		}
+		try {
+			this.frameWriter.writeFrame();
+		} catch (IOException e) {
+			// the connection is lost, which will be handled by the input side of the session
+		} finally {
+			synchronized(this) {
+				this.writing = false;
+				this.frameScheduled = false;
+				if (this.frameRequested && !this.closed) {
+					this.scheduleFrame(this.nextFrameTime);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,571 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.mecaff;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import dev.hawala.vm370.Log;
+
+/**
+ * Selector based front end for the terminal connections, accepting new connections
+ * and doing all socket reads and writes for all terminals on a single event loop
+ * thread.
+ *
+ * <p>
+ * Data arriving from a terminal is handed to the <code>IBufferSink</code> registered
+ * for the connection directly on the event loop thread, so the sink must process the
+ * data without waiting for other activities. Data written to a connection is collected
+ * in pooled direct buffers and sent with a single gathering write when the output stream
+ * is flushed, with the event loop sending the remaining data if the socket cannot take
+ * all data immediately.
+ * So a connected terminal does not need a thread of its own while it is idle.
+ * </p>
+ *
+ * <p>
+ * Writing to a connection never blocks. The data not yet taken by a slow terminal
+ * is bounded: consoles are expected to check {@link TerminalChannel#isOutputBacklogged()}
+ * and hold back further output until the backlog is drained, and a terminal not
+ * taking its data at all is disconnected when the hard limit is exceeded.
+ * </p>
+ *
+ * <p>
+ * The telnet negotiation for new connections (see {@link TerminalTypeNegotiator})
+ * is a sequence of request/response exchanges, which is done in blocking mode on
+ * a pooled thread before the connection is switched to non-blocking mode and handed
+ * to the {@link IConnectionAcceptor}, so slow terminals cannot delay other connections.
+ * The number of negotiation threads is bounded, further new connections wait for a free
+ * thread and connections arriving while too many are waiting are closed immediately.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ */
+public class TerminalChannelLoop implements Runnable {
+
+	private static Log logger = Log.getLogger();
+
+	// size of the direct buffers used for reading and writing
+	private static final int BUFFER_SIZE = 8192;
+
+	// max. number of unused direct buffers kept for reuse
+	private static final int MAX_FREE_BUFFERS = 64;
+
+	// max. time to wait for a terminal response while negotiating (milliseconds)
+	private static final int NEGOTIATION_TIMEOUT_MS = 30000;
+
+	// max. number of telnet negotiations done in parallel
+	private static final int MAX_NEGOTIATORS = 32;
+
+	// max. number of new connections waiting for a free negotiation thread
+	private static final int MAX_WAITING_NEGOTIATIONS = 256;
+
+	// number of buffers with pending output for a connection to be backlogged
+	private static final int BACKLOG_BUFFERS = 16;
+
+	// max. number of buffers with pending output before a connection is considered dead
+	private static final int MAX_PENDING_BUFFERS = 128;
+
+	/**
+	 * Receiver of the new terminal connections after the telnet negotiation.
+	 */
+	public interface IConnectionAcceptor {
+
+		/**
+		 * Handle a new terminal connection, creating the console for the terminal
+		 * and letting it receive the terminal input with {@link TerminalChannel#startReading(IBufferSink)}.
+		 * @param negotiator the terminal characteristics as determined by the negotiation.
+		 * @param channel the connection to the terminal.
+		 */
+		public void connectionAccepted(TerminalTypeNegotiator negotiator, TerminalChannel channel);
+	}
+
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+
+	private final IConnectionAcceptor acceptor;
+	private final boolean stickToPredefinedTerminalTypes;
+	private final short minColorCount;
+
+	private final Thread thread;
+	private volatile boolean doShutdown = false;
+
+	// the threads doing the telnet negotiations (ending when idle)
+	private final ThreadPoolExecutor negotiators;
+
+	// actions to be done by the event loop thread (registering channels, changing interests)
+	private final ArrayDeque<Runnable> pendingActions = new ArrayDeque<Runnable>();
+
+	// the direct buffers currently unused
+	private final ArrayDeque<java.nio.ByteBuffer> freeBuffers = new ArrayDeque<java.nio.ByteBuffer>();
+
+	// the buffers for reading from the connections
+	private final java.nio.ByteBuffer readBuffer = java.nio.ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final byte[] readBytes = new byte[BUFFER_SIZE];
+
+	// the number of connections accepted so far
+	private int connectionCount = 0;
+
+	/**
+	 * Construct and start the event loop listening for new connections.
+	 * @param listenPort the tcp/ip port to listen on.
+	 * @param stickToPredefinedTerminalTypes if <code>false</code>, no WSF-query will be performed
+	 *   to get the detailed terminal's capability information.
+	 * @param minColorCount number of colors the terminal must at least support to be accepted
+	 *   as color terminal.
+	 * @param acceptor the receiver for the new connections.
+	 * @throws IOException if the listening socket cannot be opened.
+	 */
+	public TerminalChannelLoop(
+			int listenPort,
+			boolean stickToPredefinedTerminalTypes,
+			short minColorCount,
+			IConnectionAcceptor acceptor) throws IOException {
+		this.acceptor = acceptor;
+		this.stickToPredefinedTerminalTypes = stickToPredefinedTerminalTypes;
+		this.minColorCount = minColorCount;
+
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		try {
+			this.serverChannel.socket().bind(new InetSocketAddress(listenPort));
+			this.serverChannel.configureBlocking(false);
+			this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			try { this.serverChannel.close(); } catch (IOException e2) { }
+			try { this.selector.close(); } catch (IOException e2) { }
+			throw e;
+		}
+
+		this.negotiators = new ThreadPoolExecutor(
+				MAX_NEGOTIATORS, MAX_NEGOTIATORS,
+				10, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_WAITING_NEGOTIATIONS),
+				r -> {
+					Thread thr = new Thread(r, "TerminalChannelLoop negotiation");
+					thr.setDaemon(true);
+					return thr;
+				});
+		this.negotiators.allowCoreThreadTimeOut(true);
+
+		this.thread = new Thread(this, "TerminalChannelLoop");
+		this.thread.start();
+	}
+
+	/**
+	 * @return the tcp/ip port the event loop listens on for new connections.
+	 */
+	public int getListenPort() {
+		return this.serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Stop listening for new connections and stop the event loop.
+	 */
+	public void shutdown() {
+		this.doShutdown = true;
+		this.negotiators.shutdownNow();
+		this.selector.wakeup();
+	}
+
+	// let the event loop thread do an action
+	private void addAction(Runnable action) {
+		synchronized(this.pendingActions) {
+			this.pendingActions.add(action);
+		}
+		this.selector.wakeup();
+	}
+
+	private void runPendingActions() {
+		while(true) {
+			Runnable action;
+			synchronized(this.pendingActions) {
+				action = this.pendingActions.poll();
+			}
+			if (action == null) { return; }
+			action.run();
+		}
+	}
+
+	/*
+	 * the direct buffer pool
+	 */
+
+	private java.nio.ByteBuffer allocateBuffer() {
+		synchronized(this.freeBuffers) {
+			java.nio.ByteBuffer buffer = this.freeBuffers.poll();
+			if (buffer != null) { return buffer; }
+		}
+		return java.nio.ByteBuffer.allocateDirect(BUFFER_SIZE);
+	}
+
+	private void releaseBuffer(java.nio.ByteBuffer buffer) {
+		buffer.clear();
+		synchronized(this.freeBuffers) {
+			if (this.freeBuffers.size() < MAX_FREE_BUFFERS) { this.freeBuffers.add(buffer); }
+		}
+	}
+
+	/*
+	 * the event loop
+	 */
+
+	@Override
+	public void run() {
+		while(!this.doShutdown) {
+			try {
+				this.selector.select();
+				this.runPendingActions();
+
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) { continue; }
+					if (key.isAcceptable()) {
+						this.acceptConnection();
+						continue;
+					}
+					TerminalChannel channel = (TerminalChannel)key.attachment();
+					try {
+						if (key.isWritable()) { channel.writePendingOutput(); }
+						if (key.isValid() && key.isReadable()) { channel.readAvailableInput(); }
+					} catch (CancelledKeyException e) {
+						// the connection was closed by the console in the meantime
+					}
+				}
+			} catch (IOException e) {
+				if (this.doShutdown) { break; }
+				logger.error("** Error in terminal event loop: " + e.getMessage());
+			}
+		}
+
+		try { this.serverChannel.close(); } catch (IOException e) { }
+		try { this.selector.close(); } catch (IOException e) { }
+	}
+
+	// accept a new connection and start the telnet negotiation
+	private void acceptConnection() throws IOException {
+		SocketChannel socketChannel = this.serverChannel.accept();
+		if (socketChannel == null) { return; }
+		socketChannel.socket().setTcpNoDelay(true);
+		int connNo = this.connectionCount++;
+		try {
+			this.negotiators.execute(() -> this.negotiate(connNo, socketChannel));
+		} catch (RejectedExecutionException e) {
+			logger.error("** Too many terminal connections waiting for negotiation, closing connection " + connNo);
+			try { socketChannel.close(); } catch (IOException e2) { }
+		}
+	}
+
+	// do the blocking telnet negotiation and then hand the connection in non-blocking mode to the acceptor
+	private void negotiate(int connNo, SocketChannel socketChannel) {
+		TerminalTypeNegotiator negotiator;
+		TerminalChannel channel;
+		try {
+			socketChannel.socket().setSoTimeout(NEGOTIATION_TIMEOUT_MS);
+			negotiator = new TerminalTypeNegotiator(connNo, socketChannel.socket(), this.stickToPredefinedTerminalTypes, this.minColorCount);
+			if (negotiator.isClosed()) { return; } // connection not workable
+			socketChannel.socket().setSoTimeout(0);
+			socketChannel.configureBlocking(false);
+			channel = new TerminalChannel(socketChannel);
+			negotiator.switchStreams(null, channel.getOutputStream());
+		} catch (IOException e) {
+			logger.error("** Unable to continue terminal connection " + connNo + ": " + e.getMessage());
+			try { socketChannel.close(); } catch (IOException e2) { }
+			return;
+		}
+		this.acceptor.connectionAccepted(negotiator, channel);
+	}
+
+	/**
+	 * A connection to a terminal served by the event loop.
+	 */
+	public class TerminalChannel implements IOutputBacklog {
+
+		private final SocketChannel socketChannel;
+		private final OutputStream outputStream = new ChannelOutputStream();
+
+		// the following fields are accessed by the event loop thread only
+		private SelectionKey key = null;
+		private IBufferSink sink = null;
+
+		// the following fields are guarded by this instance
+		private final ArrayDeque<java.nio.ByteBuffer> pendingOutput = new ArrayDeque<java.nio.ByteBuffer>();
+		private final java.nio.ByteBuffer[] gatherBuffers = new java.nio.ByteBuffer[MAX_PENDING_BUFFERS];
+		private boolean writeInterest = false;
+		private boolean closed = false;
+		private boolean overflowed = false; // was the hard limit for pending output exceeded?
+		private boolean backlogSeen = false; // was the backlog reported to the console?
+		private Runnable drainedListener = null;
+
+		private TerminalChannel(SocketChannel socketChannel) {
+			this.socketChannel = socketChannel;
+		}
+
+		/**
+		 * Get the output stream for writing to the terminal; the data written
+		 * is sent when the stream is flushed.
+		 * @return the output stream to the terminal.
+		 */
+		public OutputStream getOutputStream() { return this.outputStream; }
+
+		@Override
+		public boolean isOutputBacklogged() {
+			synchronized(this) {
+				if (this.pendingOutput.size() < BACKLOG_BUFFERS) { return false; }
+				this.backlogSeen = true;
+				return true;
+			}
+		}
+
+		@Override
+		public void setOutputDrainedListener(Runnable listener) {
+			synchronized(this) {
+				this.drainedListener = listener;
+			}
+		}
+
+		/**
+		 * Start delivering the data arriving from the terminal to the sink.
+		 * @param sink the receiver for the terminal input and the connection closing event.
+		 */
+		public void startReading(IBufferSink sink) {
+			addAction(() -> this.register(sink));
+		}
+
+		/**
+		 * Close the connection to the terminal, attempting to send the data
+		 * still pending.
+		 */
+		public void close() {
+			synchronized(this) {
+				if (this.closed) { return; }
+				try {
+					this.sendPendingOutput();
+				} catch (IOException e) {
+					// ignored, we are closing anyway
+				}
+				this.closed = true;
+				this.dropPendingOutput();
+			}
+			try { this.socketChannel.close(); } catch (IOException e) { }
+		}
+
+		// event loop: register the channel for reading (and writing if output is pending)
+		private void register(IBufferSink sink) {
+			this.sink = sink;
+			synchronized(this) {
+				if (!this.closed) { // else: the connection was lost before, so the sink is told below
+					int ops = SelectionKey.OP_READ | ((this.writeInterest) ? SelectionKey.OP_WRITE : 0);
+					try {
+						this.key = this.socketChannel.register(selector, ops, this);
+					} catch (IOException e) {
+						this.closed = true;
+						this.dropPendingOutput();
+					}
+				}
+			}
+			if (this.key == null) { this.sink.connectionClosed(); }
+		}
+
+		// event loop: deliver the data available from the terminal to the sink
+		private void readAvailableInput() {
+			readBuffer.clear();
+			int count;
+			try {
+				count = this.socketChannel.read(readBuffer);
+			} catch (IOException e) {
+				logger.info("terminal connection lost (", e.getMessage(), ")");
+				count = -1;
+			}
+			if (count < 0) {
+				this.connectionLost();
+				return;
+			}
+			if (count == 0) { return; }
+			readBuffer.flip();
+			readBuffer.get(readBytes, 0, count);
+			try {
+				this.sink.processBytes(readBytes, count);
+			} catch (Exception e) {
+				logger.error("** Error processing terminal input: ", e.toString());
+				this.connectionLost();
+			}
+		}
+
+		// event loop: the terminal closed the connection
+		private void connectionLost() {
+			if (this.key == null) { // not yet registered, so register() will tell the sink
+				this.close();
+				return;
+			}
+			if (!this.key.isValid()) { return; } // already handled
+			this.key.cancel();
+			this.close();
+			this.sink.connectionClosed();
+		}
+
+		// event loop: send pending output as far as the socket takes it
+		private void writePendingOutput() {
+			boolean failed = false;
+			Runnable listener;
+			synchronized(this) {
+				if (this.closed) { return; }
+				try {
+					this.sendPendingOutput();
+				} catch (IOException e) {
+					failed = true;
+				}
+				if (!failed && this.pendingOutput.isEmpty()) {
+					this.writeInterest = false;
+					this.key.interestOps(SelectionKey.OP_READ);
+				}
+				listener = this.checkBacklogDrained();
+			}
+			if (failed) {
+				this.connectionLost();
+			} else if (listener != null) {
+				listener.run();
+			}
+		}
+
+		// get the listener to notify if the backlog reported to the console is drained
+		// !! requires to be called with holding the lock on this instance !!
+		private Runnable checkBacklogDrained() {
+			if (!this.backlogSeen || this.pendingOutput.size() >= (BACKLOG_BUFFERS / 2)) { return null; }
+			this.backlogSeen = false;
+			return this.drainedListener;
+		}
+
+		// event loop: update the interest for writing
+		private void updateInterest() {
+			synchronized(this) {
+				if (this.closed || this.key == null || !this.key.isValid()) { return; }
+				this.key.interestOps(SelectionKey.OP_READ | ((this.writeInterest) ? SelectionKey.OP_WRITE : 0));
+			}
+		}
+
+		// append data to the pending output
+		// !! requires to be called with holding the lock on this instance !!
+		private void appendOutput(byte[] b, int off, int len) throws IOException {
+			if (this.closed || this.overflowed) { throw new IOException("terminal connection closed"); }
+			while(len > 0) {
+				java.nio.ByteBuffer tail = this.pendingOutput.peekLast();
+				if (tail == null || !tail.hasRemaining()) {
+					if (this.pendingOutput.size() >= MAX_PENDING_BUFFERS) {
+						// the terminal does not take its data, so give up the connection
+						logger.info("terminal output backlog exceeded, disconnecting");
+						this.overflowed = true;
+						addAction(this::connectionLost);
+						throw new IOException("terminal output backlog exceeded");
+					}
+					tail = allocateBuffer();
+					this.pendingOutput.addLast(tail);
+				}
+				int chunk = Math.min(len, tail.remaining());
+				tail.put(b, off, chunk);
+				off += chunk;
+				len -= chunk;
+			}
+		}
+
+		// send the pending output immediately and let the event loop send the rest
+		private void flushOutput() throws IOException {
+			Runnable listener;
+			synchronized(this) {
+				if (this.closed || this.overflowed) { throw new IOException("terminal connection closed"); }
+				this.sendPendingOutput();
+				if (!this.pendingOutput.isEmpty() && !this.writeInterest) {
+					this.writeInterest = true;
+					addAction(this::updateInterest);
+				}
+				listener = this.checkBacklogDrained();
+			}
+			if (listener != null) { listener.run(); }
+		}
+
+		// write the pending buffers to the socket with a single gathering write (as far as
+		// the socket takes the data), the buffers being kept in filling state (position = end of data)
+		// !! requires to be called with holding the lock on this instance !!
+		private void sendPendingOutput() throws IOException {
+			if (this.pendingOutput.isEmpty()) { return; }
+			int count = 0;
+			for (java.nio.ByteBuffer buffer : this.pendingOutput) {
+				buffer.flip();
+				this.gatherBuffers[count++] = buffer;
+			}
+			try {
+				this.socketChannel.write(this.gatherBuffers, 0, count);
+			} finally {
+				while(!this.pendingOutput.isEmpty() && !this.pendingOutput.peekFirst().hasRemaining()) {
+					releaseBuffer(this.pendingOutput.removeFirst());
+				}
+				for (java.nio.ByteBuffer buffer : this.pendingOutput) {
+					buffer.compact();
+				}
+			}
+		}
+
+		// !! requires to be called with holding the lock on this instance !!
+		private void dropPendingOutput() {
+			while(!this.pendingOutput.isEmpty()) {
+				releaseBuffer(this.pendingOutput.removeFirst());
+			}
+		}
+
+		/**
+		 * Output stream collecting the data for the terminal.
+		 */
+		private class ChannelOutputStream extends OutputStream {
+
+			private final byte[] single = new byte[1];
+
+			@Override
+			public void write(int b) throws IOException {
+				synchronized(TerminalChannel.this) {
+					this.single[0] = (byte)b;
+					appendOutput(this.single, 0, 1);
+				}
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				synchronized(TerminalChannel.this) {
+					appendOutput(b, off, len);
+				}
+			}
+
+			@Override
+			public void flush() throws IOException {
+				flushOutput();
+			}
+
+			@Override
+			public void close() {
+				TerminalChannel.this.close();
+			}
+		}
+	}
+}
@@ -113,6 +113,18 @@ public class TerminalTypeNegotiator {
 		this.closed = true;	
 	}
 	
+	/**
+	 * Replace the streams to communicate with the terminal after the negotiation,
+	 * for example when the connection continues in non-blocking mode.
+	 * @param isFromTerm the new input stream (terminal to host) or <code>null</code> if
+	 *   the input from the terminal is delivered otherwise.
+	 * @param osToTerm the new output stream (host to terminal).
+	 */
+	public void switchStreams(InputStream isFromTerm, OutputStream osToTerm) {
+		this.isFromTerm = isFromTerm;
+		this.osToTerm = osToTerm;
+	}
+	
 	/*
 	 * Getters for the terminal and connection characteristics as determined on construction.
 	 */
@@ -18,7 +18,14 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import dev.hawala.vm370.Log;
 import dev.hawala.vm370.ebcdic.Ebcdic;
@@ -38,7 +45,7 @@ import dev.hawala.vm370.stream3270.Ebcdic6BitEncoding;
  * 
  * @author Dr. Hans-Walter Latz, Berlin (Germany), 2011,2012
  */
-public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, EbcdicTextPipeline.ITextSink {
+public class Vm3270Console implements IVm3270ConsoleCompletedSink, EbcdicTextPipeline.ITextSink {
 	
 	private static Log logger = Log.getLogger();
 	
@@ -62,6 +69,32 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 	
 	private static final int MaxOutputHistory = 65536; // # output lines remembered 
 	
+	// memory limit for the texts of the output lines remembered and spilling of older lines to a temp file
+	private static volatile int outputHistoryBytes = 512 * 1024;
+	private static volatile boolean outputHistorySpill = false;
+	
+	/**
+	 * Set the limits for the console output history of MECAFF-consoles created
+	 * from now on.
+	 * @param kBytes max. kilobytes held in memory for the texts of the output lines.
+	 * @param spill spill the older lines not fitting into memory to a compressed temporary
+	 *   file instead of dropping them?
+	 */
+	public static void setOutputHistoryLimits(int kBytes, boolean spill) {
+		outputHistoryBytes = Math.max(16, Math.min(kBytes, 1024 * 1024)) * 1024;
+		outputHistorySpill = spill;
+	}
+	
+	/**
+	 * @return the max. kilobytes held in memory for the console output history.
+	 */
+	public static int getOutputHistoryKBytes() { return outputHistoryBytes / 1024; }
+	
+	/**
+	 * @return is the older console output history spilled to a temporary file?
+	 */
+	public static boolean isOutputHistorySpilled() { return outputHistorySpill; }
+	
 	private static final String InputFieldIntro = " >>"; // text appended to the status for the prompt string
 	
 	private final IVm3270ConsoleInputSink consoleInputSink; // where to send (processed) data from the terminal 
@@ -92,10 +125,19 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 	private final EbcdicHandler savedPrompt = new EbcdicHandler(); // current input text still not sent to the user, used when the input zone is repainted
 	
 	private final DataOutStream3270 buf3270; // our 3270 output stream builder
+	private final OutputScheduler outputScheduler; // pacing of the updates sent to the terminal
+	private boolean outputZonePending = false; // was host output added to the output area but not yet sent?
+	private IOutputBacklog outputBacklog = null; // the connection telling if the terminal is too slow
+	private boolean redrawDeferred = false; // was a repaint held back while the terminal connection was backlogged?
+	private boolean redrawPaced = false; // was a repaint held back for the transmission delay of the terminal?
 	private final BufferAddress iba; // input BufferAddress
 	
-	private Thread ticker; // thread to generate our different timeouts
-	private volatile boolean closed = false; // the 'ticker' thread will stop if set to true
+	private static ScheduledExecutorService tickTimer = null; // timer thread shared by all consoles for generating the timeouts
+	private static ExecutorService tickWorkers = null; // threads processing the ticks, as a tick may block when writing to the terminal
+	private final ScheduledFuture<?> ticker; // our 1/10 second ticks on the 'tickTimer' thread
+	private final AtomicBoolean tickRunning = new AtomicBoolean(false); // is a tick of this console currently processed by a worker?
+	private int sessionTickCounter = 0; // 1/10 second ticks since the last session tick
+	private volatile boolean closed = false; // the 'ticker' will stop if set to true
 	
 	// structure of our screen
 	private int ifStartRow; // line where the input area starts (where the prompt is written)
@@ -147,7 +189,6 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 	 * @param termTransmissionDelayMs milliseconds to wait before sending the next update to the terminal (0..9 ms).
 	 */
 	public Vm3270Console(
-			ThreadGroup thrGroup,
 			IVm3270ConsoleInputSink consoleInputSink, 
 			OutputStream osToTerm, 
 			int altRows, 
@@ -187,10 +228,11 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 		logger.info("## end new terminal connected");
 				
 		this.ebcdicString = new EbcdicHandler();
-		this.lineBuffer = new LineBuffer(MaxOutputHistory, this.altCols, this.outZoneRows);
+		this.lineBuffer = new LineBuffer(MaxOutputHistory, this.altCols, this.outZoneRows, outputHistoryBytes, outputHistorySpill);
 		this.inputHistory = new ArrayList<EbcdicHandler>();
-		this.buf3270 = new DataOutStream3270(this.altCols, this.altRows, canExtended);
+		this.buf3270 = new DataOutStream3270(this.altCols, this.altRows, canExtended, true);
 		this.iba = new BufferAddress();
+		this.outputScheduler = new OutputScheduler(this::writePendingOutput, termTransmissionDelayMs);
 		
 		String uniGuard 
 			= "* =-=-=-= " + (Thread.currentThread().getId()% 1234567) + " -=-=- " + ((new Date()).getTime() % 1234567) + " =-=-=-=";
@@ -214,8 +256,7 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 			logger.error("IOException while writing to 3270-terminal");
 		}
 		
-		this.ticker = new Thread(thrGroup, this, thrGroup.getName() + " Vm3270console.Session-&Timer-Tick");
-		this.ticker.start();
+		this.ticker = getTickTimer().scheduleAtFixedRate(this::dispatchTick, 100, 100, TimeUnit.MILLISECONDS);
 		
 		logger.info("**** Done 3270 screen setup");
 	}
@@ -227,6 +268,11 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 		if (!this.closed) {
 			logger.info("## Vm3270Console: closing");
 			this.closed = true;
+			this.ticker.cancel(false);
+			this.outputScheduler.close();
+			synchronized(this) {
+				this.lineBuffer.close();
+			}
 		}
 	}
 	
@@ -322,6 +368,19 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 		pfCommands[pf - 1] = cmd;
 	}
 	
+	/**
+	 * Set the terminal connection telling if the terminal takes the output,
+	 * letting the console hold back repaints while the terminal is too slow
+	 * instead of queuing more output for it.
+	 * @param backlog the terminal connection to check.
+	 */
+	public void setOutputBacklog(IOutputBacklog backlog) {
+		synchronized(this) {
+			this.outputBacklog = backlog;
+			backlog.setOutputDrainedListener(this.outputScheduler::requestFrame);
+		}
+	}
+	
 	/**
 	 * Set the flow mode of the console.
 	 * @param flowMode the new flowmode state.
@@ -559,11 +618,14 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 			}
 
 			// send the stream to the terminal
-			stream3270.writeTo(this.osToTerm, true);
-			this.osToTerm.write(TnEOR);
+			int byteCount = stream3270.getLength() + TnEOR.length;
+			stream3270.writeTo(this.osToTerm, true, TnEOR);
 			this.osToTerm.flush();
+			this.outputScheduler.frameSent(byteCount);
 			this.lastFullScreenOverwritten = false;
+			this.shadowValid = false;
 			this.linesSinceLastUserAction = 0;
+			this.redrawPaced = false; // the fullscreen program replaced a console screen still to be sent
 			
 			logger.debug("::::: writeFullScreen(): fullscreen written");
 		}
@@ -707,7 +769,7 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 			}
 			if (this.drainHostOutput) { return; }
 			int rowsAdded = this.lineBuffer.append(buffer, stringStart, stringLength, LineAttrHostOutput);
-			this.redrawOutputZoneAlone();
+			this.scheduleOutputZone();
 			this.checkForEnterMoreState(rowsAdded);
 		}
 	}
@@ -733,7 +795,7 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 			}
 			if (this.drainHostOutput) { return; }
 			int rowsAdded = this.lineBuffer.append(ebcdicString, LineAttrHostOutput);
-			this.redrawOutputZoneAlone();
+			this.scheduleOutputZone();
 			this.checkForEnterMoreState(rowsAdded);
 		}
 	}
@@ -820,6 +882,10 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 						this.fsRemainingGrace = (this.fsLockedToFs) ? this.fsGracePeriod : -1;
 						this.fsRcvLocked = true; // fs-input has now been sent to host
 						this.consoleInputSink.sendFullScreenInput(this.fsRcvBuffer, this);
+					} else {
+						// the host does not wait for the fullscreen response: let it know the input is there
+						logger.trace("FSIn|FSOut, host not waiting, signaling fs-input availability to host");
+						this.consoleInputSink.sendFullScreenDataAvailability(true);
 					}
 				}
 				return;
@@ -1117,18 +1183,86 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 	 * Console output routines
 	 */
 	
-	private ArrayList<byte[]> tmpLines = new ArrayList<byte[]>();
-	private ArrayList<Byte> tmpFlags = new ArrayList<Byte>();
+	// shadow of the output area as currently displayed on the terminal (one entry per screen position),
+	// allowing to send only the changed positions when the output area is repainted
+	private byte[] shadowChars = null;
+	private Color3270[] shadowColors = null;
+	private boolean shadowValid = false; // does the shadow reflect the terminal's screen?
+	
+	// the output area content to be displayed, built for comparing with the shadow
+	private byte[] wantedChars = null;
+	private Color3270[] wantedColors = null;
+	
+	// min. length of a blank run to be written with a RepeatToAddress order instead of the blanks
+	private static final int MinRepeatRunLength = 4;
+	
+	// max. number of unchanged positions to be rewritten instead of starting a new change run with SetBufferAddress
+	private static final int MaxUnchangedRewrite = 3;
+	
+	// check if the terminal needs more time after the last 3270 output stream, so the repaint
+	// is to be held back and sent by the output scheduler once the pause has passed
+	// (instead of waiting with the console locked, possibly on the connection thread shared by all terminals)
+	private boolean holdForTransmissionDelay() {
+		if (this.termTransmissionDelayMs <= 0) { return false; }
+		if (this.outputScheduler.getMillisSinceLastFrame() >= this.termTransmissionDelayMs) { return false; }
+		this.redrawPaced = true;
+		this.outputZonePending = false;
+		this.outputScheduler.requestPacedFrame();
+		return true;
+	}
 	
-	// routine to ensure a pause for terminals needing some time between ingoing 3270 output streams
-	private void OutPause() {
-		try {
-			Thread.sleep(this.termTransmissionDelayMs);
-		} catch(InterruptedException exc) {
-			
+	// send the 3270 output stream built so far as one frame to the terminal
+	private void sendStream() throws IOException {
+		this.buf3270.telnetEOR();
+		int byteCount = this.buf3270.getLength();
+		this.buf3270.writeToSink(this.osToTerm, true);
+		this.outputScheduler.frameSent(byteCount);
+	}
+	
+	// let the host output added to the output area be sent with the next frame
+	private void scheduleOutputZone() {
+		this.outputZonePending = true;
+		this.outputScheduler.requestFrame();
+	}
+	
+	/* implemented interface OutputScheduler.IFrameWriter:
+	 * send the output area if host output was added since the last update
+	 */
+	private void writePendingOutput() throws IOException {
+		synchronized(this) {
+			if (this.closed || (!this.outputZonePending && !this.redrawDeferred && !this.redrawPaced)) { return; }
+			if (this.redrawPaced) {
+				// the repaint was requested (possibly when closing the fullscreen mode), so send it in any state
+				this.redrawScreen();
+				return;
+			}
+			if (this.consoleState == ConsoleState.FSIn || this.consoleState == ConsoleState.FSOut) {
+				// the fullscreen program owns the screen, the output is shown when the screen is repainted
+				this.outputZonePending = false;
+				this.redrawDeferred = false;
+				return;
+			}
+			if (this.redrawDeferred) {
+				this.redrawScreen();
+			} else {
+				this.redrawOutputZoneAlone();
+			}
 		}
 	}
 	
+	// check if the terminal is too slow to take more output, so the repaint is to be held back
+	// until the connection reports the backlog as drained, this then repainting the complete screen
+	// (the screen contents being in our buffers, nothing is lost while the output is on hold)
+	private boolean holdWhileBacklogged() {
+		if (this.outputBacklog == null || !this.outputBacklog.isOutputBacklogged()) { return false; }
+		if (!this.redrawDeferred) {
+			logger.debug("** Vm3270Console: terminal backlogged, holding output");
+		}
+		this.redrawDeferred = true;
+		this.outputZonePending = false;
+		return true;
+	}
+	
 	/**
 	 * Low-level method to repaint the output area of the MECAFF-console, creating the 
 	 * 3270 orders and data writes necessary, but not the introducing CCW/WCC-stuff.  
@@ -1138,47 +1272,111 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 	 * @throws IOException
 	 */
 	private void redrawOutputZone(boolean zoneIsCleared, boolean flush) throws IOException {
-		if (!zoneIsCleared) {
-			this.buf3270
-				.setBufferAddress(1, 1)
-				.repeatToAddress(this.ifStartRow, 1, (byte)0x00);
+		int zoneSize = this.outZoneRows * this.altCols;
+		if (this.shadowChars == null) {
+			this.shadowChars = new byte[zoneSize];
+			this.shadowColors = new Color3270[zoneSize];
+			this.wantedChars = new byte[zoneSize];
+			this.wantedColors = new Color3270[zoneSize];
+		}
+		if (zoneIsCleared || !this.shadowValid) {
+			if (!zoneIsCleared) {
+				this.buf3270
+					.setBufferAddress(1, 1)
+					.repeatToAddress(this.ifStartRow, 1, (byte)0x00);
+			}
+			Arrays.fill(this.shadowChars, (byte)0x00);
+			Arrays.fill(this.shadowColors, null);
+			this.shadowValid = true;
 		}
 		
-		int lineCount = this.lineBuffer.getPageLinesAndFlags(this.tmpLines, this.tmpFlags);
+		// build the content of the output area as it is to be displayed
+		Arrays.fill(this.wantedChars, (byte)0x00);
+		Arrays.fill(this.wantedColors, null);
+		LineBuffer.PageIterator line = this.lineBuffer.iteratePage();
 		int currRow = 1;
-		for (int i = 0; i < lineCount && currRow <= this.outZoneRows; i++) {
-			byte[] line = this.tmpLines.get(i);
-			byte flag = this.tmpFlags.get(i).byteValue();
-			int supplRows = (line.length - 1) / this.altCols;
-			boolean isHighlight = false;
-			this.buf3270.setBufferAddress(currRow, 1);
+		while(currRow <= this.outZoneRows && line.next()) {
+			byte flag = line.getFlags();
+			int supplRows = (line.getLength() - 1) / this.altCols;
+			Attr attr;
 			if (flag == LineAttrUserInput) {
-				this.buf3270.setAttributeColor(this.attrOutEchoInput.getColor3270());
-				isHighlight = this.attrOutEchoInput.getHighlight();
+				attr = this.attrOutEchoInput;
 			} else if (flag == LineAttrFScreenBg) {
-				this.buf3270.setAttributeColor(this.attrOutFsBg.getColor3270());
-				isHighlight = this.attrOutFsBg.getHighlight();
+				attr = this.attrOutFsBg;
 			} else {
-				this.buf3270.setAttributeColor(this.attrOutNormal.getColor3270());
-				isHighlight = this.attrOutNormal.getHighlight();
+				attr = this.attrOutNormal;
 			}
-			if (isHighlight) {
+			if (attr.getHighlight()) {
 				// TODO: use Highlight on 3270 screen
 			}
-			this.buf3270.appendEbcdic(line);
-			if (isHighlight) {
-				// TODO: reset Highlight on 3270 screen
-			}
+			int pos = (currRow - 1) * this.altCols;
+			int count = Math.min(line.getLength(), zoneSize - pos);
+			System.arraycopy(line.getBytes(), line.getOffset(), this.wantedChars, pos, count);
+			Arrays.fill(this.wantedColors, pos, pos + count, attr.getColor3270());
 			currRow += 1 + supplRows;
 		}
 		
+		// send the changed runs, skipping short unchanged gaps inside a run
+		Color3270 currColor = null; // current character color in the 3270 stream is unknown
+		int pos = 0;
+		while(pos < zoneSize) {
+			if (!this.isChanged(pos)) { pos++; continue; }
+			int runEnd = pos + 1;
+			int gap = 0;
+			for (int p = runEnd; p < zoneSize && gap <= MaxUnchangedRewrite; p++) {
+				if (this.isChanged(p)) {
+					runEnd = p + 1;
+					gap = 0;
+				} else {
+					gap++;
+				}
+			}
+			
+			this.buf3270.setBufferAddress((pos / this.altCols) + 1, (pos % this.altCols) + 1);
+			while(pos < runEnd) {
+				byte c = this.wantedChars[pos];
+				if (isBlank(c)) {
+					int blankEnd = pos + 1;
+					while(blankEnd < zoneSize && this.wantedChars[blankEnd] == c) { blankEnd++; }
+					if ((blankEnd - pos) >= MinRepeatRunLength) {
+						this.buf3270.repeatToAddress((blankEnd / this.altCols) + 1, (blankEnd % this.altCols) + 1, c);
+						this.commitToShadow(pos, blankEnd);
+						pos = blankEnd;
+						continue;
+					}
+				} else if (this.wantedColors[pos] != currColor) {
+					currColor = this.wantedColors[pos];
+					this.buf3270.setAttributeColor(currColor);
+				}
+				this.buf3270.appendEbcdic(c);
+				this.commitToShadow(pos, pos + 1);
+				pos++;
+			}
+		}
+		
 		if (flush) {
-			this.buf3270
-				.telnetEOR()
-				.writeToSink(this.osToTerm, true);
+			this.sendStream();
 		}
 	}
 	
+	// is the character invisible, so its color does not matter?
+	private static boolean isBlank(byte c) {
+		return c == (byte)0x00 || c == (byte)0x40;
+	}
+	
+	// must the screen position in the output area be rewritten?
+	private boolean isChanged(int pos) {
+		byte c = this.wantedChars[pos];
+		if (c != this.shadowChars[pos]) { return true; }
+		return !isBlank(c) && this.wantedColors[pos] != this.shadowColors[pos];
+	}
+	
+	// take over the wanted content of the screen positions as written to the terminal
+	private void commitToShadow(int from, int to) {
+		System.arraycopy(this.wantedChars, from, this.shadowChars, from, to - from);
+		System.arraycopy(this.wantedColors, from, this.shadowColors, from, to - from);
+	}
+	
 	/**
 	 * Low-level method to repaint the input area of the MECAFF-console, creating the 
 	 * 3270 orders and data writes necessary, but not the introducing CCW/WCC-stuff.  
@@ -1224,9 +1422,7 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 		}
 		
 		if (flush) {
-			this.buf3270
-				.telnetEOR()
-				.writeToSink(this.osToTerm, true);
+			this.sendStream();
 		}
 	}
 	
@@ -1236,7 +1432,7 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 	 */
 	private void redrawOutputZoneAlone() throws IOException {
 		logger.trace("-------------------- redrawOutputZoneAlone() -----");
-		this.OutPause();
+		if (this.holdWhileBacklogged() || this.holdForTransmissionDelay()) { return; }
 		if (!this.lastFullScreenOverwritten) {
 			this.redrawScreen();
 			return;
@@ -1244,6 +1440,7 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 		this.buf3270
 			.clear()
 			.cmdWrite(false, true, false);
+		this.outputZonePending = false;
 		this.redrawOutputZone(false, true);
 		this.lastFullScreenOverwritten = true;
 	}
@@ -1264,7 +1461,7 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 	 */
 	private void redrawInputZoneAlone(boolean promptOnly) throws IOException {
 		logger.trace("-------------------- redrawInputZoneAlone(", promptOnly, ") -----");
-		this.OutPause();
+		if (this.holdWhileBacklogged() || this.holdForTransmissionDelay()) { return; }
 		if (!this.lastFullScreenOverwritten) {
 			this.redrawScreen();
 			return;
@@ -1272,6 +1469,11 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 		this.buf3270
 			.clear()
 			.cmdWrite(false, true, false);
+		if (this.outputZonePending) {
+			// include the pending host output, as the input area changes are related to it
+			this.outputZonePending = false;
+			this.redrawOutputZone(false, false);
+		}
 		this.redrawInputZone(true, promptOnly);
 		this.lastFullScreenOverwritten = true;
 	}
@@ -1282,13 +1484,16 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 	 */
 	public void redrawScreen() throws IOException {
 		logger.trace("-------------------- redrawScreen() -----");
-		this.OutPause();
+		if (this.holdWhileBacklogged() || this.holdForTransmissionDelay()) { return; }
+		this.redrawDeferred = false;
+		this.redrawPaced = false;
 		this.buf3270.clear();
 		if (this.doEwa) {
 			this.buf3270.cmdEraseWriteAlternate(false, true, false);
 		} else {
 			this.buf3270.cmdEraseWrite(false, true, false);
 		}
+		this.outputZonePending = false;
 		this.redrawInputZone(false, false);
 		this.redrawOutputZone(true, true);
 		this.lastFullScreenOverwritten = true;
@@ -1346,24 +1551,62 @@ public class Vm3270Console implements IVm3270ConsoleCompletedSink, Runnable, Ebc
 		}
 	}
 
+	// get the timer thread shared by all consoles
+	private static synchronized ScheduledExecutorService getTickTimer() {
+		if (tickTimer == null) {
+			tickTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thr = new Thread(r, "Vm3270console Session-&Timer-Tick");
+				thr.setDaemon(true);
+				return thr;
+			});
+		}
+		return tickTimer;
+	}
+
+	// get the threads processing the ticks for all consoles (ending when idle)
+	private static synchronized ExecutorService getTickWorkers() {
+		if (tickWorkers == null) {
+			tickWorkers = Executors.newCachedThreadPool(r -> {
+				Thread thr = new Thread(r, "Vm3270console Tick-Worker");
+				thr.setDaemon(true);
+				return thr;
+			});
+		}
+		return tickWorkers;
+	}
+
 	/**
-	 * Background thread implementation allowing for timeouts with 1/10 and 1 second resolution.
+	 * Timer thread: let a worker thread process the tick, so a tick blocking while writing
+	 * to the terminal (e.g. pausing between output streams) does not delay the ticks of
+	 * the other consoles; the tick is skipped if the last tick of this console is still
+	 * being processed.
 	 */
-	@Override
-	public void run() {
+	private void dispatchTick() {
+		if (this.closed || !this.tickRunning.compareAndSet(false, true)) { return; }
+		getTickWorkers().execute(() -> {
+			try {
+				this.onTick();
+			} finally {
+				this.tickRunning.set(false);
+			}
+		});
+	}
+
+	/**
+	 * Timer tick handler (called every 1/10 second) allowing for timeouts with 1/10 and 1 second resolution.
+	 */
+	private void onTick() {
+		if (this.closed) { return; }
 		try {
-			int sessionCounter = 0;
-			while(!this.closed) {
-				this.onTimerTick();
-				sessionCounter++;
-				if (sessionCounter > 10) {
-					  this.onSessionTick();
-					  sessionCounter = 0;
-				}
-				Thread.sleep(100);
+			this.onTimerTick();
+			this.sessionTickCounter++;
+			if (this.sessionTickCounter > 10) {
+				  this.onSessionTick();
+				  this.sessionTickCounter = 0;
 			}
-		} catch(InterruptedException exc) {
-			// ignored, ticker is stopped when interruption occurs
-		}		
+		} catch(RuntimeException exc) {
+			// ignored, the ticks must go on
+			logger.error("Vm3270Console: error in timer tick: ", exc.toString());
+		}
 	}
 }
@@ -12,10 +12,11 @@
 
 package dev.hawala.vm370.print;
 
-import dev.hawala.vm370.ebcdic.EbcdicHandler;
+import dev.hawala.vm370.ebcdic.EbcdicTranscoder;
 import dev.hawala.vm370.spool.iSpoolDevice;
 import dev.hawala.vm370.vm.device.iDeviceIO;
 import dev.hawala.vm370.vm.device.iDeviceStatus;
+import dev.hawala.vm370.vm.machine.NullEventTracker;
 import dev.hawala.vm370.vm.machine.iProcessorEventTracker;
 
 /**
@@ -31,11 +32,6 @@ public class PrintDev1403 implements iSpoolDevice {
 	// the log sink for our log outputs
 	private iProcessorEventTracker eventLogger;
 	
-	// a /dev/null event tracker
-	private static class NullTracker implements iProcessorEventTracker {
-		public void logLine(String line, Object... args) {};
-	}
-	
 	// immutable data for this printer (as owned by this VM)
 	private final String username;
 	private final String outputDirectory;
@@ -44,7 +40,7 @@ public class PrintDev1403 implements iSpoolDevice {
 	private iPrintSink currentSink;
 	
 	public PrintDev1403(iProcessorEventTracker eventTracker, String username, String outputDirectory) {
-		this.eventLogger = (eventTracker == null) ? new NullTracker() : eventTracker;
+		this.eventLogger = (eventTracker == null) ? NullEventTracker.INSTANCE : eventTracker;
 		this.username = username;
 		this.outputDirectory = outputDirectory;
 		
@@ -61,7 +57,7 @@ public class PrintDev1403 implements iSpoolDevice {
 		} catch(Exception e) {
 			System.out.printf("** PrintDev1403: unable to create simple print sink :: %s", e.getLocalizedMessage());
 			return new iPrintSink() {
-				@Override public void printLine(String line) { }
+				@Override public void printLine(byte[] line, int length) { }
 				@Override public void spaceLines(int count) { }
 				@Override public void skipToChannel(int channel) { }
 				@Override public void close(String closeInfo) { }
@@ -456,17 +452,18 @@ public class PrintDev1403 implements iSpoolDevice {
 	
 	
 	private final byte[] lineBuffer = new byte[133];
-	private final EbcdicHandler ebcdicBuffer = new EbcdicHandler(133);
+	private final byte[] asciiBuffer = new byte[133];
+	private final EbcdicTranscoder transcoder = EbcdicTranscoder.getDefault();
 	private void printLine(iDeviceIO memSource, int lineFeed) {
 		this.ensureSink();
 		
 		int count = memSource.transfer(this.lineBuffer, 0, this.lineBuffer.length);
 		int strLength = (count < 0) ?  this.lineBuffer.length + count : this.lineBuffer.length;
 		this.map(strLength);
-		this.ebcdicBuffer.reset().appendEbcdic(this.lineBuffer, 0, strLength);
+		this.transcoder.toAscii(this.lineBuffer, 0, strLength, this.asciiBuffer, 0);
 		
-		// System.out.printf("PRT(%s,+%d)[%03d]>>%s<<\n", this.username, lineFeed, strLength, this.ebcdicBuffer.getString());
-		this.currentSink.printLine(this.ebcdicBuffer.getString());
+		// System.out.printf("PRT(%s,+%d)[%03d]>>%s<<\n", this.username, lineFeed, strLength, new String(this.asciiBuffer, 0, strLength));
+		this.currentSink.printLine(this.asciiBuffer, strLength);
 		if (lineFeed > 0) {
 			this.currentSink.spaceLines(lineFeed);
 		}
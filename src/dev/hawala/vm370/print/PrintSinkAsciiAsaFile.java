@@ -33,10 +33,11 @@ public class PrintSinkAsciiAsaFile extends PrintFileSinkBase {
 	}
 
 	@Override
-	public void printLine(String line) {
+	public void printLine(byte[] line, int length) {
 		// no spacing / channel-movement so far? => then overwrite
 		if (this.writeControlChar) { this.write('+'); } // Suppress space before printing
-		this.println(line);
+		this.write(line, length);
+		this.println("");
 		this.writeControlChar = true;
 	}
 
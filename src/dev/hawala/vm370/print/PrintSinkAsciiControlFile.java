@@ -32,8 +32,8 @@ public class PrintSinkAsciiControlFile extends PrintFileSinkBase {
 	}
 
 	@Override
-	public void printLine(String line) {
-		this.write(line);
+	public void printLine(byte[] line, int length) {
+		this.write(line, length);
 		this.write(CR);
 	}
 
@@ -59,23 +59,34 @@ public class PrintSinkPostscript extends PrintFileSinkBase {
 		this.println("");
 	}
 
+	// the postscript line currently built (with escapes at most 4 bytes per character)
+	private static final byte[] PRT_LINE_END = (") prt-line" + System.lineSeparator()).getBytes();
+	private byte[] psLine = new byte[(133 * 4) + 1 + PRT_LINE_END.length];
+
 	@Override
-	public void printLine(String line) {
-		this.write("(");
-		for (byte b : line.getBytes()) {
-			if (b == '(') {
-				this.write("\\(");
-			} else if (b == ')') {
-				this.write("\\)");
-			} else if (b == '\\') {
-				this.write("\\\\");
+	public void printLine(byte[] line, int length) {
+		int maxLength = (length * 4) + 1 + PRT_LINE_END.length;
+		if (this.psLine.length < maxLength) { this.psLine = new byte[maxLength]; }
+		byte[] ps = this.psLine;
+		int pos = 0;
+		ps[pos++] = '(';
+		for (int i = 0; i < length; i++) {
+			byte b = line[i];
+			if (b == '(' || b == ')' || b == '\\') {
+				ps[pos++] = '\\';
+				ps[pos++] = b;
 			} else if (b >= 0) {
-				this.write(b);
+				ps[pos++] = b;
 			} else {
-				this.printf("\\%03o", 256 + b);
+				int c = b & 0xFF;
+				ps[pos++] = '\\';
+				ps[pos++] = (byte)('0' + (c >> 6));
+				ps[pos++] = (byte)('0' + ((c >> 3) & 0x07));
+				ps[pos++] = (byte)('0' + (c & 0x07));
 			}
 		}
-		this.println(") prt-line");
+		System.arraycopy(PRT_LINE_END, 0, ps, pos, PRT_LINE_END.length);
+		this.write(ps, pos + PRT_LINE_END.length);
 	}
 
 	@Override
@@ -35,10 +35,14 @@ public interface iPrintSink extends iSpoolCloseableFile {
 	 * If possible, when 2 consecutive calls to this method occur,
 	 * the second call should overprint (not replace) the output
 	 * of the previous call. 
+	 * <p>
+	 * The line buffer is reused by the caller, so the line must be
+	 * processed before returning. 
 	 * 
-	 * @param line the text to be written as a single line.
+	 * @param line the buffer with the ASCII bytes of the text to be written as a single line.
+	 * @param length the number of bytes in {@code line} to write.
 	 */
-	public void printLine(String line);
+	public void printLine(byte[] line, int length);
 	
 	/**
 	 * Advance the current position by the given number of lines,
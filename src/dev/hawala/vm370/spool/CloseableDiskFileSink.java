@@ -12,7 +12,9 @@
 
 package dev.hawala.vm370.spool;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 
@@ -72,7 +74,7 @@ public abstract class CloseableDiskFileSink implements iSpoolCloseableFile {
 		this.outputFilename = this.outputFilenameBase + "." + this.extension;
 		this.destFile = new File(this.outputFilename);
 		this.destFile.createNewFile();
-		this.sink = new PrintStream(this.destFile);
+		this.sink = new PrintStream(new BufferedOutputStream(new FileOutputStream(this.destFile)));
 	}
 
 	@Override
@@ -28,12 +28,19 @@ import dev.hawala.vm370.mecaff.ByteBuffer;
  * The methods of this class allow a more or less high level creation
  * of 3270 output streams without having to manipulate the bytes of
  * the stream or with the coordinate to buffer address conversions. 
+ * <p>
+ * If created for telnet escaping, the 0xFF bytes are doubled in place while
+ * appending, so the stream (completed with {@link #telnetEOR()}) is ready to
+ * be sent as is to a tn3270 terminal with a single write, allowing to reuse
+ * the same instance (and its buffer) for all output to the terminal. 
  * 
  * @author Dr. Hans-Walter Latz, Berlin (Germany), 2011,2012
  */
 public class DataOutStream3270 {
 	
 	private static Log logger = Log.getLogger();
+	
+	private static final byte IAC = (byte)0xFF;
 
 	private int maxLength;
 	private byte[] buffer;
@@ -43,6 +50,8 @@ public class DataOutStream3270 {
 	private final int alternateRows;
 	private final boolean canExtended;
 	
+	private final boolean telnetEscaped;
+	
 	private final EbcdicHandler ebcdicString = new EbcdicHandler();
 	
 	private BufferAddress ba = new BufferAddress();
@@ -63,12 +72,27 @@ public class DataOutStream3270 {
 	 * @param canExtended flag indicating f the terminal supports extended highlighting.
 	 */
 	public DataOutStream3270(int alternateCols, int alternateRows, boolean canExtended){
+		this(alternateCols, alternateRows, canExtended, false);
+	}
+	
+	/**
+	 * Construct the instance for a 3270 terminal possibly supporting 
+	 * extended highlighting and with the given alternative screen size,
+	 * optionally escaping the telnet IAC bytes when appending.
+	 * @param alternateCols number of columns in the alternative screen geometry.
+	 * @param alternateRows number of columns in the alternative screen geometry.
+	 * @param canExtended flag indicating f the terminal supports extended highlighting.
+	 * @param telnetEscaped if <code>true</code>, bytes with code 0xFF are doubled
+	 *   for the telnet transport encoding when appended.
+	 */
+	public DataOutStream3270(int alternateCols, int alternateRows, boolean canExtended, boolean telnetEscaped){
 		this.maxLength = 16384;
-		this.buffer = new byte[this.maxLength];
+		this.buffer = new byte[this.maxLength + 2]; // always leave room for the telnet EOR
 		
 		this.alternateCols = alternateCols;
 		this.alternateRows = alternateRows;
 		this.canExtended = canExtended;
+		this.telnetEscaped = telnetEscaped;
 	}
 	
 	private DataOutStream3270 appendByte(OrderCode3270 code) {
@@ -76,11 +100,47 @@ public class DataOutStream3270 {
 	}
 	
 	private DataOutStream3270 appendByte(byte b) {
-		if (this.currLength >= this.maxLength) { return this; }
+		if (this.telnetEscaped && b == IAC) {
+			if ((this.currLength + 2) > this.maxLength) { return this; }
+			this.buffer[this.currLength++] = IAC;
+		} else if (this.currLength >= this.maxLength) {
+			return this;
+		}
 		this.buffer[this.currLength++] = b;
 		return this;
 	}
 	
+	private void appendAddress(int row, int col) {
+		int start = this.currLength;
+		this.currLength = this.ba.encode(this.buffer, this.currLength, row, col, true);
+		this.escapeFrom(start);
+	}
+	
+	// limit the bytes appended since 'from' to the max. length and double the IAC bytes
+	// by shifting the bytes right from the end, dropping trailing bytes not fitting
+	private void escapeFrom(int from) {
+		if (this.currLength > this.maxLength) { this.currLength = this.maxLength; }
+		if (!this.telnetEscaped) { return; }
+		int iacCount = 0;
+		for (int i = from; i < this.currLength; i++) {
+			if (this.buffer[i] == IAC) { iacCount++; }
+		}
+		if (iacCount == 0) { return; }
+		int end = this.currLength;
+		int newLength = end + iacCount;
+		while(newLength > this.maxLength) {
+			newLength -= (this.buffer[--end] == IAC) ? 2 : 1;
+		}
+		int src = end;
+		int trg = newLength;
+		while(src != trg) {
+			byte b = this.buffer[--src];
+			this.buffer[--trg] = b;
+			if (b == IAC) { this.buffer[--trg] = b; }
+		}
+		this.currLength = newLength;
+	}
+	
 	/*
 	 * ---------------------------- generals
 	 */
@@ -94,13 +154,22 @@ public class DataOutStream3270 {
 		return this;
 	}
 	
+	/**
+	 * Get the current length of the 3270 output stream.
+	 * @return the number of bytes in the output stream.
+	 */
+	public int getLength() {
+		return this.currLength;
+	}
+	
 	/**
 	 * Append the telnet end-of-record byte sequence.
 	 * @return this instance for function call chaining.
 	 */
 	public DataOutStream3270 telnetEOR() {
-		this.appendByte((byte)0xFF);
-		this.appendByte((byte)0xEF);
+		if ((this.currLength + 2) > this.buffer.length) { return this; }
+		this.buffer[this.currLength++] = IAC;
+		this.buffer[this.currLength++] = (byte)0xEF;
 		return this;
 	}
 	
@@ -202,7 +271,7 @@ public class DataOutStream3270 {
 	public DataOutStream3270 setBufferAddress(int row, int col) {
 		if ((this.currLength + 3) > this.maxLength) { return this; }
 		this.appendByte(OrderCode3270.SBA);
-		this.currLength = this.ba.encode(this.buffer, this.currLength, row, col, true);
+		this.appendAddress(row, col);
 		return this;
 	}
 	
@@ -215,7 +284,7 @@ public class DataOutStream3270 {
 	public DataOutStream3270 repeatToAddress(int row, int col, byte repeatByte) {
 		if ((this.currLength + 4) > this.maxLength) { return this; }
 		this.appendByte(OrderCode3270.RA);
-		this.currLength = this.ba.encode(this.buffer, this.currLength, row, col, true);
+		this.appendAddress(row, col);
 		this.appendByte(repeatByte);
 		return this;
 	}
@@ -229,7 +298,7 @@ public class DataOutStream3270 {
 	public DataOutStream3270 eraseUnprotectedToAddress(int row, int col) {
 		if ((this.currLength + 3) > this.maxLength) { return this; }
 		this.appendByte(OrderCode3270.EUA);
-		this.currLength = this.ba.encode(this.buffer, this.currLength, row, col, true);
+		this.appendAddress(row, col);
 		return this;
 	}
 	
@@ -412,8 +481,10 @@ public class DataOutStream3270 {
 	 * @return this instance for function call chaining.
 	 */
 	public DataOutStream3270 appendEbcdic(EbcdicHandler eString) {
+		int start = this.currLength;
 		this.ba.moveNext(eString.getLength());
 		this.currLength = eString.addTo(this.buffer, this.currLength);
+		this.escapeFrom(start);
 		return this;
 	}
 	
@@ -439,9 +510,12 @@ public class DataOutStream3270 {
 		if (offset >= fromBytes.length) { return this; }
 		length = Math.min(fromBytes.length - offset, length);
 		this.ba.moveNext(length);
-		while(this.currLength < this.maxLength && length > 0) {
-			this.buffer[this.currLength++] = fromBytes[offset++];
-			length--;
+		int start = this.currLength;
+		length = Math.min(this.maxLength - this.currLength, length);
+		if (length > 0) {
+			System.arraycopy(fromBytes, offset, this.buffer, this.currLength, length);
+			this.currLength += length;
+			this.escapeFrom(start);
 		}
 		return this;
 	}
@@ -461,10 +535,12 @@ public class DataOutStream3270 {
 	 * @return this instance for function call chaining.
 	 */
 	public DataOutStream3270 appendUnicode(String unicodeString) {
+		int start = this.currLength;
 		this.currLength = this.ebcdicString
 			.reset()
 		    .appendUnicode(unicodeString)
 			.addTo(this.buffer, this.currLength);
+		this.escapeFrom(start);
 		this.ba.moveNext(unicodeString.length());
 		return this;
 	}
@@ -474,7 +550,8 @@ public class DataOutStream3270 {
 	 */
 	
 	/**
-	 * Write the 3270 output stream to the given output stream.
+	 * Write the 3270 output stream to the given output stream with a single
+	 * write, without copying the data.
 	 * @param sink the output stream to write to.
 	 * @param reset if <code>true</code>, the internal buffer is cleared after
 	 * sending the 3270 output stream.
@@ -501,6 +578,11 @@ public class DataOutStream3270 {
 	 * ---------------------------- getting a ByteBuffer form the current content
 	 */
 	
+	/**
+	 * Append the current content to a byte buffer (as is, i.e. telnet-escaped if
+	 * this instance escapes the IAC bytes).
+	 * @param b the byte buffer to append to.
+	 */
 	public void appendTo(ByteBuffer b) {
 		if (this.currLength == 0) { return; }
 		int start = b.reserveSpace(this.currLength);
@@ -12,11 +12,13 @@
 
 package dev.hawala.vm370.tape;
 
+import java.io.IOException;
 import java.util.Arrays;
 
 import dev.hawala.vm370.vm.device.iDevice;
 import dev.hawala.vm370.vm.device.iDeviceIO;
 import dev.hawala.vm370.vm.device.iDeviceStatus;
+import dev.hawala.vm370.vm.machine.NullEventTracker;
 import dev.hawala.vm370.vm.machine.iProcessorEventTracker;
 
 /**
@@ -24,7 +26,7 @@ import dev.hawala.vm370.vm.machine.iProcessorEventTracker;
  * 
  * <p>
  * A tape device has initially no tape loaded. Tape can be loaded through tape providers, which
- * read tape files and can write new tape files from an in-memory tape.
+ * give access to the blocks of tape files and write changes to the tape file in place.
  * </p>
  * 
  * <p>
@@ -39,25 +41,23 @@ public class TapeDrive implements iDevice {
 	// the log sink for our log outputs
 	private iProcessorEventTracker eventLogger;
 	
-	// a /dev/null event tracker
-	private static class NullTracker implements iProcessorEventTracker {
-		public void logLine(String line, Object... args) {};
-	}
-	
-	// the head an tail blocks used to delimit the tape blosk in memory
-	private final TapeBlock headLimit;
-	private final TapeBlock tailLimit;
-	
 	// the current tape mounted in this device
 	private iTapeIo tapeIo = null; // null => not tape mounted
 	private boolean isReadonly = true; // "write ring not mounted" resp. "enable ring not installed"
 	
-	// the last sequential tape block processed 
-	private TapeBlock currentBlock;
+	// the last sequential tape block processed, 1-based: 0 is the load point and
+	// 'block count + 1' the end of the tape (behind the last block)
+	private int currentBlock = 0;
 	
-	// has the tape been changed and should be written back
+	// has the tape been changed
 	private boolean isModified = false;
 	
+	// the buffer for transferring block data (allocated when needed)
+	private byte[] blockBuffer = null;
+	
+	// max. length of a tape block
+	private static final int MAX_BLOCK_LENGTH = 65535;
+	
 	// are we waiting for a tape to be mounted after a tape access failed
 	private boolean hasFailedAccessAttempt = false;
 	
@@ -74,17 +74,13 @@ public class TapeDrive implements iDevice {
 	 * @param eventTracker the logger to be used or {@code null} for /dev/null logging. 
 	 */
 	public TapeDrive(iProcessorEventTracker eventTracker) {
-		this.headLimit = new TapeBlock();
-		this.tailLimit = new TapeBlock();
-		this.headLimit.append(this.tailLimit);
-		this.currentBlock = this.headLimit;
-		this.eventLogger = (eventTracker == null) ? new NullTracker() : eventTracker;
+		this.eventLogger = (eventTracker == null) ? NullEventTracker.INSTANCE : eventTracker;
 	}
 	
 	/**
-	 * Mount a tape file from disk into memory, possibly creating it it does not exists. 
+	 * Mount a tape file from disk, possibly creating it it does not exists. 
 	 * 
-	 * @param filename the filename for the tape file to load into memory
+	 * @param filename the filename for the tape file to mount
 	 * @param createIfNew if the file does not exists, create the file if {@code true}.
 	 * @param writable simulate tape loading with write ring ({@code true}} to allow
 	 *   writes to the tape or not.
@@ -109,39 +105,35 @@ public class TapeDrive implements iDevice {
 		// we have a new tape: dismount the current tape and initialize drive for the new tape
 		this.dismountTapeFile();
 		this.tapeIo = newTapeIo;
-		newTapeIo.readTapeFile(this.headLimit, this.tailLimit);
 		this.isReadonly = !newTapeIo.isWritable(); // even if writable was requested, the file may be read/only...
 		this.isModified = false;
-		this.currentBlock = this.headLimit;
+		this.currentBlock = 0;
 		this.hasFailedAccessAttempt = false;
 		this.resetSense();
 	}
 	
 	/**
-	 * Unload the current tape if one is mounted, possibly writing it back
-	 * iff it was modified.
+	 * Unload the current tape if one is mounted, closing the tape file
+	 * (modifications were already written to the tape file).
 	 */
 	public void dismountTapeFile() {
 		if (this.tapeIo == null) { return; } // no tape mounted
 		
-		if (this.needsSaving()) {
-			this.tapeIo.writeTapeFile(this.headLimit, this.tailLimit);
-		}
+		this.tapeIo.close();
 		this.tapeIo = null;
 		
-		this.headLimit.append(this.tailLimit);
-		this.tailLimit.append(null); // (just to be sure)
-		
 		this.isModified = false;
 		this.isReadonly = true;
-		this.currentBlock = this.headLimit;
+		this.currentBlock = 0;
+		this.blockBuffer = null;
 		this.hasFailedAccessAttempt = false;
 		
 		this.resetSense();
 	}
 	
 	/**
-	 * Check if the file should be written back to disk.
+	 * Check if the tape was modified and should be dismounted before the
+	 * device is detached.
 	 * 
 	 * @return {@code true} if the file was modified.
 	 */
@@ -167,6 +159,7 @@ public class TapeDrive implements iDevice {
 	private static final int Sense_CommandReject        = 0x80000000;
 	private static final int Sense_NotTapeWritable      = 0x80000000;
 	private static final int Sense_InterventionRequired = 0x40000000;
+	private static final int Sense_EquipmentCheck       = 0x10000000;
 	
 	// sense byte 1 (set in updateUnitStatus based on other fields) 
 	private static final int Sense_Ready                = 0x00400000;
@@ -178,17 +171,44 @@ public class TapeDrive implements iDevice {
 	private static final int Sense_EndOfTape            = 0x00002000;
 	private static final int Sense_IllegalCommand       = 0x80000100; // sets also CommandReject !!
 	
+	/*
+	 * tape positions
+	 */
+	
+	// get the position at the end of the tape (behind the last block)
+	private int endPosition() {
+		return (this.tapeIo == null) ? 1 : this.tapeIo.getBlockCount() + 1;
+	}
+	
+	// is the tape positioned at its end?
+	private boolean isAtEnd() {
+		return this.tapeIo != null && this.currentBlock >= this.endPosition();
+	}
+	
+	// is the block at the given position a tape mark?
+	private boolean isTapemark(int position) {
+		return position > 0 && this.tapeIo.isTapemark(position - 1);
+	}
+	
+	// drop the blocks behind the current block from the tape (all blocks if at load point),
+	// returning the position of the last block kept
+	private int truncateAtCurrent() throws IOException {
+		int keep = Math.min(this.currentBlock, this.tapeIo.getBlockCount());
+		this.tapeIo.truncate(keep);
+		return keep;
+	}
+	
 	// set the sense flags about the status of the loaded tape
 	private void updateUnitStatus() {
 		int b1 = Sense_NotReady;
 		if (this.tapeIo != null) {
 			b1 = Sense_Ready;
-			b1 |= (this.currentBlock == this.headLimit) ? Sense_AtLoadPoint : 0;
+			b1 |= (this.currentBlock == 0) ? Sense_AtLoadPoint : 0;
 			b1 |= (this.isReadonly) ? Sense_FileProtected : 0;
 		}
 		this.senseBytes[1] = (byte)((b1 >> 16) & 0xFF);
 		
-		int b4 = (this.currentBlock == this.tailLimit) ? Sense_EndOfTape : 0;
+		int b4 = (this.isAtEnd()) ? Sense_EndOfTape : 0;
 		this.senseBytes[4] = (byte)( ((b4 >> 8) & 0xF0) | (this.senseBytes[4] & 0x0F) );
 	}
 	
@@ -257,7 +277,7 @@ public class TapeDrive implements iDevice {
 			
 		case 0x07: // Rewind
 			this.eventLogger.logLine(".. .. TapeDrive: control(REWIND)");
-			this.currentBlock = this.headLimit;
+			this.currentBlock = 0;
 			return this.exitOk();
 			
 		case 0x0F: // Rewind-unload
@@ -271,7 +291,7 @@ public class TapeDrive implements iDevice {
 				return this.exitUnitCheck(Sense_NotTapeWritable);
 			}
 			// erase gap effectively drops the rest of the tape content...
-			this.currentBlock = this.tailLimit;
+			this.currentBlock = this.endPosition();
 			this.isModified = true;
 			return this.exitOk();
 			
@@ -281,64 +301,59 @@ public class TapeDrive implements iDevice {
 				return this.exitUnitCheck(Sense_NotTapeWritable);
 			}
 			
-			// at tape end: append new things before tailLimit
-			if (this.currentBlock == this.tailLimit) {
-				this.currentBlock = this.tailLimit.getPrev();
+			// append the tapemark after the current block, dropping the rest of the tape
+			try {
+				this.currentBlock = this.truncateAtCurrent();
+				this.tapeIo.appendTapemark();
+			} catch (IOException e) {
+				this.eventLogger.logLine("          -> write error: %s", e.getMessage());
+				return this.exitUnitCheck(Sense_EquipmentCheck);
+			} finally {
+				this.isModified = true;
 			}
-			
-			// append the tapemark
-			TapeBlock tapeMark = new TapeBlock(this.currentBlock);
-			tapeMark.append(this.tailLimit);
-			this.currentBlock = tapeMark;
-			this.isModified = true;
+			this.currentBlock++;
 			
 			// done
 			return this.exitOk();
 			
 		case 0x27: // Backspace block
 			this.eventLogger.logLine(".. .. TapeDrive: control(BACKSPACE-BLOCK)");
-			if (this.currentBlock == this.headLimit) {
+			if (this.currentBlock == 0) {
 				return this.exitOk();
 			}
-			this.currentBlock = this.currentBlock.getPrev();
-			if (this.currentBlock.isTapemark()) {
+			this.currentBlock = Math.min(this.currentBlock, this.endPosition()) - 1;
+			if (this.isTapemark(this.currentBlock)) {
 				this.exitUnitException(); 
 			}
 			return this.exitOk();
 			
 		case 0x2F: // Backspace file
 			this.eventLogger.logLine(".. .. TapeDrive: control(BACKSPACE-FILE)");
-			if (this.currentBlock == this.headLimit) {
+			if (this.currentBlock == 0) {
 				return this.exitOk();
 			}
-			while(this.currentBlock != this.headLimit && !this.currentBlock.isTapemark()) {
-				this.currentBlock = this.currentBlock.getPrev();
-			}
-			if (this.currentBlock != this.headLimit) {
-				this.currentBlock = this.currentBlock.getPrev();
-			}
+			int prevTapemark = this.tapeIo.findTapemark(Math.min(this.currentBlock, this.endPosition()) - 1, false);
+			this.currentBlock = Math.max(0, prevTapemark); // stop before the tape mark resp. at load point
 			return this.exitOk();
 			
 		case 0x37: // Forwardspace block
 			this.eventLogger.logLine(".. .. TapeDrive: control(FORWARDSPACE-BLOCK)");
-			if (this.currentBlock == this.tailLimit) {
+			if (this.isAtEnd()) {
 				return this.exitOk();
 			}
-			this.currentBlock = this.currentBlock.getNext();
-			if (this.currentBlock.isTapemark()) {
+			this.currentBlock++;
+			if (this.isTapemark(this.currentBlock)) {
 				this.exitUnitException(); 
 			}
 			return this.exitOk();
 			
 		case 0x3F: // Forwardspace file
 			this.eventLogger.logLine(".. .. TapeDrive: control(FORWARDSPACE-FILE)");
-			if (this.currentBlock == this.tailLimit) {
+			if (this.isAtEnd()) {
 				return this.exitOk();
 			}
-			this.currentBlock = this.currentBlock.getNext();
-			while(this.currentBlock != this.tailLimit && !this.currentBlock.isTapemark()) {
-				this.currentBlock = this.currentBlock.getNext();
-			}
+			int nextTapemark = this.tapeIo.findTapemark(this.currentBlock, true);
+			this.currentBlock = (nextTapemark < 0) ? this.endPosition() : nextTapemark + 1; // behind the tape mark resp. at the end
 			return this.exitOk();
 		
 		case 0x53: case 0x63: case 0x6B: case 0x73: case 0x7B:
@@ -353,11 +368,17 @@ public class TapeDrive implements iDevice {
 			if (this.isReadonly) {
 				return this.exitUnitCheck(Sense_NotTapeWritable);
 			}
-			if (this.currentBlock == this.tailLimit) {
+			if (this.isAtEnd()) {
 				return this.exitOk();
 			}
-			this.currentBlock.append(this.tailLimit);
-			this.isModified = true;
+			try {
+				this.truncateAtCurrent();
+			} catch (IOException e) {
+				this.eventLogger.logLine("          -> write error: %s", e.getMessage());
+				return this.exitUnitCheck(Sense_EquipmentCheck);
+			} finally {
+				this.isModified = true;
+			}
 			return this.exitOk();
 			
 		case 0x1B: // request data in error
@@ -425,21 +446,25 @@ public class TapeDrive implements iDevice {
 			
 		case 0x02: // Read forward
 			this.eventLogger.logLine(".. .. TapeDrive: read(READ) [ dataLength = %d ]", dataLength);
-			TapeBlock nextBlock = (this.currentBlock == this.tailLimit) ? this.tailLimit: this.currentBlock.getNext();
-			if (nextBlock == null) { this.currentBlock = this.tailLimit; }
-			this.currentBlock = nextBlock;
-			if (this.currentBlock == this.tailLimit) {
+			if (!this.isAtEnd()) { this.currentBlock++; }
+			if (this.isAtEnd()) {
 				this.eventLogger.logLine("          -> end-of-tape");
 				return this.exitUnitCheck(Sense_EndOfTape);
 			}
-			if (this.currentBlock.isTapemark()) {
+			if (this.isTapemark(this.currentBlock)) {
 				this.eventLogger.logLine("          -> tape-mark");
 				return this.exitUnitException(); // signal the tape mark
 			}
 			
-			byte[] blockData = this.currentBlock.getBlockData();
-			memTarget.transfer(blockData, 0, blockData.length);
-			this.eventLogger.logLine("          -> transferred tape block with %d bytes", blockData.length);
+			int blockLength;
+			try {
+				blockLength = this.tapeIo.readBlock(this.currentBlock - 1, this.getBlockBuffer());
+			} catch (IOException e) {
+				this.eventLogger.logLine("          -> read error: %s", e.getMessage());
+				return this.exitUnitCheck(Sense_EquipmentCheck);
+			}
+			memTarget.transfer(this.blockBuffer, 0, blockLength);
+			this.eventLogger.logLine("          -> transferred tape block with %d bytes", blockLength);
 			
 			return this.exitOkIgnoreLength();
 		
@@ -474,20 +499,21 @@ public class TapeDrive implements iDevice {
 				return this.exitUnitCheck(Sense_CommandReject);
 			}
 			
-			// at tape end: append new things before tailLimit
-			if (this.currentBlock == this.tailLimit) {
-				this.currentBlock = this.tailLimit.getPrev();
-			}
-			
 			// get the block data
-			byte[] blockContent = new byte[dataLength];
-			memSource.transfer(blockContent, 0, blockContent.length);
+			int blockLength = Math.min(dataLength, MAX_BLOCK_LENGTH);
+			memSource.transfer(this.getBlockBuffer(), 0, blockLength);
 			
-			// create new tape block 
-			TapeBlock newBlock = new TapeBlock(this.currentBlock, blockContent);
-			newBlock.append(this.tailLimit);
-			this.currentBlock = newBlock;
-			this.isModified = true;
+			// append the new block after the current block, dropping the rest of the tape
+			try {
+				this.currentBlock = this.truncateAtCurrent();
+				this.tapeIo.appendBlock(this.blockBuffer, blockLength);
+			} catch (IOException e) {
+				this.eventLogger.logLine("          -> write error: %s", e.getMessage());
+				return this.exitUnitCheck(Sense_EquipmentCheck);
+			} finally {
+				this.isModified = true;
+			}
+			this.currentBlock++;
 			
 			// done
 			return this.exitOk();
@@ -498,6 +524,12 @@ public class TapeDrive implements iDevice {
 		}
 	}
 	
+	// get the buffer for transferring block data
+	private byte[] getBlockBuffer() {
+		if (this.blockBuffer == null) { this.blockBuffer = new byte[MAX_BLOCK_LENGTH]; }
+		return this.blockBuffer;
+	}
+	
 	// fixed data sequence returned for "Sense I/O type"
 	// see: GA33-1510-1_IBM_System_370_Model_115_Functional_Characteristics_Jul76.pdf (page 167.5 (pdf: 187))
 	private final static byte[] SENSE_IO_TYPE 
@@ -634,13 +666,8 @@ public class TapeDrive implements iDevice {
 	 * @return the number of tape blocks in the current tape.
 	 */
 	public int getCurrBlockCount() {
-		int count = 0;
-		TapeBlock curr = this.headLimit.getNext();
-		while(curr != this.tailLimit) {
-			count++;
-			curr = curr.getNext();
-		}
-		return count;
+		if (this.tapeIo == null) { return 0; }
+		return this.tapeIo.getBlockCount();
 	}
 	
 	/**
@@ -649,13 +676,8 @@ public class TapeDrive implements iDevice {
 	 * 
 	 * @return the number of data bytes in the tape.
 	 */
-	public int getCurrBytes() {
-		int bytes = 0;
-		TapeBlock curr = this.headLimit.getNext();
-		while(curr != this.tailLimit) {
-			bytes += (curr.isTapemark()) ? 0 : curr.getBlockData().length;
-			curr = curr.getNext();
-		}
-		return bytes;
+	public long getCurrBytes() {
+		if (this.tapeIo == null) { return 0; }
+		return this.tapeIo.getDataByteCount();
 	}
 }
@@ -13,33 +13,83 @@
 package dev.hawala.vm370.tape;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 /**
  * Implementation for the tape format provider for AWS tapes.
- * 
+ *
+ * <p>
+ * When opening the tape file, the AWS block headers are scanned once with positional
+ * reads (skipping the block data) to build the index of the blocks, holding the file
+ * offset and length of each block as well as the block numbers of the tape marks.
+ * The block data is read from the file when a block is read, and writing to the tape
+ * truncates the file at the current block and appends the new block in place.
+ * </p>
+ *
  * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
  *
  */
 public class TapeIoAws implements iTapeIo {
-	
+
+	// length of the AWS block header:
+	// 2 bytes block length, 2 bytes previous block length (both little-endian), 2 bytes flags
+	private static final int HEADER_LENGTH = 6;
+
+	// AWS header flags (byte 0)
+	private static final byte FLAGS_TAPEMARK = (byte)0x40;
+	private static final byte FLAGS_DATA = (byte)0xA0; // start and end of record, same as Hercules for CMS tapes...
+
+	// max. length of a tape block
+	private static final int MAX_BLOCK_LENGTH = 65535;
+
 	private final String filename;
 	private final boolean canBewritten;
-	
-	private TapeIoAws(String filename, boolean canBewritten) {
+
+	private final FileChannel channel;
+
+	// the block index: file offset of the AWS header and data length (-1 for tape marks) of the blocks
+	private long[] blockOffsets = new long[1024];
+	private int[] blockLengths = new int[1024];
+	private int blockCount = 0;
+
+	// the block numbers of the tape marks in ascending order
+	private int[] tapemarks = new int[64];
+	private int tapemarkCount = 0;
+
+	// sum of the data lengths of all blocks
+	private long dataByteCount = 0;
+
+	// the file offset after the last valid block, where the next block is appended
+	private long endOffset = 0;
+
+	// are there bytes after the last valid block in the file (e.g. an incomplete block)?
+	private boolean hasTrailingBytes = false;
+
+	// the buffer for reading block headers resp. writing blocks
+	private final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+	private byte[] writeBuffer = null;
+
+	private TapeIoAws(String filename, boolean canBewritten) throws IOException {
 		this.filename = filename;
 		this.canBewritten = canBewritten;
+		this.channel = new RandomAccessFile(filename, (canBewritten) ? "rw" : "r").getChannel();
+		try {
+			this.scanBlocks();
+		} catch (IOException e) {
+			this.channel.close();
+			throw e;
+		}
 	}
-	
+
 	public static boolean isAwsFilename(String fn) {
 		return fn != null && fn.toLowerCase().endsWith(".aws");
 	}
-	
+
 	public static iTapeIo get(String filename, boolean createIfNew, boolean wantsWritable, StringBuilder msgSink) {
 		File f = new File(filename);
 		if (!f.exists()) {
@@ -77,133 +127,204 @@ public class TapeIoAws implements iTapeIo {
 				.append(filename);
 			canBewritten = false;
 		}
-		return new TapeIoAws(filename, canBewritten); 
-	}
-	
-	private static class TapeFileEnd extends Exception {
-		private static final long serialVersionUID = 1734444222273676276L;
-	};
-	
-	public static byte readByte(InputStream is) throws TapeFileEnd, IOException {
-		int b = is.read();
-		if (b < 0) {
-			throw new TapeFileEnd();
-		}
-		return (byte)(b & 0xFF);
-	}
-	
-	public static int readInt(InputStream is) throws TapeFileEnd, IOException {
-		int b0;
-		int b1;
-		
-		// Attention: this is little-endian!!!
-		b0 = readByte(is) & 0xFF;
-		b1 = readByte(is) & 0xFF;
-		return (b1 << 8) + b0;
-	}
-	
-	public static void writeInt(OutputStream os, int value) throws IOException {
-		// Attention: this is little-endian!!!
-		os.write(value & 0xFF);
-		os.write((value >> 8) & 0xFF);
-	}
-	
+		try {
+			return new TapeIoAws(filename, canBewritten);
+		} catch (IOException e) {
+			msgSink
+				.append("Error reading tape file: ")
+				.append(filename)
+				.append(" (")
+				.append(e.getMessage())
+				.append(")");
+			return null;
+		}
+	}
+
+	// read all block headers and build the block index, ignoring an incomplete last block
+	private void scanBlocks() throws IOException {
+		long fileSize = this.channel.size();
+		long offset = 0;
+		while((offset + HEADER_LENGTH) <= fileSize) {
+			this.readFully(this.header, offset);
+			int blockSize = this.header.getShort(0) & 0xFFFF;
+			byte flags0 = this.header.get(4);
+			//System.out.printf("TapeIoAws : read block (blockSize = %d ; flags0 = 0x%02X)\n", blockSize, flags0);
+			if ((offset + HEADER_LENGTH + blockSize) > fileSize) {
+				break; // incomplete block at the end of the file
+			}
+			boolean isTapemark = (blockSize == 0 && (flags0 & FLAGS_TAPEMARK) != 0);
+			this.addBlock(offset, (isTapemark) ? -1 : blockSize);
+			offset += HEADER_LENGTH + blockSize;
+		}
+		this.endOffset = offset;
+		this.hasTrailingBytes = (offset < fileSize);
+	}
+
+	// read the buffer completely from the given file position
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		buffer.clear();
+		while(buffer.hasRemaining()) {
+			int count = this.channel.read(buffer, position + buffer.position());
+			if (count < 0) {
+				throw new IOException("unexpected end of tape file");
+			}
+		}
+	}
+
+	// add a block to the index
+	private void addBlock(long offset, int length) {
+		if (this.blockCount == this.blockOffsets.length) {
+			this.blockOffsets = Arrays.copyOf(this.blockOffsets, this.blockCount * 2);
+			this.blockLengths = Arrays.copyOf(this.blockLengths, this.blockCount * 2);
+		}
+		this.blockOffsets[this.blockCount] = offset;
+		this.blockLengths[this.blockCount] = length;
+		if (length < 0) {
+			if (this.tapemarkCount == this.tapemarks.length) {
+				this.tapemarks = Arrays.copyOf(this.tapemarks, this.tapemarkCount * 2);
+			}
+			this.tapemarks[this.tapemarkCount++] = this.blockCount;
+		} else {
+			this.dataByteCount += length;
+		}
+		this.blockCount++;
+	}
+
+	// append a block with the given header flags to the file and the index
+	private void writeBlock(byte flags0, byte[] data, int length) throws IOException {
+		if (!this.canBewritten) {
+			throw new IOException("tape file is read/only");
+		}
+		if (length < 0 || length > MAX_BLOCK_LENGTH) {
+			throw new IOException("invalid tape block length: " + length);
+		}
+		if (this.hasTrailingBytes) {
+			this.channel.truncate(this.endOffset);
+			this.hasTrailingBytes = false;
+		}
+		if (this.writeBuffer == null) {
+			this.writeBuffer = new byte[HEADER_LENGTH + MAX_BLOCK_LENGTH];
+		}
+		int prevLength = (this.blockCount > 0) ? Math.max(0, this.blockLengths[this.blockCount - 1]) : 0;
+		ByteBuffer block = ByteBuffer.wrap(this.writeBuffer, 0, HEADER_LENGTH + length).order(ByteOrder.LITTLE_ENDIAN);
+		block.putShort(0, (short)length);
+		block.putShort(2, (short)prevLength);
+		block.put(4, flags0);
+		block.put(5, (byte)0);
+		if (length > 0) {
+			System.arraycopy(data, 0, this.writeBuffer, HEADER_LENGTH, length);
+		}
+		while(block.hasRemaining()) {
+			this.channel.write(block, this.endOffset + block.position());
+		}
+		this.addBlock(this.endOffset, (flags0 == FLAGS_TAPEMARK) ? -1 : length);
+		this.endOffset += HEADER_LENGTH + length;
+	}
+
 	/* (non-Javadoc)
-	 * @see dev.hawala.vm370.tape.iTapeIo#readTapeFile(dev.hawala.vm370.tape.TapeBlock, dev.hawala.vm370.tape.TapeBlock)
+	 * @see dev.hawala.vm370.tape.iTapeIo#getBlockCount()
 	 */
-	public int readTapeFile(TapeBlock headLimit, TapeBlock tailLimit) {
-		int blockCount = -1;
-		
-		TapeBlock curr = headLimit;
-		FileInputStream fis = null;
-			
-		try {
-			fis = new FileInputStream(this.filename);
-			
-			while(fis.available() > 0) { // until a TapeFileEnd comes...
-				int blockSize = readInt(fis);
-				@SuppressWarnings("unused")
-				int prevBlockSize = readInt(fis);
-				byte flags0 = readByte(fis);
-				@SuppressWarnings("unused")
-				byte flags1 = readByte(fis);
-				//System.out.printf("TapeIoAws : read block (blockSize = %d ; prevBlocksize = %d ; flags0 = 0x%02X ; flags1 = 0x%02X\n", blockSize, prevBlockSize, flags0, flags1); 
-				if (blockSize > 0) { // can be max. 65536 (2 bytes little endian int)
-					byte[] data = new byte[blockSize];
-					int bytesRead = fis.read(data);
-					if (bytesRead != blockSize) {
-						//System.out.printf("######## TapeIoAws : blocksize = %d , but bytes read: %d\n", blockSize, bytesRead);
-					}
-					curr = new TapeBlock(curr, data);
-				} else if ((flags0 & 0x40) != 0) {
-					curr = new TapeBlock(curr);
-				} else {
-					curr = new TapeBlock(curr, new byte[0]);
-				}
+	public int getBlockCount() {
+		return this.blockCount;
+	}
+
+	/* (non-Javadoc)
+	 * @see dev.hawala.vm370.tape.iTapeIo#getDataByteCount()
+	 */
+	public long getDataByteCount() {
+		return this.dataByteCount;
+	}
+
+	/* (non-Javadoc)
+	 * @see dev.hawala.vm370.tape.iTapeIo#isTapemark(int)
+	 */
+	public boolean isTapemark(int blockNo) {
+		return blockNo >= 0 && blockNo < this.blockCount && this.blockLengths[blockNo] < 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see dev.hawala.vm370.tape.iTapeIo#findTapemark(int, boolean)
+	 */
+	public int findTapemark(int fromBlockNo, boolean forward) {
+		int idx = Arrays.binarySearch(this.tapemarks, 0, this.tapemarkCount, fromBlockNo);
+		if (idx >= 0) { return fromBlockNo; }
+		idx = -(idx + 1); // the insertion point, i.e. the index of the first tape mark after 'fromBlockNo'
+		if (forward) {
+			return (idx < this.tapemarkCount) ? this.tapemarks[idx] : -1;
+		}
+		return (idx > 0) ? this.tapemarks[idx - 1] : -1;
+	}
+
+	/* (non-Javadoc)
+	 * @see dev.hawala.vm370.tape.iTapeIo#readBlock(int, byte[])
+	 */
+	public int readBlock(int blockNo, byte[] buffer) throws IOException {
+		if (blockNo < 0 || blockNo >= this.blockCount || this.blockLengths[blockNo] < 0) {
+			return 0;
+		}
+		int length = this.blockLengths[blockNo];
+		ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+		long position = this.blockOffsets[blockNo] + HEADER_LENGTH;
+		while(data.hasRemaining()) {
+			int count = this.channel.read(data, position + data.position());
+			if (count < 0) {
+				throw new IOException("unexpected end of tape file");
 			}
-		} catch (TapeFileEnd e) {
-			// ignored as normal end signal...
-		} catch (FileNotFoundException e) {
-			// TODO: log this
-		} catch (IOException e) {
-			// TODO: log this
-		} finally {
-			if (fis != null) { try { fis.close(); } catch(Exception e) { } }
 		}
-		
-		curr.append(tailLimit);
-		return blockCount;
+		return length;
 	}
-	
+
 	/* (non-Javadoc)
-	 * @see dev.hawala.vm370.tape.iTapeIo#writeTapeFile(dev.hawala.vm370.tape.TapeBlock, dev.hawala.vm370.tape.TapeBlock)
+	 * @see dev.hawala.vm370.tape.iTapeIo#truncate(int)
 	 */
-	public void writeTapeFile(TapeBlock headLimit, TapeBlock tailLimit) {
+	public void truncate(int blockCount) throws IOException {
+		if (blockCount < 0 || blockCount >= this.blockCount) { return; }
 		if (!this.canBewritten) {
-			return;
+			throw new IOException("tape file is read/only");
+		}
+		this.endOffset = this.blockOffsets[blockCount];
+		this.channel.truncate(this.endOffset);
+		this.hasTrailingBytes = false;
+		for (int i = blockCount; i < this.blockCount; i++) {
+			if (this.blockLengths[i] > 0) { this.dataByteCount -= this.blockLengths[i]; }
+		}
+		while(this.tapemarkCount > 0 && this.tapemarks[this.tapemarkCount - 1] >= blockCount) {
+			this.tapemarkCount--;
 		}
-		
-		FileOutputStream fos = null;
+		this.blockCount = blockCount;
+	}
+
+	/* (non-Javadoc)
+	 * @see dev.hawala.vm370.tape.iTapeIo#appendBlock(byte[], int)
+	 */
+	public void appendBlock(byte[] data, int length) throws IOException {
+		this.writeBlock(FLAGS_DATA, data, length);
+		//System.out.printf("TapeIoAws : write block (blockSize = %d ; flags0 = 0x%02X\n", length, FLAGS_DATA);
+	}
+
+	/* (non-Javadoc)
+	 * @see dev.hawala.vm370.tape.iTapeIo#appendTapemark()
+	 */
+	public void appendTapemark() throws IOException {
+		this.writeBlock(FLAGS_TAPEMARK, null, 0);
+		//System.out.printf("TapeIoAws : write tapemark (blockSize = %d ; flags0 = 0x%02X\n", 0, FLAGS_TAPEMARK);
+	}
+
+	/* (non-Javadoc)
+	 * @see dev.hawala.vm370.tape.iTapeIo#close()
+	 */
+	public void close() {
 		try {
-			fos = new FileOutputStream(this.filename);
-			
-			int prevLength = 0;
-			TapeBlock curr = headLimit.getNext();
-			while(curr != null && curr != tailLimit) {
-				boolean isTapemark = curr.isTapemark();
-				byte[] currData = curr.getBlockData();
-				int currLength = (isTapemark || currData == null) ? 0 : currData.length;
-				writeInt(fos, currLength);
-				writeInt(fos, prevLength);
-				if (isTapemark) {
-					fos.write((byte)0x40); // tapemark
-					fos.write((byte)0);
-					//System.out.printf("TapeIoAws : write tapemark (blockSize = %d ; flags0 = 0x%02X\n", currLength, 0x40); 
-				} else {
-					fos.write((byte)0xA0); // same Hercules for CMS tapes...
-					fos.write((byte)0);
-					if (currData != null) { fos.write(currData); }
-					//System.out.printf("TapeIoAws : write block (blockSize = %d ; flags0 = 0x%02X\n", currLength, 0);					
-				}
-				
-				prevLength = currLength;
-				curr = curr.getNext();
-			}
-			
-			fos.close();
-		} catch (FileNotFoundException e) {
-			// TODO: log this
+			this.channel.close();
 		} catch (IOException e) {
-			// TODO: log this
-		} finally {
-			if (fos != null) { try { fos.close(); } catch(Exception e) { } }
+			// ignored...
 		}
 	}
-	
+
 	public boolean isWritable() {
 		return this.canBewritten;
 	}
-	
+
 	public String getTapeFilename() {
 		return this.filename;
 	}
@@ -12,55 +12,110 @@
 
 package dev.hawala.vm370.tape;
 
+import java.io.IOException;
+
 /**
  * Interface for tape format providers, i.e. classes that allow to read and
  * write a tape file format.
- * 
+ *
  * <p>
- * The tape content is completely loaded uncompressed into memory as a chain
- * of tape blocks. So the tape file must fit into the heap besides the other
- * resources allocated to all VMs like main memory, disks etc.
+ * The tape content stays in the tape file, only an index of the tape blocks
+ * is held in memory. The blocks of a tape are identified by their 0-based
+ * sequence number, a block is either a data block (possibly empty) or a tape mark.
+ * Writing to the tape is done in place in the tape file, by truncating the tape
+ * after the last block to keep and appending the new blocks.
  * </p>
- * 
+ *
  * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
  *
  */
 public interface iTapeIo {
-	
+
 	/**
-	 * Can the tape file associated with this instance be written (back)
+	 * Can the tape file associated with this instance be written
 	 * to disk?
-	 *  
+	 *
 	 * @return {@code true} if the tape is to be treated a a writable tape.
 	 */
 	public boolean isWritable();
 
 	/**
-	 * Load the content of the tape into memory as list of tape blocks
-	 * and place the block chain between {@code headLimit} and 
-	 * {@code tailLimit].
-	 * 
-	 * @param headLimit the head of the block-chain where the tape blocks
-	 *   must be chained behind.
-	 * @param tailLimit the tail of the block chain where the tape blocks
-	 *   must be chained before.
-	 * @return the number of tape blocks read.
+	 * Get the number of blocks (including tape marks) on the tape.
+	 *
+	 * @return the number of tape blocks.
+	 */
+	public int getBlockCount();
+
+	/**
+	 * Get the number of data bytes in all blocks of the tape.
+	 *
+	 * @return the number of data bytes.
+	 */
+	public long getDataByteCount();
+
+	/**
+	 * Check if a block is a tape mark.
+	 *
+	 * @param blockNo the number of the block to check.
+	 * @return {@code true} if the block exists and is a tape mark.
+	 */
+	public boolean isTapemark(int blockNo);
+
+	/**
+	 * Find the nearest tape mark starting at the given block.
+	 *
+	 * @param fromBlockNo the number of the first block to check.
+	 * @param forward if {@code true} search towards the tape end, else towards
+	 *   the tape start.
+	 * @return the block number of the tape mark found or {@code -1} if there is no
+	 *   tape mark in the search direction.
 	 */
-	public int readTapeFile(TapeBlock headLimit, TapeBlock tailLimit);
+	public int findTapemark(int fromBlockNo, boolean forward);
 
 	/**
-	 * Save the tape blocks between {@code headLimit} and {@code tailLimit}
-	 * to disk.
-	 * 
-	 * @param headLimit the block in the chain before the first tape block to save.
-	 * @param tailLimit the block in the chain after the last tape block to save. 
+	 * Read the data of a block from the tape file.
+	 *
+	 * @param blockNo the number of the block to read.
+	 * @param buffer the buffer receiving the block data, which must be large
+	 *   enough for the longest possible block (65535 bytes).
+	 * @return the length of the block data, {@code 0} for empty blocks or tape marks.
+	 * @throws IOException if the tape file cannot be read.
 	 */
-	public void writeTapeFile(TapeBlock headLimit, TapeBlock tailLimit);
-	
+	public int readBlock(int blockNo, byte[] buffer) throws IOException;
+
+	/**
+	 * Drop all blocks after the given number of blocks from the tape.
+	 *
+	 * @param blockCount the number of blocks to keep.
+	 * @throws IOException if the tape file cannot be written.
+	 */
+	public void truncate(int blockCount) throws IOException;
+
+	/**
+	 * Append a data block at the end of the tape.
+	 *
+	 * @param data the buffer with the block content.
+	 * @param length the length of the block content.
+	 * @throws IOException if the tape file cannot be written.
+	 */
+	public void appendBlock(byte[] data, int length) throws IOException;
+
+	/**
+	 * Append a tape mark at the end of the tape.
+	 *
+	 * @throws IOException if the tape file cannot be written.
+	 */
+	public void appendTapemark() throws IOException;
+
+	/**
+	 * Close the tape file, the instance may no longer be used after closing.
+	 */
+	public void close();
+
 	/**
 	 * Get the name of the external tape file backing the tape loaded with this
 	 * instance.
-	 * 
+	 *
 	 * @return the tape filename.
 	 */
 	public String getTapeFilename();
@@ -0,0 +1,218 @@
+/*
+** This file is part of the emx370 emulator UnitTests.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dev.hawala.vm370.cons.ConsoleCommandCodes;
+import dev.hawala.vm370.cons.ConsoleGRAF;
+import dev.hawala.vm370.ebcdic.EbcdicHandler;
+import dev.hawala.vm370.mecaff.ByteBuffer;
+import dev.hawala.vm370.mecaff.IVm3270ConsoleCompletedSink;
+import dev.hawala.vm370.mecaff.IVm3270ConsoleInputSink;
+import dev.hawala.vm370.mecaff.Vm3270Console;
+import dev.hawala.vm370.stream3270.AidCode3270;
+import dev.hawala.vm370.vm.cp.iUserConsole;
+import dev.hawala.vm370.vm.device.DeviceHandler;
+import dev.hawala.vm370.vm.device.iDeviceIO;
+import dev.hawala.vm370.vm.device.iDeviceStatus;
+import dev.hawala.vm370.vm.machine.CPVirtualMachine;
+import dev.hawala.vm370.vm.machine.NullEventTracker;
+import dev.hawala.vm370.vm.machine.iCommandExecutor;
+
+/**
+ * Tests for the fullscreen input signaled by the MECAFF-console to the GRAF console device:
+ * the input must be fetched exactly once, whether it arrives before or after the program
+ * acquired the screen, and must wake up the virtual machine from its enabled wait state.
+ */
+public class ConsoleGRAFTest {
+
+	// idle interval of the virtual machine in enabled wait state (see CPVirtualMachine)
+	private static final int IDLE_MSECS_FOR_ENABLED_WAIT = 10;
+
+	private static final int CONS_CUU = 0x009;
+
+	// user console between the MECAFF-console and the GRAF device, counting the fullscreen inputs and wakeups
+	private static class UserConsole extends iUserConsole implements IVm3270ConsoleInputSink {
+
+		private ConsoleGRAF device;
+		private volatile CPVirtualMachine vm = null;
+		private final AtomicInteger fullScreenInputs = new AtomicInteger();
+		private final AtomicInteger wakeups = new AtomicInteger();
+
+		public eUserInputState getNextUserInputForVMREAD(EbcdicHandler buffer) { return eUserInputState.NoneAvailable; }
+		public int getEnqueuedUserInput() { return 0; }
+		public void writeAddCR(EbcdicHandler line) { }
+		public void writeNoCR(EbcdicHandler line) { }
+		public void writeln(String line) { }
+		public void writef(String pattern, Object... args) { }
+
+		@Override
+		public void signalAsyncInterrupt() {
+			this.wakeups.incrementAndGet();
+			CPVirtualMachine currVm = this.vm;
+			if (currVm != null) { currVm.signalAsyncInterrupt(); }
+		}
+
+		public void sendUserInput(EbcdicHandler inputLine) { }
+		public boolean sendInterrupt_CP(EbcdicHandler drainGuard) { return false; }
+		public boolean sendInterrupt_HT(EbcdicHandler drainGuard) { return false; }
+		public boolean sendInterrupt_HX(EbcdicHandler drainGuard) { return false; }
+		public boolean sendPF03() { return false; }
+
+		public void sendFullScreenInput(ByteBuffer buffer, IVm3270ConsoleCompletedSink completedCallBack) {
+			this.fullScreenInputs.incrementAndGet();
+			this.device.sendFullScreenInput(buffer, completedCallBack);
+		}
+
+		public void sendFullScreenDataAvailability(boolean isAvailable) {
+			this.device.sendFullScreenDataAvailability(isAvailable);
+		}
+
+		public void sendFullScreenTimedOut() {
+			this.device.sendFullScreenTimedOut();
+		}
+	}
+
+	// GRAF device recording when the virtual machine checked it for and consumed the Attention interrupt
+	private static class ObservedConsoleGRAF extends ConsoleGRAF {
+
+		private final Semaphore polls = new Semaphore(0);
+		private final CountDownLatch interrupted = new CountDownLatch(1);
+		private volatile long lastPollNanos = 0;
+		private volatile long interruptNanos = 0;
+
+		private ObservedConsoleGRAF(iUserConsole userConsole, Vm3270Console console3270) {
+			super(userConsole, 0x020, console3270, null);
+		}
+
+		@Override
+		public boolean hasPendingAsyncInterrupt() {
+			this.lastPollNanos = System.nanoTime();
+			this.polls.release();
+			return super.hasPendingAsyncInterrupt();
+		}
+
+		@Override
+		public void consumeNextAsyncInterrupt() {
+			this.interruptNanos = System.nanoTime();
+			this.interrupted.countDown();
+			super.consumeNextAsyncInterrupt();
+		}
+	}
+
+	// the 3270 data stream of a fullscreen write (WCC and text)
+	private static final iDeviceIO FS_SCREEN = (devMemory, offset, length) -> {
+		Arrays.fill(devMemory, offset, offset + length, (byte)0xC1);
+		devMemory[offset] = (byte)0xC3;
+		return 0;
+	};
+
+	// the user presses ENTER on the terminal
+	private static final byte[] ENTER = { AidCode3270.Enter.getCode(), (byte)0x40, (byte)0x40, (byte)0xFF, (byte)0xEF };
+
+	private final UserConsole userConsole = new UserConsole();
+	private Vm3270Console console;
+	private ObservedConsoleGRAF device;
+
+	@Before
+	public void createDevice() throws Exception {
+		this.console = new Vm3270Console(this.userConsole, new ByteArrayOutputStream(), 24, 80, true, (short)0);
+		this.device = new ObservedConsoleGRAF(this.userConsole, this.console);
+		this.userConsole.device = this.device;
+	}
+
+	@After
+	public void closeDevice() {
+		this.device.shutdown();
+		this.console.close();
+	}
+
+	@Test
+	public void testInputBeforeAcquireFetchedByNextWrite() throws Exception {
+		// the screen is owned by a fullscreen program, but the device did not yet acquire it
+		assertTrue(this.console.acquireFullScreen(false));
+
+		// the input is announced but cannot be fetched yet
+		this.console.processBytesFromTerminal(ENTER, ENTER.length);
+		assertEquals("inputs fetched", 0, this.userConsole.fullScreenInputs.get());
+		assertFalse("attention pending", this.device.hasPendingAsyncInterrupt());
+
+		// the next fullscreen write acquires the screen and fetches the input
+		assertEquals(iDeviceStatus.DEVICE_END, this.device.write(ConsoleCommandCodes.Write_FS_EW, 40, FS_SCREEN));
+		assertEquals("inputs fetched", 1, this.userConsole.fullScreenInputs.get());
+		assertTrue("attention pending", this.device.hasPendingAsyncInterrupt());
+		assertEquals("wakeups", 1, this.userConsole.wakeups.get());
+
+		// but only once
+		assertEquals(iDeviceStatus.DEVICE_END, this.device.write(ConsoleCommandCodes.Write_FS_W, 40, FS_SCREEN));
+		assertEquals("inputs fetched", 1, this.userConsole.fullScreenInputs.get());
+		assertEquals("wakeups", 1, this.userConsole.wakeups.get());
+	}
+
+	@Test
+	public void testInputWakesEnabledWait() throws Exception {
+		CPVirtualMachine vm = new CPVirtualMachine("TESTVM", new iCommandExecutor() {
+			public int processCommandBuffer(EbcdicHandler commandBuffer, EbcdicHandler outputBuffer) { return 0; }
+			public void executePendingAsyncCommands() { }
+		}) {
+			{ this.needsIpl = false; } // the test program below is "IPL-ed"
+		};
+		DeviceHandler handler = vm.createDeviceHandler(this.device, CONS_CUU, NullEventTracker.INSTANCE);
+		vm.addDevice(handler);
+		this.userConsole.vm = vm;
+
+		// the program owns the screen
+		assertEquals(iDeviceStatus.DEVICE_END, this.device.write(ConsoleCommandCodes.Write_FS_EW, 40, FS_SCREEN));
+
+		// the program waits for an I/O interrupt on channel 0, ending in a disabled wait when it arrives
+		byte[] waitPsw = { (byte)0x80, (byte)0x02, 0, 0, 0, 0, (byte)0x10, 0 };
+		byte[] disabledWaitPsw = { 0, (byte)0x02, 0, 0, 0, 0, (byte)0x20, 0 };
+		vm.cpu.pokeMainMem(0x78, disabledWaitPsw, 0, 8); // I/O new PSW
+		vm.cpu.readPswFrom(waitPsw, 0);
+
+		final CountDownLatch ended = new CountDownLatch(1);
+		Thread runner = new Thread(() -> { vm.run(); ended.countDown(); });
+		runner.setDaemon(true);
+		runner.start();
+
+		// let the virtual machine settle in its idle loop, the input arriving just after a device check
+		assertTrue("VM idle", this.device.polls.tryAcquire(3, 5, TimeUnit.SECONDS));
+		this.device.polls.drainPermits();
+		assertTrue("VM idle", this.device.polls.tryAcquire(5, TimeUnit.SECONDS));
+		long polledAt = this.device.lastPollNanos;
+		this.console.processBytesFromTerminal(ENTER, ENTER.length);
+		assertEquals("inputs fetched", 1, this.userConsole.fullScreenInputs.get());
+		assertEquals("wakeups", 1, this.userConsole.wakeups.get());
+
+		// the Attention interrupt is presented without waiting for the next idle check
+		assertTrue("interrupt presented", this.device.interrupted.await(5, TimeUnit.SECONDS));
+		long waitedMs = (this.device.interruptNanos - polledAt) / 1000000;
+		assertTrue("enabled wait ended after " + waitedMs + " ms", waitedMs < IDLE_MSECS_FOR_ENABLED_WAIT);
+		assertTrue("VM stopped", ended.await(5, TimeUnit.SECONDS));
+		assertEquals("interrupting device", (short)CONS_CUU, vm.cpu.peekMainMemShort(0x3A));
+	}
+}
@@ -17,13 +17,30 @@ import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Random;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
 
 import org.junit.Assert;
+import org.junit.Test;
+
+import dev.hawala.vm370.dasd.ckdc.CkdDriveType;
+import dev.hawala.vm370.dasd.ckdc.CkdcCompaction;
+import dev.hawala.vm370.dasd.ckdc.CkdcDrive;
+import dev.hawala.vm370.dasd.ckdc.DriveBaseExternalIO;
+import dev.hawala.vm370.dasd.ckdc.Track;
+import dev.hawala.vm370.dasd.ckdc.TrackCodec;
+import dev.hawala.vm370.dasd.ckdc.Vm370DdrCkdcLoader;
+import dev.hawala.vm370.vm.machine.iProcessorEventTracker;
 
 public class DasdCkdcTest {
 
@@ -94,4 +111,568 @@ public class DasdCkdcTest {
 		Assert.fail(String.format("SUCCESS ... Compression: %d => %d", src.length, packed.length));
 	}
 	
+	@Test
+	public void testTrackCodecRoundtrip() throws IOException {
+		byte[] src = new byte[12124];
+		Random rnd = new Random(42);
+		for (int i = 0; i < src.length; i++) {
+			src[i] = (i % 7 == 0) ? (byte)(rnd.nextInt(255) - 128) : (byte)0x40;
+		}
+		
+		// compress with the pooled codec, decompress with the stream classes (file format compatibility)
+		byte[] packed = TrackCodec.get().pack(src, 0, src.length);
+		InflaterInputStream iis = new InflaterInputStream(new ByteArrayInputStream(packed));
+		byte[] streamUnpacked = new byte[src.length];
+		int streamCount = 0;
+		int cnt = iis.read(streamUnpacked);
+		while (cnt > 0) {
+			streamCount += cnt;
+			cnt = iis.read(streamUnpacked, streamCount, streamUnpacked.length - streamCount);
+		}
+		iis.close();
+		assertEquals("Length of stream-unpacked data", src.length, streamCount);
+		Assert.assertArrayEquals("stream-unpacked data", src, streamUnpacked);
+		
+		// compress with the stream classes, decompress with the pooled codec into a larger buffer
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DeflaterOutputStream dos = new DeflaterOutputStream(baos);
+		dos.write(src, 0, src.length);
+		dos.close();
+		byte[] unpacked = new byte[65536];
+		Arrays.fill(unpacked, (byte)0xFF);
+		int unpackCount = TrackCodec.get().unpack(baos.toByteArray(), baos.size(), unpacked);
+		assertEquals("Length of codec-unpacked data", src.length, unpackCount);
+		Assert.assertArrayEquals("codec-unpacked data", src, Arrays.copyOf(unpacked, src.length));
+		for (int i = src.length; i < unpacked.length; i++) {
+			if (unpacked[i] != 0) { fail(String.format("unpacked buffer not zero-filled at offset %d", i)); }
+		}
+	}
+	
+	// create a DDR-style track with the given records, the keys (if any) being the key bytes 
+	private Track createTrack(int[] recordNos, byte[][] keys, int dataLen) throws IOException {
+		int recCount = recordNos.length;
+		byte[] head = new byte[21 + (recCount * 8)];
+		byte[] data = new byte[4096];
+		int dataPos = 0;
+		for (int i = 0; i < recCount; i++) {
+			int keyLen = (keys[i] == null) ? 0 : keys[i].length;
+			int countPos = 21 + (i * 8);
+			head[countPos + 4] = (byte)recordNos[i];
+			head[countPos + 5] = (byte)keyLen;
+			head[countPos + 6] = (byte)(dataLen >> 8);
+			head[countPos + 7] = (byte)dataLen;
+			if (keyLen > 0) { System.arraycopy(keys[i], 0, data, dataPos, keyLen); }
+			dataPos += keyLen;
+			data[dataPos] = (byte)i; // first data byte: index of the count area
+			dataPos += dataLen;
+		}
+		return new Track(32, data.length, recCount, head, head.length, data, data.length);
+	}
+	
+	// get the count area index of the record found, as stored in the first data byte
+	private int readFoundIndex(Track track) {
+		final int[] result = { -1 };
+		track.readData((devMemory, offset, length) -> { result[0] = devMemory[offset] & 0xFF; return 0; }, 8);
+		return result[0];
+	}
+	
+	@Test
+	public void testTrackRecordIndex() throws IOException {
+		int[] recNos = { 1, 2, 5, 3, 2, 9, 4 };
+		byte[][] noKeys = new byte[recNos.length][];
+		Track track = this.createTrack(recNos, noKeys, 16);
+		track.access(new byte[4096]);
+		
+		for (int id = 1; id < 256; id++) {
+			int expectedEqual = -1;
+			int expectedHigh = -1;
+			for (int i = 0; i < recNos.length; i++) {
+				if (expectedEqual < 0 && recNos[i] == id) { expectedEqual = i; }
+				if (expectedHigh < 0 && recNos[i] > id) { expectedHigh = i; }
+			}
+			assertEquals("searchIdEqual(" + id + ")", expectedEqual >= 0, track.searchIdEqual(id));
+			if (expectedEqual >= 0) { assertEquals("index for searchIdEqual(" + id + ")", expectedEqual, this.readFoundIndex(track)); }
+			assertEquals("searchIdHigh(" + id + ")", expectedHigh >= 0, track.searchIdHigh(id));
+			if (expectedHigh >= 0) { assertEquals("index for searchIdHigh(" + id + ")", expectedHigh, this.readFoundIndex(track)); }
+		}
+		
+		// formatting from record index 2 must be reflected in the index
+		Assert.assertTrue(track.searchIdEqual(2));
+		this.readFoundIndex(track);
+		track.beginFormat();
+		track.appendCountKeyAndData(7, 0, 16, new byte[16], 0, 16);
+		Assert.assertTrue(track.searchIdEqual(7));
+		Assert.assertFalse(track.searchIdEqual(5));
+		Assert.assertFalse(track.searchIdHigh(7));
+		Assert.assertTrue(track.searchIdHigh(6));
+	}
+	
+	@Test
+	public void testTrackKeyDirectory() throws IOException {
+		int[] recNos = { 1, 2, 3, 4, 5, 6 };
+		byte[][] keys = {
+			{ 0x10, 0x20, 0x30 },
+			{ 0x10, 0x20, 0x10 },
+			null,
+			{ (byte)0xF0, 0x00, 0x00 },
+			{ 0x10, 0x20, 0x10 },
+			{ 0x01, 0x00, 0x00 }
+		};
+		Track track = this.createTrack(recNos, keys, 16);
+		track.access(new byte[4096]);
+		
+		byte[] search = { 0x10, 0x20, 0x10 };
+		Assert.assertTrue(track.searchKey(search, 3, true, false));
+		assertEquals("equal key", 1, this.readFoundIndex(track));
+		Assert.assertTrue(track.searchKey(search, 3, true, true));
+		assertEquals("equal or high key", 0, this.readFoundIndex(track));
+		
+		search = new byte[] { 0x10, 0x20, 0x11 };
+		Assert.assertFalse(track.searchKey(search, 3, true, false));
+		Assert.assertTrue(track.searchKey(search, 3, false, true));
+		assertEquals("high key", 0, this.readFoundIndex(track));
+		
+		search = new byte[] { (byte)0xF0, 0x00, 0x01 };
+		Assert.assertFalse(track.searchKey(search, 3, true, true));
+		
+		search = new byte[] { 0x00, 0x00, 0x00 };
+		Assert.assertTrue(track.searchKey(search, 3, false, true));
+		assertEquals("lowest high key", 0, this.readFoundIndex(track));
+	}
+	
+	// create a DDR-style track at the given position with 3 records of 800 bytes,
+	// the data bytes of a record being filled with the given value
+	private Track createPositionedTrack(int cylNo, int headNo, byte fill) throws IOException {
+		int recCount = 3;
+		int dataLen = 800;
+		byte[] head = new byte[21 + (recCount * 8)];
+		head[2] = (byte)cylNo;
+		head[4] = (byte)headNo;
+		byte[] data = new byte[4096];
+		Arrays.fill(data, 0, recCount * dataLen, fill);
+		for (int i = 0; i < recCount; i++) {
+			int countPos = 21 + (i * 8);
+			head[countPos + 1] = (byte)cylNo;
+			head[countPos + 3] = (byte)headNo;
+			head[countPos + 4] = (byte)(i + 1);
+			head[countPos + 6] = (byte)(dataLen >> 8);
+			head[countPos + 7] = (byte)dataLen;
+		}
+		return new Track(32, 4096, recCount, head, head.length, data, data.length);
+	}
+	
+	// write a base file for a drive with 2 cylinders of 2 tracks having blank records
+	private void createTemplateBaseFile(File baseFile) throws Exception {
+		Track[] tracks = new Track[4];
+		for (int i = 0; i < tracks.length; i++) {
+			tracks[i] = this.createPositionedTrack(i / 2, i % 2, (byte)0x40);
+		}
+		byte[] volser = { (byte)0xE3, (byte)0xD4, (byte)0xD7, (byte)0xD3, (byte)0xF0, (byte)0xF1 };
+		new CkdcDrive(volser, 2, 2, CkdDriveType.ckd3350, 32, tracks).saveTo(null, baseFile.getPath());
+	}
+	
+	@Test
+	public void testClonedDrivesShareBase() throws Exception {
+		File baseFile = File.createTempFile("emx370-clonetest", ".ckdc");
+		File deltaFile = new File(baseFile.getPath() + ".delta");
+		try {
+			this.createTemplateBaseFile(baseFile);
+			
+			DriveBaseExternalIO.SharedBase base = DriveBaseExternalIO.getSharedBase(baseFile.getPath());
+			Assert.assertSame("shared base reused", base, DriveBaseExternalIO.getSharedBase(baseFile.getPath()));
+			CkdcDrive clone1 = CkdcDrive.cloneFrom(base, null, null);
+			CkdcDrive clone2 = CkdcDrive.cloneFrom(base, null, null);
+			clone1.resetState();
+			clone2.resetState();
+			Assert.assertTrue(clone1.isClonedDrive());
+			
+			// write a record on the first clone only
+			byte[] mem = new byte[800];
+			Arrays.fill(mem, (byte)0xC1);
+			Assert.assertTrue(clone1.transferRecordData(1, 1, 1, 1, 2, 800, true, mem, 0));
+			Assert.assertTrue(clone1.needsSaving());
+			
+			Arrays.fill(mem, (byte)0x00);
+			Assert.assertTrue(clone2.transferRecordData(1, 1, 1, 1, 2, 800, false, mem, 0));
+			assertEquals("unchanged record in other clone", 0x40, mem[0]);
+			Assert.assertFalse(clone2.needsSaving());
+			
+			// the private delta holds only the changed track
+			try (FileOutputStream fos = new FileOutputStream(deltaFile)) {
+				clone1.save(fos, true);
+			}
+			Assert.assertTrue("delta smaller than base", deltaFile.length() < baseFile.length());
+			
+			CkdcDrive reloaded;
+			try (FileInputStream fis = new FileInputStream(deltaFile)) {
+				reloaded = CkdcDrive.cloneFrom(base, fis, null);
+			}
+			reloaded.resetState();
+			Assert.assertTrue(reloaded.transferRecordData(1, 1, 1, 1, 2, 800, false, mem, 0));
+			assertEquals("changed record from delta", (byte)0xC1, mem[799]);
+			Assert.assertTrue(reloaded.transferRecordData(1, 1, 1, 1, 1, 800, false, mem, 0));
+			assertEquals("unchanged record from base", 0x40, mem[0]);
+		} finally {
+			baseFile.delete();
+			deltaFile.delete();
+		}
+	}
+	
+	@Test
+	public void testIdenticalTracksShareContent() throws Exception {
+		File baseFile = File.createTempFile("emx370-dedup", ".ckdc");
+		try {
+			this.createTemplateBaseFile(baseFile);
+			
+			// the tracks of the later drives share the content of the first drive 
+			CkdcDrive drive1 = new CkdcDrive((String)null, baseFile.getPath(), null);
+			CkdcDrive drive2 = new CkdcDrive((String)null, baseFile.getPath(), null);
+			CkdcDrive drive3 = new CkdcDrive((String)null, baseFile.getPath(), null);
+			drive1.resetState();
+			drive2.resetState();
+			drive3.resetState();
+			byte[] packed = drive1.getTrack(1, 0).getPackedContent();
+			Assert.assertSame("packed content shared (drive2)", packed, drive2.getTrack(1, 0).getPackedContent());
+			Assert.assertSame("packed content shared (drive3)", packed, drive3.getTrack(1, 0).getPackedContent());
+			
+			// reading the record on all drives uses the same unpacked content
+			byte[] mem = new byte[800];
+			Assert.assertTrue(drive2.transferRecordData(1, 0, 1, 0, 3, 800, false, mem, 0));
+			assertEquals("shared record content", 0x40, mem[0]);
+			Assert.assertTrue(drive3.transferRecordData(1, 0, 1, 0, 3, 800, false, mem, 0));
+			Assert.assertTrue(drive1.transferRecordData(1, 0, 1, 0, 3, 800, false, mem, 0));
+			byte[] unpacked = drive2.getTrack(1, 0).getUnpackedContent();
+			Assert.assertNotNull("track accessed", unpacked);
+			Assert.assertSame("unpacked content shared (drive1)", unpacked, drive1.getTrack(1, 0).getUnpackedContent());
+			Assert.assertSame("unpacked content shared (drive3)", unpacked, drive3.getTrack(1, 0).getUnpackedContent());
+			
+			// write the record on the second drive
+			Arrays.fill(mem, (byte)0xC2);
+			Assert.assertTrue(drive2.transferRecordData(1, 0, 1, 0, 3, 800, true, mem, 0));
+			Assert.assertTrue(drive2.transferRecordData(1, 0, 1, 0, 3, 800, false, mem, 0));
+			assertEquals("changed record", (byte)0xC2, mem[0]);
+			Assert.assertNotSame("unpacked content private after write", unpacked, drive2.getTrack(1, 0).getUnpackedContent());
+			
+			// neither the first drive nor the third drive see the change
+			Assert.assertTrue(drive1.transferRecordData(1, 0, 1, 0, 3, 800, false, mem, 0));
+			assertEquals("record on first drive", 0x40, mem[0]);
+			Assert.assertTrue(drive3.transferRecordData(1, 0, 1, 0, 3, 800, false, mem, 0));
+			assertEquals("record on third drive", 0x40, mem[799]);
+			Assert.assertSame("first drive still shares", unpacked, drive1.getTrack(1, 0).getUnpackedContent());
+			Assert.assertSame("third drive still shares", unpacked, drive3.getTrack(1, 0).getUnpackedContent());
+		} finally {
+			baseFile.delete();
+		}
+	}
+	
+	// event logger counting the tracks accessed with the content unpacked in advance
+	private static class ReadAheadHits implements iProcessorEventTracker {
+		private int count = 0;
+		
+		public void logLine(String line, Object... args) {
+			if (line.startsWith(".. .. read-ahead hit")) { this.count++; }
+		}
+	}
+	
+	private static final int RA_CYLS = 5;
+	private static final int RA_HEADS = 4;
+	
+	// create a drive with 5 cylinders of 4 tracks, the records of each track filled with a track specific value
+	private CkdcDrive createReadAheadDrive(ReadAheadHits hits) throws Exception {
+		Track[] tracks = new Track[RA_CYLS * RA_HEADS];
+		for (int i = 0; i < tracks.length; i++) {
+			tracks[i] = this.createPositionedTrack(i / RA_HEADS, i % RA_HEADS, (byte)(0x10 + i));
+		}
+		byte[] volser = { (byte)0xD9, (byte)0xC1, (byte)0xC8, (byte)0xC5, (byte)0xC1, (byte)0xC4 };
+		CkdcDrive drive = new CkdcDrive(volser, RA_CYLS, RA_HEADS, CkdDriveType.ckd3350, 32, tracks);
+		drive.setEventTracker(hits);
+		drive.resetState();
+		return drive;
+	}
+	
+	// read a record of the track with the given linear index, returning the first data byte
+	private byte readTrackRecord(CkdcDrive drive, int trackIndex, int recordNo) {
+		int cyl = trackIndex / RA_HEADS;
+		int head = trackIndex % RA_HEADS;
+		byte[] mem = new byte[800];
+		Assert.assertTrue(drive.transferRecordData(cyl, head, cyl, head, recordNo, 800, false, mem, 0));
+		for (int i = 1; i < mem.length; i++) {
+			if (mem[i] != mem[0]) { fail(String.format("record %d of track %d not uniform at offset %d", recordNo, trackIndex, i)); }
+		}
+		return mem[0];
+	}
+	
+	private void writeTrackRecord(CkdcDrive drive, int trackIndex, int recordNo, byte fill) {
+		int cyl = trackIndex / RA_HEADS;
+		int head = trackIndex % RA_HEADS;
+		byte[] mem = new byte[800];
+		Arrays.fill(mem, fill);
+		Assert.assertTrue(drive.transferRecordData(cyl, head, cyl, head, recordNo, 800, true, mem, 0));
+	}
+	
+	@Test
+	public void testReadAheadHits() throws Exception {
+		ReadAheadHits hits = new ReadAheadHits();
+		CkdcDrive drive = this.createReadAheadDrive(hits);
+		int trackCount = RA_CYLS * RA_HEADS;
+		
+		// the 3rd sequential track starts the read-ahead, so all tracks from the 4th on are unpacked in advance
+		for (int i = 0; i < trackCount; i++) {
+			assertEquals("data of track " + i, (byte)(0x10 + i), this.readTrackRecord(drive, i, 1));
+			assertEquals("data of track " + i, (byte)(0x10 + i), this.readTrackRecord(drive, i, 3));
+		}
+		assertEquals("read-ahead hits", trackCount - 3, hits.count);
+		
+		// random accesses do not read ahead
+		hits.count = 0;
+		int[] randomTracks = { 7, 2, 15, 9, 0, 12, 4, 18 };
+		for (int i : randomTracks) {
+			assertEquals("data of track " + i, (byte)(0x10 + i), this.readTrackRecord(drive, i, 2));
+		}
+		assertEquals("read-ahead hits for random accesses", 0, hits.count);
+	}
+	
+	@Test
+	public void testReadAheadNoStaleData() throws Exception {
+		ReadAheadHits hits = new ReadAheadHits();
+		CkdcDrive drive = this.createReadAheadDrive(hits);
+		int trackCount = RA_CYLS * RA_HEADS;
+		
+		// tracks 4 and 5 are being read ahead when the record of track 5 is changed
+		for (int i = 0; i < 4; i++) { this.readTrackRecord(drive, i, 1); }
+		this.writeTrackRecord(drive, 5, 2, (byte)0xC5);
+		assertEquals("track 4", (byte)0x14, this.readTrackRecord(drive, 4, 2));
+		assertEquals("changed record", (byte)0xC5, this.readTrackRecord(drive, 5, 2));
+		assertEquals("unchanged record", (byte)0x15, this.readTrackRecord(drive, 5, 1));
+		
+		// a write to the track taken over from the read-ahead
+		for (int i = 6; i < 10; i++) { this.readTrackRecord(drive, i, 1); }
+		int hitsBefore = hits.count;
+		this.readTrackRecord(drive, 10, 1);
+		assertEquals("track 10 read ahead", hitsBefore + 1, hits.count);
+		this.writeTrackRecord(drive, 10, 3, (byte)0xCA);
+		assertEquals("changed record", (byte)0xCA, this.readTrackRecord(drive, 10, 3));
+		
+		// read all tracks sequentially twice, so the changed tracks are packed when the buffers
+		// are reused and read ahead again from the changed content
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < trackCount; i++) {
+				byte expected2 = (i == 5) ? (byte)0xC5 : (byte)(0x10 + i);
+				byte expected3 = (i == 10) ? (byte)0xCA : (byte)(0x10 + i);
+				assertEquals("record 2 of track " + i, expected2, this.readTrackRecord(drive, i, 2));
+				assertEquals("record 3 of track " + i, expected3, this.readTrackRecord(drive, i, 3));
+			}
+		}
+		
+		// the saved drive has the changes
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		drive.save(baos, false);
+		CkdcDrive reloaded = new CkdcDrive(null, new ByteArrayInputStream(baos.toByteArray()), null);
+		reloaded.resetState();
+		assertEquals("saved record", (byte)0xC5, this.readTrackRecord(reloaded, 5, 2));
+		assertEquals("saved record", (byte)0xCA, this.readTrackRecord(reloaded, 10, 3));
+	}
+	
+	@Test
+	public void testReadAheadPendingAtSave() throws Exception {
+		ReadAheadHits hits = new ReadAheadHits();
+		CkdcDrive drive = this.createReadAheadDrive(hits);
+		int trackCount = RA_CYLS * RA_HEADS;
+		
+		// saving the drive (at logoff or detach) while tracks 4 and 5 are being read ahead
+		for (int i = 0; i < 4; i++) { this.readTrackRecord(drive, i, 1); }
+		this.writeTrackRecord(drive, 3, 1, (byte)0xC3);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		drive.save(baos, false);
+		
+		// the tracks read ahead were dropped, the drive continues without stale read-ahead
+		int hitsBefore = hits.count;
+		assertEquals("track 4", (byte)0x14, this.readTrackRecord(drive, 4, 1));
+		assertEquals("track 5", (byte)0x15, this.readTrackRecord(drive, 5, 1));
+		assertEquals("read-ahead hits after save", hitsBefore, hits.count);
+		assertEquals("changed record", (byte)0xC3, this.readTrackRecord(drive, 3, 1));
+		
+		// the saved content is complete
+		CkdcDrive reloaded = new CkdcDrive(null, new ByteArrayInputStream(baos.toByteArray()), null);
+		reloaded.resetState();
+		for (int i = 0; i < trackCount; i++) {
+			byte expected = (i == 3) ? (byte)0xC3 : (byte)(0x10 + i);
+			assertEquals("saved record of track " + i, expected, this.readTrackRecord(reloaded, i, 1));
+		}
+	}
+	
+	// wait for the background compaction to complete
+	private void awaitCompaction(CkdcCompaction compaction) throws InterruptedException {
+		for (int i = 0; i < 500 && !compaction.isDone(); i++) { Thread.sleep(10); }
+		Assert.assertTrue("compaction done", compaction.isDone());
+		Assert.assertNull("compaction error", compaction.getError());
+	}
+	
+	@Test
+	public void testCompactionSwappedInAtAttach() throws Exception {
+		File baseFile = File.createTempFile("emx370-compact", ".ckdc");
+		String baseFn = baseFile.getPath();
+		File deltaFile = new File(baseFn + ".delta");
+		File compactFile = new File(baseFn + CkdcCompaction.COMPACT_SUFFIX);
+		try {
+			this.createTemplateBaseFile(baseFile);
+			
+			// change 2 tracks before and 1 track after the snapshot
+			CkdcDrive drive = new CkdcDrive((String)null, baseFn, null);
+			drive.resetState();
+			byte[] mem = new byte[800];
+			Arrays.fill(mem, (byte)0xC1);
+			Assert.assertTrue(drive.transferRecordData(0, 0, 0, 0, 1, 800, true, mem, 0));
+			Assert.assertTrue(drive.transferRecordData(0, 1, 0, 1, 1, 800, true, mem, 0));
+			drive.saveTo(deltaFile.getPath(), null);
+			Assert.assertTrue(drive.transferRecordData(0, 1, 0, 1, 2, 800, true, mem, 0)); // still accessed when taking the snapshot
+			
+			this.awaitCompaction(CkdcCompaction.start(drive, baseFn, null));
+			Assert.assertTrue("compacted base written", compactFile.isFile());
+			Arrays.fill(mem, (byte)0xC2);
+			Assert.assertTrue(drive.transferRecordData(1, 1, 1, 1, 3, 800, true, mem, 0));
+			drive.saveTo(deltaFile.getPath(), null);
+			long fullDeltaLength = deltaFile.length();
+			
+			// attach: the new base is swapped in and the delta only has the track changed after the snapshot
+			Assert.assertTrue("swapped in", CkdcCompaction.swapInCompactedBase(baseFn, deltaFile.getPath()));
+			Assert.assertFalse(compactFile.exists());
+			Assert.assertTrue("delta reduced", deltaFile.length() < fullDeltaLength);
+			
+			CkdcDrive reloaded = new CkdcDrive(deltaFile.getPath(), baseFn, null);
+			reloaded.resetState();
+			int[][] expected = { { 0, 0, 1, 0xC1 }, { 0, 1, 1, 0xC1 }, { 0, 1, 2, 0xC1 }, { 1, 1, 3, 0xC2 }, { 1, 0, 1, 0x40 } };
+			for (int[] e : expected) {
+				Assert.assertTrue(reloaded.transferRecordData(e[0], e[1], e[0], e[1], e[2], 800, false, mem, 0));
+				assertEquals(String.format("record %d/%d/%d", e[0], e[1], e[2]), (byte)e[3], mem[799]);
+			}
+			
+			// a compacted base without a later saved delta is outdated and dropped
+			reloaded.resetState();
+			this.awaitCompaction(CkdcCompaction.start(reloaded, baseFn, null));
+			long baseLength = baseFile.length();
+			Assert.assertFalse("not swapped in", CkdcCompaction.swapInCompactedBase(baseFn, deltaFile.getPath()));
+			Assert.assertFalse(compactFile.exists());
+			assertEquals("base unchanged", baseLength, baseFile.length());
+		} finally {
+			baseFile.delete();
+			deltaFile.delete();
+			compactFile.delete();
+		}
+	}
+	
+	// write an AWS tape block (length 0 and flags 0x40 for a tape mark)
+	private void writeAwsBlock(OutputStream os, byte[] block, int length, int prevLength) throws IOException {
+		os.write(length & 0xFF);
+		os.write(length >> 8);
+		os.write(prevLength & 0xFF);
+		os.write(prevLength >> 8);
+		os.write((length == 0) ? 0x40 : 0xA0);
+		os.write(0);
+		if (length > 0) { os.write(block, 0, length); }
+	}
+	
+	// create a DDR tape of a 3340 disk with the given cylinder count and varying track contents
+	private byte[] createDdrTape(int cylCount) throws IOException {
+		ByteArrayOutputStream tape = new ByteArrayOutputStream();
+		Random rnd = new Random(4711);
+		int heads = 12;
+		
+		byte[] vhr = new byte[80];
+		vhr[0] = (byte)0xE5; vhr[1] = (byte)0xC8; vhr[2] = (byte)0xD9; vhr[3] = (byte)0x40;
+		vhr[25] = 55;
+		vhr[27] = (byte)(cylCount - 1);
+		vhr[29] = (byte)(heads - 1);
+		for (int i = 0; i < 6; i++) { vhr[30 + i] = (byte)0xF1; }
+		this.writeAwsBlock(tape, vhr, vhr.length, 0);
+		int prevLength = vhr.length;
+		
+		for (int cyl = 0; cyl < cylCount; cyl++) {
+			for (int head = 0; head < heads; head++) {
+				int recCount = ((cyl * heads + head) % 4) + 1;
+				int dataLen = 1600;
+				int headerLength = 21 + (recCount * 8);
+				byte[] content = new byte[11 + headerLength + (recCount * dataLen)];
+				content[0] = (byte)0xE3; content[1] = (byte)0xC8; content[2] = (byte)0xD9; content[3] = (byte)0x40;
+				content[5] = (byte)recCount;
+				content[11 + 2] = (byte)cyl;
+				content[11 + 4] = (byte)head;
+				for (int r = 0; r < recCount; r++) {
+					int countPos = 11 + 21 + (r * 8);
+					content[countPos + 1] = (byte)cyl;
+					content[countPos + 3] = (byte)head;
+					content[countPos + 4] = (byte)(r + 1);
+					content[countPos + 6] = (byte)(dataLen >> 8);
+					content[countPos + 7] = (byte)dataLen;
+				}
+				for (int i = 11 + headerLength; i < content.length; i++) {
+					content[i] = (i % 5 == 0) ? (byte)rnd.nextInt(256) : (byte)0x40;
+				}
+				
+				// THR block (always 4096 bytes) followed by the remaining data blocks
+				int rest = Math.max(0, content.length - 4096);
+				content[7] = (byte)((rest / 4096) + 1);
+				content[8] = (byte)((rest % 4096) >> 8);
+				content[9] = (byte)(rest % 4096);
+				byte[] block = Arrays.copyOf(content, Math.max(4096, content.length));
+				this.writeAwsBlock(tape, block, 4096, prevLength);
+				prevLength = 4096;
+				for (int pos = 4096; pos < content.length; pos += 4096) {
+					int len = Math.min(4096, content.length - pos);
+					this.writeAwsBlock(tape, Arrays.copyOfRange(block, pos, pos + len), len, prevLength);
+					prevLength = len;
+				}
+			}
+		}
+		this.writeAwsBlock(tape, null, 0, prevLength);
+		return tape.toByteArray();
+	}
+	
+	@Test
+	public void testStreamingDdrConversion() throws Exception {
+		byte[] ddrTape = this.createDdrTape(5);
+		File ckdcFile = File.createTempFile("emx370-ddr", ".ckdc");
+		try {
+			// in-memory conversion as reference
+			CkdcDrive drive = new Vm370DdrCkdcLoader().loadDdrTapeToCkdcDrive(new ByteArrayInputStream(ddrTape));
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			drive.save(expected, false);
+			
+			// streaming conversion must give the same file
+			boolean ok = new Vm370DdrCkdcLoader().convertDdrTapeToCkdcFile(new ByteArrayInputStream(ddrTape), ckdcFile.getPath(), 3);
+			Assert.assertTrue("streaming conversion ok", ok);
+			Assert.assertArrayEquals("CKDC file content", expected.toByteArray(), Files.readAllBytes(ckdcFile.toPath()));
+			
+			// incomplete last cylinder
+			byte[] truncated = Arrays.copyOf(ddrTape, ddrTape.length - 6 - 4096);
+			try {
+				new Vm370DdrCkdcLoader().convertDdrTapeToCkdcFile(new ByteArrayInputStream(truncated), ckdcFile.getPath(), 2);
+				fail("missing track not detected");
+			} catch (Exception e) {
+				assertEquals("Missing track from DDR tape", e.getMessage());
+			}
+			
+			// a failed conversion leaves the existing file unchanged and no temporary file behind
+			Assert.assertArrayEquals("CKDC file kept", expected.toByteArray(), Files.readAllBytes(ckdcFile.toPath()));
+			Assert.assertFalse("temp file removed", new File(ckdcFile.getPath() + ".tmp").exists());
+			
+			// the same for a conversion reporting a failure
+			final ByteArrayInputStream tapeData = new ByteArrayInputStream(ddrTape);
+			InputStream failingTape = new FilterInputStream(tapeData) {
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					if (tapeData.available() < ddrTape.length / 2) { throw new IOException("tape read error"); }
+					return super.read(b, off, len);
+				}
+			};
+			ckdcFile.delete();
+			ok = new Vm370DdrCkdcLoader().convertDdrTapeToCkdcFile(failingTape, ckdcFile.getPath(), 2);
+			Assert.assertFalse("tape read error reported", ok);
+			Assert.assertFalse("no CKDC file created", ckdcFile.exists());
+			Assert.assertFalse("temp file removed", new File(ckdcFile.getPath() + ".tmp").exists());
+		} finally {
+			ckdcFile.delete();
+		}
+	}
+	
 }
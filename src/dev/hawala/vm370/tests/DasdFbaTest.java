@@ -0,0 +1,262 @@
+/*
+** This file is part of the emx370 emulator UnitTests.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dev.hawala.vm370.dasd.fba.FbaDrive;
+import dev.hawala.vm370.vm.device.DeviceHandler;
+import dev.hawala.vm370.vm.device.iDeviceIO;
+import dev.hawala.vm370.vm.device.iDeviceStatus;
+import dev.hawala.vm370.vm.machine.NullEventTracker;
+
+public class DasdFbaTest {
+	
+	private static final int BLOCKS = 130000; // more than a 3310 can hold
+	
+	private File baseFile;
+	private File deltaFile;
+	
+	@Before
+	public void createBaseFile() throws Exception {
+		this.baseFile = File.createTempFile("emx370-fbatest", ".fba");
+		this.deltaFile = new File(this.baseFile.getPath() + ".delta");
+		try (RandomAccessFile raf = new RandomAccessFile(this.baseFile, "rw")) {
+			raf.setLength((long)BLOCKS * 512); // sparse file, all zeroes
+			raf.seek(512 * 10);
+			raf.write(0x42);
+		}
+	}
+	
+	@After
+	public void removeFiles() {
+		this.baseFile.delete();
+		this.deltaFile.delete();
+	}
+	
+	// device I/O adapter copying from resp. to a byte array
+	private static iDeviceIO memIO(byte[] mem, boolean toDevice) {
+		return (devMemory, offset, length) -> {
+			int count = Math.min(mem.length, length);
+			if (toDevice) {
+				System.arraycopy(mem, 0, devMemory, offset, count);
+			} else {
+				System.arraycopy(devMemory, offset, mem, 0, count);
+			}
+			return mem.length - length;
+		};
+	}
+	
+	private static byte[] int4(int value) {
+		return new byte[] { (byte)(value >> 24), (byte)(value >> 16), (byte)(value >> 8), (byte)value };
+	}
+	
+	// do DEFINE EXTENT and LOCATE for the blocks
+	private static void locate(FbaDrive drive, int block, int count, boolean forWrite) {
+		byte[] extent = new byte[16];
+		System.arraycopy(int4(BLOCKS - 1), 0, extent, 12, 4);
+		assertEquals(iDeviceStatus.OK | iDeviceStatus.DEVICE_END, drive.control(0x63, 16, memIO(extent, true)));
+		
+		byte[] locate = new byte[8];
+		locate[0] = (forWrite) ? (byte)0x01 : (byte)0x06;
+		locate[2] = (byte)(count >> 8);
+		locate[3] = (byte)count;
+		System.arraycopy(int4(block), 0, locate, 4, 4);
+		assertEquals(iDeviceStatus.OK | iDeviceStatus.DEVICE_END, drive.control(0x43, 8, memIO(locate, true)));
+	}
+	
+	private static byte[] readBlocks(FbaDrive drive, int block, int count) {
+		drive.resetState();
+		locate(drive, block, count, false);
+		byte[] data = new byte[count * 512];
+		assertEquals(iDeviceStatus.OK | iDeviceStatus.DEVICE_END, drive.read(0x42, data.length, memIO(data, false)));
+		return data;
+	}
+	
+	private static void writeBlocks(FbaDrive drive, int block, int count, byte[] data) {
+		drive.resetState();
+		locate(drive, block, count, true);
+		assertEquals(iDeviceStatus.OK | iDeviceStatus.DEVICE_END, drive.write(0x41, data.length, memIO(data, true)));
+	}
+	
+	private static byte[] pattern(int length, int seed) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) { data[i] = (byte)(i * 7 + seed); }
+		return data;
+	}
+	
+	@Test
+	public void testLargeDriveWriteSaveReload() throws Exception {
+		FbaDrive drive = new FbaDrive(this.baseFile.getPath());
+		assertTrue(drive.getCpQueryStatusLine(0x100).contains(" 3370 "));
+		assertEquals(0x42, readBlocks(drive, 10, 1)[0]);
+		
+		byte[] data = pattern(3 * 512, 5);
+		writeBlocks(drive, BLOCKS - 3, 3, data);
+		assertArrayEquals(data, readBlocks(drive, BLOCKS - 3, 3));
+		assertTrue(drive.needsSaving());
+		
+		drive.saveTo(this.deltaFile.getPath(), null);
+		assertTrue(this.deltaFile.length() < 4096);
+		
+		FbaDrive reloaded = new FbaDrive(this.baseFile.getPath());
+		assertArrayEquals(data, readBlocks(reloaded, BLOCKS - 3, 3));
+		assertEquals(0x42, readBlocks(reloaded, 10, 1)[0]);
+		assertArrayEquals(new byte[512], readBlocks(reloaded, BLOCKS - 4, 1));
+	}
+	
+	@Test
+	public void testShortWriteKeepsRestOfBlock() throws Exception {
+		FbaDrive drive = new FbaDrive(this.baseFile.getPath());
+		writeBlocks(drive, 10, 1, pattern(100, 1));
+		
+		byte[] block = readBlocks(drive, 10, 1);
+		assertArrayEquals(pattern(100, 1), Arrays.copyOf(block, 100));
+		assertArrayEquals(new byte[412], Arrays.copyOfRange(block, 100, 512));
+		
+		byte[] data = pattern(512, 9);
+		writeBlocks(drive, 10, 1, data);
+		writeBlocks(drive, 10, 1, pattern(10, 3));
+		block = readBlocks(drive, 10, 1);
+		assertArrayEquals(pattern(10, 3), Arrays.copyOf(block, 10));
+		assertArrayEquals(Arrays.copyOfRange(data, 10, 512), Arrays.copyOfRange(block, 10, 512));
+	}
+	
+	@Test
+	public void testFullImageDelta() throws Exception {
+		// a delta written by older versions is a complete disk image
+		byte[] data = pattern(512, 77);
+		try (FileOutputStream fos = new FileOutputStream(this.deltaFile)) {
+			byte[] zeroes = new byte[512];
+			for (int i = 0; i < BLOCKS; i++) {
+				fos.write((i == 1000) ? data : zeroes);
+			}
+		}
+		
+		FbaDrive drive = new FbaDrive(this.baseFile.getPath());
+		assertArrayEquals(data, readBlocks(drive, 1000, 1));
+		assertEquals(0x00, readBlocks(drive, 10, 1)[0]); // the image has block 10 zeroed 
+	}
+	
+	@Test
+	public void testSaveImageToBaseFile() throws Exception {
+		FbaDrive drive = new FbaDrive(this.baseFile.getPath());
+		byte[] data = pattern(2 * 512, 33);
+		writeBlocks(drive, 500, 2, data);
+		
+		// the open base file is replaced by the image and used as new base file
+		drive.saveTo(null, this.baseFile.getPath());
+		assertEquals((long)BLOCKS * 512, this.baseFile.length());
+		try (RandomAccessFile raf = new RandomAccessFile(this.baseFile, "r")) {
+			byte[] saved = new byte[data.length];
+			raf.seek(500 * 512);
+			raf.readFully(saved);
+			assertArrayEquals(data, saved);
+		}
+		assertArrayEquals(data, readBlocks(drive, 500, 2));
+		assertEquals(0x42, readBlocks(drive, 10, 1)[0]);
+		
+		// the drive continues to work with the new base file
+		byte[] data2 = pattern(512, 44);
+		writeBlocks(drive, 501, 1, data2);
+		assertArrayEquals(Arrays.copyOf(data, 512), readBlocks(drive, 500, 1));
+		assertArrayEquals(data2, readBlocks(drive, 501, 1));
+		drive.close();
+		
+		FbaDrive reloaded = new FbaDrive(this.baseFile.getPath());
+		assertArrayEquals(data, readBlocks(reloaded, 500, 2));
+		reloaded.close();
+	}
+	
+	// put a CCW into the memory, returning the location of the following CCW
+	private static int ccw(byte[] mem, int at, int command, int address, int flags, int count) {
+		mem[at] = (byte)command;
+		mem[at + 1] = (byte)(address >> 16);
+		mem[at + 2] = (byte)(address >> 8);
+		mem[at + 3] = (byte)address;
+		mem[at + 4] = (byte)flags;
+		mem[at + 5] = 0;
+		mem[at + 6] = (byte)(count >> 8);
+		mem[at + 7] = (byte)count;
+		return at + 8;
+	}
+	
+	// run a DEFINE EXTENT + LOCATE + READ/WRITE chain for 2 blocks starting at block 20,
+	// the data area being given as (address, count) pairs of data chained CCWs
+	private static void runBlockChain(DeviceHandler handler, byte[] mem, boolean write, int... areas) {
+		Arrays.fill(mem, 0, 1024, (byte)0);
+		System.arraycopy(int4(BLOCKS - 1), 0, mem, 512 + 12, 4);
+		mem[528] = (write) ? (byte)0x01 : (byte)0x06;
+		mem[531] = 2;
+		System.arraycopy(int4(20), 0, mem, 532, 4);
+		
+		int at = ccw(mem, 256, 0x63, 512, 0x40, 16);
+		at = ccw(mem, at, 0x43, 528, 0x40, 8);
+		for (int i = 0; i < areas.length; i += 2) {
+			int flags = 0x20 | ((i + 2 < areas.length) ? 0x80 : 0x00);
+			at = ccw(mem, at, (i == 0) ? ((write) ? 0x41 : 0x42) : 0x00, areas[i], flags, areas[i + 1]);
+		}
+		mem[72] = 0;
+		System.arraycopy(int4(256), 1, mem, 73, 3);
+		assertTrue("chain ok", handler.processCAW());
+	}
+	
+	@Test
+	public void testChannelProgramTransfers() throws Exception {
+		FbaDrive drive = new FbaDrive(this.baseFile.getPath());
+		byte[] mem = new byte[16384];
+		DeviceHandler handler = new DeviceHandler(mem, drive, 0x100, NullEventTracker.INSTANCE);
+		byte[] data = pattern(1024, 11);
+		
+		// contiguous memory area: blocks are transferred directly from resp. to memory
+		System.arraycopy(data, 0, mem, 4096, 1024);
+		runBlockChain(handler, mem, true, 4096, 1024);
+		runBlockChain(handler, mem, false, 8192, 1024);
+		assertArrayEquals(data, Arrays.copyOfRange(mem, 8192, 9216));
+		assertArrayEquals(data, readBlocks(drive, 20, 2));
+		
+		// data chained areas
+		runBlockChain(handler, mem, false, 10000, 300, 12000, 724);
+		assertArrayEquals(Arrays.copyOf(data, 300), Arrays.copyOfRange(mem, 10000, 10300));
+		assertArrayEquals(Arrays.copyOfRange(data, 300, 1024), Arrays.copyOfRange(mem, 12000, 12724));
+		byte[] data2 = pattern(1024, 22);
+		System.arraycopy(data2, 0, mem, 10000, 600);
+		System.arraycopy(data2, 600, mem, 12000, 424);
+		runBlockChain(handler, mem, true, 10000, 600, 12000, 424);
+		assertArrayEquals(data2, readBlocks(drive, 20, 2));
+		
+		// short contiguous areas: a partial write keeps the rest of the block, a partial read
+		// does not touch the memory after the area
+		System.arraycopy(data, 0, mem, 4096, 700);
+		runBlockChain(handler, mem, true, 4096, 700);
+		byte[] expected = Arrays.copyOf(data, 1024);
+		System.arraycopy(data2, 700, expected, 700, 324);
+		assertArrayEquals(expected, readBlocks(drive, 20, 2));
+		Arrays.fill(mem, 8192, 9216, (byte)0x55);
+		runBlockChain(handler, mem, false, 8192, 600);
+		assertArrayEquals(Arrays.copyOf(expected, 600), Arrays.copyOfRange(mem, 8192, 8792));
+		assertEquals(0x55, mem[8792]);
+		drive.close();
+	}
+}
@@ -0,0 +1,99 @@
+/*
+** This file is part of the emx370 emulator UnitTests.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import dev.hawala.vm370.mecaff.ByteBuffer;
+import dev.hawala.vm370.stream3270.DataOutStream3270;
+
+public class DataStream3270Test {
+
+	private static final byte FF = (byte)0xFF;
+	private static final byte EOR = (byte)0xEF;
+
+	// output stream counting the write calls
+	private static class CountingOutputStream extends ByteArrayOutputStream {
+		private int writes = 0;
+
+		@Override
+		public synchronized void write(int b) {
+			this.writes++;
+			super.write(b);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			this.writes++;
+			super.write(b, off, len);
+		}
+	}
+
+	@Test
+	public void testTelnetEscapedStream() throws IOException {
+		DataOutStream3270 ds = new DataOutStream3270(80, 24, false, true);
+		ds.cmdWrite(false, false, false)
+		  .appendEbcdic(new byte[] { (byte)0xC1, FF, (byte)0xC2, FF, FF })
+		  .appendEbcdic(FF)
+		  .telnetEOR();
+
+		CountingOutputStream os = new CountingOutputStream();
+		ds.writeToSink(os);
+		byte[] expected = {
+			(byte)0xF1, (byte)0x40,
+			(byte)0xC1, FF, FF, (byte)0xC2, FF, FF, FF, FF,
+			FF, FF,
+			FF, EOR };
+		assertArrayEquals(expected, os.toByteArray());
+		assertEquals(1, os.writes);
+		assertEquals(0, ds.getLength());
+	}
+
+	@Test
+	public void testUnescapedStream() throws IOException {
+		DataOutStream3270 ds = new DataOutStream3270(80, 24, false);
+		ds.appendEbcdic(new byte[] { (byte)0xC1, FF }).telnetEOR();
+		assertEquals(4, ds.getLength());
+
+		CountingOutputStream os = new CountingOutputStream();
+		ds.writeToSink(os);
+		assertArrayEquals(new byte[] { (byte)0xC1, FF, FF, EOR }, os.toByteArray());
+	}
+
+	@Test
+	public void testByteBufferTelnetRecord() throws IOException {
+		ByteBuffer buffer = new ByteBuffer(16, 16);
+		buffer.append(new byte[] { 0x11, FF, 0x40, FF });
+
+		CountingOutputStream os = new CountingOutputStream();
+		buffer.writeTo(os, true, new byte[] { FF, EOR });
+		assertArrayEquals(new byte[] { 0x11, FF, FF, 0x40, FF, FF, FF, EOR }, os.toByteArray());
+		assertEquals(1, os.writes);
+
+		os = new CountingOutputStream();
+		buffer.writeChunkTo(os, 1, 2, true);
+		assertArrayEquals(new byte[] { FF, FF, 0x40 }, os.toByteArray());
+		assertEquals(1, os.writes);
+
+		os = new CountingOutputStream();
+		buffer.writeTo(os, false);
+		assertArrayEquals(new byte[] { 0x11, FF, 0x40, FF }, os.toByteArray());
+		assertEquals(1, os.writes);
+	}
+}
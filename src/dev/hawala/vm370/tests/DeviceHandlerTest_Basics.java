@@ -15,10 +15,14 @@ package dev.hawala.vm370.tests;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
@@ -33,10 +37,13 @@ import dev.hawala.vm370.dasd.ckdc.CkdcDrive;
 import dev.hawala.vm370.dasd.ckdc.Vm370DdrCkdcLoader;
 import dev.hawala.vm370.ebcdic.EbcdicHandler;
 import dev.hawala.vm370.vm.device.DeviceHandler;
+import dev.hawala.vm370.vm.device.MemorySegments;
 import dev.hawala.vm370.vm.device.iDevice;
 import dev.hawala.vm370.vm.device.iDeviceChannelStatus;
 import dev.hawala.vm370.vm.device.iDeviceIO;
 import dev.hawala.vm370.vm.device.iDeviceStatus;
+import dev.hawala.vm370.vm.machine.CPVirtualMachine;
+import dev.hawala.vm370.vm.machine.iCommandExecutor;
 import dev.hawala.vm370.vm.machine.iProcessorEventTracker;
 
 public class DeviceHandlerTest_Basics {
@@ -116,6 +123,7 @@ public class DeviceHandlerTest_Basics {
 		private int resultWrite = 0;
 		private int resultSense = 0;
 		private int resultControl = 0;
+		private boolean directWrite = false;
 		
 		public TestDevice setWriteLen(int l) { this.lenWrite = l; return this; }
 		public TestDevice setControlLen(int l) { this.lenControl = l; return this; }
@@ -125,6 +133,7 @@ public class DeviceHandlerTest_Basics {
 		public TestDevice setWriteResult(int r) { this.resultWrite = r; return this; }
 		public TestDevice setSenseResult(int r) { this.resultSense = r; return this; }
 		public TestDevice setControlResult(int r) { this.resultControl = r; return this; }
+		public TestDevice setDirectWrite(boolean d) { this.directWrite = d; return this; }
 		
 		// result information from test
 		private boolean hadReset = false;
@@ -142,6 +151,7 @@ public class DeviceHandlerTest_Basics {
 		private int ioOutControl = 0;
 		private byte[] dataWritten = null;
 		private byte[] dataControlled = null;
+		private int directSegmentCount = 0;
 		
 		public boolean getHadReset() { return this.hadReset; }
 		public boolean getHadRead() { return this.hadRead; }
@@ -158,6 +168,7 @@ public class DeviceHandlerTest_Basics {
 		public int getControlIoResult() { return this.ioOutControl; }
 		public byte[] getDataWritten() { return this.dataWritten; }
 		public byte[] getDataControlled() { return this.dataControlled; }
+		public int getDirectSegmentCount() { return this.directSegmentCount; }
 
 		@Override
 		public void resetState() {
@@ -179,7 +190,14 @@ public class DeviceHandlerTest_Basics {
 			this.datalenWrite = dataLength;
 			if (this.lenWrite < 1) { throw new IllegalStateException("invalid writeLen specified for test device"); }
 			this.dataWritten = new byte[this.lenWrite];
-			this.ioOutWrite = memSource.transfer(this.dataWritten, 0, this.lenWrite);
+			MemorySegments segments = (this.directWrite) ? memSource.getDirectSegments() : null;
+			if (segments != null) {
+				this.directSegmentCount = segments.getCount();
+				segments.gather(this.dataWritten, 0, this.lenWrite);
+				this.ioOutWrite = memSource.completeDirect(this.lenWrite);
+			} else {
+				this.ioOutWrite = memSource.transfer(this.dataWritten, 0, this.lenWrite);
+			}
 			return this.resultWrite;
 		}
 
@@ -231,6 +249,34 @@ public class DeviceHandlerTest_Basics {
 		}
 	}
 	
+	// DASD-like test device blocking in read() until released, for keeping an asynchronous CCW chain running
+	private static class BlockingDevice extends TestDevice {
+		
+		private final CountDownLatch entered = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+		private final AtomicInteger readCount = new AtomicInteger();
+		
+		public boolean awaitEntered() throws InterruptedException { return this.entered.await(5, TimeUnit.SECONDS); }
+		public void release() { this.release.countDown(); }
+		public int getReadCount() { return this.readCount.get(); }
+		
+		@Override
+		public int read(int opcode, int dataLength, iDeviceIO memTarget) {
+			this.readCount.incrementAndGet();
+			this.entered.countDown();
+			try {
+				this.release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				// ignored
+			}
+			memTarget.transfer(new byte[dataLength], 0, dataLength);
+			return iDeviceStatus.DEVICE_END;
+		}
+		
+		@Override
+		public int getVDevInfo() { return 0x04000000; } // DASD (ckd) class
+	}
+	
 	private void checkCSWStatus(int expectedUnitStatus, int expectedChannelStatus) {
 		assertEquals("CSW UnitStatus", (byte)expectedUnitStatus, this.mem[ADDR_CSW+4]);
 		assertEquals("CSW ChannelStatus", (byte)expectedChannelStatus, this.mem[ADDR_CSW+5]);
@@ -315,6 +361,68 @@ public class DeviceHandlerTest_Basics {
 			0);
 	}
 	
+	@Test
+	public void test_read_SingleCCW_Async_OK() throws InterruptedException {
+		// setup CAW
+		int ccwAddr = 1024;
+		byte protKey = _50;
+		this.setCAW(ccwAddr, protKey);
+		
+		// single CCW: read 10 bytes to location 2048
+		int readPos = 2048;
+		int readCount = 10;
+		ccwAddr = this.setCCW(ccwAddr, mkCmdRead(0x00), readPos, CcwFlags_None, readCount);
+		
+		// setup a device and a device-handler for that
+		byte[] readData = { _10, _11, _12, _13, _14, _15, _16, _17, _18, _19 };
+		TestDevice dev = new TestDevice()
+			.setReadData(readData)
+			.setReadResult(iDeviceStatus.DEVICE_END);
+		DeviceHandler d = new DeviceHandler(this.mem, dev, 0x123, this.eventLogger);
+		
+		// start the channel program and wait for its end
+		final CountDownLatch ended = new CountDownLatch(1);
+		boolean started = d.startCAW(ended::countDown);
+		assertTrue("Outcome of startCAW()", started);
+		assertTrue("Asynchronous CCW chain ended", ended.await(5, TimeUnit.SECONDS));
+		
+		// check outcome
+		assertFalse("isBusy()", d.isBusy());
+		assertTrue("hasPendingCompletionInterrupt()", d.hasPendingCompletionInterrupt());
+		assertTrue("checkAsyncEnded()", d.checkAsyncEnded());
+		assertFalse("checkAsyncEnded() (2nd)", d.checkAsyncEnded());
+		assertTrue("hadRead()", dev.getHadRead());
+		for (int i = 0; i < readCount; i++) {
+			assertEquals("Byte in read target area at offset " + i, readData[i], this.mem[readPos + i]);
+		}
+		d.storeCSW();
+		this.checkCSW(
+			protKey,
+			_00,
+			ccwAddr,
+			iDeviceStatus.DEVICE_END | iDeviceStatus.CHANNEL_END,
+			iDeviceChannelStatus.OK,
+			0);
+	}
+	
+	@Test
+	public void test_read_SingleCCW_Async_InvalidCount() {
+		// setup CAW
+		int ccwAddr = 1024;
+		this.setCAW(ccwAddr, _50);
+		
+		// single CCW with count = 0 => must be rejected without starting the chain
+		this.setCCW(ccwAddr, mkCmdRead(0x00), 2048, CcwFlags_None, 0);
+		TestDevice dev = new TestDevice().setReadData(new byte[] { _10 });
+		DeviceHandler d = new DeviceHandler(this.mem, dev, 0x123, this.eventLogger);
+		
+		assertFalse("Outcome of startCAW()", d.startCAW(() -> {}));
+		assertFalse("isBusy()", d.isBusy());
+		assertFalse("hadRead()", dev.getHadRead());
+		assertFalse("Outcome of processCAW()", d.processCAW());
+		assertEquals("CSW CC", (byte)1, d.getCswCC());
+	}
+	
 	@Test
 	public void test_read_CCWs_ChainData_ChainCommand_OK() {
 		// setup CAW
@@ -519,6 +627,51 @@ public class DeviceHandlerTest_Basics {
 			0);
 	}
 	
+	@Test
+	public void test_write_CCWs_ChainData_TIC_Direct_OK() {
+		// setup CAW
+		int ccwAddr = 1024;
+		byte protKey = _90;
+		this.setCAW(ccwAddr, protKey);
+		
+		// data chained CCWs:
+		// - write 5 bytes from location 2048
+		// - transfer-in-channel to 1280
+		// - (at 1280) write 7 bytes from location 3000
+		ccwAddr = this.setCCW(ccwAddr, mkCmdWrite(0x00), 2048, CcwFlags_CD, 5);
+		this.setCCW(ccwAddr, mkCmdTIC(), 1280, CcwFlags_None, 0);
+		ccwAddr = this.setCCW(1280, mkCmdWrite(0x00), 3000, CcwFlags_None, 7);
+		
+		byte[] zeData = { _10, _11, _12, _13, _14, _20, _21, _22, _23, _24, _25, _26 };
+		for (int i = 0; i < 5; i++) { this.mem[2048 + i] = zeData[i]; }
+		for (int i = 0; i < 7; i++) { this.mem[3000 + i] = zeData[5 + i]; }
+		
+		// setup a device accessing the memory segments directly
+		TestDevice dev = new TestDevice()
+			.setWriteLen(12)
+			.setDirectWrite(true)
+			.setWriteResult(iDeviceStatus.DEVICE_END);
+		DeviceHandler d = new DeviceHandler(this.mem, dev, 0x123, this.eventLogger);
+		boolean wasOk = d.processCAW();
+		d.storeCSW();
+		
+		// check outcome
+		assertEquals("Outcome of processCAW()", true, wasOk);
+		assertEquals("Direct segment count", 2, dev.getDirectSegmentCount());
+		assertEquals("Result of iDeviceIO.completeDirect()", 0, dev.getWriteIoResult());
+		byte[] writtenData = dev.getDataWritten();
+		for (int i = 0; i < zeData.length; i++) {
+			assertEquals("Byte in written data at offset " + i, zeData[i], writtenData[i]);
+		}
+		this.checkCSW(
+			protKey,
+			_00,
+			ccwAddr,
+			iDeviceStatus.DEVICE_END | iDeviceStatus.CHANNEL_END,
+			iDeviceChannelStatus.OK,
+			0);
+	}
+	
 	@Test
 	public void test_write_CCWs_ChainData_TIC_IDAW_ChainCommand_OK() {
 		// setup CAW
@@ -1072,67 +1225,8 @@ public class DeviceHandlerTest_Basics {
 		}
 	}
 
-	@Test
-	public void testCkdcCreateNewDrive() {
-		// relevant coordinates for subsequent checks
-		int senseLocation = 3172;
-		int senseLen = 3;
-		int unitStatusLocation = ADDR_CSW + 4;
-		int channelStatusLocation = ADDR_CSW + 5;
-		
-		// create a new 3350 drive from scratch
-		Vm370DdrCkdcLoader loader = new Vm370DdrCkdcLoader();
-		CkdcDrive drive = loader.createNewDrive(CkdDriveType.ckd3350, 42, "TST");
-		assertNotNull("result of createDriveFile()", drive);
-		
-		// try to read a CMS record from an existing but unformatted track (no records on track)
-		// => must fail with UnitCheck (inkl. ChannelEnd, DeviceEnd) in PSW and RecordNotFound in Sense-Byte[1]
-		DeviceHandler d = new DeviceHandler(this.mem, drive, 0x299, this.eventLogger);
-		drive.setEventTracker(this.eventLogger);
-		this.eventLogger.logLine("");
-		this.eventLogger.logLine("**");
-		this.eventLogger.logLine("** read a CMS record from an existing but unformatted track (no records on track)");
-		this.eventLogger.logLine("**");
-		this.readCmsRecord(d, 
-				1 /* cyl */, 1 /* head */, 1 /* record */,
-				4096 /* memTo */, 800 /* memCount */,
-				false /* expectedOutcome */);
-		assertEquals("UnitStatus after failed read ( ChannelEnd + DeviceEnd + UnitCheck )", (byte)0x0E, this.mem[unitStatusLocation]);
-		assertEquals("ChannelStatus after failed read", (byte)0x00, this.mem[channelStatusLocation]);
-		
-		// do a sense to check the reason for the read failure
-		boolean senseOk = this.doSense(d, senseLocation, senseLen);
-		assertTrue("success of a sense on drive after read failure", senseOk);
-		assertEquals("sense-byte offset 0 after failed read", (byte)0x00, this.mem[senseLocation]);
-		assertEquals("sense-byte offset 1 after failed read ( NoRecordFound )", (byte)0x08, this.mem[senseLocation+1]);
-		assertEquals("sense-byte offset 2 after failed read", (byte)0x00, this.mem[senseLocation+2]);
-		
-		// try to read from cylinder 42 (does not exist)
-		// => must fail with UnitCheck in CSW and CommandReject+SeekCheck in Sense-Byte[0]
-		this.eventLogger.logLine("");
-		this.eventLogger.logLine("**");
-		this.eventLogger.logLine("** read from cylinder 42 (does not exist)");
-		this.eventLogger.logLine("**");
-		this.readCmsRecord(d, 
-				42 /* cyl */, 0 /* head */, 0 /* record */,
-				4096 /* memTo */, 800 /* memCount */,
-				false /* expectedOutcome */);
-		assertEquals("UnitStatus after failed read ( ChannelEnd + DeviceEnd + UnitCheck )", (byte)0x0E, this.mem[unitStatusLocation]);
-		assertEquals("ChannelStatus after failed read", (byte)0x00, this.mem[channelStatusLocation]);
-		senseOk = this.doSense(d, senseLocation, senseLen);
-		assertTrue("success of a sense on drive after read failure", senseOk);
-		assertEquals("sense-byte offset 0 after failed read ( CommandReject + SeekCheck )", (byte)0x81, this.mem[senseLocation]);
-		assertEquals("sense-byte offset 1 after failed read", (byte)0x00, this.mem[senseLocation+1]);
-		assertEquals("sense-byte offset 2 after failed read", (byte)0x00, this.mem[senseLocation+2]);
-		
-		/*
-		** format track 0 with a CCW-chain like CMS would use
-		*/
-		this.eventLogger.logLine("");
-		this.eventLogger.logLine("**");
-		this.eventLogger.logLine("** format track 0 with a CCW-chain like CMS would use");
-		this.eventLogger.logLine("**");
-		
+	// format track 0 of the drive with a CCW-chain like CMS would use (records of 800 bytes)
+	private void formatCmsTrack0(DeviceHandler d) {
 		// 00CCHHR field for 1st "Seek" + 1st "Search Id"
 		putBytes(0x08D2,
 			_00, _00, _00, _00, _00, _00, _00
@@ -1289,6 +1383,70 @@ public class DeviceHandlerTest_Basics {
 		System.out.println();
 		assertTrue("Result of d.processCAW()", wasOk);
 		d.storeCSW();
+	}
+	
+	@Test
+	public void testCkdcCreateNewDrive() {
+		// relevant coordinates for subsequent checks
+		int senseLocation = 3172;
+		int senseLen = 3;
+		int unitStatusLocation = ADDR_CSW + 4;
+		int channelStatusLocation = ADDR_CSW + 5;
+		
+		// create a new 3350 drive from scratch
+		Vm370DdrCkdcLoader loader = new Vm370DdrCkdcLoader();
+		CkdcDrive drive = loader.createNewDrive(CkdDriveType.ckd3350, 42, "TST");
+		assertNotNull("result of createDriveFile()", drive);
+		
+		// try to read a CMS record from an existing but unformatted track (no records on track)
+		// => must fail with UnitCheck (inkl. ChannelEnd, DeviceEnd) in PSW and RecordNotFound in Sense-Byte[1]
+		DeviceHandler d = new DeviceHandler(this.mem, drive, 0x299, this.eventLogger);
+		drive.setEventTracker(this.eventLogger);
+		this.eventLogger.logLine("");
+		this.eventLogger.logLine("**");
+		this.eventLogger.logLine("** read a CMS record from an existing but unformatted track (no records on track)");
+		this.eventLogger.logLine("**");
+		this.readCmsRecord(d, 
+				1 /* cyl */, 1 /* head */, 1 /* record */,
+				4096 /* memTo */, 800 /* memCount */,
+				false /* expectedOutcome */);
+		assertEquals("UnitStatus after failed read ( ChannelEnd + DeviceEnd + UnitCheck )", (byte)0x0E, this.mem[unitStatusLocation]);
+		assertEquals("ChannelStatus after failed read", (byte)0x00, this.mem[channelStatusLocation]);
+		
+		// do a sense to check the reason for the read failure
+		boolean senseOk = this.doSense(d, senseLocation, senseLen);
+		assertTrue("success of a sense on drive after read failure", senseOk);
+		assertEquals("sense-byte offset 0 after failed read", (byte)0x00, this.mem[senseLocation]);
+		assertEquals("sense-byte offset 1 after failed read ( NoRecordFound )", (byte)0x08, this.mem[senseLocation+1]);
+		assertEquals("sense-byte offset 2 after failed read", (byte)0x00, this.mem[senseLocation+2]);
+		
+		// try to read from cylinder 42 (does not exist)
+		// => must fail with UnitCheck in CSW and CommandReject+SeekCheck in Sense-Byte[0]
+		this.eventLogger.logLine("");
+		this.eventLogger.logLine("**");
+		this.eventLogger.logLine("** read from cylinder 42 (does not exist)");
+		this.eventLogger.logLine("**");
+		this.readCmsRecord(d, 
+				42 /* cyl */, 0 /* head */, 0 /* record */,
+				4096 /* memTo */, 800 /* memCount */,
+				false /* expectedOutcome */);
+		assertEquals("UnitStatus after failed read ( ChannelEnd + DeviceEnd + UnitCheck )", (byte)0x0E, this.mem[unitStatusLocation]);
+		assertEquals("ChannelStatus after failed read", (byte)0x00, this.mem[channelStatusLocation]);
+		senseOk = this.doSense(d, senseLocation, senseLen);
+		assertTrue("success of a sense on drive after read failure", senseOk);
+		assertEquals("sense-byte offset 0 after failed read ( CommandReject + SeekCheck )", (byte)0x81, this.mem[senseLocation]);
+		assertEquals("sense-byte offset 1 after failed read", (byte)0x00, this.mem[senseLocation+1]);
+		assertEquals("sense-byte offset 2 after failed read", (byte)0x00, this.mem[senseLocation+2]);
+		
+		/*
+		** format track 0 with a CCW-chain like CMS would use
+		*/
+		this.eventLogger.logLine("");
+		this.eventLogger.logLine("**");
+		this.eventLogger.logLine("** format track 0 with a CCW-chain like CMS would use");
+		this.eventLogger.logLine("**");
+		
+		this.formatCmsTrack0(d);
 		
 		// location and length for read / write operations on track 0
 		int recBase = 2048;
@@ -1443,6 +1601,240 @@ public class DeviceHandlerTest_Basics {
 		
 	}
 	
+	@Test
+	public void test_Async_HaltAndWait() throws InterruptedException {
+		// 2 chained reads, the first blocking until released
+		int ccwAddr = 1024;
+		this.setCAW(ccwAddr, _00);
+		ccwAddr = this.setCCW(ccwAddr, mkCmdRead(0x00), 2048, CcwFlags_CC, 10);
+		ccwAddr = this.setCCW(ccwAddr, mkCmdRead(0x00), 2048, CcwFlags_None, 10);
+		BlockingDevice dev = new BlockingDevice();
+		DeviceHandler d = new DeviceHandler(this.mem, dev, 0x191, this.eventLogger);
+		
+		assertTrue("Outcome of startCAW()", d.startCAW(() -> {}));
+		assertTrue("read() entered", dev.awaitEntered());
+		assertTrue("isBusy()", d.isBusy());
+		
+		// HIO: signal the halt, release the device a bit later and wait for the chain to end
+		d.requestHalt();
+		new Thread(() -> {
+			try { Thread.sleep(50); } catch (InterruptedException e) { }
+			dev.release();
+		}).start();
+		d.awaitIdle();
+		
+		assertFalse("isBusy()", d.isBusy());
+		assertEquals("read() calls (chain halted after 1st CCW)", 1, dev.getReadCount());
+		assertTrue("hasPendingCompletionInterrupt()", d.hasPendingCompletionInterrupt());
+		
+		// not busy: returns immediately
+		d.awaitIdle();
+	}
+	
+	@Test
+	public void test_DiagX18_RejectedWhileAsyncChainRunning() throws Exception {
+		CPVirtualMachine vm = new CPVirtualMachine("TESTVM", new iCommandExecutor() {
+			public int processCommandBuffer(EbcdicHandler commandBuffer, EbcdicHandler outputBuffer) { return 0; }
+			public void executePendingAsyncCommands() { }
+		});
+		BlockingDevice dev = new BlockingDevice();
+		DeviceHandler d = vm.createDeviceHandler(dev, 0x191, this.eventLogger);
+		vm.addDevice(d);
+		
+		// single read CCW at 1024, used both by SIO (through the CAW) and DIAG X'18'
+		int ccwAddr = 1024;
+		this.setCAW(ccwAddr, _00);
+		this.setCCW(ccwAddr, mkCmdRead(0x00), 2048, CcwFlags_None, 10);
+		vm.cpu.pokeMainMem(ADDR_CAW, this.mem, ADDR_CAW, 4);
+		vm.cpu.pokeMainMem(ccwAddr, this.mem, ccwAddr, 8);
+		
+		// start the chain asynchronously (as SIO in asynchronous channel mode)
+		final CountDownLatch ended = new CountDownLatch(1);
+		assertTrue("Outcome of startCAW()", d.startCAW(ended::countDown));
+		assertTrue("read() entered", dev.awaitEntered());
+		
+		// DIAG X'18' on the busy device: CC=2 without touching the device
+		int diagX18 = 0x83000000 | (1 << 20) | (2 << 16) | 0x0018; // DIAG R1,R2,X'18'
+		vm.cpu.setGPR(1, 0x191);
+		vm.cpu.setGPR(2, ccwAddr);
+		vm.processDiagnose(diagX18);
+		assertEquals("CC of DIAG X'18' while busy", (byte)2, vm.cpu.getPswConditionCode());
+		assertEquals("read() calls", 1, dev.getReadCount());
+		assertTrue("isBusy()", d.isBusy());
+		
+		// the asynchronous chain still ends normally
+		dev.release();
+		assertTrue("Asynchronous CCW chain ended", ended.await(5, TimeUnit.SECONDS));
+		assertTrue("checkAsyncEnded()", d.checkAsyncEnded());
+		
+		// DIAG X'18' on the idle device is executed
+		vm.processDiagnose(diagX18);
+		assertEquals("CC of DIAG X'18' when idle", (byte)0, vm.cpu.getPswConditionCode());
+		assertEquals("read() calls", 2, dev.getReadCount());
+	}
+	
+	// event logger counting the chains executed directly through the CKD chain cache
+	private static class DirectChainCounter extends EventLogger {
+		private int count = 0;
+		
+		@Override
+		public void logLine(String line, Object... args) {
+			if (line.startsWith(".. Direct CKD chain")) { this.count++; }
+			super.logLine(line, args);
+		}
+	}
+	
+	// setup a CMS-like chain transferring records of track 0 with a 'recLen' bytes area each starting
+	// at 'dataAddr', with the search arguments at 1400 and the sector at 1470 (only the first group seeks)
+	private void setupRecordChain(int ccwAddr, boolean write, int dataAddr, int recLen, int... records) {
+		this.setCAW(ccwAddr, _F0);
+		this.mem[1470] = _0F;
+		for (int i = 0; i < records.length; i++) {
+			int argAddr = 1400 + (i * 8);
+			putBytes(argAddr, _00, _00, _00, _00, _00, _00, (byte)records[i]);
+			if (i == 0) {
+				ccwAddr = this.setCCW(ccwAddr, mkCmdControl(OP_CONTROL_Seek), argAddr, CcwFlags_CC, 6);
+			}
+			ccwAddr = this.setCCW(ccwAddr, mkCmdControl(OP_CONTROL_SetSector), 1470, CcwFlags_CC, 1);
+			ccwAddr = this.setCCW(ccwAddr, mkCmdWrite(OP_WRITE_SearchIdEqual), argAddr + 2, CcwFlags_CC, 5);
+			ccwAddr = this.setCCW(ccwAddr, mkCmdTIC(), ccwAddr - 8, CcwFlags_None, 1);
+			int flags = CcwFlags_SLI | ((i < records.length - 1) ? CcwFlags_CC : 0);
+			byte cmd = (write) ? mkCmdWrite(OP_WRITE_WriteData) : mkCmdRead(OP_READ_ReadData);
+			ccwAddr = this.setCCW(ccwAddr, cmd, dataAddr + (i * recLen), flags, recLen);
+		}
+	}
+	
+	// fill the area with data specific for the record
+	private void fillRecordData(int at, int len, int record) {
+		for (int i = 0; i < len; i++) {
+			this.mem[at + i] = (byte)((record * 7) + i);
+		}
+	}
+	
+	private void assertRecordData(int at, int len, int record) {
+		for (int i = 0; i < len; i++) {
+			if (this.mem[at + i] != (byte)((record * 7) + i)) {
+				assertEquals("Byte at mem location " + (at + i), (byte)((record * 7) + i), this.mem[at + i]);
+			}
+		}
+	}
+	
+	/*
+	 * execute the chain with the same memory content by interpretation on the first drive and through
+	 * the CKD chain cache on the second drive, checking that the outcome, the CSW and the memory are
+	 * the same and that the chain was (or was not) executed directly
+	 */
+	private boolean runInterpretedAndCached(DeviceHandler interpreted, DeviceHandler cached, DirectChainCounter counter, boolean expectDirect) {
+		int ccwAddr = 1024;
+		byte[] memBefore = this.mem.clone();
+		boolean interpretedOk = interpreted.processFromAddress(ccwAddr, _F0);
+		interpreted.storeCSW();
+		byte[] memInterpreted = this.mem.clone();
+		
+		System.arraycopy(memBefore, 0, this.mem, 0, this.mem.length);
+		int directCount = counter.count;
+		boolean cachedOk = cached.processDasdChain(ccwAddr, _F0);
+		cached.storeCSW();
+		
+		assertEquals("outcome of cached vs. interpreted chain", interpretedOk, cachedOk);
+		assertArrayEquals("memory (incl. CSW) after cached vs. interpreted chain", memInterpreted, this.mem);
+		assertEquals("chain executed directly", expectDirect, counter.count > directCount);
+		return cachedOk;
+	}
+	
+	// create 2 drives with a CMS-formatted track 0, the second with the counter as event logger
+	private DeviceHandler[] createFormattedDrives(DirectChainCounter counter) {
+		Vm370DdrCkdcLoader loader = new Vm370DdrCkdcLoader();
+		DeviceHandler interpreted = new DeviceHandler(this.mem, loader.createNewDrive(CkdDriveType.ckd3350, 2, "TST"), 0x290, this.eventLogger);
+		DeviceHandler cached = new DeviceHandler(this.mem, loader.createNewDrive(CkdDriveType.ckd3350, 2, "TST"), 0x291, counter);
+		this.formatCmsTrack0(interpreted);
+		this.formatCmsTrack0(cached);
+		return new DeviceHandler[] { interpreted, cached };
+	}
+	
+	@Test
+	public void test_DasdChain_CachedLikeInterpreted() {
+		DirectChainCounter counter = new DirectChainCounter();
+		DeviceHandler[] d = this.createFormattedDrives(counter);
+		int recLen = 800;
+		
+		// write 3 records with one chain
+		this.fillRecordData(4096, recLen, 2);
+		this.fillRecordData(4096 + recLen, recLen, 3);
+		this.fillRecordData(4096 + (2 * recLen), recLen, 5);
+		this.setupRecordChain(1024, true, 4096, recLen, 2, 3, 5);
+		assertTrue("write chain", this.runInterpretedAndCached(d[0], d[1], counter, true));
+		
+		// read them back in another order
+		java.util.Arrays.fill(this.mem, 4096, 4096 + (3 * recLen), _00);
+		this.setupRecordChain(1024, false, 4096, recLen, 5, 2, 3);
+		assertTrue("read chain", this.runInterpretedAndCached(d[0], d[1], counter, true));
+		this.assertRecordData(4096, recLen, 5);
+		this.assertRecordData(4096 + recLen, recLen, 2);
+		this.assertRecordData(4096 + (2 * recLen), recLen, 3);
+		
+		// the same chain again (cached plan) with a changed search argument
+		java.util.Arrays.fill(this.mem, 4096, 4096 + (3 * recLen), _00);
+		this.mem[1414] = _04;
+		assertTrue("read chain (cached plan)", this.runInterpretedAndCached(d[0], d[1], counter, true));
+		this.assertRecordData(4096, recLen, 5);
+		this.assertZeros(4096 + recLen, recLen); // record 4 was not written
+		this.assertRecordData(4096 + (2 * recLen), recLen, 3);
+	}
+	
+	@Test
+	public void test_DasdChain_CacheInvalidatedByChangedCcw() {
+		DirectChainCounter counter = new DirectChainCounter();
+		DeviceHandler[] d = this.createFormattedDrives(counter);
+		int recLen = 800;
+		
+		this.fillRecordData(4096, recLen, 7);
+		this.fillRecordData(4096 + recLen, recLen, 8);
+		this.setupRecordChain(1024, true, 4096, recLen, 7, 8);
+		assertTrue("write chain", this.runInterpretedAndCached(d[0], d[1], counter, true));
+		this.setupRecordChain(1024, false, 4096, recLen, 7, 8);
+		assertTrue("read chain", this.runInterpretedAndCached(d[0], d[1], counter, true));
+		
+		// the guest changes the data address of the 2nd READ DATA (the CCW at 1024 + 8*8):
+		// the record must go to the new location
+		java.util.Arrays.fill(this.mem, 4096, 4096 + (2 * recLen), _00);
+		this.setCCW(1024 + (8 * 8), mkCmdRead(OP_READ_ReadData), 6400, CcwFlags_SLI, recLen);
+		assertTrue("read chain with changed CCW", this.runInterpretedAndCached(d[0], d[1], counter, true));
+		this.assertRecordData(4096, recLen, 7);
+		this.assertZeros(4096 + recLen, recLen);
+		this.assertRecordData(6400, recLen, 8);
+		
+		// the guest changes the 2nd READ DATA to a command not handled by the cache: interpreted
+		this.setCCW(1024 + (8 * 8), mkCmdRead(OP_READ_ReadCountKeyAndData), 6400, CcwFlags_SLI, recLen + 8);
+		this.runInterpretedAndCached(d[0], d[1], counter, false);
+	}
+	
+	@Test
+	public void test_DasdChain_FallbackToInterpretation() {
+		DirectChainCounter counter = new DirectChainCounter();
+		DeviceHandler[] d = this.createFormattedDrives(counter);
+		int recLen = 800;
+		
+		// record not on the track: fails the same way (unit check)
+		this.setupRecordChain(1024, false, 4096, recLen, 1, 60);
+		assertFalse("read of missing record", this.runInterpretedAndCached(d[0], d[1], counter, false));
+		
+		// wrong length without SLI: incorrect length
+		this.setupRecordChain(1024, false, 4096, 400, 1);
+		this.mem[1024 + (4 * 8) + 4] = _00;
+		this.runInterpretedAndCached(d[0], d[1], counter, false);
+		
+		// chain without initial SEEK (unrecognized shape)
+		this.setupRecordChain(1016, false, 4096, recLen, 1);
+		this.setCCW(1016, mkCmdControl(OP_CONTROL_NoOperation), 0, CcwFlags_CC | CcwFlags_SLI, 1);
+		this.setCAW(1016, _F0);
+		this.runInterpretedAndCached(d[0], d[1], counter, false);
+		
+		// read overwriting the search argument used by a later record
+		this.setupRecordChain(1024, false, 1000, recLen, 1, 2);
+		this.runInterpretedAndCached(d[0], d[1], counter, false);
+	}
+	
 	// -- disabled-- @Test // requires manual interaction!!!!!
 	public void testConsoleInput() {
 		
@@ -0,0 +1,118 @@
+/*
+** This file is part of the emx370 emulator UnitTests.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import dev.hawala.vm370.ebcdic.Ebcdic;
+import dev.hawala.vm370.ebcdic.EbcdicTranscoder;
+
+public class EbcdicTranscoderTest {
+
+	private static final String TEXT = "Hello, World! [0123456789] {a|b} ~x_y\\z @#$%&*()-+=;:'\"<>?/";
+
+	@Test
+	public void testEmx370SameAsEbcdic() {
+		EbcdicTranscoder t = EbcdicTranscoder.EMX370;
+		for (int i = 0; i < 256; i++) {
+			assertEquals("e2a " + i, Ebcdic.e2a((byte)i), t.toAscii((byte)i));
+			assertEquals("a2e " + i, Ebcdic.a2e((byte)i), t.toEbcdic((byte)i));
+		}
+	}
+
+	@Test
+	public void testRoundTrip() {
+		String[] names = EbcdicTranscoder.getCodepageNames().split(" ");
+		assertEquals(5, names.length);
+		for (String name : names) {
+			EbcdicTranscoder t = EbcdicTranscoder.forCodepage(name.toLowerCase());
+			assertEquals(name, t.getName());
+
+			byte[] ascii = TEXT.getBytes();
+			byte[] ebcdic = new byte[ascii.length + 2];
+			assertEquals(ascii.length + 2, t.toEbcdic(ascii, 0, ascii.length, ebcdic, 2));
+			byte[] back = new byte[ascii.length];
+			assertEquals(ascii.length, t.toAscii(ebcdic, 2, ascii.length, back, 0));
+			assertArrayEquals(name, ascii, back);
+		}
+		assertNull(EbcdicTranscoder.forCodepage("CP999"));
+	}
+
+	@Test
+	public void testCodepageDifferences() {
+		// '[' and ']' differ between CP037 and CP1047, umlauts exist only in ISO-8859-1 codepages
+		assertEquals((byte)0xBA, EbcdicTranscoder.CP037.toEbcdic((byte)'['));
+		assertEquals((byte)0xAD, EbcdicTranscoder.CP1047.toEbcdic((byte)'['));
+		assertEquals((byte)0xC0, EbcdicTranscoder.CP273.toEbcdic((byte)0xE4)); // a-umlaut
+		assertEquals((byte)0xE4, EbcdicTranscoder.CP273.toAscii((byte)0xC0));
+		assertEquals((byte)0xAF, EbcdicTranscoder.CP273.toAscii((byte)0xBC)); // macron
+		assertEquals((byte)0xBC, EbcdicTranscoder.CP273.toEbcdic((byte)0xAF));
+		assertEquals((byte)0x40, EbcdicTranscoder.EMX370.toEbcdic((byte)0xE4));
+	}
+
+	@Test
+	public void testInPlace() {
+		EbcdicTranscoder t = EbcdicTranscoder.CP037;
+		byte[] buffer = TEXT.getBytes();
+		t.toEbcdic(buffer, 0, buffer.length, buffer, 0);
+		assertEquals(Ebcdic._H, buffer[0]);
+		t.toAscii(buffer, 0, buffer.length, buffer, 0);
+		assertArrayEquals(TEXT.getBytes(), buffer);
+	}
+
+	@Test
+	public void testByteBuffers() {
+		EbcdicTranscoder t = EbcdicTranscoder.CP1047;
+		byte[] ascii = TEXT.getBytes();
+		ByteBuffer src = ByteBuffer.wrap(ascii);
+		ByteBuffer ebcdic = ByteBuffer.allocateDirect(10);
+		t.toEbcdic(src, ebcdic);
+		assertEquals(10, src.position());
+		assertEquals(10, ebcdic.position());
+
+		ebcdic.flip();
+		ByteBuffer back = ByteBuffer.allocate(20);
+		back.position(3);
+		t.toAscii(ebcdic, back);
+		assertEquals(13, back.position());
+		assertEquals(new String(ascii, 0, 10), new String(back.array(), 3, 10));
+	}
+
+	@Test
+	public void testStrippedLength() {
+		byte[] card = { Ebcdic._A, Ebcdic._Blank, Ebcdic._B, Ebcdic._Blank, Ebcdic._Blank };
+		assertEquals(3, EbcdicTranscoder.strippedLength(card, 0, 5));
+		assertEquals(1, EbcdicTranscoder.strippedLength(card, 2, 3));
+		assertEquals(0, EbcdicTranscoder.strippedLength(card, 3, 2));
+	}
+
+	@Test
+	public void testDefault() {
+		EbcdicTranscoder saved = EbcdicTranscoder.getDefault();
+		try {
+			EbcdicTranscoder.setDefault(EbcdicTranscoder.CP500);
+			assertSame(EbcdicTranscoder.CP500, EbcdicTranscoder.getDefault());
+			EbcdicTranscoder.setDefault(null);
+			assertSame(EbcdicTranscoder.CP500, EbcdicTranscoder.getDefault());
+		} finally {
+			EbcdicTranscoder.setDefault(saved);
+		}
+	}
+}
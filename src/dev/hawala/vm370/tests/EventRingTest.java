@@ -0,0 +1,144 @@
+/*
+** This file is part of the emx370 emulator UnitTests.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import dev.hawala.vm370.vm.machine.EventRing;
+import dev.hawala.vm370.vm.machine.NullEventTracker;
+import dev.hawala.vm370.vm.machine.iProcessorEventTracker;
+
+public class EventRingTest {
+
+	// live target collecting the formatted events
+	private static class Collector implements iProcessorEventTracker {
+		private final List<String> lines = new ArrayList<>();
+		public void logLine(String line, Object... args) { this.lines.add(String.format(line, args)); }
+	}
+
+	private static String[] dump(EventRing ring, int maxCount) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		PrintStream ps = new PrintStream(bos);
+		int count = ring.dump(ps, maxCount);
+		ps.flush();
+		String text = bos.toString().replace("\r\n", "\n");
+		String[] lines = (text.isEmpty()) ? new String[0] : text.split("\n");
+		assertEquals(count, lines.length);
+		return lines;
+	}
+
+	@Test
+	public void testDecoding() {
+		EventRing ring = new EventRing(new Collector(), 16);
+		ring.setLevel(EventRing.Level.RING);
+		assertTrue(ring.isLogging());
+
+		ring.logLine("no args");
+		ring.logLine("one %d", 1);
+		ring.logLine("two %d %d", 1, 2);
+		ring.logLine("three %03X %d %d", 0x1A, -2, 3);
+		ring.logLine("%s: %02X", "dev", 0xFF);
+		ring.logLine("%s: %d-%d", "dev", 7, 8);
+		ring.logLine("varargs %s %d", "obj", Long.valueOf(42));
+		ring.logLine("bad %d", "not an int");
+
+		String[] lines = dump(ring, 100);
+		assertEquals(8, lines.length);
+		assertEquals("no args", lines[0]);
+		assertEquals("one 1", lines[1]);
+		assertEquals("two 1 2", lines[2]);
+		assertEquals("three 01A -2 3", lines[3]);
+		assertEquals("dev: FF", lines[4]);
+		assertEquals("dev: 7-8", lines[5]);
+		assertEquals("varargs obj 42", lines[6]);
+		assertEquals("bad %d", lines[7]); // pattern written as is if the arguments do not match
+		assertEquals(8, ring.getTotalCount());
+	}
+
+	@Test
+	public void testWraparound() {
+		EventRing ring = new EventRing(new Collector(), 4);
+		ring.setLevel(EventRing.Level.RING);
+		for (int i = 0; i < 10; i++) {
+			if ((i % 2) == 0) {
+				ring.logLine("event %d", i);
+			} else {
+				ring.logLine("event %s", Integer.toString(i));
+			}
+		}
+		assertEquals(10, ring.getTotalCount());
+
+		String[] lines = dump(ring, 100);
+		assertEquals(4, lines.length);
+		for (int i = 0; i < 4; i++) {
+			assertEquals("event " + (6 + i), lines[i]);
+		}
+
+		lines = dump(ring, 2);
+		assertEquals(2, lines.length);
+		assertEquals("event 8", lines[0]);
+		assertEquals("event 9", lines[1]);
+	}
+
+	@Test
+	public void testOffAndLive() {
+		Collector live = new Collector();
+		EventRing ring = new EventRing(live, 8);
+		assertEquals(EventRing.Level.OFF, ring.getLevel());
+		assertFalse(ring.isLogging());
+
+		ring.logLine("ignored");
+		ring.logLine("ignored %d", 1);
+		ring.logLine("ignored %s %d %d", "x", 1, 2);
+		ring.logLine("ignored %s", "obj");
+		assertEquals(0, ring.getTotalCount());
+		assertEquals(0, dump(ring, 100).length);
+		assertEquals(0, live.lines.size());
+
+		ring.setLevel(EventRing.Level.LIVE);
+		ring.logLine("live %d %d", 1, 2);
+		ring.logLine("live %s", "obj");
+		assertEquals(2, live.lines.size());
+		assertEquals("live 1 2", live.lines.get(0));
+		assertEquals("live obj", live.lines.get(1));
+
+		// switching the level keeps the ring buffer
+		ring.setLevel(EventRing.Level.OFF);
+		ring.logLine("ignored %d", 3);
+		String[] lines = dump(ring, 100);
+		assertEquals(2, lines.length);
+		assertEquals("live 1 2", lines[0]);
+		assertEquals("live obj", lines[1]);
+		assertEquals(2, live.lines.size());
+	}
+
+	@Test
+	public void testNullEventTracker() {
+		iProcessorEventTracker tracker = NullEventTracker.INSTANCE;
+		assertFalse(tracker.isLogging());
+		tracker.logLine("ignored");
+		tracker.logLine("ignored %d", 1);
+		tracker.logLine("ignored %d %d %d", 1, 2, 3);
+		tracker.logLine("ignored %s %d %d", "x", 1, 2);
+		tracker.logLine("ignored %s", "obj");
+	}
+}
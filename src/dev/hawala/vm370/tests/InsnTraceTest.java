@@ -0,0 +1,169 @@
+/*
+** This file is part of the emx370 emulator UnitTests.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dev.hawala.vm370.vm.machine.Cpu370Bc;
+import dev.hawala.vm370.vm.machine.Cpu370BcBasic;
+import dev.hawala.vm370.vm.machine.InsnTraceDecoder;
+
+public class InsnTraceTest {
+
+	private static final int CODE_BASE = 0x020000;
+	private static final int DATA_BASE = 0x030000;
+
+	private final Cpu370Bc cpu = new Cpu370BcBasic();
+	private File traceFile;
+
+	@Before
+	public void createTraceFilename() throws Exception {
+		this.traceFile = File.createTempFile("emx370-insntrace", ".itrc");
+	}
+
+	@After
+	public void removeTraceFile() {
+		this.traceFile.delete();
+	}
+
+	private void setInstructions(int... bytes) {
+		this.cpu.setPswInstructionAddress(CODE_BASE);
+		int at = CODE_BASE;
+		for (int b : bytes) {
+			this.cpu.pokeMainMem(at++, (byte)b);
+		}
+	}
+
+	private String[] decodeTrace(long maxLines) throws Exception {
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		try (PrintStream out = new PrintStream(text, true, "ISO-8859-1")) {
+			InsnTraceDecoder.decodeFile(this.traceFile.getPath(), maxLines, out);
+		}
+		String decoded = text.toString("ISO-8859-1");
+		return (decoded.isEmpty()) ? new String[0] : decoded.split(System.lineSeparator());
+	}
+
+	@Test
+	public void testRoundTripAllFormats() throws Exception {
+		this.cpu.setGPR(1, 0x11111111);
+		this.cpu.setGPR(2, 0x00000100);
+		this.cpu.setGPR(3, DATA_BASE);
+		this.cpu.setGPR(4, 0x00000008);
+		this.cpu.setGPR(5, 0x55555555);
+		this.cpu.pokeMainMem(DATA_BASE + 0x60, (byte)0x00);
+		this.cpu.pokeMainMem(DATA_BASE + 0x61, (byte)0x1C);
+		this.cpu.pokeMainMem(DATA_BASE + 0x70, (byte)0x2C);
+		this.cpu.setPswConditionCode((byte)2);
+		this.setInstructions(
+			0x18, 0x12,                         // LR   1,2
+			0x58, 0x54, 0x30, 0x08,             // L    5,8(4,3)
+			0x89, 0x10, 0x00, 0x04,             // SLL  1,4
+			0x90, 0x45, 0x30, 0x20,             // STM  4,5,32(3)
+			0x92, 0xC1, 0x30, 0x30,             // MVI  48(3),X'C1'
+			0xD2, 0x03, 0x30, 0x40, 0x30, 0x50, // MVC  64(4,3),80(3)
+			0xFA, 0x10, 0x30, 0x60, 0x30, 0x70, // AP   96(2,3),112(1,3)
+			0x07, 0x00                          // BCR  0,0
+			);
+
+		this.cpu.startInsnTrace(1, null);
+		assertTrue("isInsnTracing()", this.cpu.isInsnTracing());
+		assertEquals("cpu.execute()", 0, this.cpu.execute(8));
+		assertEquals("traced instructions", 8, this.cpu.dumpInsnTrace(this.traceFile.getPath()));
+
+		// the same text as the instruction logging of the CPU, with the cc before each instruction
+		String[] expected = {
+			"0x020000  0x18 LR    [RR] R1,R2   { 0x11111111 , 0x00000100 }   [cc=2]",
+			"0x020002  0x58 L     [RX] R5,8(X4,B3)   { r: 0x55555555 , addr2: 0x00030010 }   [cc=2]",
+			"0x020006  0x89 SLL   [rS] R1,4(B0)   { addr2: 0x00000004 }   [cc=2]",
+			"0x02000A  0x90 STM   [RS] R4,R5,32(B3)   { addr2: 0x00030020 }   [cc=2]",
+			"0x02000E  0x92 MVI   [SI] 48(B3),0xC1   { addr1: 0x00030030 }   [cc=2]",
+			"0x020012  0xD2 MVC   [ss] 64(3,B3),80(B3)   { addr1: 0x00030040 , addr1: 0x00030050 }   [cc=2]",
+			"0x020018  0xFA AP    [SS] 96(1,B3),112(0,B3)   { addr1: 0x00030060 , addr1: 0x00030070 }   [cc=2]",
+			"0x02001E  0x07 BCR   [mR] 0x0,R0   { 0x00000000 , 0x00000000 }   [cc=2]"
+		};
+		assertEquals(String.join("\n", expected), String.join("\n", this.decodeTrace(Long.MAX_VALUE)));
+
+		// limited to the most recent instructions
+		String[] lastTwo = this.decodeTrace(2);
+		assertEquals("limited lines", 2, lastTwo.length);
+		assertEquals(expected[6], lastTwo[0]);
+		assertEquals(expected[7], lastTwo[1]);
+	}
+
+	@Test
+	public void testRingKeepsMostRecentInstructions() throws Exception {
+		// BCT 6,0(7) looping at the code base: more instructions than the ring can hold
+		this.cpu.setGPR(6, 50000);
+		this.cpu.setGPR(7, CODE_BASE);
+		this.setInstructions(0x46, 0x60, 0x70, 0x00); // BCT  6,0(,7)
+		this.cpu.setPswConditionCode((byte)1);
+
+		this.cpu.startInsnTrace(1, null);
+		this.cpu.execute(49999);
+		int count = this.cpu.dumpInsnTrace(this.traceFile.getPath());
+		assertTrue("ring smaller than the instructions executed", count < 49999);
+
+		// the last instruction traced had R6 = 2 before decrementing
+		String[] lines = this.decodeTrace(1);
+		assertEquals(1, lines.length);
+		assertEquals("0x020000  0x46 BCT   [RX] R6,0(X0,B7)   { r: 0x00000002 , addr2: 0x00020000 }   [cc=1]", lines[0]);
+
+		this.cpu.stopInsnTrace();
+		assertEquals("dumpInsnTrace() when not tracing", -1, this.cpu.dumpInsnTrace(this.traceFile.getPath()));
+	}
+
+	@Test
+	public void testInstructionTruncatedByEndOfMemory() throws Exception {
+		// MVC with only 4 of its 6 bytes before the end of memory
+		int at = this.cpu.MEM_SIZE - 4;
+		this.cpu.setGPR(3, DATA_BASE);
+		this.cpu.pokeMainMem(at, new byte[] { (byte)0xD2, 0x03, 0x30, 0x40 }, 0, 4);
+		this.cpu.setPswInstructionAddress(at);
+		this.cpu.setPswConditionCode((byte)0);
+
+		this.cpu.startInsnTrace(1, null);
+		try {
+			this.cpu.execute(1);
+		} catch (RuntimeException e) {
+			// the CPU cannot fetch the incomplete instruction, but it was traced before
+		}
+		assertEquals("traced instructions", 1, this.cpu.dumpInsnTrace(this.traceFile.getPath()));
+
+		// the missing bytes are decoded as zeros
+		String[] lines = this.decodeTrace(Long.MAX_VALUE);
+		assertEquals(1, lines.length);
+		assertEquals(
+			"0xFFFFFC  0xD2 MVC   [ss] 64(3,B3),0(B0)   { addr1: 0x00030040 , addr1: 0x00000000 }   [truncated: 2 bytes missing]   [cc=0]",
+			lines[0]);
+	}
+
+	@Test
+	public void testDecodeAllOpcodes() {
+		// every first instruction byte has a pattern accepting the decoded arguments
+		for (int opcode = 0; opcode < 256; opcode++) {
+			long e1 = ((long)opcode << 40) | 0x0012_3456_789AL;
+			String line = InsnTraceDecoder.decode(0x1234_5678_0102_0304L, e1, 0x0000_1000_0000_2000L);
+			String prefix = String.format("0x020304  0x%02X ", opcode);
+			assertTrue("decoded opcode " + opcode + ": " + line, line.startsWith(prefix) && line.endsWith("   [cc=1]"));
+		}
+	}
+}
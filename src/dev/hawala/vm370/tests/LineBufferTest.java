@@ -0,0 +1,153 @@
+/*
+** This file is part of the emx370 emulator UnitTests.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import dev.hawala.vm370.ebcdic.Ebcdic;
+import dev.hawala.vm370.mecaff.LineBuffer;
+
+public class LineBufferTest {
+	
+	private static final int COLS = 80;
+	private static final int ROWS = 20;
+	
+	private static String lineText(int lineNo) {
+		// lines of different length, some needing 2 rows
+		StringBuilder sb = new StringBuilder(String.format("LINE %05d ", lineNo));
+		for (int i = 0; i < (lineNo % 17) * 7; i++) { sb.append((char)('A' + (i % 26))); }
+		return sb.toString();
+	}
+	
+	private static void appendLines(LineBuffer buffer, int from, int to) {
+		for (int i = from; i < to; i++) {
+			buffer.append(lineText(i), (byte)(i & 0x7F));
+		}
+	}
+	
+	private static int lineNoOf(LineBuffer.PageIterator line) {
+		String text = Ebcdic.toAscii(line.getBytes(), line.getOffset(), 10);
+		return Integer.parseInt(text.substring(5, 10));
+	}
+	
+	// page through the whole buffer from the oldest line, checking the line contents and flags
+	// (the last page may repeat lines of the previous page to fill the output area)
+	private static void checkAllLines(LineBuffer buffer, int firstLine, int lastLine) {
+		buffer.pageToOldest();
+		int expected = firstLine;
+		while(expected <= lastLine) {
+			LineBuffer.PageIterator line = buffer.iteratePage();
+			int lineNo = -1;
+			int rowsOnPage = 0;
+			while(line.next()) {
+				if (lineNo < 0) {
+					lineNo = lineNoOf(line);
+					assertTrue("no lines skipped before line " + expected, lineNo <= expected);
+					assertTrue("line " + lineNo + " not dropped", lineNo >= firstLine);
+				}
+				byte[] text = Arrays.copyOfRange(line.getBytes(), line.getOffset(), line.getOffset() + line.getLength());
+				assertArrayEquals("text of line " + lineNo, Ebcdic.toEbcdic(lineText(lineNo)), text);
+				assertEquals("flags of line " + lineNo, (byte)(lineNo & 0x7F), line.getFlags());
+				rowsOnPage += ((line.getLength() - 1) / COLS) + 1;
+				lineNo++;
+			}
+			assertTrue("page has new lines", lineNo > expected);
+			assertTrue("page fits in the output area", rowsOnPage <= ROWS);
+			expected = lineNo;
+			buffer.pageTowardsYoungest();
+		}
+		assertEquals("youngest line", lastLine + 1, expected);
+	}
+	
+	@Test
+	public void testPagingInMemory() {
+		LineBuffer buffer = new LineBuffer(65536, COLS, ROWS);
+		appendLines(buffer, 0, 2000);
+		checkAllLines(buffer, 0, 1999);
+		buffer.close();
+	}
+	
+	@Test
+	public void testMaxLinesDropsOldest() {
+		LineBuffer buffer = new LineBuffer(500, COLS, ROWS);
+		appendLines(buffer, 0, 2000);
+		checkAllLines(buffer, 1500, 1999);
+		buffer.close();
+	}
+	
+	@Test
+	public void testArenaLimitDropsOldest() {
+		LineBuffer buffer = new LineBuffer(65536, COLS, ROWS, 16 * 1024, false);
+		appendLines(buffer, 0, 5000);
+		
+		// find the oldest line still held
+		buffer.pageToOldest();
+		LineBuffer.PageIterator line = buffer.iteratePage();
+		assertTrue(line.next());
+		int firstLine = lineNoOf(line);
+		assertTrue("old lines dropped", firstLine > 4000);
+		
+		checkAllLines(buffer, firstLine, 4999);
+		buffer.close();
+	}
+	
+	@Test
+	public void testArenaLimitSpillsOldest() {
+		LineBuffer buffer = new LineBuffer(65536, COLS, ROWS, 16 * 1024, true);
+		appendLines(buffer, 0, 5000);
+		checkAllLines(buffer, 0, 4999);
+		
+		// append after paging through the spilled lines and drop the oldest spilled lines
+		appendLines(buffer, 5000, 6000);
+		checkAllLines(buffer, 0, 5999);
+		buffer.clearUplines(2500);
+		checkAllLines(buffer, 3500, 5999);
+		
+		buffer.clear();
+		appendLines(buffer, 0, 3000);
+		checkAllLines(buffer, 0, 2999);
+		buffer.close();
+	}
+	
+	@Test
+	public void testSpillWithMaxLines() {
+		LineBuffer buffer = new LineBuffer(30000, COLS, ROWS, 16 * 1024, true);
+		appendLines(buffer, 0, 100000);
+		checkAllLines(buffer, 70000, 99999);
+		buffer.close();
+	}
+	
+	@Test
+	public void testUpdateLastLineFlags() {
+		LineBuffer buffer = new LineBuffer(65536, COLS, ROWS);
+		for (int i = 0; i < 10; i++) {
+			buffer.append(lineText(i), (byte)((i < 5) ? 1 : 2));
+		}
+		buffer.updateLastLineFlags(3, (byte)2, (byte)3);
+		buffer.pageToYoungest();
+		LineBuffer.PageIterator line = buffer.iteratePage();
+		int lineNo = 0;
+		while(line.next()) {
+			byte expected = (byte)((lineNo < 5) ? 1 : (lineNo < 7) ? 2 : 3);
+			assertEquals("flags of line " + lineNo, expected, line.getFlags());
+			lineNo++;
+		}
+		assertEquals(10, lineNo);
+	}
+}
@@ -0,0 +1,128 @@
+/*
+** This file is part of the emx370 emulator UnitTests.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import dev.hawala.vm370.ebcdic.EbcdicTranscoder;
+import dev.hawala.vm370.loadtest.LatencyStats;
+import dev.hawala.vm370.loadtest.Screen3270;
+import dev.hawala.vm370.loadtest.Workload;
+import dev.hawala.vm370.stream3270.AidCode3270;
+
+public class LoadTestSessionTest {
+
+	private static byte[] ebcdic(String s) {
+		byte[] b = s.getBytes();
+		EbcdicTranscoder.getDefault().toEbcdic(b, 0, b.length, b, 0);
+		return b;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts) { length += part.length; }
+		byte[] result = new byte[length];
+		int offset = 0;
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, result, offset, part.length);
+			offset += part.length;
+		}
+		return result;
+	}
+
+	@Test
+	public void testScreenInput() {
+		Screen3270 screen = new Screen3270(24, 80);
+		byte[] write = concat(
+				new byte[] { (byte)0xF5, (byte)0xC3, 0x11, 0x40, 0x40, 0x1D, 0x60 },  // EW, SBA(0), SF(protected)
+				ebcdic("Name:"),
+				new byte[] { 0x11, (byte)0xC1, 0x50, 0x1D, 0x40, 0x13 },           // SBA(80), SF(unprotected), IC
+				new byte[] { 0x11, (byte)0xC1, (byte)0xE0, 0x1D, 0x60 });          // SBA(96), SF(protected)
+		assertTrue(screen.processRecord(write, write.length));
+		assertEquals("Name:", screen.getRow(0).trim());
+
+		assertTrue(screen.type("xy"));
+		byte[] input = new byte[2 * screen.getSize()];
+		int length = screen.buildInput(AidCode3270.Enter, input);
+		byte[] expected = concat(
+				new byte[] { 0x7D, (byte)0xC1, (byte)0xD3, 0x11, (byte)0xC1, (byte)0xD1 }, // Enter, cursor(83), SBA(81)
+				ebcdic("xy"));
+		assertArrayEquals(expected, Arrays.copyOf(input, length));
+
+		assertEquals(1, screen.buildInput(AidCode3270.PA01, input));
+
+		screen.moveCursor(1, 2);
+		assertFalse(screen.type("z"));
+	}
+
+	@Test
+	public void testConsoleStatus() {
+		Screen3270 screen = new Screen3270(24, 80);
+		assertNull(screen.getConsoleStatus());
+		byte[] write = concat(
+				new byte[] { (byte)0xF1, (byte)0xC0, 0x11, 0x5B, (byte)0x60 }, // W, SBA(row 22)
+				ebcdic("Ready; T=0.01/0.01 12:34:56"),
+				new byte[] { 0x11, 0x5C, (byte)0xF0 },                           // SBA(row 23)
+				ebcdic("  Running >>"));
+		assertFalse(screen.processRecord(write, write.length));
+		assertEquals(Screen3270.STATUS_RUNNING, screen.getConsoleStatus());
+		assertTrue(screen.getLastOutputLine().startsWith("Ready;"));
+	}
+
+	@Test
+	public void testWorkload() throws IOException {
+		Workload workload = Workload.parse(new StringReader(
+				"# comment\n\nENTER EDIT ${USER} EXEC A\nkey pf3\nTHINK 250\nCURSOR 3 10\nENTER\n"));
+		assertEquals(5, workload.getSteps().size());
+		Workload.Step step = workload.getSteps().get(0);
+		assertEquals(Workload.Action.ENTER, step.getAction());
+		assertEquals("EDIT LOAD007 EXEC A", step.getText("load007", 7));
+		assertEquals("PF3", workload.getSteps().get(1).getText("x", 1));
+		assertEquals(250, workload.getSteps().get(2).getArg1());
+		assertEquals(10, workload.getSteps().get(3).getArg2());
+		assertEquals("", workload.getSteps().get(4).getText("x", 1));
+	}
+
+	@Test
+	public void testWorkloadInvalid() {
+		try {
+			Workload.parse(new StringReader("ENTER LISTFILE\nPRESS PF3\n"));
+			fail("invalid workload action not rejected");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("workload line 2:"));
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyStats stats = new LatencyStats("test");
+		for (int i = 100; i >= 1; i--) { stats.add(i); }
+		long[] sorted = stats.getSortedSamples();
+		assertEquals(100, stats.getCount());
+		assertEquals(50, LatencyStats.percentile(sorted, 50.0));
+		assertEquals(99, LatencyStats.percentile(sorted, 99.0));
+		assertEquals(100, LatencyStats.percentile(sorted, 100.0));
+		assertEquals(0, LatencyStats.percentile(new long[0], 50.0));
+	}
+}
@@ -0,0 +1,192 @@
+/*
+** This file is part of the emx370 emulator UnitTests.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import dev.hawala.vm370.mecaff.OutputScheduler;
+
+public class OutputSchedulerTest {
+
+	// frame writer recording the time of each frame, reporting a fixed byte count per frame
+	private static class Frames implements OutputScheduler.IFrameWriter {
+
+		private final LinkedBlockingQueue<Long> frameTimes = new LinkedBlockingQueue<Long>();
+		private final int bytesPerFrame;
+		private OutputScheduler scheduler;
+		private volatile String writerThread = null;
+
+		private Frames(int bytesPerFrame, int minPauseMs) {
+			this.bytesPerFrame = bytesPerFrame;
+			this.scheduler = new OutputScheduler(this, minPauseMs);
+		}
+
+		@Override
+		public void writeFrame() {
+			this.writerThread = Thread.currentThread().getName();
+			this.frameTimes.add(System.nanoTime());
+			this.scheduler.frameSent(this.bytesPerFrame);
+		}
+
+		// wait for the next frame, returning its time
+		private long nextFrame() throws InterruptedException {
+			Long time = this.frameTimes.poll(5, TimeUnit.SECONDS);
+			assertNotNull("frame written", time);
+			return time;
+		}
+
+		private void assertNoFrame(long waitMs) throws InterruptedException {
+			assertNull("no frame", this.frameTimes.poll(waitMs, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	private static long millis(long fromNanos, long toNanos) {
+		return TimeUnit.NANOSECONDS.toMillis(toNanos - fromNanos);
+	}
+
+	@After
+	public void resetLimits() {
+		OutputScheduler.setLimits(25, 0);
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		OutputScheduler.setLimits(10, 0);
+		Frames frames = new Frames(100, 0);
+
+		// the first request is sent immediately
+		long start = System.nanoTime();
+		frames.scheduler.requestFrame();
+		long first = frames.nextFrame();
+		assertTrue("first frame without delay", millis(start, first) < 80);
+
+		// all requests during the pause are sent with one frame
+		for (int i = 0; i < 20; i++) {
+			frames.scheduler.requestFrame();
+		}
+		frames.nextFrame();
+		frames.assertNoFrame(300);
+	}
+
+	@Test
+	public void testFrameRateSpacing() throws Exception {
+		OutputScheduler.setLimits(10, 0);
+		Frames frames = new Frames(1, 0);
+
+		long last = 0;
+		for (int i = 0; i < 4; i++) {
+			frames.scheduler.requestFrame();
+			long time = frames.nextFrame();
+			if (i > 0) {
+				assertTrue("frame rate pause", millis(last, time) >= 95);
+			}
+			last = time;
+		}
+	}
+
+	@Test
+	public void testMinPauseSpacing() throws Exception {
+		OutputScheduler.setLimits(1000, 0);
+		Frames frames = new Frames(1, 150);
+
+		frames.scheduler.requestFrame();
+		long first = frames.nextFrame();
+		frames.scheduler.requestFrame();
+		assertTrue("terminal pause", millis(first, frames.nextFrame()) >= 145);
+	}
+
+	@Test
+	public void testPacedFrameAfterMinPause() throws Exception {
+		// 200 ms frame rate pause, but only 50 ms required by the terminal
+		OutputScheduler.setLimits(5, 0);
+		Frames frames = new Frames(1, 50);
+
+		long direct = System.nanoTime();
+		frames.scheduler.frameSent(1);
+		frames.scheduler.requestPacedFrame();
+		long paced = millis(direct, frames.nextFrame());
+		assertTrue("terminal pause", paced >= 45);
+		assertTrue("no frame rate pause", paced < 180);
+	}
+
+	@Test
+	public void testByteBudgetSpacing() throws Exception {
+		// 2000 bytes with 10000 bytes/second: 200 ms pause after a frame
+		OutputScheduler.setLimits(1000, 10000);
+		Frames frames = new Frames(2000, 0);
+
+		frames.scheduler.requestFrame();
+		long first = frames.nextFrame();
+		frames.scheduler.requestFrame();
+		long second = frames.nextFrame();
+		assertTrue("byte budget pause", millis(first, second) >= 195);
+
+		// a frame sent directly by the console delays the next requested frame
+		Thread.sleep(250);
+		long direct = System.nanoTime();
+		frames.scheduler.frameSent(2000);
+		frames.scheduler.requestFrame();
+		assertTrue("pause after direct frame", millis(direct, frames.nextFrame()) >= 195);
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		OutputScheduler.setLimits(5, 0);
+		Frames frames = new Frames(1, 0);
+
+		// a frame scheduled when closing is not written
+		frames.scheduler.requestFrame();
+		frames.nextFrame();
+		frames.scheduler.requestFrame();
+		frames.scheduler.close();
+		frames.assertNoFrame(400);
+
+		// no frames are scheduled after closing
+		frames.scheduler.requestFrame();
+		frames.assertNoFrame(300);
+	}
+
+	@Test
+	public void testBlockingWriterDoesNotDelayOtherTerminals() throws Exception {
+		OutputScheduler.setLimits(25, 0);
+		CountDownLatch blocking = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		OutputScheduler slow = new OutputScheduler(() -> {
+			blocking.countDown();
+			try { release.await(); } catch (InterruptedException e) { }
+		}, 0);
+		try {
+			slow.requestFrame();
+			assertTrue("slow terminal writing", blocking.await(5, TimeUnit.SECONDS));
+
+			// the frames of another terminal are written while the slow terminal blocks
+			Frames frames = new Frames(1, 0);
+			frames.scheduler.requestFrame();
+			frames.nextFrame();
+			assertFalse("written off the timer thread", "Console output scheduler".equals(frames.writerThread));
+		} finally {
+			release.countDown();
+		}
+	}
+}
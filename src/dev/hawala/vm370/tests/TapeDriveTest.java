@@ -0,0 +1,215 @@
+/*
+** This file is part of the emx370 emulator UnitTests.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dev.hawala.vm370.tape.TapeDrive;
+import dev.hawala.vm370.vm.device.iDeviceIO;
+import dev.hawala.vm370.vm.device.iDeviceStatus;
+
+public class TapeDriveTest {
+
+	private static final int OK = iDeviceStatus.OK | iDeviceStatus.DEVICE_END;
+	private static final int READ_OK = iDeviceStatus.INCORRECT_LENGTH_IS_OK | iDeviceStatus.DEVICE_END;
+	private static final int TAPEMARK = iDeviceStatus.UNIT_EXCEPTION | iDeviceStatus.DEVICE_END;
+	private static final int END_OF_TAPE = iDeviceStatus.UNIT_CHECK | iDeviceStatus.DEVICE_END;
+
+	private File tapeFile;
+
+	@Before
+	public void createTapeFilename() throws Exception {
+		this.tapeFile = File.createTempFile("emx370-tapetest", ".aws");
+		this.tapeFile.delete();
+	}
+
+	@After
+	public void removeFiles() {
+		this.tapeFile.delete();
+	}
+
+	// device I/O adapter copying from resp. to a byte array
+	private static iDeviceIO memIO(byte[] mem, boolean toDevice) {
+		return (devMemory, offset, length) -> {
+			int count = Math.min(mem.length, length);
+			if (toDevice) {
+				System.arraycopy(mem, 0, devMemory, offset, count);
+			} else {
+				System.arraycopy(devMemory, offset, mem, 0, count);
+			}
+			return mem.length - length;
+		};
+	}
+
+	private static byte[] block(int length, int fill) {
+		byte[] data = new byte[length];
+		Arrays.fill(data, (byte)fill);
+		return data;
+	}
+
+	private TapeDrive mount(boolean writable) {
+		TapeDrive drive = new TapeDrive();
+		StringBuilder sb = new StringBuilder();
+		drive.mountTapefile(this.tapeFile.getPath(), writable, writable, sb);
+		assertEquals("", sb.toString());
+		assertTrue(drive.hasMountedTape());
+		return drive;
+	}
+
+	private static void write(TapeDrive drive, byte[] data) {
+		assertEquals(OK, drive.write(0x01, data.length, memIO(data, true)));
+	}
+
+	private static void readBlock(TapeDrive drive, byte[] expected) {
+		byte[] mem = new byte[expected.length];
+		assertEquals(READ_OK, drive.read(0x02, mem.length, memIO(mem, false)));
+		assertArrayEquals(expected, mem);
+	}
+
+	// create a tape with 2 files: A1 A2 TM B1 TM TM
+	private void createTape() {
+		TapeDrive drive = this.mount(true);
+		write(drive, block(80, 0xA1));
+		write(drive, block(4000, 0xA2));
+		assertEquals(OK, drive.control(0x1F, 0, null));
+		write(drive, block(300, 0xFF));
+		assertEquals(OK, drive.control(0x1F, 0, null));
+		assertEquals(OK, drive.control(0x1F, 0, null));
+		assertTrue(drive.needsSaving());
+		drive.dismountTapeFile();
+	}
+
+	@Test
+	public void testAwsFormat() throws Exception {
+		this.createTape();
+		byte[] aws = Files.readAllBytes(this.tapeFile.toPath());
+		assertEquals(6 * 6 + 80 + 4000 + 300, aws.length);
+
+		// A1: length 80, prev 0, data flags
+		assertArrayEquals(new byte[] { 80, 0, 0, 0, (byte)0xA0, 0 }, Arrays.copyOfRange(aws, 0, 6));
+		// A2: length 4000 (0x0FA0), prev 80
+		assertArrayEquals(new byte[] { (byte)0xA0, 0x0F, 80, 0, (byte)0xA0, 0 }, Arrays.copyOfRange(aws, 86, 92));
+		// tape mark: length 0, prev 4000
+		assertArrayEquals(new byte[] { 0, 0, (byte)0xA0, 0x0F, 0x40, 0 }, Arrays.copyOfRange(aws, 4092, 4098));
+		// B1: length 300 (0x012C), prev 0
+		assertArrayEquals(new byte[] { 0x2C, 0x01, 0, 0, (byte)0xA0, 0 }, Arrays.copyOfRange(aws, 4098, 4104));
+	}
+
+	@Test
+	public void testReadAndPositioning() {
+		this.createTape();
+		TapeDrive drive = this.mount(false);
+		assertTrue(drive.isReadOnly());
+		assertEquals(6, drive.getCurrBlockCount());
+		assertEquals(4380, drive.getCurrBytes());
+
+		readBlock(drive, block(80, 0xA1));
+		readBlock(drive, block(4000, 0xA2));
+		assertEquals(TAPEMARK, drive.read(0x02, 80, memIO(new byte[80], false)));
+		readBlock(drive, block(300, 0xFF));
+
+		// backspace file: before the tape mark of the first file, then read the tape mark again
+		assertEquals(OK, drive.control(0x2F, 0, null));
+		assertEquals(TAPEMARK, drive.read(0x02, 80, memIO(new byte[80], false)));
+
+		// forward space file from the load point: behind the first tape mark
+		assertEquals(OK, drive.control(0x07, 0, null));
+		assertEquals(OK, drive.control(0x3F, 0, null));
+		readBlock(drive, block(300, 0xFF));
+
+		// forward space files to the end of the tape
+		assertEquals(OK, drive.control(0x3F, 0, null));
+		assertEquals(OK, drive.control(0x3F, 0, null));
+		assertEquals(OK, drive.control(0x3F, 0, null));
+		assertEquals(END_OF_TAPE, drive.read(0x02, 80, memIO(new byte[80], false)));
+
+		// backspace block from the end of the tape: the last tape mark is before the read position
+		assertEquals(OK, drive.control(0x27, 0, null));
+		assertEquals(END_OF_TAPE, drive.read(0x02, 80, memIO(new byte[80], false)));
+
+		// backspace file from the second file: at load point
+		assertEquals(OK, drive.control(0x07, 0, null));
+		assertEquals(OK, drive.control(0x37, 0, null));
+		assertEquals(OK, drive.control(0x2F, 0, null));
+		readBlock(drive, block(80, 0xA1));
+
+		// writing is rejected
+		assertEquals(iDeviceStatus.UNIT_CHECK | iDeviceStatus.DEVICE_END, drive.write(0x01, 10, memIO(new byte[10], true)));
+		drive.dismountTapeFile();
+		assertFalse(drive.hasMountedTape());
+	}
+
+	@Test
+	public void testOverwriteTruncates() throws Exception {
+		this.createTape();
+		TapeDrive drive = this.mount(true);
+
+		// overwrite the second block: the rest of the tape is dropped
+		readBlock(drive, block(80, 0xA1));
+		write(drive, block(10, 0x55));
+		assertEquals(2, drive.getCurrBlockCount());
+		assertEquals(90, drive.getCurrBytes());
+		assertEquals(6 * 2 + 90, this.tapeFile.length());
+		assertEquals(END_OF_TAPE, drive.read(0x02, 80, memIO(new byte[80], false)));
+
+		// data security erase at the load point empties the tape
+		assertEquals(OK, drive.control(0x07, 0, null));
+		readBlock(drive, block(80, 0xA1));
+		assertEquals(OK, drive.control(0x97, 0, null));
+		assertEquals(1, drive.getCurrBlockCount());
+		drive.dismountTapeFile();
+
+		drive = this.mount(false);
+		assertEquals(1, drive.getCurrBlockCount());
+		readBlock(drive, block(80, 0xA1));
+		assertEquals(END_OF_TAPE, drive.read(0x02, 80, memIO(new byte[80], false)));
+		drive.dismountTapeFile();
+	}
+
+	@Test
+	public void testIncompleteLastBlock() throws Exception {
+		this.createTape();
+		try (FileOutputStream fos = new FileOutputStream(this.tapeFile, true)) {
+			fos.write(new byte[] { 100, 0, 0, 0, (byte)0xA0, 0, 1, 2, 3 }); // 100 bytes announced, 3 present
+		}
+
+		TapeDrive drive = this.mount(true);
+		assertEquals(6, drive.getCurrBlockCount());
+
+		// appending at the end replaces the incomplete block
+		assertEquals(OK, drive.control(0x3F, 0, null));
+		assertEquals(OK, drive.control(0x3F, 0, null));
+		assertEquals(OK, drive.control(0x3F, 0, null));
+		write(drive, block(20, 0x33));
+		drive.dismountTapeFile();
+
+		assertEquals(7 * 6 + 4380 + 20, this.tapeFile.length());
+		try (RandomAccessFile raf = new RandomAccessFile(this.tapeFile, "r")) {
+			raf.seek(6 * 6 + 4380);
+			assertEquals(20, raf.read());
+		}
+	}
+}
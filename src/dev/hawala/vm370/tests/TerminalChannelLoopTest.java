@@ -0,0 +1,372 @@
+/*
+** This file is part of the emx370 emulator UnitTests.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dev.hawala.vm370.mecaff.IBufferSink;
+import dev.hawala.vm370.mecaff.TerminalChannelLoop;
+import dev.hawala.vm370.mecaff.TerminalTypeNegotiator;
+
+public class TerminalChannelLoopTest {
+
+	private static final byte IAC = (byte)0xFF;
+	private static final byte SB = (byte)0xFA;
+	private static final byte SE = (byte)0xF0;
+	private static final byte WILL = (byte)0xFB;
+	private static final byte DO = (byte)0xFD;
+	private static final byte TERMINAL_TYPE = (byte)0x18;
+	private static final byte END_OF_RECORD = (byte)0x19;
+	private static final byte BINARY = (byte)0x00;
+
+	private static final int CHUNK_SIZE = 1000;
+
+	// a connection handed to the acceptor after the negotiation
+	private static class Accepted {
+		private final TerminalTypeNegotiator negotiator;
+		private final TerminalChannelLoop.TerminalChannel channel;
+
+		private Accepted(TerminalTypeNegotiator negotiator, TerminalChannelLoop.TerminalChannel channel) {
+			this.negotiator = negotiator;
+			this.channel = channel;
+		}
+	}
+
+	// receiver of the terminal input and the closing event of a connection
+	private static class Sink implements IBufferSink {
+		private final CountDownLatch closed = new CountDownLatch(1);
+		private final AtomicInteger closedCount = new AtomicInteger();
+
+		@Override
+		public void processBytes(byte[] buffer, int count) { }
+
+		@Override
+		public void connectionClosed() {
+			this.closedCount.incrementAndGet();
+			this.closed.countDown();
+		}
+
+		private void assertClosedOnce() throws InterruptedException {
+			assertTrue("connectionClosed() called", this.closed.await(5, TimeUnit.SECONDS));
+			Thread.sleep(200);
+			assertEquals("connectionClosed() calls", 1, this.closedCount.get());
+		}
+	}
+
+	private final LinkedBlockingQueue<Accepted> accepted = new LinkedBlockingQueue<Accepted>();
+
+	private TerminalChannelLoop loop;
+
+	@Before
+	public void startLoop() throws IOException {
+		this.loop = new TerminalChannelLoop(0, true, (short)0, (n, c) -> this.accepted.add(new Accepted(n, c)));
+	}
+
+	@After
+	public void stopLoop() {
+		this.loop.shutdown();
+	}
+
+	// open a client connection with a small receive buffer, so the host soon cannot write all data
+	static Socket connect(TerminalChannelLoop loop) throws IOException {
+		Socket socket = new Socket();
+		socket.setReceiveBufferSize(4096);
+		socket.connect(new InetSocketAddress("127.0.0.1", loop.getListenPort()));
+		socket.setSoTimeout(5000);
+		return socket;
+	}
+
+	private static void expect(InputStream is, byte... expected) throws IOException {
+		byte[] received = new byte[expected.length];
+		int count = 0;
+		while(count < received.length) {
+			int len = is.read(received, count, received.length - count);
+			if (len < 0) { fail("unexpected end of connection"); }
+			count += len;
+		}
+		assertArrayEquals(expected, received);
+	}
+
+	private static void send(OutputStream os, byte... data) throws IOException {
+		os.write(data);
+		os.flush();
+	}
+
+	// do the client side of the telnet negotiation for a 3278 terminal
+	static void negotiate(Socket socket) throws IOException {
+		InputStream is = socket.getInputStream();
+		OutputStream os = socket.getOutputStream();
+		expect(is, IAC, DO, TERMINAL_TYPE);
+		send(os, IAC, WILL, TERMINAL_TYPE);
+		expect(is, IAC, SB, TERMINAL_TYPE, (byte)0x01, IAC, SE);
+		byte[] termType = "IBM-3278-2".getBytes("ISO-8859-1");
+		byte[] response = new byte[termType.length + 6];
+		response[0] = IAC;
+		response[1] = SB;
+		response[2] = TERMINAL_TYPE;
+		response[3] = 0x00;
+		System.arraycopy(termType, 0, response, 4, termType.length);
+		response[response.length - 2] = IAC;
+		response[response.length - 1] = SE;
+		send(os, response);
+		expect(is, IAC, DO, END_OF_RECORD);
+		send(os, IAC, WILL, END_OF_RECORD);
+		expect(is, IAC, WILL, END_OF_RECORD);
+		send(os, IAC, DO, END_OF_RECORD);
+		expect(is, IAC, DO, BINARY);
+		send(os, IAC, WILL, BINARY);
+		expect(is, IAC, WILL, BINARY);
+		send(os, IAC, DO, BINARY);
+	}
+
+	private Accepted nextAccepted() throws InterruptedException {
+		Accepted acc = this.accepted.poll(5, TimeUnit.SECONDS);
+		assertNotNull("connection accepted", acc);
+		return acc;
+	}
+
+	// the chunk of the byte sequence 0,1,2...255,0,1... starting at the stream position
+	private static byte[] chunkData(int pos) {
+		byte[] chunk = new byte[CHUNK_SIZE];
+		for (int i = 0; i < chunk.length; i++) {
+			chunk[i] = (byte)(pos + i);
+		}
+		return chunk;
+	}
+
+	// write the next chunk of the byte sequence and flush it
+	private static int writeChunk(OutputStream os, int pos) throws IOException {
+		os.write(chunkData(pos));
+		os.flush();
+		return pos + CHUNK_SIZE;
+	}
+
+	@Test
+	public void testPartialWritesKeepOutputOrder() throws Exception {
+		Socket client = connect(this.loop);
+		negotiate(client);
+		Accepted acc = this.nextAccepted();
+		assertTrue("3270 mode", acc.negotiator.isIn320Mode());
+		Sink sink = new Sink();
+		acc.channel.startReading(sink);
+		CountDownLatch drained = new CountDownLatch(1);
+		acc.channel.setOutputDrainedListener(drained::countDown);
+
+		// write while the client does not read, until the socket does not take all data
+		OutputStream os = acc.channel.getOutputStream();
+		int total = 0;
+		while(!acc.channel.isOutputBacklogged()) {
+			total = writeChunk(os, total);
+			if (total > 64 * 1024 * 1024) { fail("output never backlogged"); }
+		}
+		for (int i = 0; i < 10; i++) {
+			total = writeChunk(os, total);
+		}
+
+		// the remaining data is sent by the event loop when the socket is writable again
+		// (no more flushes), so the client must receive all data in the original order
+		InputStream is = client.getInputStream();
+		byte[] buffer = new byte[65536];
+		int received = 0;
+		while(received < total) {
+			int len = is.read(buffer);
+			if (len < 0) { fail("unexpected end of connection after " + received + " bytes"); }
+			for (int i = 0; i < len; i++) {
+				if (buffer[i] != (byte)(received + i)) {
+					fail("wrong byte at stream position " + (received + i));
+				}
+			}
+			received += len;
+		}
+		assertEquals("bytes received", total, received);
+		assertTrue("drained listener called", drained.await(5, TimeUnit.SECONDS));
+		assertFalse("isOutputBacklogged()", acc.channel.isOutputBacklogged());
+
+		acc.channel.close();
+		assertEquals("end of connection", -1, is.read());
+		client.close();
+	}
+
+	@Test
+	public void testBacklogAndDrainedListener() throws Exception {
+		Socket client = connect(this.loop);
+		negotiate(client);
+		Accepted acc = this.nextAccepted();
+		acc.channel.startReading(new Sink());
+		AtomicInteger drainedCount = new AtomicInteger();
+		acc.channel.setOutputDrainedListener(drainedCount::incrementAndGet);
+
+		// no backlog as long as the socket takes the data
+		OutputStream os = acc.channel.getOutputStream();
+		int total = writeChunk(os, 0);
+		InputStream is = client.getInputStream();
+		expect(is, chunkData(0));
+		assertFalse("isOutputBacklogged()", acc.channel.isOutputBacklogged());
+
+		// fill the connection until backlogged: the listener is not called before the client reads
+		int start = total;
+		while(!acc.channel.isOutputBacklogged()) {
+			total = writeChunk(os, total);
+		}
+		Thread.sleep(200);
+		assertEquals("drained listener calls while backlogged", 0, drainedCount.get());
+
+		// the listener is called once when the backlog is drained
+		byte[] buffer = new byte[65536];
+		int received = start;
+		while(received < total) {
+			int len = is.read(buffer);
+			if (len < 0) { fail("unexpected end of connection"); }
+			received += len;
+		}
+		Thread.sleep(200);
+		assertEquals("drained listener calls after draining", 1, drainedCount.get());
+		assertFalse("isOutputBacklogged()", acc.channel.isOutputBacklogged());
+
+		// output without backlog does not call the listener
+		total = writeChunk(os, total);
+		expect(is, chunkData(received));
+		Thread.sleep(200);
+		assertEquals("drained listener calls without backlog", 1, drainedCount.get());
+
+		acc.channel.close();
+		client.close();
+	}
+
+	@Test
+	public void testOutputOverflowDisconnects() throws Exception {
+		Socket client = connect(this.loop);
+		negotiate(client);
+		Accepted acc = this.nextAccepted();
+		Sink sink = new Sink();
+		acc.channel.startReading(sink);
+
+		// the client does not read: writing fails when the hard limit for pending output
+		// is exceeded and the connection is closed
+		OutputStream os = acc.channel.getOutputStream();
+		int total = 0;
+		try {
+			while(total < 64 * 1024 * 1024) {
+				total = writeChunk(os, total);
+			}
+			fail("output never overflowed");
+		} catch (IOException e) {
+			// expected
+		}
+		sink.assertClosedOnce();
+
+		// further output is rejected
+		try {
+			writeChunk(os, total);
+			fail("output accepted after overflow");
+		} catch (IOException e) {
+			// expected
+		}
+		client.close();
+	}
+
+	@Test
+	public void testPeerClosingDuringNegotiation() throws Exception {
+		Socket client = connect(this.loop);
+		expect(client.getInputStream(), IAC, DO, TERMINAL_TYPE);
+		client.close();
+
+		// the connection is handed over without 3270 mode and is closed when reading starts
+		Accepted acc = this.nextAccepted();
+		assertFalse("3270 mode", acc.negotiator.isIn320Mode());
+		Sink sink = new Sink();
+		acc.channel.startReading(sink);
+		sink.assertClosedOnce();
+
+		// the event loop continues to serve new connections
+		Socket client2 = connect(this.loop);
+		negotiate(client2);
+		Accepted acc2 = this.nextAccepted();
+		assertTrue("3270 mode", acc2.negotiator.isIn320Mode());
+		acc2.channel.close();
+		client2.close();
+	}
+
+	@Test
+	public void testConnectionLostBeforeRegister() throws Exception {
+		Socket client = connect(this.loop);
+		negotiate(client);
+		Accepted acc = this.nextAccepted();
+		client.close();
+		Thread.sleep(100);
+
+		// the sink is told exactly once when the channel registers
+		Sink sink = new Sink();
+		acc.channel.startReading(sink);
+		sink.assertClosedOnce();
+	}
+
+	@Test
+	public void testOutputOverflowBeforeRegister() throws Exception {
+		Socket client = connect(this.loop);
+		negotiate(client);
+		Accepted acc = this.nextAccepted();
+
+		// the client does not read and the channel is not yet registered: writing
+		// fails when the hard limit for pending output is exceeded
+		OutputStream os = acc.channel.getOutputStream();
+		int total = 0;
+		try {
+			while(total < 64 * 1024 * 1024) {
+				total = writeChunk(os, total);
+			}
+			fail("output never overflowed");
+		} catch (IOException e) {
+			// expected
+		}
+
+		// the connection was dropped before registering, the sink is told once when registering
+		Sink sink = new Sink();
+		acc.channel.startReading(sink);
+		sink.assertClosedOnce();
+
+		// the client sees the end of the connection after the data taken by the socket
+		InputStream is = client.getInputStream();
+		byte[] buffer = new byte[65536];
+		int received = 0;
+		try {
+			int len;
+			while((len = is.read(buffer)) >= 0) {
+				received += len;
+			}
+		} catch (IOException e) {
+			// connection reset: also fine
+		}
+		assertTrue("data received before end of connection", received < total);
+		client.close();
+	}
+}
@@ -0,0 +1,136 @@
+/*
+** This file is part of the emx370 emulator UnitTests.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dev.hawala.vm370.cons.UserConsoleSerial;
+import dev.hawala.vm370.ebcdic.EbcdicHandler;
+import dev.hawala.vm370.mecaff.TerminalChannelLoop;
+
+public class UserConsoleSerialTest {
+
+	// filler making the output lines long enough to fill the connection fast
+	private static final String FILLER = "----------------------------------------------------------------------------------------------------";
+
+	private final LinkedBlockingQueue<TerminalChannelLoop.TerminalChannel> accepted = new LinkedBlockingQueue<TerminalChannelLoop.TerminalChannel>();
+
+	private TerminalChannelLoop loop;
+	private Socket client;
+	private TerminalChannelLoop.TerminalChannel channel;
+	private UserConsoleSerial console;
+
+	@Before
+	public void connectConsole() throws Exception {
+		this.loop = new TerminalChannelLoop(0, true, (short)0, (n, c) -> this.accepted.add(c));
+		this.client = TerminalChannelLoopTest.connect(this.loop);
+		TerminalChannelLoopTest.negotiate(this.client);
+		this.channel = this.accepted.poll(5, TimeUnit.SECONDS);
+		assertNotNull("connection accepted", this.channel);
+		this.console = new UserConsoleSerial(0x01F, this.channel);
+	}
+
+	@After
+	public void disconnect() throws IOException {
+		this.client.close();
+		this.loop.shutdown();
+	}
+
+	private static String line(int no) {
+		return String.format("LINE %05d %s", no, FILLER);
+	}
+
+	// write host output lines until the connection stays backlogged (i.e. the socket buffers
+	// are full), returning the number of lines written
+	private int fillConnection() throws InterruptedException {
+		int lineNo = 0;
+		do {
+			while(!this.channel.isOutputBacklogged()) {
+				this.console.writeAddCR(new EbcdicHandler(line(lineNo++)));
+				if (lineNo > 1000000) { fail("connection never backlogged"); }
+			}
+			Thread.sleep(200);
+		} while(!this.channel.isOutputBacklogged());
+		return lineNo;
+	}
+
+	// read from the client connection until the text received ends with the given text
+	private String readUntil(String end) throws IOException {
+		InputStream is = this.client.getInputStream();
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		byte[] buffer = new byte[65536];
+		while(true) {
+			int len = is.read(buffer);
+			if (len < 0) { fail("unexpected end of connection"); }
+			received.write(buffer, 0, len);
+			String text = received.toString("ISO-8859-1");
+			if (text.endsWith(end)) { return text; }
+		}
+	}
+
+	@Test
+	public void testHeldOutputDroppedWithNotice() throws Exception {
+		// fill the connection, then write more lines than can be held back
+		int firstHeld = this.fillConnection();
+		int lineCount = firstHeld + 2000 + 500;
+		for (int i = firstHeld; i < lineCount; i++) {
+			this.console.writeAddCR(new EbcdicHandler(line(i)));
+		}
+
+		// all lines arrive in order, except the oldest held lines replaced by the notice
+		String lastLine = line(lineCount - 1);
+		String[] lines = this.readUntil(lastLine + System.lineSeparator()).split(System.lineSeparator());
+		int idx = 0;
+		while(idx < lines.length && lines[idx].startsWith("LINE ")) {
+			assertEquals("line before notice", line(idx), lines[idx]);
+			idx++;
+		}
+		assertTrue("lines before notice", idx >= firstHeld);
+		int skipped = lineCount - 2000 - idx;
+		assertEquals("notice", "*** " + skipped + " output lines skipped (terminal too slow)", lines[idx++]);
+		assertEquals("lines after notice", 2000, lines.length - idx);
+		for (int i = 0; i < 2000; i++) {
+			assertEquals("line after notice", line(lineCount - 2000 + i), lines[idx + i]);
+		}
+	}
+
+	@Test
+	public void testEchoNotAheadOfHeldOutput() throws Exception {
+		// fill the connection and write some lines being held back
+		int lineCount = this.fillConnection() + 100;
+		for (int i = lineCount - 100; i < lineCount; i++) {
+			this.console.writeAddCR(new EbcdicHandler(line(i)));
+		}
+
+		// user input typed now is echoed after the held output
+		this.client.getOutputStream().write("abc".getBytes("ISO-8859-1"));
+		this.client.getOutputStream().flush();
+		String text = this.readUntil("abc");
+		assertEquals("echo position", text.length() - 3, text.indexOf("abc"));
+		assertTrue("last line before echo", text.endsWith(line(lineCount - 1) + System.lineSeparator() + "abc"));
+	}
+}
@@ -0,0 +1,359 @@
+/*
+** This file is part of the emx370 emulator UnitTests.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dev.hawala.vm370.ebcdic.EbcdicHandler;
+import dev.hawala.vm370.mecaff.ByteBuffer;
+import dev.hawala.vm370.mecaff.IVm3270ConsoleCompletedSink;
+import dev.hawala.vm370.mecaff.IVm3270ConsoleInputSink;
+import dev.hawala.vm370.mecaff.Vm3270Console;
+import dev.hawala.vm370.mecaff.Vm3270Console.Attr;
+import dev.hawala.vm370.mecaff.Vm3270Console.Color;
+import dev.hawala.vm370.mecaff.Vm3270Console.ConsoleElement;
+import dev.hawala.vm370.stream3270.AidCode3270;
+import dev.hawala.vm370.stream3270.Color3270;
+
+/**
+ * Tests for the output area repaint of the MECAFF-console, which sends only the screen
+ * positions differing from the last content written to the terminal: the 3270 output
+ * streams are applied to a screen model, and after each sequence of incremental updates
+ * the model must show the same output area as a complete repaint of the screen.
+ */
+public class Vm3270ConsoleTest {
+
+	private static final int ROWS = 24;
+	private static final int COLS = 80;
+	private static final int OUT_ZONE_ROWS = 22;
+
+	// 3270 screen model tracking the characters and their color set with SetAttribute orders
+	private static class Screen {
+
+		private final byte[] chars = new byte[ROWS * COLS];
+		private final byte[] colors = new byte[ROWS * COLS];
+
+		private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+		private boolean pendingFF = false;
+
+		// process the raw telnet bytes sent to the terminal
+		private void feed(byte[] bytes, int from, int to) {
+			for (int i = from; i < to; i++) {
+				byte b = bytes[i];
+				if (this.pendingFF) {
+					this.pendingFF = false;
+					if (b == (byte)0xEF) {
+						byte[] rec = this.record.toByteArray();
+						this.record.reset();
+						this.processRecord(rec);
+					} else {
+						this.record.write(b);
+					}
+				} else if (b == (byte)0xFF) {
+					this.pendingFF = true;
+				} else {
+					this.record.write(b);
+				}
+			}
+		}
+
+		// the CLEAR key erases the screen locally
+		private void clear() {
+			Arrays.fill(this.chars, (byte)0x00);
+			Arrays.fill(this.colors, (byte)0x00);
+		}
+
+		private static int decodeAddress(byte b0, byte b1) {
+			int address = ((b0 & 0xC0) == 0)
+					? ((b0 & 0x3F) << 8) | (b1 & 0xFF)
+					: ((b0 & 0x3F) << 6) | (b1 & 0x3F);
+			return address % (ROWS * COLS);
+		}
+
+		private void put(int pos, byte c, byte color) {
+			this.chars[pos] = c;
+			this.colors[pos] = color;
+		}
+
+		private void processRecord(byte[] rec) {
+			if (rec.length < 2) { return; }
+			if (rec[0] == (byte)0xF5 || rec[0] == (byte)0x7E) {
+				this.clear();
+			} else if (rec[0] != (byte)0xF1) {
+				return;
+			}
+			int size = ROWS * COLS;
+			int pos = 0;
+			byte color = 0x00; // the character attribute starts as default with each write
+			int i = 2;
+			while(i < rec.length) {
+				byte b = rec[i++];
+				switch(b) {
+				case (byte)0x11: // SBA
+					pos = decodeAddress(rec[i], rec[i + 1]);
+					i += 2;
+					break;
+				case (byte)0x1D: // SF
+					i++;
+					this.put(pos, (byte)0x00, (byte)0x00);
+					pos = (pos + 1) % size;
+					break;
+				case (byte)0x29: // SFE
+					i += 1 + (2 * (rec[i] & 0xFF));
+					this.put(pos, (byte)0x00, (byte)0x00);
+					pos = (pos + 1) % size;
+					break;
+				case (byte)0x28: // SA
+					if (rec[i] == (byte)0x42) { color = rec[i + 1]; }
+					i += 2;
+					break;
+				case (byte)0x13: // IC
+					break;
+				case (byte)0x3C: // RA
+					int to = decodeAddress(rec[i], rec[i + 1]);
+					byte c = rec[i + 2];
+					i += 3;
+					do {
+						this.put(pos, c, color);
+						pos = (pos + 1) % size;
+					} while(pos != to);
+					break;
+				case (byte)0x12: // EUA
+					i += 2;
+					break;
+				default:
+					this.put(pos, b, color);
+					pos = (pos + 1) % size;
+					break;
+				}
+			}
+		}
+
+		// get the output area as text, with the color of each visible character
+		private String getOutputZone() {
+			StringBuilder sb = new StringBuilder();
+			for (int pos = 0; pos < OUT_ZONE_ROWS * COLS; pos++) {
+				byte c = this.chars[pos];
+				if (c == (byte)0x00 || c == (byte)0x40) {
+					sb.append(String.format("%02X   ", c));
+				} else {
+					sb.append(String.format("%02X/%02X", c, this.colors[pos]));
+				}
+				sb.append(((pos + 1) % COLS == 0) ? "\n" : " ");
+			}
+			return sb.toString();
+		}
+
+		private boolean containsColor(Color3270 color) {
+			for (int pos = 0; pos < OUT_ZONE_ROWS * COLS; pos++) {
+				byte c = this.chars[pos];
+				if (c != (byte)0x00 && c != (byte)0x40 && this.colors[pos] == color.getCode()) { return true; }
+			}
+			return false;
+		}
+	}
+
+	// host side of the console, completing fullscreen input transfers immediately
+	private static class Host implements IVm3270ConsoleInputSink {
+
+		private int fullScreenInputs = 0;
+
+		public void sendUserInput(EbcdicHandler inputLine) { }
+		public boolean sendInterrupt_CP(EbcdicHandler drainGuard) { return false; }
+		public boolean sendInterrupt_HT(EbcdicHandler drainGuard) { return false; }
+		public boolean sendInterrupt_HX(EbcdicHandler drainGuard) { return false; }
+		public boolean sendPF03() { return false; }
+		public void sendFullScreenDataAvailability(boolean isAvailable) { }
+		public void sendFullScreenTimedOut() { }
+
+		public void sendFullScreenInput(ByteBuffer buffer, IVm3270ConsoleCompletedSink completedCallBack) throws IOException {
+			this.fullScreenInputs++;
+			completedCallBack.transferCompleted();
+		}
+	}
+
+	private final ByteArrayOutputStream toTerminal = new ByteArrayOutputStream();
+	private final Screen screen = new Screen();
+	private final Host host = new Host();
+	private int consumed = 0;
+
+	private Vm3270Console console;
+
+	@Before
+	public void createConsole() throws Exception {
+		this.console = new Vm3270Console(this.host, this.toTerminal, ROWS, COLS, true, (short)0);
+		this.settle();
+	}
+
+	@After
+	public void closeConsole() {
+		this.console.close();
+	}
+
+	// wait until the console stopped sending and apply the output to the screen model
+	private void settle() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		int lastSize = -1;
+		while(System.currentTimeMillis() < deadline) {
+			Thread.sleep(150);
+			int size = this.toTerminal.size();
+			if (size == lastSize) { break; }
+			lastSize = size;
+		}
+		byte[] bytes = this.toTerminal.toByteArray();
+		this.screen.feed(bytes, this.consumed, bytes.length);
+		this.consumed = bytes.length;
+	}
+
+	private void appendLine(String text) throws IOException {
+		this.console.appendHostLine(new EbcdicHandler(text));
+	}
+
+	private void appendLines(int count, String prefix) throws Exception {
+		for (int i = 0; i < count; i++) {
+			StringBuilder sb = new StringBuilder(prefix).append(" line ").append(i);
+			for (int j = 0; j < (i * 7) % 30; j++) { sb.append(" x"); }
+			if ((i % 5) == 3) {
+				for (int j = 0; j < COLS; j++) { sb.append((char)('a' + (j % 26))); } // wrapping line
+			}
+			this.appendLine(sb.toString());
+			if ((i % 3) == 0) { this.settle(); } // mix single and coalesced updates
+		}
+		this.settle();
+	}
+
+	// the output area built incrementally must be the same as when painted from scratch
+	private void assertSameAsFullRepaint() throws Exception {
+		String incremental = this.screen.getOutputZone();
+		synchronized(this.console) {
+			this.console.redrawScreen();
+		}
+		this.settle();
+		assertEquals(this.screen.getOutputZone(), incremental);
+	}
+
+	@Test
+	public void testAppendedLines() throws Exception {
+		this.assertSameAsFullRepaint();
+		this.appendLines(4, "first");
+		this.assertSameAsFullRepaint();
+		this.appendLines(30, "scrolling"); // more than the output area, so all rows move up
+		this.assertSameAsFullRepaint();
+		this.appendLine("");
+		this.appendLine("short");
+		this.settle();
+		this.assertSameAsFullRepaint();
+	}
+
+	@Test
+	public void testColorChange() throws Exception {
+		this.console.setAttr(ConsoleElement.OutNormal, new Attr(Color.Yellow, false));
+		this.appendLines(10, "yellow");
+		assertTrue(this.screen.containsColor(Color3270.Yellow));
+		this.assertSameAsFullRepaint();
+
+		// the lines already displayed are recolored with the next update
+		this.console.setAttr(ConsoleElement.OutNormal, new Attr(Color.Red, false));
+		this.appendLine("red");
+		this.settle();
+		assertTrue(this.screen.containsColor(Color3270.Red));
+		assertTrue(!this.screen.containsColor(Color3270.Yellow));
+		this.assertSameAsFullRepaint();
+
+		// same text in another color only
+		this.console.setAttr(ConsoleElement.OutNormal, new Attr(Color.Green, false));
+		this.appendLine("");
+		this.settle();
+		assertTrue(!this.screen.containsColor(Color3270.Red));
+		this.assertSameAsFullRepaint();
+	}
+
+	@Test
+	public void testClearKey() throws Exception {
+		this.appendLines(8, "before clear");
+
+		// the terminal erases the screen when CLEAR is pressed, the console must repaint everything
+		this.screen.clear();
+		byte[] clear = { AidCode3270.Clear.getCode(), (byte)0xFF, (byte)0xEF };
+		this.console.processBytesFromTerminal(clear, clear.length);
+		this.settle();
+		assertTrue(this.screen.getOutputZone().contains("/")); // visible characters repainted
+		this.assertSameAsFullRepaint();
+
+		this.screen.clear();
+		this.console.processBytesFromTerminal(clear, clear.length);
+		this.appendLines(3, "after clear");
+		this.assertSameAsFullRepaint();
+	}
+
+	@Test
+	public void testTransmissionDelayDoesNotBlock() throws Exception {
+		// a terminal needing 9 ms between the output streams
+		ByteArrayOutputStream slowTerminal = new ByteArrayOutputStream();
+		Vm3270Console paced = new Vm3270Console(this.host, slowTerminal, ROWS, COLS, true, (short)9);
+		try {
+			this.settle();
+
+			// repaints following each other are held back instead of waiting with the console locked
+			long start = System.nanoTime();
+			int sent;
+			synchronized(paced) {
+				for (int i = 0; i < 5; i++) { paced.redrawScreen(); }
+				sent = slowTerminal.size();
+			}
+			long elapsedMs = (System.nanoTime() - start) / 1000000;
+			assertTrue("repaints not waiting (" + elapsedMs + " ms)", elapsedMs < 20);
+
+			// the repaint held back is sent after the pause
+			this.settle();
+			assertTrue("repaint sent", slowTerminal.size() > sent);
+		} finally {
+			paced.close();
+		}
+	}
+
+	@Test
+	public void testFullScreenOverwritesOutputZone() throws Exception {
+		this.appendLines(6, "serial");
+
+		// a fullscreen program paints the whole screen
+		assertTrue(this.console.acquireFullScreen(false));
+		ByteBuffer fs = new ByteBuffer();
+		fs.append((byte)0xF5).append((byte)0xC3);
+		for (int row = 0; row < ROWS; row++) {
+			for (int col = 0; col < COLS; col++) { fs.append((byte)(0xC1 + ((row + col) % 9))); }
+		}
+		this.console.writeFullscreen(fs);
+		this.settle();
+		assertTrue(this.screen.getOutputZone().startsWith("C1/00 C2/00"));
+
+		// the user presses ENTER and the program ends with the next read
+		this.console.readFullScreen(100, 0);
+		byte[] enter = { AidCode3270.Enter.getCode(), (byte)0x40, (byte)0x40, (byte)0xFF, (byte)0xEF };
+		this.console.processBytesFromTerminal(enter, enter.length);
+		assertEquals(1, this.host.fullScreenInputs);
+
+		// the serial output must repaint the screen contents of the fullscreen program
+		this.appendLines(3, "after fullscreen");
+		this.assertSameAsFullRepaint();
+	}
+}
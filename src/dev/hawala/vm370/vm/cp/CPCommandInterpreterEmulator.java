@@ -35,7 +35,10 @@ import dev.hawala.vm370.card.CardSourceAsciiFile;
 import dev.hawala.vm370.card.CardSourceEbcdicFile;
 import dev.hawala.vm370.card.iCardSource;
 import dev.hawala.vm370.dasd.iDasd;
+import dev.hawala.vm370.dasd.ckdc.CkdcCompaction;
 import dev.hawala.vm370.dasd.ckdc.CkdcDrive;
+import dev.hawala.vm370.dasd.ckdc.DriveBaseExternalIO;
+import dev.hawala.vm370.dasd.ckdc.DriveBaseExternalIO.SharedBase;
 import dev.hawala.vm370.dasd.fba.FbaDrive;
 import dev.hawala.vm370.ebcdic.EbcdicHandler;
 import dev.hawala.vm370.mecaff.Vm3270Console.Attr;
@@ -50,6 +53,7 @@ import dev.hawala.vm370.vm.device.iDevice;
 import dev.hawala.vm370.vm.machine.CPVirtualMachine;
 import dev.hawala.vm370.vm.machine.Cpu370Bc;
 import dev.hawala.vm370.vm.machine.DuplicateDeviceException;
+import dev.hawala.vm370.vm.machine.EventRing;
 import dev.hawala.vm370.vm.machine.NamedSegment;
 import dev.hawala.vm370.vm.machine.iCommandExecutor;
 import dev.hawala.vm370.vm.machine.iProcessorEventTracker;
@@ -88,6 +92,14 @@ public abstract class CPCommandInterpreterEmulator extends iUserConsole implemen
 	// reduce pending commands to the one passed in the exception and process this command
 	protected abstract void resetInputQueueTo(String command);
 	
+	// wake up the virtual machine (if any) for a newly pending device interrupt
+	// see: iUserConsole
+	@Override
+	public void signalAsyncInterrupt() {
+		CPVirtualMachine currVm = this.vm;
+		if (currVm != null) { currVm.signalAsyncInterrupt(); }
+	}
+	
 	
 	/*
 	 * the emulator command interpreter
@@ -192,25 +204,6 @@ public abstract class CPCommandInterpreterEmulator extends iUserConsole implemen
 			   + " TOTCPU= " + this.getTimespanString(this.vm.getRealCpuMicrosecs());
 	}
 	
-	private static class DeviceEventTracker implements iProcessorEventTracker {
-		
-		private final iProcessorEventTracker realLogger;
-		
-		private boolean doLog = false;
-		
-		public DeviceEventTracker(iProcessorEventTracker logger) {
-			this.realLogger = logger;
-		}
-		
-		public void setLogging(boolean doit) { this.doLog = doit; }
-
-		@Override
-		public void logLine(String line, Object... args) {
-			if (this.doLog) { this.realLogger.logLine(line, args); }
-		}
-		
-	};
-	
 	private static abstract class WritableDevice {
 		
 		protected final int cuu;
@@ -250,12 +243,14 @@ public abstract class CPCommandInterpreterEmulator extends iUserConsole implemen
 	
 	private static class WritableCkdc extends WritableDevice {
 		private final iDasd drive;
-		private final String basefileName;
+		private final String basefileName; // null for cloned drives
+		private final String deltafileName;
 		
-		public WritableCkdc(iDasd d, String fn, int unit) {
+		public WritableCkdc(iDasd d, String baseFn, String deltaFn, int unit) {
 			super(unit);
 			this.drive = d;
-			this.basefileName = fn;
+			this.basefileName = baseFn;
+			this.deltafileName = deltaFn;
 		}
 		
 		public boolean needsSaving(boolean detaching) {
@@ -264,8 +259,8 @@ public abstract class CPCommandInterpreterEmulator extends iUserConsole implemen
 		
 		// returns: failed?
 		public String save() {
-			String oldDeltaFn = this.basefileName + ".delta_old";
-			String deltaFn = this.basefileName + ".delta";
+			String oldDeltaFn = this.deltafileName + "_old";
+			String deltaFn = this.deltafileName;
 			
 			String what = "delete old .delta_old file";
 			try {
@@ -376,15 +371,20 @@ public abstract class CPCommandInterpreterEmulator extends iUserConsole implemen
 	protected iSpoolDevice prtDevice = null;
 	protected DeviceHandler prtDeviceHandler = null;
 	
-	private DeviceEventTracker deviceEventTracker = null;
+	private EventRing deviceEventTracker = null;
 	
 	private void dasdLoadDisk(int cuu, String basefileName, boolean writeProtected) throws Exception {
 		if (this.vm.getDevice(cuu) != null) {
-			throw new CmdError("device %03D already present in virtual machine", cuu);
+			throw new CmdError("device %03X already present in virtual machine", cuu);
 		}
 		
 		if (this.deviceEventTracker == null) {
-			this.deviceEventTracker = new DeviceEventTracker(this.vm.cpu);
+			this.deviceEventTracker = new EventRing(this.vm.cpu);
+		}
+		
+		if (!writeProtected && !basefileName.endsWith(".fba")
+				&& CkdcCompaction.swapInCompactedBase(basefileName, basefileName + ".delta")) {
+			this.writef("Drive %03X: compacted base file swapped in\n", cuu);
 		}
 		
 		iDasd drive = loadDrive(basefileName, writeProtected);
@@ -396,13 +396,54 @@ public abstract class CPCommandInterpreterEmulator extends iUserConsole implemen
 		DeviceHandler dev = this.vm.createDeviceHandler(drive, cuu, this.deviceEventTracker);
 		this.vm.addDevice(dev);
 		if (!writeProtected) {
-			this.writableDevices.add(new WritableCkdc(drive, basefileName, cuu));
+			this.writableDevices.add(new WritableCkdc(drive, basefileName, basefileName + ".delta", cuu));
+			if (drive instanceof CkdcDrive) {
+				synchronized(attachedCkdcDrives) {
+					attachedCkdcDrives.put(new File(basefileName).getCanonicalPath(), (CkdcDrive)drive);
+				}
+			}
 		}
 		
 		String identifier = String.format("%s.%03X", this.vm.getIsoName(), cuu);
 		this.ownDrives.put(identifier, drive);
 	}
 	
+	private void dasdCloneDisk(int cuu, String templateFileName, String deltafileName) throws Exception {
+		if (this.vm.getDevice(cuu) != null) {
+			throw new CmdError("device %03X already present in virtual machine", cuu);
+		}
+		
+		File templateFile = new File(templateFileName);
+		if (!templateFile.exists() || !templateFile.isFile() || !templateFile.canRead()) {
+			throw new CmdError("specified template base file for drive not existent or readable");
+		}
+		File deltaFile = new File(deltafileName);
+		if (deltaFile.exists() && (!deltaFile.isFile() || !deltaFile.canRead() || !deltaFile.canWrite())) {
+			throw new CmdError("specified private delta file for drive not readable or writable");
+		}
+		
+		if (this.deviceEventTracker == null) {
+			this.deviceEventTracker = new EventRing(this.vm.cpu);
+		}
+		
+		SharedBase template = DriveBaseExternalIO.getSharedBase(templateFileName);
+		iDasd drive;
+		if (deltaFile.exists()) {
+			try (FileInputStream deltaFis = new FileInputStream(deltaFile)) {
+				drive = CkdcDrive.cloneFrom(template, deltaFis, this.deviceEventTracker);
+			}
+		} else {
+			drive = CkdcDrive.cloneFrom(template, null, this.deviceEventTracker);
+		}
+		
+		DeviceHandler dev = this.vm.createDeviceHandler(drive, cuu, this.deviceEventTracker);
+		this.vm.addDevice(dev);
+		this.writableDevices.add(new WritableCkdc(drive, null, deltafileName, cuu));
+		
+		String identifier = String.format("%s.%03X", this.vm.getIsoName(), cuu);
+		this.ownDrives.put(identifier, drive);
+	}
+	
 	protected void saveDeviceBeforeDetach(int cuu) {
 		for (WritableDevice d : this.writableDevices) {
 			if (d.getCuu() == cuu) {
@@ -413,9 +454,66 @@ public abstract class CPCommandInterpreterEmulator extends iUserConsole implemen
 					}
 				}
 				this.writableDevices.remove(d);
+				releaseAttachedDrive(d);
+				if (d instanceof WritableCkdc && ((WritableCkdc)d).drive instanceof FbaDrive) {
+					this.ownDrives.values().remove(((WritableCkdc)d).drive); // closed, so no longer available for LINK
+				}
+				return;
+			}
+		}
+	}
+	
+	// the writable CKDC drives loaded from a base file and currently attached to a VM, by canonical base file name 
+	private static Map<String, CkdcDrive> attachedCkdcDrives = new HashMap<String, CkdcDrive>();
+	
+	private static void releaseAttachedDrive(WritableDevice d) {
+		if (d instanceof WritableTape) {
+			((WritableTape)d).drive.dismountTapeFile(); // close the tape file
+			return;
+		}
+		if (!(d instanceof WritableCkdc)) { return; }
+		iDasd drive = ((WritableCkdc)d).drive;
+		if (drive instanceof FbaDrive) {
+			((FbaDrive)drive).close(); // close the FBA file
+			return;
+		}
+		synchronized(attachedCkdcDrives) {
+			attachedCkdcDrives.values().remove(drive);
+		}
+	}
+	
+	/**
+	 * Get the live drive for the CKDC base file if the drive is currently
+	 * attached writable to a virtual machine.
+	 * 
+	 * @param basefileName the name of the base file of the drive.
+	 * @return the attached drive or {@code null} if not attached.
+	 * @throws IOException if the file name cannot be resolved.
+	 */
+	public static CkdcDrive getAttachedCkdcDrive(String basefileName) throws IOException {
+		String key = new File(basefileName).getCanonicalPath();
+		synchronized(attachedCkdcDrives) {
+			return attachedCkdcDrives.get(key);
+		}
+	}
+	
+	private void dasdCompact(int cuu, String backupFilename) throws Exception {
+		for (WritableDevice d : this.writableDevices) {
+			if (d.getCuu() != cuu || !(d instanceof WritableCkdc)) { continue; }
+			WritableCkdc wd = (WritableCkdc)d;
+			if (wd.basefileName == null || !(wd.drive instanceof CkdcDrive)) {
+				throw new CmdError("Compaction only possible for CKDC drives loaded with :DASDLOAD");
+			}
+			String target = (backupFilename != null) ? backupFilename : wd.basefileName + CkdcCompaction.COMPACT_SUFFIX;
+			if (CkdcCompaction.getRunning(target) != null) {
+				this.writef("Drive %03X: compaction to %s still in progress\n", cuu, target);
 				return;
 			}
+			CkdcCompaction.start((CkdcDrive)wd.drive, wd.basefileName, backupFilename);
+			this.writef("Drive %03X: compaction to %s started\n", cuu, target);
+			return;
 		}
+		this.writef("CUU %03X not attached or not writable\n", cuu);
 	}
 	
 	private void saveDasdDrive(int cuu) {
@@ -913,6 +1011,23 @@ public abstract class CPCommandInterpreterEmulator extends iUserConsole implemen
 				return false;
 			}
 			
+			// :DASDCLONE <cuu> <template-basefile-spec> <private-deltafile-spec>
+			if (cmd.equals(":DASDCLONE")) {
+				String arg = tokens.nextUpper();
+				if (arg == null) { throw new CmdError(EM_MISSING_PARAM, "cuu"); }
+				int cuu = getCuu(arg);
+				
+				String templateFileName = tokens.next();
+				if (templateFileName == null) { throw new CmdError(EM_MISSING_PARAM, "template-basefile-spec"); }
+				
+				String deltafileName = tokens.next();
+				if (deltafileName == null) { throw new CmdError(EM_MISSING_PARAM, "private-deltafile-spec"); }
+				
+				this.dasdCloneDisk(cuu, templateFileName, deltafileName);
+				
+				return false;
+			}
+			
 			// :DASDSHARED <cuu> <shared-identifier>
 			if (cmd.equals(":DASDSHARED")) {
 				String arg = tokens.nextUpper();
@@ -932,6 +1047,17 @@ public abstract class CPCommandInterpreterEmulator extends iUserConsole implemen
 				return false;
 			}
 			
+			// :DASDCOMPACT <cuu> [<backup-basefile-spec>]
+			if (cmd.equals(":DASDCOMPACT")) {
+				String arg = tokens.nextUpper();
+				if (arg == null) { throw new CmdError(EM_MISSING_PARAM, "cuu"); }
+				int cuu = getCuu(arg);
+				
+				this.dasdCompact(cuu, tokens.next());
+				
+				return false;
+			}
+			
 			// :SYNC [cuu]
 			if (cmd.equals(":SYNC")) {
 				String cuuString = tokens.nextUpper();
@@ -1002,12 +1128,23 @@ public abstract class CPCommandInterpreterEmulator extends iUserConsole implemen
 			}
 			
 			// :TRace CCWs|DIAGs|INSTructions ON|OFf
+			// :TRace CCWs RING|DUMP [count]
 			if (isToken(cmd, ":TRACE", 3)) {
 				String what = tokens.nextUpper();
 				if (what == null) { throw new CmdError(EM_MISSING_PARAM, "what"); }
 				
 				String onOff = tokens.nextUpper();
 				if (onOff == null) { throw new CmdError(EM_MISSING_PARAM, "ON|OFf"); }
+				if (isToken(what, "CCWS", 3) && isToken(onOff, "RING")) {
+					this.deviceEventTracker.setLevel(EventRing.Level.RING);
+					return false;
+				}
+				if (isToken(what, "CCWS", 3) && isToken(onOff, "DUMP")) {
+					int count = tokens.hasMore() ? getInt(tokens.next()) : Integer.MAX_VALUE;
+					int dumped = this.deviceEventTracker.dump(System.out, count);
+					this.writef("%d device events written to the emulator log\n", dumped);
+					return false;
+				}
 				boolean on = false;
 				if (isToken(onOff, "ON")) {
 					on = true;
@@ -1016,7 +1153,7 @@ public abstract class CPCommandInterpreterEmulator extends iUserConsole implemen
 				}
 				
 				if (isToken(what, "CCWS", 3)) {
-					this.deviceEventTracker.setLogging(on);
+					this.deviceEventTracker.setLevel((on) ? EventRing.Level.LIVE : EventRing.Level.OFF);
 				} else if (isToken(what, "INSTRUCTIONS", 4)) {
 					Cpu370Bc.setLiveLogging(on);
 				} else if (isToken(what, "DIAGS", 4)) {
@@ -1030,6 +1167,43 @@ public abstract class CPCommandInterpreterEmulator extends iUserConsole implemen
 				return false;
 			}
 			
+			// :INSTRace <megabytes> [PGMcheck <file-prefix>]
+			// :INSTRace OFf
+			// :INSTRace DUMP <filename>
+			if (isToken(cmd, ":INSTRACE", 6)) {
+				String what = tokens.next();
+				if (what == null) {
+					this.writef("Instruction trace is %s\n", (this.vm.cpu.isInsnTracing()) ? "ON" : "OFF");
+					return false;
+				}
+				if (isToken(what.toUpperCase(), "OFF", 2)) {
+					this.vm.cpu.stopInsnTrace();
+					return false;
+				}
+				if (isToken(what.toUpperCase(), "DUMP")) {
+					String filename = tokens.next();
+					if (filename == null) { throw new CmdError(EM_MISSING_PARAM, "filename"); }
+					int count = this.vm.cpu.dumpInsnTrace(filename);
+					if (count < 0) { throw new CmdError("Instruction trace is not active"); }
+					this.writef("%d instructions written to trace file '%s'\n", count, filename);
+					return false;
+				}
+				int megabytes = getInt(what);
+				String pgmCheckPrefix = null;
+				if (tokens.hasMore()) {
+					String opt = tokens.nextUpper();
+					if (!isToken(opt, "PGMCHECK", 3)) { throw new CmdError("Invalid parameter to :INSTRACE : %s", opt); }
+					pgmCheckPrefix = tokens.next();
+					if (pgmCheckPrefix == null) { throw new CmdError(EM_MISSING_PARAM, "file-prefix"); }
+				}
+				try {
+					this.vm.cpu.startInsnTrace(megabytes, pgmCheckPrefix);
+				} catch (IllegalArgumentException e) {
+					throw new CmdError(e.getMessage());
+				}
+				return false;
+			}
+			
 			// :TIMERintr ON|OFf
 			if (isToken(cmd, ":TIMERINTR", 6)) {
 				String onOff = tokens.nextUpper();
@@ -1044,6 +1218,23 @@ public abstract class CPCommandInterpreterEmulator extends iUserConsole implemen
 				return false;
 			}
 			
+			// :ASYNCio ON|OFf
+			if (isToken(cmd, ":ASYNCIO", 6)) {
+				String onOff = tokens.nextUpper();
+				if (onOff == null) {
+					this.writef("Asynchronous channel mode is %s\n", (this.vm.isAsyncChannelMode()) ? "ON" : "OFF");
+					return false;
+				}
+				boolean on = false;
+				if (isToken(onOff, "ON")) {
+					on = true;
+				} else if (!isToken(onOff, "OFF", 2)) {
+					throw new CmdError("Invalid parameter to :ASYNCIO : %s", onOff);
+				}
+				this.vm.setAsyncChannelMode(on);
+				return false;
+			}
+			
 			// :INFO
 			if (isToken(cmd, ":INFO")) {
 				long insns = this.vm.cpu.getTotalInstructions();
@@ -1321,6 +1512,8 @@ public abstract class CPCommandInterpreterEmulator extends iUserConsole implemen
 						+ "  :PUN CREate <directory>\n"
 						+ "  :DASDLOAD [READONLY|RO] <cuu> <basefile-spec>\n"
 						+ "  :DASDSHARED <cuu> <shared-identifier>\n"
+						+ "  :DASDCLONE <cuu> <template-basefile-spec> <private-deltafile-spec>\n"
+						+ "  :DASDCOMPACT <cuu> [<backup-basefile-spec>]\n"
 						+ "  :TAPe <cuu> ATTach\n"
 						+ "  :TAPe <cuu> MOUnt [WITHRing|WRitable] <filename>\n"
 						+ "  :TAPe <cuu> CREate <filename>\n"
@@ -1330,8 +1523,11 @@ public abstract class CPCommandInterpreterEmulator extends iUserConsole implemen
 						+ "  :SEGMENT <name> [IPL] <page-count> <load-at-page> <file-spec> \n"
 						+ "  :IPL <sysname>|<cuu> [RESet] [NORun]\n"
 						+ "  :TIMERintr ON|OFf\n"
+						+ "  :ASYNCio [ON|OFf]\n"
 						+ "  :WATCH Byte|Halfword|Word|Dword|Clear <hexloc> \n"
 						+ "  :TRace CCWs|DIAGs|INSTructions|SVCs ON|OFf\n"
+						+ "  :TRace CCWs RING|DUMP [count]\n"
+						+ "  :INSTRace <megabytes> [PGMcheck <file-prefix>] | OFf | DUMP <filename>\n"
 						+ "  :INFO\n"
 						+ "  :PERF\n"
 						+ ((this.vm.cpu.hasInstructionStatistics()) ? "  :STATS\n" : "")
@@ -1376,7 +1572,7 @@ public abstract class CPCommandInterpreterEmulator extends iUserConsole implemen
 			return;
 		}
 		this.msecConnected = System.currentTimeMillis();
-		this.deviceEventTracker = new DeviceEventTracker(this.vm.cpu);
+		this.deviceEventTracker = new EventRing(this.vm.cpu);
 		
 		// create the console device and bind the VM to it
 		iDevice consoleDevice = getConsoleDevice();
@@ -1446,7 +1642,11 @@ public abstract class CPCommandInterpreterEmulator extends iUserConsole implemen
 		this.punDeviceHandler = null;
 		this.prtDevice = null;
 		this.prtDeviceHandler = null;
+		for (WritableDevice d : this.writableDevices) { releaseAttachedDrive(d); }
 		this.writableDevices.clear();
+		for (iDasd drive : this.ownDrives.values()) {
+			if (drive instanceof FbaDrive) { ((FbaDrive)drive).close(); } // also the read-only FBA drives
+		}
 		this.ownDrives.clear();
 		this.vm = null;
 		try {
@@ -97,6 +97,16 @@ public abstract class iUserConsole {
 	 */
 	public abstract void writef(String pattern, Object... args);
 	
+	/**
+	 * Notify the virtual machine using this user console that a device got an
+	 * asynchronous interrupt pending (e.g. an Attention interrupt for fullscreen
+	 * input), so the virtual machine notices it immediately if it is idle.
+	 * <p>
+	 * This method may be invoked on any thread.
+	 * </p>
+	 */
+	public void signalAsyncInterrupt() {}
+	
 	/**
 	 * Define the behavior of a PF-key in 3270 console mode of a display (3270) terminal.
 	 * The 3270 mode is the emulation of a plain 3270 terminal with the screen
@@ -0,0 +1,293 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.vm.device;
+
+/**
+ * Cache of recognized CKD channel programs for direct execution of record
+ * transfers through {@link iCkdRecordIO}.
+ * <p>
+ * CMS issues its DASD I/O through DIAGNOSE X'18' with a small number of fixed
+ * chain shapes, each record transfer being a group of the CCWs
+ * SEEK (optional for all but the first group), SET SECTOR (optional),
+ * SEARCH ID EQUAL, TIC *-8 and READ DATA resp. WRITE DATA, with the groups being
+ * command chained.
+ * </p>
+ * <p>
+ * A chain is analyzed once and the resulting plan is cached by the CCW address,
+ * the plan being valid as long as the CCWs have the same content (the seek and
+ * search arguments are taken from memory at each execution). Chains not matching
+ * the recognized shapes are cached as well (as unusable plans), so these are not
+ * analyzed again at each execution.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin/Germany, 2015
+ *
+ */
+class CkdChainCache {
+
+	// max. number of record transfers in a recognized chain
+	private static final int MAX_GROUPS = 64;
+
+	// max. number of CCWs in a recognized chain
+	private static final int MAX_CCWS = MAX_GROUPS * 5;
+
+	// number of cached chain plans
+	private static final int CACHE_SIZE = 8;
+
+	// allowed CCW flags: command chaining and suppress length indication
+	private static final int FLAG_CC = 0x40;
+	private static final int FLAG_SLI = 0x20;
+
+	/**
+	 * Analyzed CCW chain.
+	 */
+	static class Plan {
+
+		// address of the first CCW
+		private final int chainAddress;
+
+		// the CCWs examined for the analysis (address and 8 content bytes each)
+		private int ccwCount = 0;
+		private final int[] ccwAddresses = new int[MAX_CCWS];
+		private final byte[] ccwContents = new byte[MAX_CCWS * 8];
+
+		// can the chain be executed directly?
+		private boolean usable = false;
+
+		// the record transfers
+		private int groupCount = 0;
+		private final int[] seekArgAddresses = new int[MAX_GROUPS]; // -1: no seek in this group
+		private final int[] searchArgAddresses = new int[MAX_GROUPS];
+		private final int[] dataAddresses = new int[MAX_GROUPS];
+		private final int[] dataLengths = new int[MAX_GROUPS];
+		private final boolean[] toDevice = new boolean[MAX_GROUPS];
+
+		// address of the last CCW executed
+		private int lastCcwAddress = 0;
+
+		private Plan(int chainAddress) {
+			this.chainAddress = chainAddress;
+		}
+
+		/**
+		 * @return the number of records transferred by this chain.
+		 */
+		int getRecordCount() { return this.groupCount; }
+
+		/**
+		 * @return the address of the last CCW of the chain.
+		 */
+		int getLastCcwAddress() { return this.lastCcwAddress; }
+
+		// is the plan valid for the CCWs currently in memory?
+		private boolean matches(byte[] mem, int addr) {
+			if (addr != this.chainAddress) { return false; }
+			for (int i = 0; i < this.ccwCount; i++) {
+				int ccwAddr = this.ccwAddresses[i];
+				int contentPos = i * 8;
+				for (int j = 0; j < 8; j++) {
+					if (mem[ccwAddr + j] != this.ccwContents[contentPos + j]) { return false; }
+				}
+			}
+			return true;
+		}
+
+		// register a CCW as examined, returning false if the CCW cannot be part of a usable chain
+		private boolean addCcw(byte[] mem, int ccwAddr) {
+			if (this.ccwCount >= MAX_CCWS) { return false; }
+			if ((ccwAddr & 0x07) != 0 || ccwAddr < 0 || (ccwAddr + 8) > mem.length) { return false; }
+			this.ccwAddresses[this.ccwCount] = ccwAddr;
+			System.arraycopy(mem, ccwAddr, this.ccwContents, this.ccwCount * 8, 8);
+			this.ccwCount++;
+			return true;
+		}
+
+		// analyze the chain, leaving the plan unusable if it is not one of the recognized shapes
+		private void analyze(byte[] mem) {
+			int ccwAddr = this.chainAddress;
+			while (true) {
+				if (this.groupCount >= MAX_GROUPS) { return; }
+
+				// SEEK (required for the first record)
+				int seekArgAddr = -1;
+				if (!this.addCcw(mem, ccwAddr)) { return; }
+				if (isCcw(mem, ccwAddr, 0x07, 6, true)) {
+					seekArgAddr = dataAddress(mem, ccwAddr);
+					ccwAddr += 8;
+					if (!this.addCcw(mem, ccwAddr)) { return; }
+				} else if (this.groupCount == 0) {
+					return;
+				}
+
+				// SET SECTOR (optional)
+				if (isCcw(mem, ccwAddr, 0x23, 1, true)) {
+					ccwAddr += 8;
+					if (!this.addCcw(mem, ccwAddr)) { return; }
+				}
+
+				// SEARCH ID EQUAL
+				if (!isCcw(mem, ccwAddr, 0x31, 5, true)) { return; }
+				int searchCcwAddr = ccwAddr;
+				int searchArgAddr = dataAddress(mem, ccwAddr);
+
+				// TIC *-8
+				ccwAddr += 8;
+				if (!this.addCcw(mem, ccwAddr)) { return; }
+				if ((mem[ccwAddr] & 0x0F) != 0x08 || dataAddress(mem, ccwAddr) != searchCcwAddr) { return; }
+
+				// READ DATA or WRITE DATA
+				ccwAddr += 8;
+				if (!this.addCcw(mem, ccwAddr)) { return; }
+				int cmd = mem[ccwAddr] & 0xFF;
+				if (cmd != 0x06 && cmd != 0x05) { return; }
+				int flags = mem[ccwAddr + 4] & 0xFF;
+				if ((flags & ~(FLAG_CC | FLAG_SLI)) != 0) { return; }
+				int dataLength = count(mem, ccwAddr);
+				if (dataLength == 0) { return; }
+
+				this.seekArgAddresses[this.groupCount] = seekArgAddr;
+				this.searchArgAddresses[this.groupCount] = searchArgAddr;
+				this.dataAddresses[this.groupCount] = dataAddress(mem, ccwAddr);
+				this.dataLengths[this.groupCount] = dataLength;
+				this.toDevice[this.groupCount] = (cmd == 0x05);
+				this.groupCount++;
+				this.lastCcwAddress = ccwAddr;
+
+				// end of chain?
+				if ((flags & FLAG_CC) == 0) { break; }
+				ccwAddr += 8;
+			}
+
+			// a read must not overwrite CCWs or arguments of the chain, as the arguments are read
+			// for all records before transferring the first record
+			for (int g = 0; g < this.groupCount; g++) {
+				if (this.toDevice[g]) { continue; }
+				int from = this.dataAddresses[g];
+				int to = from + this.dataLengths[g];
+				for (int i = 0; i < this.ccwCount; i++) {
+					if (overlaps(from, to, this.ccwAddresses[i], 8)) { return; }
+				}
+				for (int i = 0; i < this.groupCount; i++) {
+					if (this.seekArgAddresses[i] >= 0 && overlaps(from, to, this.seekArgAddresses[i], 6)) { return; }
+					if (overlaps(from, to, this.searchArgAddresses[i], 5)) { return; }
+				}
+			}
+
+			this.usable = true;
+		}
+
+		/**
+		 * Execute the record transfers of the chain with the device, either completely
+		 * or not at all.
+		 *
+		 * @param mem the main memory.
+		 * @param dev the device to execute the chain on.
+		 * @return {@code true} if all records were transferred or {@code false} if the
+		 *   chain must be interpreted generically (no record was transferred in this case).
+		 */
+		boolean execute(byte[] mem, iCkdRecordIO dev) {
+			if (!this.usable) { return false; }
+			return this.run(mem, dev, false) && this.run(mem, dev, true);
+		}
+
+		// check (doTransfer == false) resp. transfer the records of the chain
+		private boolean run(byte[] mem, iCkdRecordIO dev, boolean doTransfer) {
+			int seekCyl = -1;
+			int seekHead = -1;
+			for (int g = 0; g < this.groupCount; g++) {
+				int seekArgAddr = this.seekArgAddresses[g];
+				if (seekArgAddr >= 0) {
+					if ((seekArgAddr + 6) > mem.length) { return false; }
+					seekCyl = ((mem[seekArgAddr + 2] & 0xFF) << 8) | (mem[seekArgAddr + 3] & 0xFF);
+					seekHead = ((mem[seekArgAddr + 4] & 0xFF) << 8) | (mem[seekArgAddr + 5] & 0xFF);
+				}
+				int searchArgAddr = this.searchArgAddresses[g];
+				if ((searchArgAddr + 5) > mem.length) { return false; }
+				int searchCyl = ((mem[searchArgAddr] & 0xFF) << 8) | (mem[searchArgAddr + 1] & 0xFF);
+				int searchHead = ((mem[searchArgAddr + 2] & 0xFF) << 8) | (mem[searchArgAddr + 3] & 0xFF);
+				int recordNo = mem[searchArgAddr + 4] & 0xFF;
+				int dataAddr = this.dataAddresses[g];
+				int dataLength = this.dataLengths[g];
+				if ((dataAddr + dataLength) > mem.length) { return false; }
+
+				boolean ok = (doTransfer)
+					? dev.transferRecordData(seekCyl, seekHead, searchCyl, searchHead, recordNo, dataLength, this.toDevice[g], mem, dataAddr)
+					: dev.canTransferRecordData(seekCyl, seekHead, searchCyl, searchHead, recordNo, dataLength, this.toDevice[g]);
+				if (!ok) { return false; }
+			}
+			return true;
+		}
+	}
+
+	private static int dataAddress(byte[] mem, int ccwAddr) {
+		return ((mem[ccwAddr + 1] & 0xFF) << 16)
+			 | ((mem[ccwAddr + 2] & 0xFF) << 8)
+			 | (mem[ccwAddr + 3] & 0xFF);
+	}
+
+	private static int count(byte[] mem, int ccwAddr) {
+		return ((mem[ccwAddr + 6] & 0xFF) << 8) | (mem[ccwAddr + 7] & 0xFF);
+	}
+
+	// is the CCW the given command with the given count and command chaining?
+	private static boolean isCcw(byte[] mem, int ccwAddr, int cmd, int count, boolean chained) {
+		if ((mem[ccwAddr] & 0xFF) != cmd) { return false; }
+		int flags = mem[ccwAddr + 4] & 0xFF;
+		if ((flags & ~(FLAG_CC | FLAG_SLI)) != 0) { return false; }
+		if (chained != ((flags & FLAG_CC) != 0)) { return false; }
+		return count(mem, ccwAddr) == count;
+	}
+
+	private static boolean overlaps(int from, int to, int areaAddr, int areaLength) {
+		return from < (areaAddr + areaLength) && areaAddr < to;
+	}
+
+	/*
+	 * the cache
+	 */
+
+	private final Plan[] plans = new Plan[CACHE_SIZE];
+	private int nextReplace = 0;
+
+	/**
+	 * Get the plan for the CCW chain at the given address, analyzing the chain if
+	 * no valid plan is cached.
+	 *
+	 * @param mem the main memory.
+	 * @param addr the address of the first CCW of the chain.
+	 * @return the plan for the chain (possibly unusable for direct execution).
+	 */
+	Plan getPlan(byte[] mem, int addr) {
+		for (Plan p : this.plans) {
+			if (p != null && p.chainAddress == addr) {
+				if (p.matches(mem, addr)) { return p; }
+				break;
+			}
+		}
+
+		Plan plan = new Plan(addr);
+		plan.analyze(mem);
+
+		// replace the outdated plan for this address or else the next plan in round robin order
+		int slot = -1;
+		for (int i = 0; i < this.plans.length; i++) {
+			if (this.plans[i] != null && this.plans[i].chainAddress == addr) { slot = i; }
+		}
+		if (slot < 0) {
+			slot = this.nextReplace;
+			this.nextReplace = (this.nextReplace + 1) % this.plans.length;
+		}
+		this.plans[slot] = plan;
+		return plan;
+	}
+}
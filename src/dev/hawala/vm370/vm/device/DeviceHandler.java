@@ -12,6 +12,9 @@
 
 package dev.hawala.vm370.vm.device;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import dev.hawala.vm370.vm.machine.Cpu370Bc;
 import dev.hawala.vm370.vm.machine.PSWException;
 import dev.hawala.vm370.vm.machine.iInterruptSource;
@@ -24,6 +27,10 @@ import dev.hawala.vm370.vm.machine.iProcessorEventTracker;
  * - no parallel I/O operations
  * - no I/O operations while the CPU executes
  * 
+ * Optionally, a CCW chain can be started with {@link #startCAW(Runnable)} to be executed on
+ * a channel worker thread while the CPU continues to run, the device being busy until the
+ * chain has ended and the completion interrupt becomes pending.
+ * 
  * @author Dr. Hans-Walter Latz, Berlin/Germany, 2015
  */
 
@@ -98,7 +105,7 @@ public class DeviceHandler implements iDeviceIO, iInterruptSource {
 	 *   therefore no interrupt will follow to indicate the I/O end) 
 	 */
 	public boolean hasPendingCompletionInterrupt() {
-		return this.enqueueCompletionInterrupt;
+		return !this.asyncBusy && this.enqueueCompletionInterrupt;
 	}
 	
 	/**
@@ -106,6 +113,7 @@ public class DeviceHandler implements iDeviceIO, iInterruptSource {
 	 */
 	public void clearPendingCompletionInterrupt() {
 		this.enqueueCompletionInterrupt = false;
+		this.asyncEnded = false;
 	}
 	
 	/**
@@ -125,6 +133,7 @@ public class DeviceHandler implements iDeviceIO, iInterruptSource {
 				(short)this.devCuu); // intrCode (for I/O devices: CUU of the device attachment)
 		this.storeCSW();
 		this.enqueueCompletionInterrupt = false;
+		this.asyncEnded = false;
 	}
 	
 	/**
@@ -378,8 +387,8 @@ public class DeviceHandler implements iDeviceIO, iInterruptSource {
 				}
 				unitStatus = 0; // clear status to OK in case of command chain end 
 				
-				// check if a next CCW must be processed
-				executeCommand = this.currCC && this.resolveCcw(this.cswCCwAddress, true);
+				// check if a next CCW must be processed (unless a HIO requested to terminate the chain)
+				executeCommand = this.currCC && !this.haltRequested && this.resolveCcw(this.cswCCwAddress, true);
 			}
 			
 			// set final state
@@ -408,24 +417,201 @@ public class DeviceHandler implements iDeviceIO, iInterruptSource {
 				result = true; // success..
 			}
 			
-			this.eventLogger.logLine(".. End of CCW interpetation for DEV %03X cswCC=%d (%s):%s%s%s%s%s%s%s%s%s",
-					this.devCuu, 
-					this.cswCC,
-					(result) ? "OK" : "FAIL",
-					(this.cswUnitStatus == 0 && this.cswChannelStatus == 0) ? " OK" : "",
-					((this.cswUnitStatus & iDeviceStatus.ATTENTION) != 0) ? " Attention" : "",
-					((this.cswUnitStatus & iDeviceStatus.STATUS_MODIFIER) != 0) ? " StatusModifier" : "",
-					((this.cswUnitStatus & iDeviceStatus.CHANNEL_END) != 0) ? " ChannelEnd" : "",
-					((this.cswUnitStatus & iDeviceStatus.DEVICE_END) != 0) ? " DeviceEnd" : "",
-					((this.cswUnitStatus & iDeviceStatus.UNIT_CHECK) != 0) ? " UnitCheck" : "",
-					((this.cswUnitStatus & iDeviceStatus.UNIT_EXCEPTION) != 0) ? " UnitException" : "",
-					((this.cswChannelStatus & iDeviceChannelStatus.INCORRECT_LENGTH) != 0) ? " IncorrectLength" : "",
-					((this.cswChannelStatus & iDeviceChannelStatus.PROGRAM_CHECK) != 0) ? " ProgramCheck" : ""
-					);
+			if (this.eventLogger.isLogging()) {
+				this.eventLogger.logLine(".. End of CCW interpetation for DEV %03X cswCC=%d (%s):%s%s%s%s%s%s%s%s%s",
+						this.devCuu, 
+						this.cswCC,
+						(result) ? "OK" : "FAIL",
+						(this.cswUnitStatus == 0 && this.cswChannelStatus == 0) ? " OK" : "",
+						((this.cswUnitStatus & iDeviceStatus.ATTENTION) != 0) ? " Attention" : "",
+						((this.cswUnitStatus & iDeviceStatus.STATUS_MODIFIER) != 0) ? " StatusModifier" : "",
+						((this.cswUnitStatus & iDeviceStatus.CHANNEL_END) != 0) ? " ChannelEnd" : "",
+						((this.cswUnitStatus & iDeviceStatus.DEVICE_END) != 0) ? " DeviceEnd" : "",
+						((this.cswUnitStatus & iDeviceStatus.UNIT_CHECK) != 0) ? " UnitCheck" : "",
+						((this.cswUnitStatus & iDeviceStatus.UNIT_EXCEPTION) != 0) ? " UnitException" : "",
+						((this.cswChannelStatus & iDeviceChannelStatus.INCORRECT_LENGTH) != 0) ? " IncorrectLength" : "",
+						((this.cswChannelStatus & iDeviceChannelStatus.PROGRAM_CHECK) != 0) ? " ProgramCheck" : ""
+						);
+			}
 			return result;
 		}
 	}
 
+	/*
+	** asynchronous execution of CCW chains
+	*/
+	
+	// is a CCW chain currently executed on a channel worker thread?
+	private volatile boolean asyncBusy = false;
+	
+	// did an asynchronous CCW chain end, with the completion interrupt not yet enqueued at the CPU?
+	private volatile boolean asyncEnded = false;
+	
+	// was the device signaled by HIO/HDV to terminate the running CCW chain?
+	private volatile boolean haltRequested = false;
+	
+	// signaled by the channel worker thread when the asynchronous CCW chain ended
+	private final Object asyncEndSignal = new Object();
+	
+	// the channel worker threads shared by all devices of all virtual machines
+	private static ExecutorService channelWorkers = null;
+	
+	private static synchronized ExecutorService getChannelWorkers() {
+		if (channelWorkers == null) {
+			channelWorkers = Executors.newCachedThreadPool(r -> {
+				Thread thr = new Thread(r, "Channel I/O");
+				thr.setDaemon(true);
+				return thr;
+			});
+		}
+		return channelWorkers;
+	}
+	
+	/**
+	 * Is a CCW chain started with {@link #startCAW(Runnable)} still being executed?
+	 * 
+	 * @return {@code true} if the device is busy with an asynchronous CCW chain.
+	 */
+	public boolean isBusy() {
+		return this.asyncBusy;
+	}
+	
+	/**
+	 * Signal the device to terminate the asynchronous CCW chain currently executed,
+	 * the chain will end after the CCW currently processed by the device.
+	 */
+	public void requestHalt() {
+		if (this.asyncBusy) { this.haltRequested = true; }
+	}
+	
+	/**
+	 * Wait until the asynchronous CCW chain currently executed (if any) has ended,
+	 * so the CSW and completion state of the device are no longer modified by the
+	 * channel worker thread.
+	 */
+	public void awaitIdle() {
+		synchronized(this.asyncEndSignal) {
+			while(this.asyncBusy) {
+				try {
+					this.asyncEndSignal.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Check if an asynchronous CCW chain ended since the last call, so its completion
+	 * interrupt must be enqueued at the CPU.
+	 * 
+	 * @return {@code true} if an asynchronous CCW chain ended with the completion
+	 *   interrupt still pending.
+	 */
+	public boolean checkAsyncEnded() {
+		if (!this.asyncEnded) { return false; }
+		this.asyncEnded = false;
+		return this.hasPendingCompletionInterrupt();
+	}
+	
+	/** Start the CCW chain specified by the CAW location on a channel worker thread.
+	 * <p>
+	 * The first CCW is checked synchronously: if it is not acceptable, nothing is started
+	 * and the caller must fall back to {@link #processCAW()}, which will reject the CCW
+	 * chain the same way. Otherwise the device is busy until the chain has ended, with the
+	 * final status being presented by the completion interrupt.
+	 * </p>
+	 * 
+	 * @param onEnd invoked on the channel worker thread after the chain has ended
+	 *   (the device is no longer busy at this point)
+	 * @return {@code true} if the CCW chain was started asynchronously.
+	 */
+	public boolean startCAW(Runnable onEnd) {
+		// get the CAW now, as the program may reuse the location after the SIO
+		final int caw
+			= ((this.mem[73] & 0xFF) << 16)
+			| ((this.mem[74] & 0xFF) << 8)
+			| (this.mem[75] & 0xFF);
+		final byte protectionKey = (byte)(this.mem[72] & 0xF0);
+		
+		// check the first CCW with the same rules as the chain interpretation
+		synchronized(this.devUnit) {
+			this.cswChannelStatus = 0;
+			this.currCD = false;
+			if (!this.resolveCcw(caw, true)) {
+				this.cswChannelStatus = 0;
+				return false;
+			}
+		}
+		
+		this.enqueueCompletionInterrupt = false;
+		this.asyncEnded = false;
+		this.haltRequested = false;
+		this.asyncBusy = true;
+		getChannelWorkers().execute(() -> {
+			try {
+				this.processFromAddress(caw, protectionKey);
+			} catch (RuntimeException e) {
+				this.eventLogger.logLine(".. Asynchronous CCW chain for DEV %03X aborted: %s", this.devCuu, e.getMessage());
+				this.cswUnitStatus |= iDeviceStatus.UNIT_CHECK | iDeviceStatus.CHANNEL_END;
+			} finally {
+				// the status of the ended chain is presented with the completion interrupt
+				this.cswCC = CC0;
+				this.enqueueCompletionInterrupt = true;
+				this.haltRequested = false;
+				this.asyncEnded = true;
+				synchronized(this.asyncEndSignal) {
+					this.asyncBusy = false;
+					this.asyncEndSignal.notifyAll();
+				}
+			}
+			onEnd.run();
+		});
+		return true;
+	}
+
+	// plans for CKD chains directly executable by the device (created on first use)
+	private CkdChainCache ckdChains = null;
+	
+	/** Process the CCW-chain at the given address like {@link #processFromAddress(int, byte)},
+	 * but executing the CKD chain shapes used by CMS for DIAGNOSE X'18' (SEEK, SET SECTOR,
+	 * SEARCH ID EQUAL, TIC *-8, READ resp. WRITE DATA) directly with the device if it
+	 * supports this (see {@link iCkdRecordIO}).
+	 * 
+	 * @param addr address of the (first) CCW to process with the device
+	 * @param protectionKey the protection key to use
+	 * @return true if the CCW(-chain) was successfully completed resp.
+	 *   false if some problem occurred.
+	 */
+	public boolean processDasdChain(int addr, byte protectionKey) {
+		if (!(this.devUnit instanceof iCkdRecordIO)) {
+			return this.processFromAddress(addr, protectionKey);
+		}
+		
+		synchronized(this.devUnit) {
+			if (this.ckdChains == null) { this.ckdChains = new CkdChainCache(); }
+			CkdChainCache.Plan plan = this.ckdChains.getPlan(this.mem, addr);
+			this.devUnit.resetState();
+			if (!plan.execute(this.mem, (iCkdRecordIO)this.devUnit)) {
+				return this.processFromAddress(addr, protectionKey);
+			}
+			
+			// set the CSW state as for a successful chain interpretation
+			this.enqueueCompletionInterrupt = true;
+			this.cswKey = protectionKey;
+			this.cswCCwAddress = plan.getLastCcwAddress() + 8;
+			this.cswCC = CC0;
+			this.cswUnitStatus = iDeviceStatus.DEVICE_END | iDeviceStatus.CHANNEL_END;
+			this.cswChannelStatus = 0;
+			this.cswCount = 0;
+			
+			this.eventLogger.logLine(".. Direct CKD chain at 0x%06X for DEV %03X: %d record(s) => OK",
+					addr, this.devCuu, plan.getRecordCount());
+			return true;
+		}
+	}
+
 	// fields and flags of the CCW currently active
 	private int currCcwAddress = 0; // setting this also sets cswCcwAddress (as curr + 8)
 	private boolean currCD = false;
@@ -544,16 +730,18 @@ public class DeviceHandler implements iDeviceIO, iInterruptSource {
 			this.currDataMemAddr = dataAddress;
 		}
 		
-		this.eventLogger.logLine(".. CCW @ 0x%06X :: 0x %02X%02X%02X%02X %02X%02X%02X%02X = cmd: 0x%02X ; data: 0x%06X ; len: %-5d ; flags: 0x%2X =%s%s%s%s%s",
-				ccwAddr,
-				this.mem[ccwAddr], this.mem[ccwAddr + 1], this.mem[ccwAddr + 2], this.mem[ccwAddr + 3],
-				this.mem[ccwAddr + 4], this.mem[ccwAddr + 5], this.mem[ccwAddr + 6], this.mem[ccwAddr + 7],
-				command, dataAddress, count, this.mem[ccwAddr + 4],
-				(this.currCD) ? " CD" : "",
-				(this.currCC) ? " CC" : "",
-				(this.currSLI) ? " SLI" : "",
-				(this.currSKIP) ? " SKIP" : "",
-				(this.currIDA) ? " IDA" : "");
+		if (this.eventLogger.isLogging()) {
+			this.eventLogger.logLine(".. CCW @ 0x%06X :: 0x %02X%02X%02X%02X %02X%02X%02X%02X = cmd: 0x%02X ; data: 0x%06X ; len: %-5d ; flags: 0x%2X =%s%s%s%s%s",
+					ccwAddr,
+					this.mem[ccwAddr], this.mem[ccwAddr + 1], this.mem[ccwAddr + 2], this.mem[ccwAddr + 3],
+					this.mem[ccwAddr + 4], this.mem[ccwAddr + 5], this.mem[ccwAddr + 6], this.mem[ccwAddr + 7],
+					command, dataAddress, count, this.mem[ccwAddr + 4],
+					(this.currCD) ? " CD" : "",
+					(this.currCC) ? " CC" : "",
+					(this.currSLI) ? " SLI" : "",
+					(this.currSKIP) ? " SKIP" : "",
+					(this.currIDA) ? " IDA" : "");
+		}
 		return true;
 	}
 	
@@ -587,13 +775,68 @@ public class DeviceHandler implements iDeviceIO, iInterruptSource {
 	// the channel transfer direction: device->memory(true) or memory->device(false)
 	private boolean transferDeviceToMemory = false;
 	
+	// the memory segments for direct access by the device and are we completing a direct transfer? 
+	private final MemorySegments directSegments = new MemorySegments();
+	private boolean directTransferDone = false;
+	
+	// implementation of iDeviceIO
+	@Override
+	public MemorySegments getDirectSegments() {
+		if (this.cswChannelStatus != 0 || this.currIDA || this.currSKIP) { return null; }
+		this.directSegments.reset(this.mem);
+		if (!this.directSegments.add(this.currDataMemAddr, this.currDataLen)) { return null; }
+		
+		// follow the data chaining without changing the interpretation state, leaving the
+		// detection of invalid CCWs to the chain interpretation (i.e. completeDirect())
+		boolean chainData = this.currCD;
+		int ccwAddr = this.cswCCwAddress;
+		while (chainData) {
+			if ((ccwAddr & 0x07) != 0 || ccwAddr < 0 || (ccwAddr + 8) > this.mem.length) { return null; }
+			if ((this.mem[ccwAddr] & 0x0F) == 0x08) {
+				ccwAddr = ((this.mem[ccwAddr + 1] & 0xFF) << 16)
+						| ((this.mem[ccwAddr + 2] & 0xFF) << 8)
+						| (this.mem[ccwAddr + 3] & 0xFF);
+				if ((ccwAddr & 0x07) != 0 || (ccwAddr + 8) > this.mem.length) { return null; }
+				if ((this.mem[ccwAddr] & 0x0F) == 0x08) { return null; }
+			}
+			int flags = this.mem[ccwAddr + 4] & 0xFF;
+			if ((flags & 0x14) != 0) { return null; } // SKIP or IDA
+			int dataAddress
+					= ((this.mem[ccwAddr + 1] & 0xFF) << 16)
+					| ((this.mem[ccwAddr + 2] & 0xFF) << 8)
+					| (this.mem[ccwAddr + 3] & 0xFF);
+			int count = ((this.mem[ccwAddr + 6] & 0xFF) << 8) | (this.mem[ccwAddr + 7] & 0xFF);
+			if (count == 0 || !this.directSegments.add(dataAddress, count)) { return null; }
+			chainData = (flags & 0x80) != 0;
+			ccwAddr += 8;
+		}
+		return this.directSegments;
+	}
+	
+	// implementation of iDeviceIO
+	@Override
+	public int completeDirect(int length) {
+		this.directTransferDone = true;
+		try {
+			return this.transfer(null, 0, length);
+		} finally {
+			this.directTransferDone = false;
+		}
+	}
+	
 	// implementation of iDeviceIO
 	@Override
 	public int transfer(byte[] devMemory, int offset, int length) {
 		
 		while(this.currDataLen > 0 && length > 0 && this.cswChannelStatus == 0) {
 			
-			if (length < 8 || this.currIDA) {
+			if (this.directTransferDone) {
+				// the device already accessed the data in memory, so only advance the transfer state 
+				int chunkSize = (length <= this.currDataLen) ? length : this.currDataLen;
+				this.currDataMemAddr += chunkSize;
+				length -= chunkSize;
+				this.currDataLen -= chunkSize;
+			} else if (length < 8 || this.currIDA) {
 				// transfer the next byte between memory and device
 				if (this.transferDeviceToMemory) {
 					if (!this.currSKIP) {
@@ -668,13 +911,15 @@ public class DeviceHandler implements iDeviceIO, iInterruptSource {
 		return -length; // we shouldn't logically get here ... but we must keep the compiler happy 
 	}
 	
-	private DeviceToMemoryByteWise deviceToMemoryByteWise = new DeviceToMemoryByteWise();
-	
-	private class DeviceToMemoryByteWise implements iDeviceIO {
+	/**
+	 * Common base for the transfers with a single memory area (no data chaining,
+	 * no indirect addressing, no skipping).
+	 */
+	private abstract class SingleAreaTransfer implements iDeviceIO {
 		
-		private byte[] theMem = null;
-		private int theDataMemAddr = 0;
-		private int theDataLen = 0;
+		protected byte[] theMem = null;
+		protected int theDataMemAddr = 0;
+		protected int theDataLen = 0;
 		
 		public iDeviceIO reInit(byte[] m, int addr, int len) {
 			this.theMem = m;
@@ -682,19 +927,26 @@ public class DeviceHandler implements iDeviceIO, iInterruptSource {
 			this.theDataLen = len;
 			return this;
 		}
-
+		
 		@Override
-		public int transfer(byte[] devMemory, int offset, int length) {
-			// transfer data
-			while(this.theDataLen > 0 && length > 0) {
-				this.theMem[this.theDataMemAddr++] = devMemory[offset++];
-				this.theDataLen--;
-				length--;
-			}
-			
+		public MemorySegments getDirectSegments() {
+			directSegments.reset(this.theMem);
+			if (!directSegments.add(this.theDataMemAddr, this.theDataLen)) { return null; }
+			return directSegments;
+		}
+		
+		@Override
+		public int completeDirect(int length) {
+			int chunkSize = (length <= this.theDataLen) ? length : this.theDataLen;
+			this.theDataMemAddr += chunkSize;
+			this.theDataLen -= chunkSize;
+			return this.outcome(length - chunkSize);
+		}
+		
+		// finalize the transfer, with 'length' being the remaining device data length
+		protected int outcome(int length) {
 			// save the unused data count of the current CCW into the CSW 
 			cswCount = this.theDataLen;
-
 			
 			// check for invalid length indication: here we set the basic state after the data
 			// transfer, which can be overruled by the device which possibly knows better
@@ -711,75 +963,47 @@ public class DeviceHandler implements iDeviceIO, iInterruptSource {
 			} else if (length == 0) {
 				return this.theDataLen;
 			}
+			
+			return -length; // we shouldn't logically get here ... but we must keep the compiler happy 
+		}
+	}
+	
+	private DeviceToMemoryByteWise deviceToMemoryByteWise = new DeviceToMemoryByteWise();
+	
+	private class DeviceToMemoryByteWise extends SingleAreaTransfer {
 		
-		return -length; // we shouldn't logically get here ... but we must keep the compiler happy 
+		@Override
+		public int transfer(byte[] devMemory, int offset, int length) {
+			// transfer data
+			while(this.theDataLen > 0 && length > 0) {
+				this.theMem[this.theDataMemAddr++] = devMemory[offset++];
+				this.theDataLen--;
+				length--;
+			}
+			return this.outcome(length);
 		}
 	}
 	
 	private DeviceToMemoryBlockWise deviceToMemoryBlockWise = new DeviceToMemoryBlockWise();
 	
-	private class DeviceToMemoryBlockWise implements iDeviceIO {
-		
-		private byte[] theMem = null;
-		private int theDataMemAddr = 0;
-		private int theDataLen = 0;
+	private class DeviceToMemoryBlockWise extends SingleAreaTransfer {
 		
-		public iDeviceIO reInit(byte[] m, int addr, int len) {
-			this.theMem = m;
-			this.theDataMemAddr = addr;
-			this.theDataLen = len;
-			return this;
-		}
-
 		@Override
 		public int transfer(byte[] devMemory, int offset, int length) {
 			// transfer data
 			int chunkSize = (length <= this.theDataLen) ? length : this.theDataLen;
 			System.arraycopy(devMemory, offset, this.theMem, this.theDataMemAddr, chunkSize);
 			this.theDataMemAddr += chunkSize;
-			offset += chunkSize;
 			length -= chunkSize;
 			this.theDataLen -= chunkSize;
-			
-			// save the unused data count of the current CCW into the CSW 
-			cswCount = this.theDataLen;
-
-			
-			// check for invalid length indication: here we set the basic state after the data
-			// transfer, which can be overruled by the device which possibly knows better
-			// (e.g. by filling a disk block with zeroes up to the device buffer length)
-			if (!currSLI && (this.theDataLen > 0 || length > 0)) {
-				cswChannelStatus |= iDeviceChannelStatus.INCORRECT_LENGTH;
-			}
-			
-			// compute the return value representing the transfer outcome
-			if (cswChannelStatus != 0) {
-				return -length;
-			} else if (this.theDataLen == 0) {
-				return -length;
-			} else if (length == 0) {
-				return this.theDataLen;
-			}
-		
-		return -length; // we shouldn't logically get here ... but we must keep the compiler happy 
+			return this.outcome(length);
 		}
 	}
 	
 	private MemoryToDeviceByteWise memoryToDeviceByteWise = new MemoryToDeviceByteWise();
 	
-	private class MemoryToDeviceByteWise implements iDeviceIO {
-		
-		private byte[] theMem = null;
-		private int theDataMemAddr = 0;
-		private int theDataLen = 0;
+	private class MemoryToDeviceByteWise extends SingleAreaTransfer {
 		
-		public iDeviceIO reInit(byte[] m, int addr, int len) {
-			this.theMem = m;
-			this.theDataMemAddr = addr;
-			this.theDataLen = len;
-			return this;
-		}
-
 		@Override
 		public int transfer(byte[] devMemory, int offset, int length) {
 			// transfer data
@@ -788,77 +1012,23 @@ public class DeviceHandler implements iDeviceIO, iInterruptSource {
 				this.theDataLen--;
 				length--;
 			}
-			
-			// save the unused data count of the current CCW into the CSW 
-			cswCount = this.theDataLen;
-
-			
-			// check for invalid length indication: here we set the basic state after the data
-			// transfer, which can be overruled by the device which possibly knows better
-			// (e.g. by filling a disk block with zeroes up to the device buffer length)
-			if (!currSLI && (this.theDataLen > 0 || length > 0)) {
-				cswChannelStatus |= iDeviceChannelStatus.INCORRECT_LENGTH;
-			}
-			
-			// compute the return value representing the transfer outcome
-			if (cswChannelStatus != 0) {
-				return -length;
-			} else if (this.theDataLen == 0) {
-				return -length;
-			} else if (length == 0) {
-				return this.theDataLen;
-			}
-		
-		return -length; // we shouldn't logically get here ... but we must keep the compiler happy 
+			return this.outcome(length);
 		}
 	}
 	
 	private MemoryToDeviceBlockWise memoryToDeviceBlockWise = new MemoryToDeviceBlockWise();
 	
-	private class MemoryToDeviceBlockWise implements iDeviceIO {
+	private class MemoryToDeviceBlockWise extends SingleAreaTransfer {
 		
-		private byte[] theMem = null;
-		private int theDataMemAddr = 0;
-		private int theDataLen = 0;
-		
-		public iDeviceIO reInit(byte[] m, int addr, int len) {
-			this.theMem = m;
-			this.theDataMemAddr = addr;
-			this.theDataLen = len;
-			return this;
-		}
-
 		@Override
 		public int transfer(byte[] devMemory, int offset, int length) {
 			// transfer data
 			int chunkSize = (length <= this.theDataLen) ? length : this.theDataLen;
 			System.arraycopy(this.theMem, this.theDataMemAddr, devMemory, offset, chunkSize);
 			this.theDataMemAddr += chunkSize;
-			offset += chunkSize;
 			length -= chunkSize;
 			this.theDataLen -= chunkSize;
-			
-			// save the unused data count of the current CCW into the CSW 
-			cswCount = this.theDataLen;
-
-			
-			// check for invalid length indication: here we set the basic state after the data
-			// transfer, which can be overruled by the device which possibly knows better
-			// (e.g. by filling a disk block with zeroes up to the device buffer length)
-			if (!currSLI && (this.theDataLen > 0 || length > 0)) {
-				cswChannelStatus |= iDeviceChannelStatus.INCORRECT_LENGTH;
-			}
-			
-			// compute the return value representing the transfer outcome
-			if (cswChannelStatus != 0) {
-				return -length;
-			} else if (this.theDataLen == 0) {
-				return -length;
-			} else if (length == 0) {
-				return this.theDataLen;
-			}
-		
-		return -length; // we shouldn't logically get here ... but we must keep the compiler happy 
+			return this.outcome(length);
 		}
 	}
 	
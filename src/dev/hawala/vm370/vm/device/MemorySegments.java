@@ -0,0 +1,133 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.vm.device;
+
+/**
+ * Direct view of the main memory areas addressed by a CCW resp. a data chained
+ * sequence of CCWs, allowing a device to access the data in place instead of
+ * transferring it through an own buffer (see {@link iDeviceIO#getDirectSegments()}).
+ * <p>
+ * Each segment is a contiguous range in the main memory array, the segments
+ * being ordered as the data chained CCWs, so a device may either work directly
+ * on the single segment (see {@link #isContiguous()}) or gather resp. scatter
+ * its data from resp. to all segments.
+ * </p>
+ * <p>
+ * The view is only valid until the transfer is completed with
+ * {@link iDeviceIO#completeDirect(int)}.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin/Germany, 2015
+ *
+ */
+public final class MemorySegments {
+
+	private byte[] memory = null;
+	private int count = 0;
+	private int[] offsets = new int[4];
+	private int[] lengths = new int[4];
+	private int totalLength = 0;
+
+	/**
+	 * @return the main memory array containing the segments.
+	 */
+	public byte[] getMemory() { return this.memory; }
+
+	/**
+	 * @return the number of segments.
+	 */
+	public int getCount() { return this.count; }
+
+	/**
+	 * @param idx the index of the segment.
+	 * @return the start offset in the memory array of the segment.
+	 */
+	public int getOffset(int idx) { return this.offsets[idx]; }
+
+	/**
+	 * @param idx the index of the segment.
+	 * @return the length of the segment.
+	 */
+	public int getLength(int idx) { return this.lengths[idx]; }
+
+	/**
+	 * @return the sum of the lengths of all segments.
+	 */
+	public int getTotalLength() { return this.totalLength; }
+
+	/**
+	 * @return {@code true} if the data area consists of a single segment.
+	 */
+	public boolean isContiguous() { return this.count == 1; }
+
+	/**
+	 * Copy the content of the segments into a contiguous buffer.
+	 *
+	 * @param dest the buffer to copy to.
+	 * @param destOffset the start position in {@code dest}.
+	 * @param length the max. number of bytes to copy.
+	 * @return the number of bytes copied.
+	 */
+	public int gather(byte[] dest, int destOffset, int length) {
+		int done = 0;
+		for (int i = 0; i < this.count && done < length; i++) {
+			int chunk = Math.min(this.lengths[i], length - done);
+			System.arraycopy(this.memory, this.offsets[i], dest, destOffset + done, chunk);
+			done += chunk;
+		}
+		return done;
+	}
+
+	/**
+	 * Copy the content of a contiguous buffer into the segments.
+	 *
+	 * @param src the buffer to copy from.
+	 * @param srcOffset the start position in {@code src}.
+	 * @param length the max. number of bytes to copy.
+	 * @return the number of bytes copied.
+	 */
+	public int scatter(byte[] src, int srcOffset, int length) {
+		int done = 0;
+		for (int i = 0; i < this.count && done < length; i++) {
+			int chunk = Math.min(this.lengths[i], length - done);
+			System.arraycopy(src, srcOffset + done, this.memory, this.offsets[i], chunk);
+			done += chunk;
+		}
+		return done;
+	}
+
+	// start a new set of segments in the given memory
+	void reset(byte[] mem) {
+		this.memory = mem;
+		this.count = 0;
+		this.totalLength = 0;
+	}
+
+	// add a segment, returning false if the segment is outside the memory
+	boolean add(int offset, int length) {
+		if (offset < 0 || length < 0 || (offset + length) > this.memory.length) { return false; }
+		if (this.count == this.offsets.length) {
+			int[] newOffsets = new int[this.count * 2];
+			int[] newLengths = new int[this.count * 2];
+			System.arraycopy(this.offsets, 0, newOffsets, 0, this.count);
+			System.arraycopy(this.lengths, 0, newLengths, 0, this.count);
+			this.offsets = newOffsets;
+			this.lengths = newLengths;
+		}
+		this.offsets[this.count] = offset;
+		this.lengths[this.count] = length;
+		this.count++;
+		this.totalLength += length;
+		return true;
+	}
+}
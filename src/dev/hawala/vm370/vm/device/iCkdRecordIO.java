@@ -0,0 +1,69 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.vm.device;
+
+/**
+ * Optional interface for CKD devices allowing to transfer the data area of a
+ * record directly between the device and main memory, bypassing the CCW
+ * interpretation.
+ * <p>
+ * A single record transfer is the equivalent of the CCW sequence
+ * SEEK / SEARCH ID EQUAL / TIC *-8 / READ DATA (resp. WRITE DATA) where the
+ * record is found on the first search and the data length of the record
+ * equals the CCW data count.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin/Germany, 2015
+ *
+ */
+public interface iCkdRecordIO {
+
+	/**
+	 * Check if the record data transfer can be done directly.
+	 *
+	 * @param seekCyl the cylinder to seek to.
+	 * @param seekHead the head to seek to.
+	 * @param searchCyl the cylinder of the search argument.
+	 * @param searchHead the head of the search argument.
+	 * @param recordNo the record number of the search argument.
+	 * @param length the data length of the record to transfer.
+	 * @param toDevice is the record data to be written (true) or read (false)?
+	 * @return {@code true} if the transfer can be done with
+	 *   {@link iCkdRecordIO#transferRecordData(int, int, int, int, int, int, boolean, byte[], int)},
+	 *   {@code false} if the generic CCW interpretation must be used.
+	 */
+	public boolean canTransferRecordData(
+			int seekCyl, int seekHead,
+			int searchCyl, int searchHead, int recordNo,
+			int length, boolean toDevice);
+
+	/**
+	 * Transfer the data area of a record between the device and main memory.
+	 *
+	 * @param seekCyl the cylinder to seek to.
+	 * @param seekHead the head to seek to.
+	 * @param searchCyl the cylinder of the search argument.
+	 * @param searchHead the head of the search argument.
+	 * @param recordNo the record number of the search argument.
+	 * @param length the data length of the record to transfer.
+	 * @param toDevice is the record data to be written (true) or read (false)?
+	 * @param mem the main memory.
+	 * @param memAddr the main memory address of the data area.
+	 * @return {@code true} if the record data was transferred.
+	 */
+	public boolean transferRecordData(
+			int seekCyl, int seekHead,
+			int searchCyl, int searchHead, int recordNo,
+			int length, boolean toDevice,
+			byte[] mem, int memAddr);
+}
@@ -53,4 +53,33 @@ public interface iDeviceIO {
 	 *      bytes not used in data transfer.
 	 */
 	public int transfer(byte[] devMemory, int offset, int length);
+	
+	/** Get direct access to the main memory areas of this I/O operation, allowing
+	 *  the device to read resp. write the data in place (possibly gathering resp.
+	 *  scattering along data chained CCWs) instead of using {@link #transfer(byte[], int, int)}.
+	 *  
+	 *  If the segments are used, the operation must be finished with
+	 *  {@link #completeDirect(int)} instead of calling {@link #transfer(byte[], int, int)}.
+	 *  
+	 *  Direct access is not possible if the memory is not addressed linearly (indirect
+	 *  addressing, skipping) or if the data passes a filter, in which case the data
+	 *  must be transferred with {@link #transfer(byte[], int, int)}.
+	 * 
+	 * @return the main memory segments of the I/O operation or {@code null} if
+	 *   direct access is not possible.
+	 */
+	default MemorySegments getDirectSegments() { return null; }
+	
+	/** Finish an I/O operation whose data was accessed directly in the memory segments
+	 *  returned by {@link #getDirectSegments()}, with the same effects on the channel
+	 *  state (CSW count, incorrect length) as a call to {@link #transfer(byte[], int, int)}
+	 *  with the given device data length.
+	 * 
+	 * @param length the length of the device's data area read or written through the segments
+	 * @return the remaining count of main memory area at the end of the transfer, see
+	 *   {@link #transfer(byte[], int, int)}.
+	 */
+	default int completeDirect(int length) {
+		throw new IllegalStateException("direct memory access not supported");
+	}
 }
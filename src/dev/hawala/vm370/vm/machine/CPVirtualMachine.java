@@ -727,8 +727,14 @@ public class CPVirtualMachine {
 			return;
 		}
 		
-		// execute the CCW chain
-		boolean ioOk = handler.processFromAddress(ccwAddr, _00); // protection key is a dummy...
+		// is an asynchronous CCW chain (started by SIO) still running on this device?
+		if (handler.isBusy()) {
+			this.cpu.setPswConditionCode((byte)2); // Channel or subchannel busy (like SIO)
+			return;
+		}
+		
+		// execute the CCW chain (directly on the device for the usual CMS chains)
+		boolean ioOk = handler.processDasdChain(ccwAddr, _00); // protection key is a dummy...
 		if (ioOk) {
 			this.cpu.setPswConditionCode((byte)0); // "I/O complete with no errors"
 			return;
@@ -797,6 +803,12 @@ public class CPVirtualMachine {
 			return;
 		}
 		
+		// is an asynchronous CCW chain (started by SIO) still running on this device?
+		if (handler.isBusy()) {
+			this.cpu.setPswConditionCode((byte)2); // Channel or subchannel busy (like SIO)
+			return;
+		}
+		
 		// execute the CCW chain
 		boolean ioOk = handler.processFromAddress(ccwAddr, _00); // protection key is a dummy...
 		if (ioOk) {
@@ -1077,6 +1089,38 @@ public class CPVirtualMachine {
 	public long getSioCount() { return this.sioCount; }
 	public long getSioNanoSecs() { return this.sioNanoSecs; }
 	
+	// execute SIO(F) CCW chains on channel worker threads? (configured by :ASYNCIO)
+	private volatile boolean asyncChannelMode = false;
+	
+	// signaled by channel worker threads when an asynchronous CCW chain ended
+	// resp. by devices when an asynchronous interrupt became pending
+	private final Object idleWakeupSignal = new Object();
+	private boolean idleWakeupPending = false; // guarded by 'idleWakeupSignal'
+	
+	public boolean isAsyncChannelMode() { return this.asyncChannelMode; }
+	
+	public void setAsyncChannelMode(boolean asyncChannelMode) { this.asyncChannelMode = asyncChannelMode; }
+	
+	// wake up the run loop if waiting in enabled wait state (invoked on a channel worker thread)
+	private void signalAsyncIoEnd() {
+		this.signalAsyncInterrupt();
+	}
+	
+	/**
+	 * Wake up the run loop of the virtual machine if it is idle in an enabled wait
+	 * state, so a device's asynchronous interrupt that just became pending is
+	 * noticed without waiting for the next idle check.
+	 * <p>
+	 * This method may be invoked on any thread.
+	 * </p>
+	 */
+	public void signalAsyncInterrupt() {
+		synchronized(this.idleWakeupSignal) {
+			this.idleWakeupPending = true;
+			this.idleWakeupSignal.notifyAll();
+		}
+	}
+	
 	/**
 	 * Process an I/O instruction.
 	 *  
@@ -1097,8 +1141,21 @@ public class CPVirtualMachine {
 		
 		case 0x9C00: // SIO - Start I/O
 		case 0x9C01: // SIOF - Start I/O Fast Release (not really supported, falling back to SIO)
+			if (dev.isBusy()) {
+				// an asynchronous CCW chain is still running on this device
+				this.cpu.setPswConditionCode((byte)2); // Channel or subchannel busy
+				break;
+			}
 			this.sioCount++;
 			long startNanosecs = System.nanoTime();
+			// in asynchronous channel mode: start the CCW chain on a channel worker thread
+			// (except for the console, whose I/O is coupled to the VM's command processing)
+			if (this.asyncChannelMode && dev != this.consoleDevice && dev.startCAW(this::signalAsyncIoEnd)) {
+				// the completion interrupt will be enqueued by the run loop when the chain has ended
+				this.cpu.setPswConditionCode((byte)0);
+				this.sioNanoSecs += System.nanoTime() - startNanosecs;
+				break;
+			}
 			// execute the CCW chain on this device
 			boolean ioOk = dev.processCAW();
 			// check the outcome of the I/O operation
@@ -1120,9 +1177,13 @@ public class CPVirtualMachine {
 			
 		case 0x9D00: // TIO - Test I/O
 		case 0x9D01: // CLRIO - Clear I/O (not really supported, falling back to TIO)
-			// as all I/O occurs synchronously, the case "Channel or subchannel busy"
-			// cannot occur, so only CC=1 (an interrupt is pending) or CC=0 (available,
+			// the case "Channel or subchannel busy" (CC=2) can only occur in asynchronous
+			// channel mode, else only CC=1 (an interrupt is pending) or CC=0 (available,
 			// meaning no interrupt pending) can be generated
+			if (dev.isBusy()) {
+				this.cpu.setPswConditionCode((byte)2); // Channel or subchannel busy
+				break;
+			}
 			if (!dev.hasPendingCompletionInterrupt() && !dev.hasPendingAsyncInterrupt()) {
 				// no interrupt pending => available
 				this.cpu.setPswConditionCode((byte)0);
@@ -1150,13 +1211,17 @@ public class CPVirtualMachine {
 			
 		case 0x9E00: // HIO - Halt I/O
 		case 0x9E01: // HDV - Halt Device
-			// all I/O operations are executed synchronously, so there is nothing to halt when
-			// this instruction is executed. Therefore, we fall back to the following state
+			// unless an asynchronous CCW chain is running (which is signaled to end after the
+			// current CCW and waited for, so the worker thread does not modify the CSW
+			// while it is stored), all I/O operations are executed synchronously, so there is nothing
+			// to halt when this instruction is executed. Therefore, we fall back to the following state
 			// (see "programming note" for HDV in PrincOps-1975, p. 202):
 			//    Condition Code 1 with Zeros in the Status
 			//    Field of the CSW indicates that the addressed
 			//    device is selected and signaled to terminate the
 			//    current operation, if any.
+			dev.requestHalt();
+			dev.awaitIdle();
 			dev.storeCSW();                    // let the device store its own status
 			this.cpu.pokeMainMem(68, (byte)0); // overwrite the bytes ...
 			this.cpu.pokeMainMem(69, (byte)0); // ... of the status field
@@ -1486,16 +1551,25 @@ public class CPVirtualMachine {
 			
 			// check for new async interrupts from devices
 			// (completion interrupts are managed by I/O instructions!)
+			// (completion interrupts of asynchronous CCW chains are enqueued here when the chain ended)
+			synchronized(this.idleWakeupSignal) {
+				this.idleWakeupPending = false; // the devices are checked now
+			}
 			for (DeviceHandler d : this.devices) {
-				if (d.hasPendingAsyncInterrupt()) {
+				if (d.hasPendingAsyncInterrupt() || d.checkAsyncEnded()) {
 					this.cpu.enqueueInterrupt(d); // this one ignores interrupt sources already enqueued 
 				}
 			}
 			
 			// if CPU is in enabled wait state and no enabled interrupt pending: wait a while and repeat above
+			// (waking up early if an asynchronous CCW chain ends or a device signals an asynchronous interrupt)
 			if (this.cpu.isInEnabledWaitState() && !this.cpu.hasEnabledInterrupt()) {
 				try {
-					Thread.sleep(IDLE_MSECS_FOR_ENABLED_WAIT);
+					synchronized(this.idleWakeupSignal) {
+						if (!this.idleWakeupPending) {
+							this.idleWakeupSignal.wait(IDLE_MSECS_FOR_ENABLED_WAIT);
+						}
+					}
 				} catch (InterruptedException e) {
 					return true;
 				}
@@ -12,6 +12,7 @@
 
 package dev.hawala.vm370.vm.machine;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -219,6 +220,7 @@ public abstract class Cpu370Bc implements iProcessorEventTracker {
 	 * @throws PSWException if the resulting PSW state is invalid for the CPU.
 	 */
 	protected void doProgramInterrupt(short intrCode) throws PSWException {
+		if (this.insnTrace != null) { this.insnTrace.programCheck(intrCode); }
 		this.initiateInterrupt(
 				40,    // (decimal) location of program interrupt old PSW
 				104,   // (decimal) location of program interrupt new PSW
@@ -702,6 +704,53 @@ public abstract class Cpu370Bc implements iProcessorEventTracker {
 	
 	public boolean hasInstructionStatistics() { return INSNS_LOG; }
 	
+	/*
+	** binary instruction trace (independent of the logging above)
+	*/
+	
+	// the trace ring buffer, null if not tracing
+	private InsnTraceRing insnTrace = null;
+	
+	/**
+	 * Start recording the executed instructions into a binary ring buffer,
+	 * replacing a currently active trace.
+	 * 
+	 * @param megabytes the size of the ring buffer in MByte.
+	 * @param programCheckPrefix if not {@code null}: the file name prefix for
+	 *   automatically dumping the trace when a program check occurs.
+	 */
+	public void startInsnTrace(int megabytes, String programCheckPrefix) {
+		this.insnTrace = new InsnTraceRing(megabytes, programCheckPrefix);
+	}
+	
+	/**
+	 * Stop recording executed instructions, releasing the ring buffer.
+	 */
+	public void stopInsnTrace() {
+		this.insnTrace = null;
+	}
+	
+	/**
+	 * @return is the binary instruction trace active?
+	 */
+	public boolean isInsnTracing() {
+		return (this.insnTrace != null);
+	}
+	
+	/**
+	 * Write the instructions currently in the trace ring buffer to a file,
+	 * which can be decoded with {@link InsnTraceDecoder}.
+	 * 
+	 * @param filename the name of the trace file.
+	 * @return the number of instructions written, -1 if not tracing.
+	 * @throws IOException if writing the file fails.
+	 */
+	public int dumpInsnTrace(String filename) throws IOException {
+		InsnTraceRing trace = this.insnTrace;
+		if (trace == null) { return -1; }
+		return trace.dump(filename);
+	}
+	
 	private static final String[] _insnModes = { "??", "RR", "RX", "RS", "SI", "SS" };
 	
 	private static class InsnStat implements Comparable<InsnStat> {
@@ -1023,6 +1072,11 @@ public abstract class Cpu370Bc implements iProcessorEventTracker {
 			this.checkBreakpoints();
 			this.checkWatches();
 			
+			// record the instruction if tracing
+			if (this.insnTrace != null) {
+				this.insnTrace.record(this.mem, this.pswInstructionAddress, this.pswConditionCode, this.gpr);
+			}
+			
 			// process the instruction at the current PSW-IA location
 			int outcome= this.execInstruction(0);
 			
@@ -0,0 +1,219 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.vm.machine;
+
+import java.io.PrintStream;
+
+/**
+ * Event tracker recording the events in a ring buffer in binary form, i.e. as
+ * the reference to the printf-like pattern and the raw argument values, with the
+ * text for an event being produced only when the ring buffer is dumped or when
+ * events are written out live.
+ * <p>
+ * Events logged through the primitive overloads of {@code logLine()} are recorded
+ * without any allocation, and no event costs more than checking the level if
+ * tracing is off.
+ * </p>
+ * <p>
+ * The tracing level can be changed at any time, the ring buffer being preserved
+ * when switching the level.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ *
+ */
+public class EventRing implements iProcessorEventTracker {
+
+	/**
+	 * Tracing level of the event ring.
+	 */
+	public enum Level {
+		/** events are ignored */
+		OFF,
+		/** events are recorded in the ring buffer */
+		RING,
+		/** events are recorded in the ring buffer and written out immediately */
+		LIVE
+	}
+
+	// default number of events kept in the ring buffer
+	private static final int DEFAULT_CAPACITY = 4096;
+
+	// max. number of int arguments of an event logged with the primitive overloads
+	private static final int MAX_INTS = 3;
+
+	// marker for an event logged with the Object-varargs method
+	private static final byte VARARGS = -1;
+
+	// where to write out events at level LIVE
+	private final iProcessorEventTracker liveTarget;
+
+	private final int capacity;
+
+	// the recorded events
+	private final String[] patterns;
+	private final byte[] intCounts; // number of int arguments resp. VARARGS
+	private final String[] strArgs; // leading string argument (may be null)
+	private final int[] intArgs;    // MAX_INTS entries per event
+	private final Object[][] objArgs;
+
+	// position of the next event to record and number of events recorded so far
+	private int next = 0;
+	private long total = 0;
+
+	private volatile Level level = Level.OFF;
+
+	/**
+	 * Construct the event ring with the default capacity.
+	 *
+	 * @param liveTarget the tracker to write out the events at level LIVE.
+	 */
+	public EventRing(iProcessorEventTracker liveTarget) {
+		this(liveTarget, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Construct the event ring.
+	 *
+	 * @param liveTarget the tracker to write out the events at level LIVE.
+	 * @param capacity the number of events kept in the ring buffer.
+	 */
+	public EventRing(iProcessorEventTracker liveTarget, int capacity) {
+		this.liveTarget = liveTarget;
+		this.capacity = capacity;
+		this.patterns = new String[capacity];
+		this.intCounts = new byte[capacity];
+		this.strArgs = new String[capacity];
+		this.intArgs = new int[capacity * MAX_INTS];
+		this.objArgs = new Object[capacity][];
+	}
+
+	public Level getLevel() { return this.level; }
+
+	public void setLevel(Level level) { this.level = level; }
+
+	@Override
+	public boolean isLogging() { return this.level != Level.OFF; }
+
+	@Override
+	public void logLine(String line, Object... args) {
+		if (this.level == Level.OFF) { return; }
+		synchronized(this) {
+			int pos = this.advance(line, VARARGS, null);
+			this.objArgs[pos] = args;
+		}
+		if (this.level == Level.LIVE) { this.liveTarget.logLine(line, args); }
+	}
+
+	@Override
+	public void logLine(String line) {
+		if (this.level == Level.OFF) { return; }
+		this.record(line, null, 0, 0, 0, 0);
+	}
+
+	@Override
+	public void logLine(String line, int arg1) {
+		if (this.level == Level.OFF) { return; }
+		this.record(line, null, 1, arg1, 0, 0);
+	}
+
+	@Override
+	public void logLine(String line, int arg1, int arg2) {
+		if (this.level == Level.OFF) { return; }
+		this.record(line, null, 2, arg1, arg2, 0);
+	}
+
+	@Override
+	public void logLine(String line, int arg1, int arg2, int arg3) {
+		if (this.level == Level.OFF) { return; }
+		this.record(line, null, 3, arg1, arg2, arg3);
+	}
+
+	@Override
+	public void logLine(String line, String str, int arg1) {
+		if (this.level == Level.OFF) { return; }
+		this.record(line, str, 1, arg1, 0, 0);
+	}
+
+	@Override
+	public void logLine(String line, String str, int arg1, int arg2) {
+		if (this.level == Level.OFF) { return; }
+		this.record(line, str, 2, arg1, arg2, 0);
+	}
+
+	private void record(String line, String str, int intCount, int arg1, int arg2, int arg3) {
+		int pos;
+		synchronized(this) {
+			pos = this.advance(line, (byte)intCount, str);
+			int argPos = pos * MAX_INTS;
+			this.intArgs[argPos] = arg1;
+			this.intArgs[argPos + 1] = arg2;
+			this.intArgs[argPos + 2] = arg3;
+			this.objArgs[pos] = null;
+		}
+		if (this.level == Level.LIVE) { this.liveTarget.logLine(line, this.decodeArgs(pos)); }
+	}
+
+	// claim the next ring position, returning its index
+	private int advance(String line, byte intCount, String str) {
+		int pos = this.next;
+		this.patterns[pos] = line;
+		this.intCounts[pos] = intCount;
+		this.strArgs[pos] = str;
+		this.next = (pos + 1) % this.capacity;
+		this.total++;
+		return pos;
+	}
+
+	// produce the printf-arguments of the event at the ring position
+	private Object[] decodeArgs(int pos) {
+		int intCount = this.intCounts[pos];
+		if (intCount == VARARGS) { return this.objArgs[pos]; }
+		boolean hasStr = (this.strArgs[pos] != null);
+		Object[] args = new Object[intCount + (hasStr ? 1 : 0)];
+		int argIdx = 0;
+		if (hasStr) { args[argIdx++] = this.strArgs[pos]; }
+		for (int i = 0; i < intCount; i++) {
+			args[argIdx++] = this.intArgs[pos * MAX_INTS + i];
+		}
+		return args;
+	}
+
+	/**
+	 * Write out the most recent events in the ring buffer as text lines.
+	 *
+	 * @param out the target stream.
+	 * @param maxCount the max. number of events to write (the most recent ones).
+	 * @return the number of events written.
+	 */
+	public synchronized int dump(PrintStream out, int maxCount) {
+		int count = (int)Math.min(Math.min(this.total, this.capacity), maxCount);
+		int pos = (this.next - count + this.capacity) % this.capacity;
+		for (int i = 0; i < count; i++) {
+			String text;
+			try {
+				text = String.format(this.patterns[pos], this.decodeArgs(pos));
+			} catch (RuntimeException e) {
+				text = this.patterns[pos]; // pattern not matching the arguments
+			}
+			out.println(text);
+			pos = (pos + 1) % this.capacity;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the total number of events recorded since the creation of this ring.
+	 */
+	public synchronized long getTotalCount() { return this.total; }
+}
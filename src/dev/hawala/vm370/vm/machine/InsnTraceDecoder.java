@@ -0,0 +1,141 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.vm.machine;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Standalone decoder for instruction trace files written by the
+ * instruction trace ring of a CPU (see {@link Cpu370Bc#startInsnTrace(int, String)}),
+ * producing the same text lines as the instruction logging of the CPU.
+ * <p>
+ * Usage: {@code InsnTraceDecoder <trace-file> [max-lines]} , with the most
+ * recent instructions being written if the number of lines is limited.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ *
+ */
+public class InsnTraceDecoder {
+
+	// placeholder for floating point register contents, which are not traced
+	private static final String NO_FPR = "?";
+
+	/**
+	 * Decode a single traced instruction.
+	 *
+	 * @param e0 first long of the trace entry (address, cc, R1 content).
+	 * @param e1 second long of the trace entry (instruction bytes, count of bytes beyond the end of memory).
+	 * @param e2 third long of the trace entry (operand addresses resp. R2 content).
+	 * @return the text line for the instruction.
+	 */
+	public static String decode(long e0, long e1, long e2) {
+		int at = (int)(e0 & 0x00FFFFFF);
+		int cc = (int)((e0 >> 24) & 0x03);
+		int op1 = (int)(e0 >>> 32);
+		int opcode = (int)((e1 >> 40) & 0xFF);
+		int b1 = (int)((e1 >> 32) & 0xFF);
+		int b2 = (int)((e1 >> 24) & 0xFF);
+		int b3 = (int)((e1 >> 16) & 0xFF);
+		int b4 = (int)((e1 >> 8) & 0xFF);
+		int b5 = (int)(e1 & 0xFF);
+		int missing = (int)((e1 >> 48) & 0x07);
+		int addr1 = (int)(e2 >>> 32);
+		int addr2 = (int)e2;
+
+		String pattern = Cpu370Bc._insnformatpatterns[opcode];
+		String mnemonic = Cpu370Bc._mnemonics[opcode];
+		Byte insn = (byte)opcode;
+		int r1 = b1 >> 4;
+		int r2 = b1 & 0x0F;
+		int ddd1 = ((b2 & 0x0F) << 8) | b3;
+		Object[] args;
+		if (opcode < 0x40) {
+			// RR: r1, op1, r2, op2 [, fpr1, fpr2]
+			args = new Object[] { mnemonic, insn, at, r1, op1, r2, addr2, NO_FPR, NO_FPR };
+		} else if (opcode < 0x80 || opcode == 0xB1) {
+			// RX (including LRA): r1, op1, ddd2, x2, b2, addr2 [, fpr]
+			args = new Object[] { mnemonic, insn, at, r1, op1, ddd1, r2, b2 >> 4, addr2, NO_FPR };
+		} else if (opcode < 0xC0 && (pattern.contains("[SI]") || pattern.contains("[S ]"))) {
+			// SI: ddd1, b1, i2, addr1
+			args = new Object[] { mnemonic, insn, at, ddd1, b2 >> 4, b1, addr1 };
+		} else if (opcode < 0xC0) {
+			// RS: r1, r3, ddd2, b2, addr2
+			args = new Object[] { mnemonic, insn, at, r1, r2, ddd1, b2 >> 4, addr2 };
+		} else {
+			// SS: ddd1, l1, b1, ddd2, l2, b2, ll, addr1, addr2
+			int ddd2 = ((b4 & 0x0F) << 8) | b5;
+			args = new Object[] { mnemonic, insn, at, ddd1, r1, b2 >> 4, ddd2, r2, b4 >> 4, b1, addr1, addr2 };
+		}
+
+		String line = String.format(pattern, args);
+		if (missing > 0) {
+			// the instruction did not fit into memory, the missing bytes were traced as zeros
+			line += String.format("   [truncated: %d bytes missing]", missing);
+		}
+		return line + String.format("   [cc=%d]", cc);
+	}
+
+	/**
+	 * Decode a trace file.
+	 *
+	 * @param filename the trace file.
+	 * @param maxLines the max. number of lines to write (the most recent instructions).
+	 * @param out the target for the text lines.
+	 * @return the number of instructions decoded.
+	 * @throws IOException if the file cannot be read or is not an instruction trace.
+	 */
+	public static long decodeFile(String filename, long maxLines, PrintStream out) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 65536))) {
+			if (in.readLong() != InsnTraceRing.FILE_MAGIC) {
+				throw new IOException("Not an instruction trace file: " + filename);
+			}
+			long count = in.readLong();
+			long skip = Math.max(0, count - maxLines);
+			for (long i = 0; i < skip; i++) {
+				if (in.skipBytes(8 * InsnTraceRing.LONGS_PER_ENTRY) != 8 * InsnTraceRing.LONGS_PER_ENTRY) {
+					throw new EOFException("Truncated instruction trace file: " + filename);
+				}
+			}
+			long decoded = 0;
+			for (long i = skip; i < count; i++) {
+				long e0 = in.readLong();
+				long e1 = in.readLong();
+				long e2 = in.readLong();
+				out.println(decode(e0, e1, e2));
+				decoded++;
+			}
+			return decoded;
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage: InsnTraceDecoder <trace-file> [max-lines]");
+			return;
+		}
+		try {
+			long maxLines = (args.length > 1) ? Long.parseLong(args[1]) : Long.MAX_VALUE;
+			decodeFile(args[0], maxLines, System.out);
+		} catch (NumberFormatException e) {
+			System.out.printf("Invalid max-lines: %s\n", args[1]);
+		} catch (IOException e) {
+			System.out.printf("Error: %s\n", e.getMessage());
+		}
+	}
+}
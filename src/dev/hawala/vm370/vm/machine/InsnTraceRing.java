@@ -0,0 +1,177 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.vm.machine;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Ring buffer recording the instructions executed by a CPU in binary form.
+ * <p>
+ * Each instruction is recorded as 3 long values:
+ * </p>
+ * <ul>
+ * <li>the instruction address (bits 0..23), the condition code before executing
+ * the instruction (bits 24..25) and the content of the register addressed by the
+ * R1 field (bits 32..63)</li>
+ * <li>the (up to 6) instruction bytes, left-aligned in the lower 48 bits, and the
+ * number of instruction bytes beyond the end of memory (bits 48..50), which are
+ * recorded as zeros</li>
+ * <li>the first operand address (bits 32..63) and the second operand address resp.
+ * the content of the R2 register for RR instructions (bits 0..31)</li>
+ * </ul>
+ * <p>
+ * The operand addresses are computed from the registers before the instruction
+ * is executed, so the trace can be decoded with the instruction bytes alone
+ * (see {@link InsnTraceDecoder}).
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ *
+ */
+class InsnTraceRing {
+
+	// identification of a dump file
+	static final long FILE_MAGIC = 0x454D58495452_3031L; // "EMXITR01"
+
+	// number of longs per recorded instruction
+	static final int LONGS_PER_ENTRY = 3;
+
+	// max. size of the ring buffer
+	static final int MAX_MEGABYTES = 1024;
+
+	// max. number of dumps written for program checks
+	private static final int MAX_PROGRAM_CHECK_DUMPS = 16;
+
+	private final long[] ring;
+	private final int entries;
+	private int next = 0;
+	private long total = 0;
+
+	// file name prefix for dumps at program checks (null: no dumps)
+	private final String programCheckPrefix;
+	private int programCheckDumps = 0;
+
+	InsnTraceRing(int megabytes, String programCheckPrefix) {
+		if (megabytes < 1 || megabytes > MAX_MEGABYTES) {
+			throw new IllegalArgumentException("Invalid instruction trace size (1.." + MAX_MEGABYTES + " MByte)");
+		}
+		this.entries = (int)(((long)megabytes * 1024 * 1024) / (8 * LONGS_PER_ENTRY));
+		this.ring = new long[this.entries * LONGS_PER_ENTRY];
+		this.programCheckPrefix = programCheckPrefix;
+	}
+
+	/**
+	 * Record the instruction at the current PSW instruction address.
+	 *
+	 * @param mem the CPU memory.
+	 * @param at the instruction address.
+	 * @param cc the current condition code.
+	 * @param gpr the general purpose registers.
+	 */
+	void record(byte[] mem, int at, int cc, int[] gpr) {
+		int opcode = mem[at] & 0xFF;
+		int length = (opcode < 0x40) ? 2 : (opcode < 0xC0) ? 4 : 6;
+		int missing = Math.max(0, at + length - mem.length);
+		int b1 = insnByte(mem, at + 1);
+		long insnBytes = ((long)missing << 48) | ((long)opcode << 40) | ((long)b1 << 32);
+		int r1 = b1 >> 4;
+		int addr1 = 0;
+		int addr2 = 0;
+		if (opcode < 0x40) {
+			// RR: second operand is the register content
+			addr2 = gpr[b1 & 0x0F];
+		} else {
+			int b2 = insnByte(mem, at + 2);
+			int b3 = insnByte(mem, at + 3);
+			insnBytes |= ((long)b2 << 24) | ((long)b3 << 16);
+			int base = b2 >> 4;
+			int displ = ((b2 & 0x0F) << 8) | b3;
+			int baseAddr = ((base == 0) ? 0 : gpr[base]) + displ;
+			if (opcode < 0x80 || opcode == 0xB1) {
+				// RX (including LRA): second operand address with index
+				int index = b1 & 0x0F;
+				addr2 = (baseAddr + ((index == 0) ? 0 : gpr[index])) & 0x00FFFFFF;
+			} else if (opcode < 0xC0) {
+				// RS or SI: the address is the first resp. second operand
+				addr1 = baseAddr & 0x00FFFFFF;
+				addr2 = addr1;
+			} else {
+				// SS: both operands are addresses
+				int b4 = insnByte(mem, at + 4);
+				int b5 = insnByte(mem, at + 5);
+				insnBytes |= ((long)b4 << 8) | b5;
+				addr1 = baseAddr & 0x00FFFFFF;
+				int base2 = b4 >> 4;
+				addr2 = (((base2 == 0) ? 0 : gpr[base2]) + (((b4 & 0x0F) << 8) | b5)) & 0x00FFFFFF;
+			}
+		}
+
+		int pos = this.next * LONGS_PER_ENTRY;
+		this.ring[pos] = ((long)gpr[r1] << 32) | ((long)(cc & 0x03) << 24) | (at & 0x00FFFFFF);
+		this.ring[pos + 1] = insnBytes;
+		this.ring[pos + 2] = ((long)addr1 << 32) | (addr2 & 0xFFFFFFFFL);
+		this.next++;
+		if (this.next >= this.entries) { this.next = 0; }
+		this.total++;
+	}
+
+	// get an instruction byte, zero if the instruction is truncated by the end of memory
+	private static int insnByte(byte[] mem, int addr) {
+		return (addr < mem.length) ? mem[addr] & 0xFF : 0;
+	}
+
+	/**
+	 * Write the recorded instructions (oldest first) to a file.
+	 *
+	 * @param filename the name of the dump file.
+	 * @return the number of instructions written.
+	 * @throws IOException if writing the file fails.
+	 */
+	int dump(String filename) throws IOException {
+		int count = (int)Math.min(this.total, this.entries);
+		int pos = (this.next - count + this.entries) % this.entries;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 65536))) {
+			out.writeLong(FILE_MAGIC);
+			out.writeLong(count);
+			for (int i = 0; i < count; i++) {
+				int p = pos * LONGS_PER_ENTRY;
+				for (int j = 0; j < LONGS_PER_ENTRY; j++) {
+					out.writeLong(this.ring[p + j]);
+				}
+				pos++;
+				if (pos >= this.entries) { pos = 0; }
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Dump the trace for a program check if requested when the trace was started.
+	 *
+	 * @param intrCode the program interrupt code.
+	 */
+	void programCheck(short intrCode) {
+		if (this.programCheckPrefix == null || this.programCheckDumps >= MAX_PROGRAM_CHECK_DUMPS) { return; }
+		this.programCheckDumps++;
+		String filename = String.format("%s-pgmchk%02d-%04X.itrc", this.programCheckPrefix, this.programCheckDumps, intrCode);
+		try {
+			int count = this.dump(filename);
+			System.out.printf("** program check 0x%04X: %d instructions traced to file '%s'\n", intrCode, count, filename);
+		} catch (IOException e) {
+			System.out.printf("** program check 0x%04X: unable to write instruction trace file '%s': %s\n", intrCode, filename, e.getMessage());
+		}
+	}
+}
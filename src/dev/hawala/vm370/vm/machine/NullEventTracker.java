@@ -0,0 +1,59 @@
+/*
+** This file is part of the emx370 emulator.
+**
+** This software is provided "as is" in the hope that it will be useful,
+** with no promise, commitment or even warranty (explicit or implicit)
+** to be suited or usable for any particular purpose.
+** Using this software is at your own risk!
+**
+** Written by Dr. Hans-Walter Latz, Berlin (Germany), 2015
+** Released to the public domain.
+*/
+
+package dev.hawala.vm370.vm.machine;
+
+/**
+ * A /dev/null event tracker ignoring all events, to be used by devices
+ * not having an event tracker.
+ * <p>
+ * All overloads of {@code logLine()} are no-ops and {@code isLogging()}
+ * returns {@code false}, so events logged with the primitive overloads
+ * cost neither an argument array nor boxing the values.
+ * </p>
+ *
+ * @author Dr. Hans-Walter Latz, Berlin (Germany), 2015
+ *
+ */
+public final class NullEventTracker implements iProcessorEventTracker {
+
+	/**
+	 * The (stateless) singleton instance.
+	 */
+	public static final NullEventTracker INSTANCE = new NullEventTracker();
+
+	private NullEventTracker() { }
+
+	@Override
+	public boolean isLogging() { return false; }
+
+	@Override
+	public void logLine(String line, Object... args) { }
+
+	@Override
+	public void logLine(String line) { }
+
+	@Override
+	public void logLine(String line, int arg1) { }
+
+	@Override
+	public void logLine(String line, int arg1, int arg2) { }
+
+	@Override
+	public void logLine(String line, int arg1, int arg2, int arg3) { }
+
+	@Override
+	public void logLine(String line, String str, int arg1) { }
+
+	@Override
+	public void logLine(String line, String str, int arg1, int arg2) { }
+}
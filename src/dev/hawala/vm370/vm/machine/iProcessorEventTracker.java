@@ -31,4 +31,31 @@ public interface iProcessorEventTracker {
 	 */
 	public void logLine(String line, Object... args);
 	
+	/**
+	 * Check if events are currently logged, allowing to skip the preparation
+	 * of expensive event arguments.
+	 * 
+	 * @return {@code false} if logged events are currently ignored.
+	 */
+	default boolean isLogging() { return true; }
+	
+	/*
+	 * overloads for events without or with int arguments only, avoiding the
+	 * allocation of the argument array and boxing the values if not logging
+	 * (attention: byte arguments are widened to int by these overloads, so these
+	 * must be masked with 0xFF if formatted as hex values)
+	 */
+	
+	default void logLine(String line) { this.logLine(line, new Object[0]); }
+	
+	default void logLine(String line, int arg1) { this.logLine(line, new Object[] { arg1 }); }
+	
+	default void logLine(String line, int arg1, int arg2) { this.logLine(line, new Object[] { arg1, arg2 }); }
+	
+	default void logLine(String line, int arg1, int arg2, int arg3) { this.logLine(line, new Object[] { arg1, arg2, arg3 }); }
+	
+	default void logLine(String line, String str, int arg1) { this.logLine(line, new Object[] { str, arg1 }); }
+	
+	default void logLine(String line, String str, int arg1, int arg2) { this.logLine(line, new Object[] { str, arg1, arg2 }); }
+	
 }